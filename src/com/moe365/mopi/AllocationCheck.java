@@ -0,0 +1,349 @@
+package com.moe365.mopi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.capture.FramePool;
+import com.moe365.mopi.geom.PreciseRectangle;
+import com.moe365.mopi.processing.AbstractImageProcessor;
+
+/**
+ * Checks that the frame loop doesn't allocate (or collect garbage) more
+ * than it used to. The Pi has a small heap, so every extra allocation per
+ * frame turns into GC pauses on the field.
+ * <p>
+ * Synthetic frame pairs (see {@link Warmup}) are pushed through the same
+ * paths that camera frames take: as JPEGs in pooled frames, through the
+ * processor (so decoding counts), then offered to the MJPEG and SSE streams
+ * (with a client attached to each, over loopback, so that the server thread
+ * really sends them), and the Rio packet writer (in dry run mode). They are
+ * run first unmeasured so that the JIT settles, and then measured. The
+ * bytes allocated by every thread and the collections
+ * run while measuring are compared against a budget, which is read from
+ * <code>/resources/allocation-budget.properties</code>, or from a file
+ * given with <kbd>--alloc-budget</kbd>. Keys that aren't in the budget
+ * aren't checked.
+ * </p>
+ * <p>
+ * Run with <kbd>--test alloc</kbd>; the process exits with status 1 if
+ * anything is over budget.
+ * </p>
+ */
+public class AllocationCheck {
+	/**
+	 * A stage of the frame loop, and what it allocated
+	 */
+	protected static class Stage {
+		protected final String key;
+		protected final String unit;
+		protected long bytes = 0;
+		protected long count = 0;
+
+		protected Stage(String key, String unit) {
+			this.key = key;
+			this.unit = unit;
+		}
+
+		/**
+		 * @return bytes allocated per unit
+		 */
+		protected double getBytesPer() {
+			return count == 0 ? 0 : ((double) bytes) / count;
+		}
+	}
+
+	/**
+	 * Longest to wait for the server to send something, in nanoseconds
+	 */
+	protected static final long SEND_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+	/**
+	 * How often to check whether the server has sent something, in
+	 * nanoseconds
+	 */
+	protected static final long SEND_POLL = TimeUnit.MICROSECONDS.toNanos(50);
+
+	protected final Warmup pairs;
+	/**
+	 * Frames that the pairs are pushed through
+	 */
+	protected final FramePool frames = new FramePool(2);
+	protected final Properties budget;
+	protected final com.sun.management.ThreadMXBean threads;
+	/**
+	 * Number of pairs to run, without measuring, before measuring
+	 */
+	protected final int warmupPairs;
+	/**
+	 * Number of pairs to measure
+	 */
+	protected final int measuredPairs;
+	/**
+	 * Bytes allocated by {@link #getAllocatedBytes()} itself
+	 */
+	protected long overhead = 0;
+
+	/**
+	 * Create a check
+	 * @param pairs synthetic pairs (already generated)
+	 * @param budget the budget to check against
+	 * @param warmupPairs number of pairs to run before measuring
+	 * @param measuredPairs number of pairs to measure
+	 */
+	public AllocationCheck(Warmup pairs, Properties budget, int warmupPairs, int measuredPairs) {
+		this.pairs = pairs;
+		this.budget = budget;
+		this.warmupPairs = warmupPairs;
+		this.measuredPairs = measuredPairs;
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			this.threads = (com.sun.management.ThreadMXBean) bean;
+			this.threads.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			this.threads = null;
+		}
+	}
+
+	/**
+	 * Load a budget
+	 * @param file file to load from, or null for the default budget
+	 * @return the budget
+	 * @throws IOException if it can't be read
+	 */
+	public static Properties loadBudget(File file) throws IOException {
+		Properties budget = new Properties();
+		try (InputStream in = file == null ? AllocationCheck.class.getResourceAsStream("/resources/allocation-budget.properties") : new FileInputStream(file)) {
+			if (in == null)
+				throw new IOException("No allocation budget found");
+			budget.load(in);
+		}
+		return budget;
+	}
+
+	/**
+	 * Run the check
+	 * @param processor processor to check (may be null)
+	 * @param server server whose MJPEG stream and SSE builders to check (may
+	 *     be null)
+	 * @param client client whose packet writer to check (may be null). It
+	 *     is put in dry run mode while checking.
+	 * @return whether everything was within budget
+	 */
+	public boolean run(AbstractImageProcessor<?> processor, MJPEGServer server, RoboRioClient client) {
+		if (threads == null) {
+			System.err.println("This JVM can't measure allocations; skipping the check");
+			return true;
+		}
+		final int pixels = pairs.width * pairs.height;
+		final String processorName = processor == null ? null : processor.getClass().getSimpleName();
+		final Stage processorStage = new Stage(processorName + ".bytesPerPixel", "pixel");
+		final Stage mjpegStage = new Stage("mjpeg.bytesPerFrame", "frame");
+		final Stage sseStage = new Stage("sse.bytesPerPair", "pair");
+		final Stage rioStage = new Stage("rio.bytesPerPacket", "packet");
+		final long before = getAllocatedBytes();
+		overhead = getAllocatedBytes() - before;
+		if (client != null)
+			client.setDryRun(true);
+		final long gcCountStart, gcTimeStart;
+		final List<Socket> listeners = new ArrayList<>(2);
+		try {
+			if (server != null && !listen(server, listeners))
+				return false;
+			System.out.println("Warming up (" + warmupPairs + " pairs)");
+			runPairs(warmupPairs, processor, server, client, null, null, null, null);
+			gcCountStart = getCollectionCount();
+			gcTimeStart = getCollectionTime();
+			System.out.println("Measuring (" + measuredPairs + " pairs)");
+			runPairs(measuredPairs, processor, server, client, processorStage, mjpegStage, sseStage, rioStage);
+		} finally {
+			if (client != null)
+				client.setDryRun(false);
+			for (Socket listener : listeners) {
+				try {
+					listener.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		final long collections = getCollectionCount() - gcCountStart;
+		final long pauseMillis = getCollectionTime() - gcTimeStart;
+		//Per pixel, so that the budget works at any resolution
+		processorStage.count *= pixels;
+
+		boolean ok = true;
+		if (processor != null)
+			ok &= check(processorStage.key, processorStage.getBytesPer(), processorStage.unit);
+		if (server != null) {
+			ok &= check(mjpegStage.key, mjpegStage.getBytesPer(), mjpegStage.unit);
+			ok &= check(sseStage.key, sseStage.getBytesPer(), sseStage.unit);
+		}
+		if (client != null)
+			ok &= check(rioStage.key, rioStage.getBytesPer(), rioStage.unit);
+		ok &= check("gc.maxCollections", collections, "run");
+		ok &= check("gc.maxPauseMillis", pauseMillis, "run");
+		System.out.println(ok ? "Allocations within budget" : "ALLOCATIONS OVER BUDGET");
+		return ok;
+	}
+
+	/**
+	 * Attach a client to the server's MJPEG stream, and one to its SSE
+	 * stream, each reading (and throwing away) everything sent to it, so that
+	 * the server thread sends what it's offered
+	 * @param server server to listen to
+	 * @param listeners list to add the clients' sockets to (to close them)
+	 * @return whether both streams were attached to in time
+	 */
+	protected boolean listen(MJPEGServer server, List<Socket> listeners) {
+		try {
+			for (String path : new String[] {"/camera.jpg", "/results.sse"}) {
+				final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+				listeners.add(socket);
+				socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+				Thread drain = new Thread(() -> {
+					final byte[] buffer = new byte[8192];
+					try (InputStream in = socket.getInputStream()) {
+						while (in.read(buffer) >= 0);
+					} catch (IOException e) {
+						//Closed when the check is done
+					}
+				}, "AllocationCheck-" + path.substring(1));
+				drain.setDaemon(true);
+				drain.start();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		final long deadline = System.nanoTime() + SEND_TIMEOUT;
+		while (!(server.hasStreamClients() && server.hasSSEClients())) {
+			if (System.nanoTime() > deadline) {
+				System.err.println("Unable to attach to the server's streams");
+				return false;
+			}
+			LockSupport.parkNanos(SEND_POLL);
+		}
+		return true;
+	}
+
+	/**
+	 * Push pairs through every stage, measuring each one if it has a
+	 * {@link Stage} to count into
+	 */
+	protected void runPairs(int n, AbstractImageProcessor<?> processor, MJPEGServer server, RoboRioClient client, Stage processorStage, Stage mjpegStage, Stage sseStage, Stage rioStage) {
+		for (int pair = 0; pair < n; pair++) {
+			final int i = pair % Warmup.PAIRS;
+			final long captureTime = TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+			final CapturedFrame frameOn = frames.take().set(pairs.jpegsOn[i], pairs.jpegsOn[i].length, null, captureTime, 2 * pair + 1);
+			final CapturedFrame frameOff = frames.take().set(pairs.jpegsOff[i], pairs.jpegsOff[i].length, null, captureTime, 2 * pair);
+			try {
+				List<PreciseRectangle> targets = null;
+				if (processor != null) {
+					final long start = getAllocatedBytes();
+					targets = processor.detect(frameOn, frameOff);
+					count(processorStage, start);
+				}
+				if (targets == null)
+					targets = new ArrayList<>();
+				if (server != null) {
+					long start = getAllocatedBytes();
+					server.offerFrame(frameOn);
+					//Count sending it, too
+					awaitSent(server.isImageAvailable);
+					count(mjpegStage, start);
+					start = getAllocatedBytes();
+					server.offerRectangles(targets);
+					awaitSent(server.areRectanglesAvailable);
+					count(sseStage, start);
+				}
+			} finally {
+				frameOn.recycle();
+				frameOff.recycle();
+			}
+			if (client != null) {
+				final long start = getAllocatedBytes();
+				try {
+					client.writeTwoFound(0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.1, 0.1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				count(rioStage, start);
+			}
+		}
+	}
+
+	/**
+	 * Wait for the server thread to send what was offered to it
+	 * @param pending the server's flag for whether it has something to send
+	 */
+	protected static void awaitSent(AtomicBoolean pending) {
+		final long deadline = System.nanoTime() + SEND_TIMEOUT;
+		while (pending.get() && System.nanoTime() < deadline)
+			LockSupport.parkNanos(SEND_POLL);
+	}
+
+	protected void count(Stage stage, long start) {
+		if (stage == null)
+			return;
+		stage.bytes += getAllocatedBytes() - start - overhead;
+		stage.count++;
+	}
+
+	/**
+	 * Check a measurement against the budget, and print it
+	 * @return whether it's within budget (or not in the budget)
+	 */
+	protected boolean check(String key, double value, String unit) {
+		final String limit = budget.getProperty(key);
+		if (limit == null) {
+			System.out.format("%-32s %12.2f per %s (no budget)%n", key, value, unit);
+			return true;
+		}
+		final double max = Double.parseDouble(limit.trim());
+		final boolean ok = value <= max;
+		System.out.format("%-32s %12.2f per %s (budget %s)%s%n", key, value, unit, limit.trim(), ok ? "" : " OVER BUDGET");
+		return ok;
+	}
+
+	/**
+	 * @return the total bytes allocated by every live thread. The processors
+	 *     hand work to other threads (the decode executor and the common
+	 *     pool), so counting only the current thread would miss some.
+	 */
+	protected long getAllocatedBytes() {
+		final long[] ids = threads.getAllThreadIds();
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(ids))
+			if (bytes > 0)
+				total += bytes;
+		return total;
+	}
+
+	protected static long getCollectionCount() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, gc.getCollectionCount());
+		return total;
+	}
+
+	protected static long getCollectionTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, gc.getCollectionTime());
+		return total;
+	}
+}
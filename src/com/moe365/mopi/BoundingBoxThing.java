@@ -1,7 +1,12 @@
 package com.moe365.mopi;
 
 import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.moe365.mopi.geom.PreciseRectangle;
 
@@ -9,16 +14,72 @@ public class BoundingBoxThing {
 	private static final int MINDIM = 40; // Smallest allowable dimension for any
 											// side of box
 
+	/**
+	 * Regions with an area (in pixels) at least this big have one of their
+	 * halves searched as a separate task, that an idle thread can steal.
+	 * Smaller regions are cheaper to search on the current thread than to
+	 * hand off.
+	 */
+	public static final int PARALLEL_CUTOFF = 160 * 120;
+	/**
+	 * Result of {@link #split(boolean[][], Projections, Region)} when the region has no box
+	 */
+	private static final int STEP_EMPTY = 0;
+	/**
+	 * Result of {@link #split(boolean[][], Projections, Region)} when the region's bounds
+	 * describe a box
+	 */
+	private static final int STEP_BOX = 1;
+	/**
+	 * Result of {@link #split(boolean[][], Projections, Region)} when the region was split
+	 * in two
+	 */
+	private static final int STEP_SPLIT = 2;
+
+	/**
+	 * Find all bounding boxes of minimum size MINDIM in a thresholded image,
+	 * searching independent parts of the image in parallel on the common
+	 * {@link ForkJoinPool}.
+	 * 
+	 * @param img A boolean array which represents a thresholded image
+	 * @return the bounding boxes, in the same order that
+	 *         {@link #boundingBoxRecursive(boolean[][], List, int, int, int, int, int, int, int, int)
+	 *         boundingBoxRecursive} would find them
+	 * @see #boundingBoxes(boolean[][], ForkJoinPool, Projections)
+	 */
+	public static List<PreciseRectangle> boundingBoxes(boolean[][] img) {
+		return boundingBoxes(img, ForkJoinPool.commonPool(), new Projections());
+	}
+
+	/**
+	 * Find all bounding boxes of minimum size MINDIM in a thresholded image,
+	 * searching independent parts of the image in parallel on the given pool.
+	 * 
+	 * @param img A boolean array which represents a thresholded image
+	 * @param pool pool to search on
+	 * @param projections buffers to compute the projections of the image
+	 *        into. Pass the same one for every frame to avoid reallocating
+	 *        them.
+	 * @return the bounding boxes, in the same order that
+	 *         {@link #boundingBoxRecursive(boolean[][], List, int, int, int, int, int, int, int, int)
+	 *         boundingBoxRecursive} would find them
+	 */
+	public static List<PreciseRectangle> boundingBoxes(boolean[][] img, ForkJoinPool pool, Projections projections) {
+		Region root = new Region(0, img[0].length - 1, 0, img.length - 1, -1, -1, -1, -1);
+		return pool.invoke(new BoxTask(img, projections.update(img), root, PARALLEL_CUTOFF));
+	}
+
 /**
- * Recursive function to create a List of Rectangles bbr 
+ * Function to create a List of Rectangles bbr 
  * that represent all bounding boxes of minimum size MINDIM
  * in boolean array img (which represents a thresholded image) 
  * It returns true or false to indicate if it found any boxes
  * This method attempts to split the image into 2 (first with a vertical line, then with a horizontal one) 
- * then call itself on the resulting 2 areas of the image (area set by the lim parameters)
+ * then searches the resulting 2 areas of the image (area set by the lim parameters)
  * The bound parameters store known edges of boxes, once the fully encased box it is added to list. 
  * Add to the bbr list are side effects and are not thread safe.  
- * It is executed in a single thread, depth first.
+ * It is executed in a single thread, depth first, using an explicit stack
+ * instead of recursion.
  * 
  * @param  img  A boolean array which represents a thresholded image
  * @param  bbr List of Rectangles bbr that represent all bounding boxes of minimum size MINDIM
@@ -32,17 +93,499 @@ public class BoundingBoxThing {
  * @param  boundYmax  location of valid bottom edge of box (-1 if none)
  * @return      if there are any bounding boxes
  * @see   Rectangle      
+ * @see #boundingBoxes(boolean[][])
  */
 	public static boolean boundingBoxRecursive(boolean[][] img, List<PreciseRectangle> bbr, final int limXmin, final int limXmax,
 			final int limYmin, final int limYmax, int boundXmin, int boundXmax, int boundYmin, int boundYmax) {
+		Region root = new Region(limXmin, limXmax, limYmin, limYmax, boundXmin, boundXmax, boundYmin, boundYmax);
+		//A cutoff that no region can reach means that nothing is forked
+		List<PreciseRectangle> found = new BoxTask(img, new Projections().update(img), root, Long.MAX_VALUE).compute();
+		bbr.addAll(found);
+		return !found.isEmpty();
+	}
+
+	/**
+	 * Prefix counts over the rows and columns of a thresholded image, so that
+	 * testing whether a split line goes through a contour takes constant time,
+	 * instead of walking the line.
+	 * <p>
+	 * For every pixel that is set, we record whether it is connected to the
+	 * pixels on its left, on its right, or both (the same test as
+	 * {@link BoundingBoxThing#adjV(boolean[][], int, int) adjV}), and above,
+	 * below, or both (as {@link BoundingBoxThing#adjH(boolean[][], int, int) adjH}).
+	 * Each of those is summed down the columns and along the rows, and the
+	 * number of matching pixels on any part of a line is the difference of
+	 * two sums.
+	 * </p>
+	 * <p>
+	 * Summing a whole line costs more than walking the part of it that a
+	 * region covers, so lines are walked directly until the walks on that line
+	 * have covered {@link #SUM_AFTER} times its length, and only then summed.
+	 * That way, a line that is only tried a few times costs the same as
+	 * before, and a line that is tried by many regions costs a bounded
+	 * multiple of its length, no matter how many regions try it. Many threads may query the
+	 * projections at once. The buffers are reused if the next image is the
+	 * same size.
+	 * </p>
+	 */
+	public static final class Projections {
+		/**
+		 * A pixel on the line is connected on both sides
+		 */
+		public static final int BOTH = 1;
+		/**
+		 * A pixel on a column is connected to the left
+		 */
+		public static final int LEFT = 2;
+		/**
+		 * A pixel on a column is connected to the right
+		 */
+		public static final int RIGHT = 4;
+		/**
+		 * A pixel on a row is connected above
+		 */
+		public static final int ABOVE = 2;
+		/**
+		 * A pixel on a row is connected below
+		 */
+		public static final int BELOW = 4;
+		/**
+		 * A line is summed once the walks on it have covered this many times
+		 * its length. Summing a pixel costs a few times as much as walking
+		 * over it, because every pixel is written, even if it's not set.
+		 */
+		private static final int SUM_AFTER = 4;
+		/**
+		 * The image that the counts are for
+		 */
+		boolean[][] img;
+		/**
+		 * Size of the image that the buffers were allocated for
+		 */
+		int width = -1, height = -1;
+		/**
+		 * Incremented for every image. A line's counts are valid if its entry
+		 * in {@link #colReady} or {@link #rowReady} matches.
+		 */
+		int generation = 0;
+		/**
+		 * Generation that each line was last queried in
+		 */
+		AtomicIntegerArray colSeen, rowSeen;
+		/**
+		 * Number of pixels of each line that have been scanned directly in
+		 * this generation. Only used to decide when to sum a line, so lost
+		 * updates from racing threads don't matter.
+		 */
+		int[] colWork, rowWork;
+		/**
+		 * Generation that each line was last summed in
+		 */
+		AtomicIntegerArray colReady, rowReady;
+		/**
+		 * Column prefix counts, indexed by <code>x * (height + 1) + y</code>,
+		 * where each element is the number of matching pixels in column x above
+		 * row y.
+		 */
+		int[] colBoth, colLeft, colRight;
+		/**
+		 * Row prefix counts, indexed by <code>y * (width + 1) + x</code>, where
+		 * each element is the number of matching pixels in row y left of column
+		 * x.
+		 */
+		int[] rowBoth, rowTop, rowBot;
+
+		/**
+		 * Start computing projections of a new image. Must be called before
+		 * the projections are queried from other threads.
+		 * @param img A boolean array which represents a thresholded image
+		 * @return self
+		 */
+		public Projections update(boolean[][] img) {
+			final int h = img.length, w = img[0].length;
+			if (w != width || h != height) {
+				this.width = w;
+				this.height = h;
+				this.colSeen = new AtomicIntegerArray(w);
+				this.rowSeen = new AtomicIntegerArray(h);
+				this.colWork = new int[w];
+				this.rowWork = new int[h];
+				this.colReady = new AtomicIntegerArray(w);
+				this.rowReady = new AtomicIntegerArray(h);
+				this.colBoth = new int[w * (h + 1)];
+				this.colLeft = new int[w * (h + 1)];
+				this.colRight = new int[w * (h + 1)];
+				this.rowBoth = new int[h * (w + 1)];
+				this.rowTop = new int[h * (w + 1)];
+				this.rowBot = new int[h * (w + 1)];
+			}
+			this.img = img;
+			//Skip 0, which is what new ready arrays are filled with
+			if (++this.generation == 0)
+				this.generation = 1;
+			return this;
+		}
+
+		/**
+		 * Sum a column, if it hasn't been summed for this image
+		 * @param x column to sum
+		 */
+		private synchronized void sumColumn(int x) {
+			if (colReady.get(x) == generation)
+				return;
+			final boolean[][] img = this.img;
+			final int h = height, w = width;
+			final int base = x * (h + 1);
+			final int[] colBoth = this.colBoth, colLeft = this.colLeft, colRight = this.colRight;
+			colBoth[base] = colLeft[base] = colRight[base] = 0;
+			colBoth[base + 1] = colLeft[base + 1] = colRight[base + 1] = 0;
+			int both = 0, left = 0, right = 0;
+			if (x > 0 && x < w - 1) {
+				//Slide a 3x3 window down the column, so every pixel is only read once
+				boolean l0 = img[0][x - 1], r0 = img[0][x + 1];
+				boolean l1 = img[1][x - 1], c1 = img[1][x], r1 = img[1][x + 1];
+				for (int y = 1; y < h - 1; y++) {
+					final boolean[] next = img[y + 1];
+					final boolean l2 = next[x - 1], c2 = next[x], r2 = next[x + 1];
+					if (c1) {
+						//Same as adjV(img, x - 1, y) and adjV(img, x + 1, y)
+						boolean l = l1 && (l0 || l2);
+						boolean r = r1 && (r0 || r2);
+						if (l)
+							left++;
+						if (r)
+							right++;
+						if (l && r)
+							both++;
+					}
+					colBoth[base + y + 1] = both;
+					colLeft[base + y + 1] = left;
+					colRight[base + y + 1] = right;
+					l0 = l1;
+					r0 = r1;
+					l1 = l2;
+					c1 = c2;
+					r1 = r2;
+				}
+			} else {
+				//Edge columns can't be connected on both sides, and are never tried as splits
+				for (int y = 1; y < h - 1; y++) {
+					if (img[y][x]) {
+						if (x > 0 && adjV(img, x - 1, y))
+							left++;
+						if (x < w - 1 && adjV(img, x + 1, y))
+							right++;
+					}
+					colLeft[base + y + 1] = left;
+					colRight[base + y + 1] = right;
+					colBoth[base + y + 1] = 0;
+				}
+			}
+			colBoth[base + h] = both;
+			colLeft[base + h] = left;
+			colRight[base + h] = right;
+			colReady.set(x, generation);
+		}
+
+		/**
+		 * Sum a row, if it hasn't been summed for this image
+		 * @param y row to sum
+		 */
+		private synchronized void sumRow(int y) {
+			if (rowReady.get(y) == generation)
+				return;
+			final boolean[][] img = this.img;
+			final boolean[] row = img[y];
+			final boolean[] above = y > 0 ? img[y - 1] : null;
+			final boolean[] below = y < height - 1 ? img[y + 1] : null;
+			final int w = width;
+			final int base = y * (w + 1);
+			final int[] rowBoth = this.rowBoth, rowTop = this.rowTop, rowBot = this.rowBot;
+			int both = 0, top = 0, bot = 0;
+			rowBoth[base] = rowTop[base] = rowBot[base] = 0;
+			rowBoth[base + 1] = rowTop[base + 1] = rowBot[base + 1] = 0;
+			for (int x = 1; x < w - 1; x++) {
+				if (row[x]) {
+					//Same as adjH(img, x, y - 1) and adjH(img, x, y + 1)
+					boolean t = above != null && above[x] && (above[x - 1] || above[x + 1]);
+					boolean b = below != null && below[x] && (below[x - 1] || below[x + 1]);
+					if (t)
+						top++;
+					if (b)
+						bot++;
+					if (t && b)
+						both++;
+				}
+				rowBoth[base + x + 1] = both;
+				rowTop[base + x + 1] = top;
+				rowBot[base + x + 1] = bot;
+			}
+			rowBoth[base + w] = both;
+			rowTop[base + w] = top;
+			rowBot[base + w] = bot;
+			rowReady.set(y, generation);
+		}
+
+		/**
+		 * Find which kinds of connected pixels are on part of a column. The
+		 * column is walked directly, stopping as soon as a pixel in
+		 * <code>want</code> is found, until it has been walked
+		 * {@link #SUM_AFTER} times over. After that, the column is summed,
+		 * and all later queries take constant time.
+		 * @param x column to check
+		 * @param from first row to check
+		 * @param to row after the last one to check
+		 * @param want the kinds of pixel that the caller is looking for
+		 * @return a mask of {@link #BOTH}, {@link #LEFT}, and {@link #RIGHT},
+		 *         for the kinds of pixels found. Only complete if nothing in
+		 *         <code>want</code> was found.
+		 */
+		int column(int x, int from, int to, int want) {
+			if (colReady.get(x) != generation) {
+				if (colSeen.get(x) != generation) {
+					colSeen.set(x, generation);
+					colWork[x] = 0;
+				}
+				if (colWork[x] < SUM_AFTER * height)
+					return scanColumn(x, from, to, want);
+				sumColumn(x);
+			}
+			final int base = x * (height + 1);
+			int result = 0;
+			if (colBoth[base + to] != colBoth[base + from])
+				result |= BOTH;
+			if (colLeft[base + to] != colLeft[base + from])
+				result |= LEFT;
+			if (colRight[base + to] != colRight[base + from])
+				result |= RIGHT;
+			return result;
+		}
+
+		/**
+		 * Find which kinds of connected pixels are on part of a row. Works
+		 * the same as {@link #column(int, int, int, int)}.
+		 * @param y row to check
+		 * @param from first column to check
+		 * @param to column after the last one to check
+		 * @param want the kinds of pixel that the caller is looking for
+		 * @return a mask of {@link #BOTH}, {@link #ABOVE}, and {@link #BELOW},
+		 *         for the kinds of pixels found. Only complete if nothing in
+		 *         <code>want</code> was found.
+		 */
+		int row(int y, int from, int to, int want) {
+			if (rowReady.get(y) != generation) {
+				if (rowSeen.get(y) != generation) {
+					rowSeen.set(y, generation);
+					rowWork[y] = 0;
+				}
+				if (rowWork[y] < SUM_AFTER * width)
+					return scanRow(y, from, to, want);
+				sumRow(y);
+			}
+			final int base = y * (width + 1);
+			int result = 0;
+			if (rowBoth[base + to] != rowBoth[base + from])
+				result |= BOTH;
+			if (rowTop[base + to] != rowTop[base + from])
+				result |= ABOVE;
+			if (rowBot[base + to] != rowBot[base + from])
+				result |= BELOW;
+			return result;
+		}
+
+		private int scanColumn(int x, int from, int to, int want) {
+			final boolean[][] img = this.img;
+			final boolean hasLeft = x > 0, hasRight = x < width - 1;
+			int result = 0, y;
+			for (y = from; y < to; y++) {
+				if (img[y][x]) {
+					boolean l = hasLeft && adjV(img, x - 1, y);
+					boolean r = hasRight && adjV(img, x + 1, y);
+					if (l)
+						result |= LEFT;
+					if (r)
+						result |= RIGHT;
+					if (l && r)
+						result |= BOTH;
+					if ((result & want) != 0)
+						break;
+				}
+			}
+			colWork[x] += y - from;
+			return result;
+		}
+
+		private int scanRow(int y, int from, int to, int want) {
+			final boolean[][] img = this.img;
+			final boolean[] row = img[y];
+			final boolean hasAbove = y > 0, hasBelow = y < height - 1;
+			int result = 0, x;
+			for (x = from; x < to; x++) {
+				if (row[x]) {
+					boolean t = hasAbove && adjH(img, x, y - 1);
+					boolean b = hasBelow && adjH(img, x, y + 1);
+					if (t)
+						result |= ABOVE;
+					if (b)
+						result |= BELOW;
+					if (t && b)
+						result |= BOTH;
+					if ((result & want) != 0)
+						break;
+				}
+			}
+			rowWork[y] += x - from;
+			return result;
+		}
+	}
+
+	/**
+	 * A part of the image that still has to be searched.
+	 */
+	private static final class Region {
+		/**
+		 * Limits of the area to search
+		 */
+		final int limXmin, limXmax, limYmin, limYmax;
+		/**
+		 * Known edges of a box in the area (-1 if none)
+		 */
+		int boundXmin, boundXmax, boundYmin, boundYmax;
+		/**
+		 * The halves of this region, if it was split
+		 */
+		Region first, second;
+		/**
+		 * If this region is being searched by another task, that task.
+		 */
+		BoxTask task;
+
+		Region(int limXmin, int limXmax, int limYmin, int limYmax, int boundXmin, int boundXmax, int boundYmin, int boundYmax) {
+			this.limXmin = limXmin;
+			this.limXmax = limXmax;
+			this.limYmin = limYmin;
+			this.limYmax = limYmax;
+			this.boundXmin = boundXmin;
+			this.boundXmax = boundXmax;
+			this.boundYmin = boundYmin;
+			this.boundYmax = boundYmax;
+		}
+
+		/**
+		 * Record the two halves that this region was split into.
+		 * @return {@link #STEP_SPLIT}
+		 */
+		int split(int limXmin1, int limXmax1, int limYmin1, int limYmax1, int boundXmin1, int boundXmax1, int boundYmin1, int boundYmax1,
+				int limXmin2, int limXmax2, int limYmin2, int limYmax2, int boundXmin2, int boundXmax2, int boundYmin2, int boundYmax2) {
+			this.first = new Region(limXmin1, limXmax1, limYmin1, limYmax1, boundXmin1, boundXmax1, boundYmin1, boundYmax1);
+			this.second = new Region(limXmin2, limXmax2, limYmin2, limYmax2, boundXmin2, boundXmax2, boundYmin2, boundYmax2);
+			return STEP_SPLIT;
+		}
+
+		long area() {
+			return (long) (limXmax - limXmin + 1) * (limYmax - limYmin + 1);
+		}
+	}
+
+	/**
+	 * Searches a region depth first, with an explicit stack of the parts that
+	 * are left to search. When a region at least {@link #cutoff} pixels big
+	 * is split, its second half is forked as a new task, so that an idle
+	 * worker can steal it. Every task collects boxes into its own list, and
+	 * the lists of forked tasks are spliced in where the second half would
+	 * have been searched, so the result doesn't depend on how the work was
+	 * scheduled.
+	 */
+	private static final class BoxTask extends RecursiveTask<List<PreciseRectangle>> {
+		private static final long serialVersionUID = 1L;
+		final boolean[][] img;
+		final Projections p;
+		final Region root;
+		final long cutoff;
+
+		BoxTask(boolean[][] img, Projections p, Region root, long cutoff) {
+			this.img = img;
+			this.p = p;
+			this.root = root;
+			this.cutoff = cutoff;
+		}
+
+		@Override
+		protected List<PreciseRectangle> compute() {
+			List<PreciseRectangle> result = new ArrayList<>();
+			//Forked tasks, and the size of the result when each one would have been searched
+			List<BoxTask> forked = null;
+			List<Integer> forkedAt = null;
+			ArrayDeque<Region> stack = new ArrayDeque<>();
+			stack.push(root);
+			while (!stack.isEmpty()) {
+				Region r = stack.pop();
+				if (r.task != null && r.task != this) {
+					//Searched by a forked task
+					if (forked == null) {
+						forked = new ArrayList<>();
+						forkedAt = new ArrayList<>();
+					}
+					forked.add(r.task);
+					forkedAt.add(result.size());
+					continue;
+				}
+				switch (split(img, p, r)) {
+					case STEP_SPLIT:
+						Region first = r.first, second = r.second;
+						if (r.area() >= cutoff) {
+							second.task = new BoxTask(img, p, second, cutoff);
+							second.task.fork();
+						}
+						//Push second first, so that the first half is searched first
+						stack.push(second);
+						stack.push(first);
+						break;
+					case STEP_BOX:
+						result.add(new PreciseRectangle(r.boundXmin, r.boundYmin, r.boundXmax - r.boundXmin, r.boundYmax - r.boundYmin));
+						break;
+					default:
+						break;
+				}
+			}
+			if (forked == null)
+				return result;
+			List<PreciseRectangle> merged = new ArrayList<>(result.size());
+			int i = 0;
+			for (int j = 0; j < forked.size(); j++) {
+				for (int at = forkedAt.get(j); i < at; i++)
+					merged.add(result.get(i));
+				merged.addAll(forked.get(j).join());
+			}
+			for (; i < result.size(); i++)
+				merged.add(result.get(i));
+			return merged;
+		}
+	}
+
+	/**
+	 * Try to split a region of the image in two, first with a vertical line,
+	 * then with a horizontal one, where the line doesn't go through a contour.
+	 * If the region was split, its two halves are stored in
+	 * {@link Region#first} and {@link Region#second}. Otherwise, the region's
+	 * bounds are updated to the known edges of the box inside it.
+	 * 
+	 * @param img A boolean array which represents a thresholded image
+	 * @param p projections of img
+	 * @param r region to split
+	 * @return {@link #STEP_SPLIT} if the region was split, {@link #STEP_BOX}
+	 *         if the region's bounds describe a box that cannot be split
+	 *         further, or {@link #STEP_EMPTY} if there is no box in the region
+	 */
+	private static int split(boolean[][] img, Projections p, Region r) {
+		final int limXmin = r.limXmin, limXmax = r.limXmax, limYmin = r.limYmin, limYmax = r.limYmax;
 		if (((limXmax - limXmin) < MINDIM) || ((limYmax - limYmin) < MINDIM))
 			// BASE CASE box is too small, disregard
-			return false;
-		// try to split the box in half vertically or horizontally and call
-		// recursively on the 2 halves
+			return STEP_EMPTY;
+		// try to split the box in half vertically or horizontally, and leave
+		// the 2 halves to be searched later
 		int x, y; //defined here since they will be reused and tested after for loops
 		int splitX = limXmin + (limXmax - limXmin) / 2; //half the width first vertical split line to try
-		xLoop:
 		for (x = splitX; x > limXmin; x--) {
 			// Left side of half split, test all vertical lines till one doesn't go thru a contour
 			
@@ -74,31 +617,25 @@ public class BoundingBoxThing {
 			}
 			
 			//test the middle of the line
-			for (y = limYmin + 1; y < limYmax; y++) {
-				if (test(img, x, y)) {
-					boolean leftBool  = adjV(img, x - 1, y);
-					boolean rightBool = adjV(img, x + 1, y);
-					if (leftBool && rightBool)
-						continue xLoop; //fully connected, try next split line
-					if (leftBool)
-						leftOff = true; //if valid line, it is also a right edge
-					if (rightBool)
-						rightOff = true; //if valid line, it is also a left edge
-				}
-			}
+			final int hits = p.column(x, limYmin + 1, limYmax, Projections.BOTH);
+			if ((hits & Projections.BOTH) != 0)
+				continue; //fully connected, try next split line
+			if ((hits & Projections.LEFT) != 0)
+				leftOff = true; //if valid line, it is also a right edge
+			if ((hits & Projections.RIGHT) != 0)
+				rightOff = true; //if valid line, it is also a left edge
 			// valid split line, so split the rectangle and return results
 			// if leftOff, we found a right edge, so include it as known edge, else
 			//line is not a right edge, so don't check again by moving limit left
-			return boundingBoxRecursive(img, bbr, limXmin, x - (leftOff ? 0 : 1), limYmin, limYmax, boundXmin, leftOff ? x : -1, -1, -1)
+			return r.split(limXmin, x - (leftOff ? 0 : 1), limYmin, limYmax, r.boundXmin, leftOff ? x : -1, -1, -1,
 				// if rightOff, we found a left edge
-				| boundingBoxRecursive(img, bbr, x + (rightOff ? 0 : 1), limXmax, limYmin, limYmax, rightOff ? x : -1, boundXmax, -1, -1);
+					x + (rightOff ? 0 : 1), limXmax, limYmin, limYmax, rightOff ? x : -1, r.boundXmax, -1, -1);
 		}
 		
 		// check for pixels on left edge of box since it is not a known edge
-		if (boundXmin != x && updateXbound(img, limYmin, limYmax, x, true))
-			boundXmin = x;
+		if (r.boundXmin != x && updateXbound(img, p, limYmin, limYmax, x, true))
+			r.boundXmin = x;
 
-		xLoop:
 		for (x = splitX + 1; x < limXmax; x++) {
 			// Right side of half split, test all vertical lines till one doesn't go thru a contour
 			boolean leftOff = false, rightOff = false;
@@ -122,27 +659,22 @@ public class BoundingBoxThing {
 				if (rightBool)
 					rightOff = true; //if valid line, it is also a left edge
 			}
-			for (y = limYmin + 1; y < limYmax; y++) {
-				if (test(img, x, y)) {
-					boolean leftBool  = adjV(img, x - 1, y);
-					boolean rightBool = adjV(img, x + 1, y);
-					if (leftBool && rightBool)
-						continue xLoop;
-					if (leftBool)
-						leftOff = true; //if valid line, it is also a right edge
-					if (rightBool)
-						rightOff = true; //if valid line, it is also a left edge
-				}
-			}
+			final int hits = p.column(x, limYmin + 1, limYmax, Projections.BOTH);
+			if ((hits & Projections.BOTH) != 0)
+				continue;
+			if ((hits & Projections.LEFT) != 0)
+				leftOff = true; //if valid line, it is also a right edge
+			if ((hits & Projections.RIGHT) != 0)
+				rightOff = true; //if valid line, it is also a left edge
 			// valid split line, so split the rectangle and return results
 			// if leftOff, we found a right edge
-			return boundingBoxRecursive(img, bbr, limXmin, x - (leftOff ? 0 : 1), limYmin, limYmax, boundXmin, leftOff ? x : -1, -1, -1)
+			return r.split(limXmin, x - (leftOff ? 0 : 1), limYmin, limYmax, r.boundXmin, leftOff ? x : -1, -1, -1,
 				// if rightOff, we found a left edge
-				| boundingBoxRecursive(img, bbr, x + (rightOff ? 0 : 1), limXmax, limYmin, limYmax, rightOff ? x : -1, boundXmax, -1, -1);
+					x + (rightOff ? 0 : 1), limXmax, limYmin, limYmax, rightOff ? x : -1, r.boundXmax, -1, -1);
 		}
 		// check for pixels on right edge of box
-		if (boundXmax != x && updateXbound(img, limYmin, limYmax, x, false))
-			boundXmax = x;
+		if (r.boundXmax != x && updateXbound(img, p, limYmin, limYmax, x, false))
+			r.boundXmax = x;
 		
 		int splitY = limYmin + (limYmax - limYmin) / 2;
 		for (y = splitY; y > limYmin; y--) {
@@ -168,32 +700,25 @@ public class BoundingBoxThing {
 				if (botBool)
 					botOff = true;
 			}
-			for (x = limXmin + 1; x < limXmax; x++) {
-				if (test(img, x, y)) {
-					boolean topBool = adjH(img, x, y - 1);
-					boolean botBool = adjH(img, x, y + 1);
-					if (topBool && botBool)
-						break;
-					if (topBool)
-						topOff = true;
-					if (botBool)
-						botOff = true;
-				}
-			}
-			if (x == limXmax)
-				// valid split line, so split the rectangle and return results
-				// if topOff==true, we found a bottom edge
-				return boundingBoxRecursive(img, bbr, limXmin, limXmax, limYmin, y - (topOff ? 0 : 1), -1, -1, boundYmin, topOff ? y : -1)
-					// if rightOff == true, we found a top edge
-					| boundingBoxRecursive(img, bbr, limXmin, limXmax, y + (botOff ? 0 : 1), limYmax, -1, -1, botOff ? y : -1, boundYmax);
+			final int hits = p.row(y, limXmin + 1, limXmax, Projections.BOTH);
+			if ((hits & Projections.BOTH) != 0)
+				continue;
+			if ((hits & Projections.ABOVE) != 0)
+				topOff = true;
+			if ((hits & Projections.BELOW) != 0)
+				botOff = true;
+			// valid split line, so split the rectangle and return results
+			// if topOff==true, we found a bottom edge
+			return r.split(limXmin, limXmax, limYmin, y - (topOff ? 0 : 1), -1, -1, r.boundYmin, topOff ? y : -1,
+				// if rightOff == true, we found a top edge
+					limXmin, limXmax, y + (botOff ? 0 : 1), limYmax, -1, -1, botOff ? y : -1, r.boundYmax);
 		}
 		
 		// check for pixels on top edge of box
-		if (boundYmin!= y && updateYbound(img, limXmin, limXmax, y, true))
-			boundYmin = y;
+		if (r.boundYmin!= y && updateYbound(img, p, limXmin, limXmax, y, true))
+			r.boundYmin = y;
 		
 		// Bottom side of half split, test all horizontal lines till one doesn't go thru a contour
-		yLoop:
 		for (y = splitY + 1; y < limYmax; y++) {
 			boolean topOff = false, botOff = false;
 			if (test(img, limXmin, y)) {
@@ -216,33 +741,28 @@ public class BoundingBoxThing {
 				if (botBool)
 					botOff = true;
 			}
-			for (x = limXmin + 1; x < limXmax; x++) {
-				if (test(img, x, y)) {
-					boolean topBool = adjH(img, x, y - 1);
-					boolean botBool = adjH(img, x, y + 1);
-					if (topBool && botBool)
-						continue yLoop;
-					if (topBool)
-						topOff = true;
-					if (botBool)
-						botOff = true;
-				}
-			}
+			final int hits = p.row(y, limXmin + 1, limXmax, Projections.BOTH);
+			if ((hits & Projections.BOTH) != 0)
+				continue;
+			if ((hits & Projections.ABOVE) != 0)
+				topOff = true;
+			if ((hits & Projections.BELOW) != 0)
+				botOff = true;
 			// valid split line, so split the rectangle and return results
 			// if topOff, we found a bottom edge
-			return boundingBoxRecursive(img, bbr, limXmin, limXmax, limYmin, y - (topOff ? 0 : 1), -1, -1, boundYmin, topOff ? y : -1)
+			return r.split(limXmin, limXmax, limYmin, y - (topOff ? 0 : 1), -1, -1, r.boundYmin, topOff ? y : -1,
 				// if rightOff, we found a top edge
-				| boundingBoxRecursive(img, bbr, limXmin, limXmax, y + (botOff ? 0 : 1), limYmax, -1, -1, botOff ? y : -1, boundYmax);
+					limXmin, limXmax, y + (botOff ? 0 : 1), limYmax, -1, -1, botOff ? y : -1, r.boundYmax);
 		}
 		
 		// check for pixels on bottom edge of box
-		if (boundYmax != y && updateYbound(img, limXmin, limXmax, y, false))
-			boundYmax = y;
+		if (r.boundYmax != y && updateYbound(img, p, limXmin, limXmax, y, false))
+			r.boundYmax = y;
 
-		if ((boundXmin < boundXmax) && (boundXmin > -1) && (boundYmin < boundYmax) && (boundYmin > -1))
+		if ((r.boundXmin < r.boundXmax) && (r.boundXmin > -1) && (r.boundYmin < r.boundYmax) && (r.boundYmin > -1))
 			//BASE CASE we have a valid bounding box described by the bound variables that cannot be futher split
-			return bbr.add(new PreciseRectangle(boundXmin, boundYmin, boundXmax - boundXmin, boundYmax - boundYmin));
-		return false;
+			return STEP_BOX;
+		return STEP_EMPTY;
 	}
 	
 	/**
@@ -256,7 +776,7 @@ public class BoundingBoxThing {
 	 * @param top Whether you are checking for pixels on the top of the box, or the bottom
 	 * @return
 	 */
-	private static boolean updateYbound(boolean[][] img, int limXmin, int limXmax, int y, boolean top) {
+	private static boolean updateYbound(boolean[][] img, Projections p, int limXmin, int limXmax, int y, boolean top) {
 		// check for pixels on top/bottom edge of box
 		if (test(img, limXmin, y)) {
 			if (test(img, limXmin, y + (top ? 1 : -1)) && test(img, limXmin + 1, y + (top ? 1 : -1)))
@@ -265,14 +785,14 @@ public class BoundingBoxThing {
 			if (test(img, limXmax, y + (top ? 1 : -1)) && test(img, limXmax - 1, y + (top ? 1 : -1)))
 				return true;
 		} else {
-			for (int x = limXmin + 1; x < limXmax - 1; x++)
-				if (test(img, x, y) && adjH(img, x, y + (top ? 1 : -1)))
-					return true;
+			final int want = top ? Projections.BELOW : Projections.ABOVE;
+			if ((p.row(y, limXmin + 1, limXmax - 1, want) & want) != 0)
+				return true;
 		}
 		return false;
 	}
 	
-	private static boolean updateXbound(boolean[][] img, int limYmin, int limYmax, int x, boolean left) {
+	private static boolean updateXbound(boolean[][] img, Projections p, int limYmin, int limYmax, int x, boolean left) {
 		// check for pixels on left/right edge of box
 		if (test(img, x, limYmin)) {
 			if (test(img, x + (left ? 1 : -1), limYmin) && test(img, x + (left ? 1 : -1), limYmin + 1))
@@ -281,9 +801,9 @@ public class BoundingBoxThing {
 			if (test(img, x + (left ? 1 : -1), limYmax) && test(img, x + (left ? 1 : -1), limYmax - 1))
 				return true;
 		} else {
-			for (int y = limYmin + 1; y < limYmax; y++)
-				if (test(img, x, y) && adjV(img, x + ( left ? 1 : -1), y))
-					return true;
+			final int want = left ? Projections.RIGHT : Projections.LEFT;
+			if ((p.column(x, limYmin + 1, limYmax, want) & want) != 0)
+				return true;
 		}
 		return false;
 	}
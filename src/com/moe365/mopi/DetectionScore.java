@@ -0,0 +1,120 @@
+package com.moe365.mopi;
+
+import java.util.List;
+
+import com.moe365.mopi.geom.PreciseRectangle;
+import com.moe365.mopi.processing.ProcessorComparison;
+
+/**
+ * Tallies how well the targets found in some frame pairs match the targets
+ * that should have been found. A target found counts as a hit if it
+ * overlaps a target that should have been found (that isn't already hit)
+ * with an intersection over union of at least {@link #minOverlap}.
+ */
+public class DetectionScore {
+	/**
+	 * Default {@link #minOverlap}
+	 */
+	public static final double DEFAULT_MIN_OVERLAP = .5;
+	/**
+	 * Smallest intersection over union for a target found to count as a hit
+	 */
+	protected final double minOverlap;
+	/**
+	 * Number of targets found that should have been
+	 */
+	protected long hits = 0;
+	/**
+	 * Number of targets found that shouldn't have been
+	 */
+	protected long falseAlarms = 0;
+	/**
+	 * Number of targets that should have been found, but weren't
+	 */
+	protected long misses = 0;
+	/**
+	 * Number of pairs scored
+	 */
+	protected long pairs = 0;
+
+	public DetectionScore() {
+		this(DEFAULT_MIN_OVERLAP);
+	}
+
+	public DetectionScore(double minOverlap) {
+		this.minOverlap = minOverlap;
+	}
+
+	/**
+	 * Score one pair
+	 * @param truth targets that should have been found
+	 * @param found targets that were found (may be null, for none)
+	 * @return whether the pair was scored perfectly
+	 */
+	public boolean add(List<PreciseRectangle> truth, List<PreciseRectangle> found) {
+		pairs++;
+		final int nFound = found == null ? 0 : found.size();
+		final boolean[] used = new boolean[nFound];
+		int pairHits = 0;
+		for (PreciseRectangle expected : truth) {
+			int best = -1;
+			double bestOverlap = minOverlap;
+			for (int i = 0; i < nFound; i++) {
+				if (used[i])
+					continue;
+				final double overlap = ProcessorComparison.iou(expected, found.get(i));
+				if (overlap >= bestOverlap) {
+					best = i;
+					bestOverlap = overlap;
+				}
+			}
+			if (best >= 0) {
+				used[best] = true;
+				pairHits++;
+			}
+		}
+		hits += pairHits;
+		misses += truth.size() - pairHits;
+		falseAlarms += nFound - pairHits;
+		return pairHits == truth.size() && pairHits == nFound;
+	}
+
+	/**
+	 * @return the fraction of targets that should have been found that were
+	 *     (1 if there were none)
+	 */
+	public double getRecall() {
+		final long total = hits + misses;
+		return total == 0 ? 1 : ((double) hits) / total;
+	}
+
+	/**
+	 * @return the fraction of targets found that should have been (1 if
+	 *     nothing was found)
+	 */
+	public double getPrecision() {
+		final long total = hits + falseAlarms;
+		return total == 0 ? 1 : ((double) hits) / total;
+	}
+
+	public long getHitCount() {
+		return hits;
+	}
+
+	public long getFalseAlarmCount() {
+		return falseAlarms;
+	}
+
+	public long getMissCount() {
+		return misses;
+	}
+
+	public long getPairCount() {
+		return pairs;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d hits, %d misses, %d false alarms over %d pairs (recall %.3f, precision %.3f)", hits, misses, falseAlarms, pairs, getRecall(), getPrecision());
+	}
+}
@@ -0,0 +1,190 @@
+package com.moe365.mopi;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import com.moe365.mopi.geom.PreciseRectangle;
+import com.moe365.mopi.processing.DiagnosticWriter;
+
+/**
+ * A directory of recorded frame pairs, for offline tools.
+ * <p>
+ * Pairs are read in the formats that <kbd>--save-diff</kbd> writes them in:
+ * either <code>on&lt;n&gt;.png</code> and <code>off&lt;n&gt;.png</code>, or
+ * <code>pair&lt;n&gt;.raw</code> (see {@link DiagnosticWriter}).
+ * </p>
+ * <p>
+ * The targets that should be found in each pair can be given in
+ * <code>labels.txt</code>, one pair per line: the pair number, and then
+ * <code>x,y,width,height</code> for each target, scaled to the frame (so
+ * that (1, 1) is the bottom-right corner), separated by spaces. A line with
+ * just a number means that there are no targets in that pair. Blank lines
+ * and lines starting with <code>#</code> are ignored. Pairs without a line
+ * are unlabeled.
+ * </p>
+ */
+public class FrameCorpus {
+	/**
+	 * Name of the file that labels are read from
+	 */
+	public static final String LABELS_FILE = "labels.txt";
+	protected static final Pattern PNG_NAME = Pattern.compile("on(\\d+)\\.png");
+	protected static final Pattern RAW_NAME = Pattern.compile("pair(\\d+)\\.raw");
+
+	/**
+	 * A recorded frame pair
+	 */
+	public static class Pair {
+		protected final int number;
+		protected final BufferedImage imgOn, imgOff;
+		/**
+		 * Targets that should be found, or null if unlabeled
+		 */
+		protected List<PreciseRectangle> truth;
+
+		public Pair(int number, BufferedImage imgOn, BufferedImage imgOff, List<PreciseRectangle> truth) {
+			this.number = number;
+			this.imgOn = imgOn;
+			this.imgOff = imgOff;
+			this.truth = truth;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public BufferedImage getImageOn() {
+			return imgOn;
+		}
+
+		public BufferedImage getImageOff() {
+			return imgOff;
+		}
+
+		/**
+		 * @return the targets that should be found, or null if unlabeled
+		 */
+		public List<PreciseRectangle> getTruth() {
+			return truth;
+		}
+	}
+
+	protected final List<Pair> pairs;
+
+	public FrameCorpus(List<Pair> pairs) {
+		this.pairs = pairs;
+	}
+
+	/**
+	 * Load every pair in a directory, and their labels
+	 * @param directory directory to load from
+	 * @return the corpus, in pair number order
+	 * @throws IOException if anything can't be read
+	 */
+	public static FrameCorpus load(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("Not a directory: " + directory);
+		TreeMap<Integer, BufferedImage[]> images = new TreeMap<>();
+		for (File file : files) {
+			Matcher m = PNG_NAME.matcher(file.getName());
+			if (m.matches()) {
+				File offFile = new File(directory, "off" + m.group(1) + ".png");
+				if (!offFile.exists()) {
+					System.err.println("No off frame for " + file);
+					continue;
+				}
+				images.put(Integer.parseInt(m.group(1)), new BufferedImage[] {ImageIO.read(file), ImageIO.read(offFile)});
+				continue;
+			}
+			m = RAW_NAME.matcher(file.getName());
+			if (m.matches())
+				images.put(Integer.parseInt(m.group(1)), DiagnosticWriter.readRaw(file));
+		}
+		TreeMap<Integer, List<PreciseRectangle>> labels = new TreeMap<>();
+		File labelFile = new File(directory, LABELS_FILE);
+		if (labelFile.exists())
+			labels = readLabels(labelFile);
+		List<Pair> pairs = new ArrayList<>(images.size());
+		for (Integer number : images.keySet()) {
+			BufferedImage[] pair = images.get(number);
+			if (pair[0] == null || pair[1] == null) {
+				System.err.println("Unable to read pair " + number);
+				continue;
+			}
+			pairs.add(new Pair(number, pair[0], pair[1], labels.get(number)));
+		}
+		System.out.println("Loaded " + pairs.size() + " pairs (" + labels.size() + " labeled) from " + directory);
+		return new FrameCorpus(pairs);
+	}
+
+	/**
+	 * Read a label file (see {@link FrameCorpus})
+	 * @param file file to read
+	 * @return the targets in each labeled pair, by pair number
+	 * @throws IOException if the file can't be read, or is malformed
+	 */
+	public static TreeMap<Integer, List<PreciseRectangle>> readLabels(File file) throws IOException {
+		TreeMap<Integer, List<PreciseRectangle>> labels = new TreeMap<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				try {
+					String[] parts = line.split("\\s+");
+					List<PreciseRectangle> targets = new ArrayList<>(parts.length - 1);
+					for (int i = 1; i < parts.length; i++) {
+						String[] values = parts[i].split(",");
+						if (values.length != 4)
+							throw new IllegalArgumentException("Expected x,y,width,height; got '" + parts[i] + "'");
+						targets.add(new PreciseRectangle(Double.parseDouble(values[0]), Double.parseDouble(values[1]), Double.parseDouble(values[2]), Double.parseDouble(values[3])));
+					}
+					labels.put(Integer.parseInt(parts[0]), targets);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Malformed label on line " + lineNumber + " of " + file + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * @return the pairs, in pair number order
+	 */
+	public List<Pair> getPairs() {
+		return Collections.unmodifiableList(pairs);
+	}
+
+	/**
+	 * @return the number of pairs
+	 */
+	public int size() {
+		return pairs.size();
+	}
+
+	/**
+	 * @return the size of the frames, as {width, height}, or null if there
+	 *     are no pairs
+	 */
+	public int[] getFrameSize() {
+		if (pairs.isEmpty())
+			return null;
+		BufferedImage img = pairs.get(0).imgOn;
+		return new int[] {img.getWidth(), img.getHeight()};
+	}
+}
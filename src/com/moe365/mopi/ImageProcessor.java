@@ -1,142 +1,194 @@
 package com.moe365.mopi;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
-
-import javax.imageio.ImageIO;
 
+import com.moe365.mopi.capture.CapturedFrame;
 import com.moe365.mopi.geom.PreciseRectangle;
 import com.moe365.mopi.processing.AbstractImageProcessor;
-
-import au.edu.jcu.v4l4j.VideoFrame;
+import com.moe365.mopi.processing.ColorClassifier;
+import com.moe365.mopi.processing.DiagnosticWriter;
+import com.moe365.mopi.processing.FramePlanes;
+import com.moe365.mopi.processing.TargetFilter;
 
 public class ImageProcessor extends AbstractImageProcessor<List<PreciseRectangle>> {
 	public static final int MIN_SIZE = 8;
 	public static final int step = 1, tolerance = 70;
 	/**
-	 * Whether to save the diff generated.
+	 * Rules matching the original hard-coded test: a large jump in green,
+	 * without a similar jump in red.
+	 */
+	public static final String DEFAULT_RULES = rulesFor(tolerance);
+	/**
+	 * Saves the diff generated in the background. Null if diffs aren't saved.
+	 */
+	protected volatile DiagnosticWriter diagnosticWriter;
+	/**
+	 * Row and column counts for {@link BoundingBoxThing}, reused between frames
 	 */
-	public boolean saveDiff = false;
-	protected final AtomicInteger i = new AtomicInteger(0);
+	protected final BoundingBoxThing.Projections projections = new BoundingBoxThing.Projections();
+	/**
+	 * Build rules like the default ones, with a different tolerance
+	 * @param tolerance smallest jump in green that counts
+	 * @return the rules
+	 */
+	public static String rulesFor(int tolerance) {
+		return "dG > " + tolerance + " && dR < dG - 10\n"
+				+ "dG > " + tolerance + " && dR < " + tolerance;
+	}
 	public ImageProcessor(int width, int height, Consumer<List<PreciseRectangle>> handler) {
 		super(0, 0, width, height, handler);
+		this.classifier = ColorClassifier.shared(DEFAULT_RULES);
+	}
+	
+	/**
+	 * Save diagnostic images of each pair processed (see
+	 * {@link DiagnosticWriter}).
+	 * @param writer writer to offer pairs to, or null to stop saving them
+	 * @return self
+	 */
+	public ImageProcessor setDiagnosticWriter(DiagnosticWriter writer) {
+		this.diagnosticWriter = writer;
+		return this;
+	}
+	
+	/**
+	 * Also stops the diagnostic writer, if there is one
+	 */
+	@Override
+	public void close() {
+		super.close();
+		final DiagnosticWriter writer = this.diagnosticWriter;
+		if (writer != null)
+			writer.stop();
 	}
 	
-	public boolean[][] calcDeltaWithDiff(VideoFrame frameOn, VideoFrame frameOff) {
-		// calculated yet)
-		boolean[][] processed = new boolean[getFrameHeight()][getFrameWidth()];
-		// boolean array of the results. A cell @ result[y][x] is only
-		// valid if processed[y][x] is true.
-		boolean[][] result = new boolean[getFrameHeight()][getFrameWidth()];
-		BufferedImage imgR = new BufferedImage(getFrameWidth(), getFrameHeight(), BufferedImage.TYPE_INT_RGB);
-		BufferedImage imgG = new BufferedImage(getFrameWidth(), getFrameHeight(), BufferedImage.TYPE_INT_RGB);
-		BufferedImage imgB = new BufferedImage(getFrameWidth(), getFrameHeight(), BufferedImage.TYPE_INT_RGB);
-		BufferedImage imgFlt = new BufferedImage(getFrameWidth(), getFrameHeight(), BufferedImage.TYPE_INT_RGB);
+	public boolean[][] calcDeltaWithDiff(CapturedFrame frameOn, CapturedFrame frameOff, DiagnosticWriter writer) {
 		System.out.println("Calculating...");
-		BufferedImage offImg = frameOff.getBufferedImage();
-		BufferedImage onImg = frameOn.getBufferedImage();
-		System.out.println("CM: " + onImg.getColorModel());
-		System.out.println("CMCL: " + onImg.getColorModel().getClass());
-		int[] pxOn = new int[3], pxOff = new int[3];
-		for (int y = frameMinY + step; y < frameMaxY - step; y += step) {
-			final int idxY = y - frameMinY;
-			for (int x = frameMinX + step + ((y % (2 * step) == 0) ? step/2 : 0); x < frameMaxX; x += step) {
-				final int idxX = x - frameMinX;
-				if (processed[idxY][idxX])
-					continue;
-				processed[idxY][idxX] = true;
-				splitRGB(onImg.getRGB(x, y), pxOn);
-				splitRGB(offImg.getRGB(x, y), pxOff);
-				int dR = pxOn[0] - pxOff[0];
-				int dG =  pxOn[1] - pxOff[1];
-				int dB =  pxOn[2] - pxOff[2];
-				if (dG > tolerance) {//TODO fix
-					result[idxY][idxX] = true;
-					imgFlt.setRGB(x, y, 0xFFFFFF);
+		FramePlanes planes = loadPlanes(frameOn, frameOff);
+		//Only copies the planes; they're written on the writer's thread
+		writer.offer(planes);
+		return toBooleanMap(planes);
+	}
+	public boolean[][] calcDeltaAdv(CapturedFrame frameOn, CapturedFrame frameOff) {
+		System.out.println("Calculating...");
+		return toBooleanMap(loadPlanes(frameOn, frameOff));
+	}
+	/**
+	 * Copy the delta plane into a boolean array, for {@link BoundingBoxThing}.
+	 * The outermost rows and leftmost column are left false.
+	 * <p>
+	 * If the processor is falling behind (the {@linkplain #getStride() stride}
+	 * is more than 1), only one pixel in each stride x stride block is
+	 * sampled, and the whole block is set to it, so the map stays connected
+	 * for {@link BoundingBoxThing}.
+	 * </p>
+	 * @param planes the planes to read
+	 * @return boolean array of the results, indexed as result[y][x]
+	 */
+	protected boolean[][] toBooleanMap(FramePlanes planes) {
+		return toBooleanMap(planes, new boolean[getFrameHeight()][getFrameWidth()]);
+	}
+	/**
+	 * Copy the delta plane into a boolean array that is being reused (see
+	 * {@link #toBooleanMap(FramePlanes)}).
+	 * @param planes the planes to read
+	 * @param result array to write to. Must be all false, or be cleared
+	 *     first.
+	 * @return result
+	 */
+	protected boolean[][] toBooleanMap(FramePlanes planes, boolean[][] result) {
+		final int stride = getStride();
+		if (stride > 1) {
+			//Sparse sweep
+			final int maxY = frameMaxY - step;
+			for (int y = frameMinY + step; y < maxY; y += stride) {
+				for (int x = frameMinX + step; x < frameMaxX; x += stride) {
+					if (!planes.test(x, y))
+						continue;
+					final int fromX = x - frameMinX, toX = Math.min(x + stride, frameMaxX) - frameMinX;
+					for (int blockY = y; blockY < y + stride && blockY < maxY; blockY++)
+						Arrays.fill(result[blockY - frameMinY], fromX, toX, true);
 				}
-				imgR.setRGB(x, y, saturateByte(dR) << 16);
-				imgG.setRGB(x, y, saturateByte(dG) << 8);
-				imgB.setRGB(x, y, saturateByte(dB));
 			}
+			return result;
 		}
-		try {
-			File imgDir = new File("img");
-			if (!(imgDir.exists() && imgDir.isDirectory()))
-				imgDir.mkdirs();
-			int num = i.getAndIncrement();
-			File file = new File(imgDir, "delta" + num + ".png");
-			System.out.println("Saving image to " + file);
-			ImageIO.write(imgR, "PNG", new File(imgDir, "dr" + num + ".png"));
-			ImageIO.write(imgG, "PNG", new File(imgDir, "dg" + num + ".png"));
-			ImageIO.write(imgB, "PNG", new File(imgDir, "db" + num + ".png"));
-			ImageIO.write(onImg, "PNG", new File(imgDir, "on" + num + ".png"));
-			ImageIO.write(offImg, "PNG", new File(imgDir, "off" + num + ".png"));
-			ImageIO.write(imgFlt, "PNG", file);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return result;
-	}
-	public boolean[][] calcDeltaAdv(VideoFrame frameOn, VideoFrame frameOff) {
-		// Whether the value of any cell in result[][] is valid (has been
-		// calculated yet)
-		boolean[][] processed = new boolean[getFrameHeight()][getFrameWidth()];
-		// boolean array of the results. A cell @ result[y][x] is only
-		// valid if processed[y][x] is true.
-		boolean[][] result = new boolean[getFrameHeight()][getFrameWidth()];
-		System.out.println("Calculating...");
-		BufferedImage offImg = frameOff.getBufferedImage();
-		BufferedImage onImg = frameOn.getBufferedImage();
-		int[] pxOn = new int[3], pxOff = new int[3];
 		for (int y = frameMinY + step; y < frameMaxY - step; y += step) {
 			final int idxY = y - frameMinY;
-			for (int x = frameMinX + step + ((y % (2 * step) == 0) ? step/2 : 0); x < frameMaxX; x += step) {
-				final int idxX = x - frameMinX;
-				if (processed[idxY][idxX])
-					continue;
-				processed[idxY][idxX] = true;
-				splitRGB(onImg.getRGB(x, y), pxOn);
-				splitRGB(offImg.getRGB(x, y), pxOff);
-				int dR = pxOn[0] - pxOff[0];
-				int dG =  pxOn[1] - pxOff[1];
-				int dB =  pxOn[2] - pxOff[2];
-				if (dG > tolerance && (dR < dG - 10 || dR < tolerance))//TODO fix
-					result[idxY][idxX] = true;
-			}
+			final boolean[] row = result[idxY];
+			for (int x = frameMinX + step + ((y % (2 * step) == 0) ? step/2 : 0); x < frameMaxX; x += step)
+				row[x - frameMinX] = planes.test(x, y);
 		}
 		return result;
 	}
 	protected List<PreciseRectangle> processBooleanMap(boolean[][] processed) {
-		// List of the rectangles to be generated by boundingBoxRecursive
-		List<PreciseRectangle> rectangles = new LinkedList<>();
-		//find rectangles
-		BoundingBoxThing.boundingBoxRecursive(processed, rectangles, 0, processed[0].length - 1, 0, processed.length - 1, -1, -1, -1, -1);
-		//sort the rectangles by area
+		//find rectangles (independent parts of the image are searched in parallel)
+		return filterRectangles(BoundingBoxThing.boundingBoxes(processed, ForkJoinPool.commonPool(), projections), planes);
+	}
+	/**
+	 * Scale bounding boxes to the frame, and keep the ones that the
+	 * {@linkplain #getTargetFilter() filter} passes
+	 * @param rectangles bounding boxes, in pixels
+	 * @param planes planes that the boxes were found in
+	 * @return the targets, largest first
+	 */
+	protected List<PreciseRectangle> filterRectangles(List<PreciseRectangle> rectangles, FramePlanes planes) {
 		final double xFactor = 1.0 / ((double) getFrameWidth());
 		final double yFactor = 1.0 / ((double) getFrameHeight());
-		//scale the rectangles to be in terms of width/height
-		rectangles = rectangles.stream()
-				.map(PreciseRectangle.scalar(xFactor, yFactor, xFactor, yFactor))
-				.sorted((a, b)->(Double.compare(b.getArea(), a.getArea())))
-				.collect(Collectors.toList());
+		//filter the rectangles, and keep the largest, in one pass
+		final TargetFilter filter = this.targetFilter;
+		final TargetFilter.Selector<PreciseRectangle> selector = filter.newSelector();
+		for (PreciseRectangle rectangle : rectangles) {
+			//scale the rectangles to be in terms of width/height
+			final double x = rectangle.getX() * xFactor, y = rectangle.getY() * yFactor;
+			final double width = rectangle.getWidth() * xFactor, height = rectangle.getHeight() * yFactor;
+			final double area = width * height;
+			if (!selector.wouldKeep(area))
+				continue;
+			final double fill = filter.needsFillRatio() ? planes.fillRatio((int) rectangle.getX() + frameMinX, (int) rectangle.getY() + frameMinY, (int) rectangle.getWidth(), (int) rectangle.getHeight()) : 1;
+			if (filter.test(x, y, width, height, fill))
+				selector.offer(new PreciseRectangle(x, y, width, height), area);
+		}
 		System.out.println("(done)");
-		return rectangles;
+		//largest first
+		return selector.drain();
+	}
+
+	@Override
+	protected List<PreciseRectangle> copyResult(List<PreciseRectangle> result) {
+		//PreciseRectangles are immutable, so we just need a new list
+		return new ArrayList<>(result);
+	}
+
+	@Override
+	protected List<PreciseRectangle> processImages(BufferedImage imgOn, BufferedImage imgOff) {
+		return processBooleanMap(toBooleanMap(loadPlanes(imgOn, imgOff)));
+	}
+
+	@Override
+	protected List<PreciseRectangle> getTargets(List<PreciseRectangle> result) {
+		//Already scaled to the frame
+		return result;
 	}
 
 	@Override
-	public  List<PreciseRectangle> apply(VideoFrame frameOn, VideoFrame frameOff) {
+	public  List<PreciseRectangle> apply(CapturedFrame frameOn, CapturedFrame frameOff) {
+		final DiagnosticWriter writer = this.diagnosticWriter;
+		if (writer == null && !hasCandidates(frameOn, frameOff))
+			//Nothing in the preview, so there's no need for a full decode
+			return new ArrayList<>();
 		boolean[][] result;
-		if (saveDiff)
-			result = calcDeltaWithDiff(frameOn, frameOff);
+		if (writer != null)
+			result = calcDeltaWithDiff(frameOn, frameOff, writer);
 		else
 			result = calcDeltaAdv(frameOn, frameOff);
 		if (result == null)
 			return null;
+		checkDeadline("bounding boxes");
 		return processBooleanMap(result);
 	}
 }
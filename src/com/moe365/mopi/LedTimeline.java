@@ -0,0 +1,242 @@
+package com.moe365.mopi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.moe365.mopi.capture.CapturedFrame;
+
+/**
+ * Keeps track of when the LED was switched on and off, so that frames can be
+ * labeled by whether the LED was on while they were exposed, instead of by
+ * the order they arrived in.
+ * <p>
+ * Labeling frames by flipping a flag on every capture callback means that a
+ * single dropped frame (or a slow {@code setState} on the GPIO pin) swaps
+ * on and off for the rest of the run. Instead, the time of every transition
+ * is recorded (from just before the pin was set, to just after), and each
+ * frame is looked up by its capture time. A frame is exposed over a window
+ * ending at its capture time; if a transition (plus the time the LED takes
+ * to settle) overlaps that window, the frame was lit by both, and shouldn't
+ * be processed.
+ * </p>
+ * <p>
+ * Capture times come from the driver, in microseconds, on a clock that
+ * depends on the kernel. The clock is worked out from the first frame: if
+ * it is close to {@link System#nanoTime()}, it's monotonic; if it is close
+ * to {@link System#currentTimeMillis()}, it's the wall clock; otherwise, the
+ * time that each frame arrived is used instead.
+ * </p>
+ * <p>
+ * Transitions are recorded and frames are labeled on the capture thread, so
+ * this class is <strong>not</strong> thread safe, except for the counters.
+ * </p>
+ */
+public class LedTimeline {
+	/**
+	 * Number of transitions to remember. Frames that are older than all of
+	 * them can't be labeled.
+	 */
+	public static final int HISTORY = 16;
+	/**
+	 * How close (in nanoseconds) a capture time has to be to a clock to be
+	 * counted as coming from it
+	 */
+	protected static final long CLOCK_TOLERANCE = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * What a frame was lit by
+	 */
+	public enum Exposure {
+		/**
+		 * The LED was on for the whole exposure
+		 */
+		ON,
+		/**
+		 * The LED was off for the whole exposure
+		 */
+		OFF,
+		/**
+		 * The LED changed during the exposure, or the exposure was too long
+		 * ago to tell
+		 */
+		MIXED;
+	}
+
+	/**
+	 * Which clock capture times come from
+	 */
+	protected enum CaptureClock {
+		UNKNOWN,
+		MONOTONIC,
+		WALL,
+		ARRIVAL;
+	}
+
+	/**
+	 * Length of the window that a frame is exposed over, ending at its
+	 * capture time, in nanoseconds
+	 */
+	protected final long exposure;
+	/**
+	 * How long the LED takes to reach full brightness (or go dark) after the
+	 * pin is set, in nanoseconds
+	 */
+	protected final long settle;
+	/**
+	 * The state of the LED before the first transition
+	 */
+	protected final boolean initialState;
+	/**
+	 * Ring buffers of when each transition started and ended
+	 * ({@link System#nanoTime()}), and what the LED was set to
+	 */
+	protected final long[] changeStart = new long[HISTORY], changeEnd = new long[HISTORY];
+	protected final boolean[] changeState = new boolean[HISTORY];
+	/**
+	 * Number of transitions recorded
+	 */
+	protected int changes = 0;
+	/**
+	 * The clock that capture times come from
+	 */
+	protected CaptureClock clock = CaptureClock.UNKNOWN;
+	/**
+	 * Offset to add to a capture time (in nanoseconds) to get a
+	 * {@link System#nanoTime()}, if capture times are on the wall clock
+	 */
+	protected long wallOffset;
+	/**
+	 * Counts of frames labeled each way
+	 */
+	protected final AtomicLong onCount = new AtomicLong(0), offCount = new AtomicLong(0), mixedCount = new AtomicLong(0);
+
+	/**
+	 * Create a timeline
+	 * @param exposure length of the window that a frame is exposed over
+	 * @param settle how long the LED takes to change after the pin is set
+	 * @param unit unit of exposure and settle
+	 * @param initialState state of the LED before the first transition
+	 */
+	public LedTimeline(long exposure, long settle, TimeUnit unit, boolean initialState) {
+		if (exposure < 0 || settle < 0)
+			throw new IllegalArgumentException("Invalid timing (expect: exposure, settle >= 0; exposure = " + exposure + ", settle = " + settle + ")");
+		this.exposure = unit.toNanos(exposure);
+		this.settle = unit.toNanos(settle);
+		this.initialState = initialState;
+	}
+
+	/**
+	 * Record a transition. Transitions to the state that the LED is already
+	 * in are ignored.
+	 * @param state the state that the LED was set to
+	 * @param start when (from {@link System#nanoTime()}) the pin started
+	 *     being set
+	 * @param end when (from {@link System#nanoTime()}) the pin was set
+	 */
+	public void record(boolean state, long start, long end) {
+		if (state == getState())
+			return;
+		final int i = changes % HISTORY;
+		changeStart[i] = start;
+		changeEnd[i] = end;
+		changeState[i] = state;
+		changes++;
+	}
+
+	/**
+	 * @return the state that the LED was last set to
+	 */
+	public boolean getState() {
+		return changes == 0 ? initialState : changeState[(changes - 1) % HISTORY];
+	}
+
+	/**
+	 * Get when a frame was captured, on the same clock as
+	 * {@link System#nanoTime()}. Must be called as soon as the frame
+	 * arrives, in case capture times can't be used.
+	 * @param frame the frame
+	 * @return the capture time, in nanoseconds
+	 */
+	public long getCaptureTime(CapturedFrame frame) {
+		final long now = System.nanoTime();
+		final long captureTime = TimeUnit.MICROSECONDS.toNanos(frame.getCaptureTime());
+		if (clock == CaptureClock.UNKNOWN) {
+			final long wallNow = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+			if (Math.abs(now - captureTime) < CLOCK_TOLERANCE) {
+				clock = CaptureClock.MONOTONIC;
+			} else if (Math.abs(wallNow - captureTime) < CLOCK_TOLERANCE) {
+				clock = CaptureClock.WALL;
+				wallOffset = now - wallNow;
+			} else {
+				clock = CaptureClock.ARRIVAL;
+			}
+			System.out.println("Frame capture times are on the " + clock.name().toLowerCase() + " clock");
+		}
+		switch (clock) {
+			case MONOTONIC:
+				return captureTime;
+			case WALL:
+				return captureTime + wallOffset;
+			default:
+				return now;
+		}
+	}
+
+	/**
+	 * Work out what a frame was lit by, and count it
+	 * @param captureTime when the frame was captured (see
+	 *     {@link #getCaptureTime(CapturedFrame)})
+	 * @return what the frame was lit by
+	 */
+	public Exposure classify(long captureTime) {
+		final Exposure result = lookup(captureTime - exposure, captureTime);
+		(result == Exposure.ON ? onCount : result == Exposure.OFF ? offCount : mixedCount).incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Work out what the LED was doing over a window of time
+	 * @param from start of the window
+	 * @param to end of the window
+	 * @return what the LED was doing
+	 */
+	protected Exposure lookup(long from, long to) {
+		final int oldest = Math.max(0, changes - HISTORY);
+		for (int n = changes - 1; n >= oldest; n--) {
+			final int i = n % HISTORY;
+			if (changeStart[i] - to > 0)
+				//Happened after the exposure
+				continue;
+			if (changeEnd[i] + settle - from >= 0)
+				//Happened during the exposure
+				return Exposure.MIXED;
+			return changeState[i] ? Exposure.ON : Exposure.OFF;
+		}
+		if (changes > HISTORY)
+			//Older than anything we remember
+			return Exposure.MIXED;
+		return initialState ? Exposure.ON : Exposure.OFF;
+	}
+
+	/**
+	 * @return the number of frames exposed with the LED on
+	 */
+	public long getOnCount() {
+		return onCount.get();
+	}
+
+	/**
+	 * @return the number of frames exposed with the LED off
+	 */
+	public long getOffCount() {
+		return offCount.get();
+	}
+
+	/**
+	 * @return the number of frames exposed while the LED changed, which
+	 *     weren't processed
+	 */
+	public long getMixedCount() {
+		return mixedCount.get();
+	}
+}
@@ -16,16 +16,17 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 import com.divisors.projectcuttlefish.httpserver.util.ByteUtils;
 import com.divisors.projectcuttlefish.httpserver.util.ByteUtils.ByteBufferTokenizer;
+import com.moe365.mopi.capture.CapturedFrame;
 import com.moe365.mopi.geom.Polygon;
 import com.moe365.mopi.geom.PreciseRectangle;
 
-import au.edu.jcu.v4l4j.VideoFrame;
-
 /**
  * HTTP server used to stream data to web browsers.
  * @author mailmindlin
@@ -58,6 +59,12 @@ public class MJPEGServer implements Runnable {
 	 */
 	public static final ByteBuffer HTTP_PAGE_200;
 	
+	/**
+	 * Generic 202 Accepted response bytes, for requests that are still being
+	 * handled when the response is sent
+	 */
+	public static final ByteBuffer HTTP_PAGE_202;
+	
 	/**
 	 * SSE header (sent at the top of the response) bytes.
 	 */
@@ -70,6 +77,7 @@ public class MJPEGServer implements Runnable {
 		HTTP_HEAD_MJPEG = loadHttp("mjpeg-head");
 		HTTP_FRAME_MJPEG = loadHttp("mjpeg-frame-head");
 		HTTP_PAGE_200 = loadHttp("200");
+		HTTP_PAGE_202 = loadHttp("202");
 		HTTP_SSE_HEAD = loadHttp("sse-head");
 	}
 	
@@ -238,22 +246,56 @@ public class MJPEGServer implements Runnable {
 		System.out.println("Server stopped.");
 	}
 	
+	/**
+	 * Whether any clients are watching the MJPEG stream. If not, there is no
+	 * point in preparing frames for it.
+	 * @return whether any clients have requested the MJPEG stream
+	 */
+	public boolean hasStreamClients() {
+		return !this.mjpegChannels.isEmpty();
+	}
+	
+	/**
+	 * Whether any clients are listening to the SSE stream
+	 * @return whether any clients have requested the SSE stream
+	 */
+	public boolean hasSSEClients() {
+		return !this.jsonSSEChannels.isEmpty();
+	}
+	
+	/**
+	 * @return the port that the server is listening on
+	 */
+	public int getPort() {
+		return this.serverSocket.socket().getLocalPort();
+	}
+	
 	/**
 	 * Offer a frame to be served in the MJPEG stream. After calling this
 	 * method, the frame CAN be recycled.
 	 * @param frame Frame to add to the MJPEG stream
 	 */
-	public void offerFrame(VideoFrame frame) {
+	public void offerFrame(CapturedFrame frame) {
+		offerJPEG(frame.getBytes(), frame.getFrameLength());
+	}
+	
+	/**
+	 * Offer a JPEG image to be served in the MJPEG stream. The data is copied,
+	 * so the array can be reused as soon as this method returns.
+	 * @param data JPEG bytes
+	 * @param length number of bytes in data to send
+	 */
+	public void offerJPEG(byte[] data, int length) {
 		if (isImageAvailable.get() || (!isJpegBufferLocked.compareAndSet(false, true))) {
 //			System.err.print('D');
 			return;
 		}
 		try {
 			jpegWriteBuffer.clear();
-			jpegWriteBuffer.put(Integer.toString(frame.getFrameLength()).getBytes());
+			jpegWriteBuffer.put(Integer.toString(length).getBytes());
 			jpegWriteBuffer.put(new byte[]{'\r','\n','\r','\n'});
-//			System.out.println("Frame " + (frame.getFrameLength()/1024) + "kb");
-			jpegWriteBuffer.put(frame.getBytes(), 0, frame.getFrameLength());
+//			System.out.println("Frame " + (length/1024) + "kb");
+			jpegWriteBuffer.put(data, 0, length);
 			jpegWriteBuffer.flip();
 			isImageAvailable.compareAndSet(false, true);
 			selector.wakeup();
@@ -270,6 +312,17 @@ public class MJPEGServer implements Runnable {
 		if (jsonSSEChannels.size() == 0)
 			//Don't waste time on building the data, if nobody's there to listen
 			return;
+		rectangleWriteBuffer = encodeRectangles(rectangles);
+		areRectanglesAvailable.set(true);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Build the SSE event for a set of rectangles
+	 * @param rectangles set of rectangles (may be null)
+	 * @return the event
+	 */
+	protected static ByteBuffer encodeRectangles(List<PreciseRectangle> rectangles) {
 		StringBuffer sb = new StringBuffer("event: udrects\r\ndata: [");
 		if (rectangles != null && (!rectangles.isEmpty())) {
 			for (PreciseRectangle rectangle : rectangles) {
@@ -282,8 +335,7 @@ public class MJPEGServer implements Runnable {
 			sb.delete(sb.length() - 1, sb.length());
 		}
 		sb.append("]\r\n\r\n");
-		rectangleWriteBuffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
-		areRectanglesAvailable.set(true);
+		return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
 	}
 	
 	/**
@@ -294,6 +346,18 @@ public class MJPEGServer implements Runnable {
 		if (jsonSSEChannels.size() == 0)
 			//Don't waste time on building the data, if nobody's there to listen
 			return;
+		rectangleWriteBuffer = encodePolygons(polygons);
+		areRectanglesAvailable.set(true);
+		selector.wakeup();
+		System.out.println("Pushed polygons");
+	}
+	
+	/**
+	 * Build the SSE event for a set of polygons
+	 * @param polygons set of polygons (may be null)
+	 * @return the event
+	 */
+	protected static ByteBuffer encodePolygons(List<Polygon> polygons) {
 		StringBuffer sb = new StringBuffer("event: udrects\r\ndata: [");
 		if (polygons != null && (!polygons.isEmpty())) {
 			for (Polygon polygon : polygons) {
@@ -309,9 +373,7 @@ public class MJPEGServer implements Runnable {
 			sb.delete(sb.length() - 1, sb.length());
 		}
 		sb.append("]\r\n\r\n");
-		rectangleWriteBuffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
-		areRectanglesAvailable.set(true);
-		System.out.println("Pushed polygons");
+		return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
 	}
 	
 	/**
@@ -394,7 +456,8 @@ public class MJPEGServer implements Runnable {
 		long id = this.channelId.incrementAndGet();
 		this.channelMap.put(id, socket);
 
-		socket.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, id);
+		//Only reads wake the selector; writes are made when something is offered (which wakes it)
+		socket.register(selector, SelectionKey.OP_READ, id);
 	}
 
 	/**
@@ -468,6 +531,44 @@ public class MJPEGServer implements Runnable {
 			System.out.println("Rectangle SSE stream");
 			channel.write(MJPEGServer.HTTP_SSE_HEAD.duplicate());
 			jsonSSEChannels.add(id);
+		} else if (header[1].endsWith("stream/on") || header[1].endsWith("stream/off") || header[1].endsWith("stream/all")) {
+			//Select which frames (LED on/off/all) get streamed
+			String selection = header[1].substring(header[1].lastIndexOf('/') + 1);
+			Main.setStreamSelection(selection.equals("on") ? StreamEncoder.FrameSelection.LED_ON : selection.equals("off") ? StreamEncoder.FrameSelection.LED_OFF : StreamEncoder.FrameSelection.ALL);
+			channel.write(MJPEGServer.HTTP_PAGE_200.duplicate());
+			channel.close();
+			channelMap.remove(id);
+		} else if (header[1].endsWith("classifier/reload")) {
+			//Reload the classifier rules from disk
+			boolean reloaded = Main.reloadClassifier();
+			channel.write((reloaded ? MJPEGServer.HTTP_PAGE_200 : MJPEGServer.HTTP_PAGE_404).duplicate());
+			channel.close();
+			channelMap.remove(id);
+		} else if (header[1].endsWith("processor/restart") || header[1].endsWith("processor/contours") || header[1].endsWith("processor/rectangles")) {
+			//Restart or switch the processor, without stopping capture
+			String action = header[1].substring(header[1].lastIndexOf('/') + 1);
+			runInBackground("processor/" + action, () -> action.equals("restart") ? Main.restartProcessor() : Main.switchProcessor(action.equals("contours")));
+			channel.write(MJPEGServer.HTTP_PAGE_202.duplicate());
+			channel.close();
+			channelMap.remove(id);
+		} else if (header[1].endsWith("processor/reload")) {
+			//Reload the contour tracer's params from disk
+			runInBackground("processor/reload", Main::reloadTracerParams);
+			channel.write(MJPEGServer.HTTP_PAGE_202.duplicate());
+			channel.close();
+			channelMap.remove(id);
+		} else if (header[1].endsWith("compare.json")) {
+			//Latencies and agreement of the processors being compared
+			String stats = Main.getComparisonStats();
+			if (stats == null) {
+				channel.write(MJPEGServer.HTTP_PAGE_404.duplicate());
+			} else {
+				byte[] body = stats.getBytes(StandardCharsets.UTF_8);
+				channel.write(ByteBuffer.wrap(("HTTP/1.0 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8)));
+				channel.write(ByteBuffer.wrap(body));
+			}
+			channel.close();
+			channelMap.remove(id);
 		} else if (header[1].endsWith("qual/hi")) {
 			//Set camera to high quality
 			Main.setQuality(80);
@@ -486,6 +587,34 @@ public class MJPEGServer implements Runnable {
 		}
 	}
 	
+	/**
+	 * Run a request that could take a while (like one that waits for the
+	 * processor to finish a pair) off of the server's thread, so that it
+	 * doesn't hold up the streams. It has already been answered, so whether
+	 * it worked is logged.
+	 * @param name name of the request, for the log
+	 * @param task the request; returns whether it worked
+	 */
+	protected void runInBackground(String name, BooleanSupplier task) {
+		Runnable runner = () -> {
+			try {
+				System.out.println(name + (task.getAsBoolean() ? " done" : " failed"));
+			} catch (Exception e) {
+				System.err.println(name + " failed:");
+				e.printStackTrace();
+			}
+		};
+		try {
+			if (executor == null)
+				new Thread(runner, "MJPEGServer-" + name).start();
+			else
+				executor.submit(runner);
+		} catch (RejectedExecutionException e) {
+			//Shutting down
+			System.err.println("Unable to run " + name + ": " + e.getMessage());
+		}
+	}
+	
 	/**
 	 * Attempt to stop the server.
 	 * @throws IOException if an I/O error occurred during the shutdown attempt
@@ -1,28 +1,47 @@
 package com.moe365.mopi;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import com.moe365.mopi.CommandLineParser.ParsedCommandLineArguments;
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.capture.FrameRecorder;
+import com.moe365.mopi.capture.FrameRecording;
+import com.moe365.mopi.capture.FrameSource;
+import com.moe365.mopi.capture.PacedFrameSource;
+import com.moe365.mopi.capture.RecordedFrameSource;
+import com.moe365.mopi.capture.ReplayFrameSource;
+import com.moe365.mopi.capture.SyntheticFrameSource;
+import com.moe365.mopi.capture.V4L4JFrameSource;
 import com.moe365.mopi.geom.Polygon;
 import com.moe365.mopi.geom.Polygon.PointNode;
 import com.moe365.mopi.geom.PreciseRectangle;
 import com.moe365.mopi.processing.AbstractImageProcessor;
+import com.moe365.mopi.processing.ColorClassifier;
 import com.moe365.mopi.processing.ContourTracer;
+import com.moe365.mopi.processing.ContourTracer.ContourTracerParams;
+import com.moe365.mopi.processing.DiagnosticWriter;
+import com.moe365.mopi.processing.FrameScheduler;
+import com.moe365.mopi.processing.MotionEstimator;
+import com.moe365.mopi.processing.ProcessorComparison;
+import com.moe365.mopi.processing.ResultBus;
+import com.moe365.mopi.processing.TargetFilter;
 import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioFactory;
 import com.pi4j.io.gpio.GpioPinDigitalOutput;
@@ -30,14 +49,12 @@ import com.pi4j.io.gpio.PinMode;
 import com.pi4j.io.gpio.PinState;
 import com.pi4j.io.gpio.RaspiPin;
 
-import au.edu.jcu.v4l4j.CaptureCallback;
 import au.edu.jcu.v4l4j.Control;
 import au.edu.jcu.v4l4j.ControlList;
 import au.edu.jcu.v4l4j.ImagePalette;
 import au.edu.jcu.v4l4j.JPEGFrameGrabber;
 import au.edu.jcu.v4l4j.V4L4JConstants;
 import au.edu.jcu.v4l4j.VideoDevice;
-import au.edu.jcu.v4l4j.VideoFrame;
 import au.edu.jcu.v4l4j.encoder.JPEGEncoder;
 import au.edu.jcu.v4l4j.exceptions.ControlException;
 import au.edu.jcu.v4l4j.exceptions.StateException;
@@ -80,7 +97,51 @@ public class Main {
 	public static VideoDevice camera;
 	public static RoboRioClient rioClient;
 	public static JPEGFrameGrabber frameGrabber;
-	public static AbstractImageProcessor<?> processor;
+	/**
+	 * Where frames come from (the camera, unless playing recorded or
+	 * synthetic pairs)
+	 */
+	public static FrameSource frameSource;
+	/**
+	 * Hands the processor's results to the Rio, SSE, and the console. One of
+	 * {@link #rectangleBus} and {@link #polygonBus}, depending on which
+	 * processor is active.
+	 */
+	public static volatile ResultBus<?> resultBus;
+	/**
+	 * Buses for each kind of result, made the first time that a processor
+	 * needs one, and kept when the processor is swapped
+	 */
+	protected static ResultBus<List<PreciseRectangle>> rectangleBus;
+	protected static ResultBus<List<Polygon>> polygonBus;
+	/**
+	 * Records what the camera saw, if <kbd>--record</kbd> is set
+	 */
+	public static FrameRecorder recorder;
+	public static StreamEncoder streamEncoder;
+	/**
+	 * The processor that frames are offered to. Read for every frame, so that
+	 * it can be swapped while capturing (see {@link #switchProcessor(boolean)}).
+	 */
+	public static volatile AbstractImageProcessor<?> processor;
+	/**
+	 * Builds a processor (the contour tracer if passed true), set up the way
+	 * that the command line asked for. Null if processing is disabled.
+	 */
+	protected static Function<Boolean, AbstractImageProcessor<?>> processorFactory;
+	/**
+	 * File that the contour tracer's params are loaded from, if
+	 * <kbd>--tracer-params</kbd> is set
+	 */
+	protected static File tracerParamsFile;
+	/**
+	 * Runs the processors side by side, if <kbd>--compare</kbd> is set
+	 */
+	public static volatile ProcessorComparison<?> comparison;
+	/**
+	 * When the LED was switched on and off, for labeling frames
+	 */
+	public static LedTimeline ledTimeline;
 	/**
 	 * Main entry point.
 	 * @param fred Command line arguments
@@ -89,7 +150,7 @@ public class Main {
 	 * @throws InterruptedException
 	 */
 	public static void main(String...fred) throws IOException, V4L4JException, InterruptedException {
-		CommandLineParser parser = loadParser();
+		CommandLineParser parser = buildParser();
 		ParsedCommandLineArguments parsed = parser.apply(fred);
 		
 		if (parsed.isFlagSet("--help")) {
@@ -97,17 +158,29 @@ public class Main {
 			System.exit(0);
 		}
 		
-		if (parsed.isFlagSet("--rebuild-parser")) {
-			System.out.print("Building parser...\t");
-			buildParser();
-			System.out.println("Done.");
-			System.exit(0);
-		}
-		
 		width = parsed.getOrDefault("--width", 640);
 		height = parsed.getOrDefault("--height", 480);
 		System.out.println("Frame size: " + width + "x" + height);
 		
+		if (parsed.isFlagSet("--sweep")) {
+			System.exit(runSweep(parsed));
+		}
+		
+		if (parsed.isFlagSet("--gate")) {
+			System.exit(runGate(parsed));
+		}
+		
+		if (parsed.isFlagSet("--generate")) {
+			int count = parsed.getOrDefault("--generate-count", 50);
+			initSceneGenerator(parsed).writeCorpus(new File(parsed.get("--generate")), count);
+			System.out.println("Wrote " + count + " pairs to " + parsed.get("--generate"));
+			System.exit(0);
+		}
+		
+		if (parsed.isFlagSet("--stress")) {
+			System.exit(runStress(parsed));
+		}
+		
 		// Initialize components
 		final ExecutorService executor = Executors.newCachedThreadPool();
 		
@@ -119,15 +192,16 @@ public class Main {
 		
 		final RoboRioClient client = initClient(parsed, executor);
 		
-		final AbstractImageProcessor<?> tracer = processor = initProcessor(parsed, server, client);
+		final AbstractImageProcessor<?> tracer = processor = initProcessor(parsed, server, client, executor);
 		
-		//The state of the LED. Used for timing.
+		//The state that the LED is being driven to. Alternates every frame.
 		final AtomicBoolean ledState = new AtomicBoolean(false);
 		
 		
 		// Run test, if required
 		if (parsed.isFlagSet("--test")) {
 			String target = parsed.get("--test");
+			int status = 0;
 			switch (target) {
 				case "converter":
 					testConverter(device);
@@ -140,34 +214,70 @@ public class Main {
 					break;
 				case "sse":
 					testSSE(server);
+					break;
+				case "alloc":
+					status = testAllocation(parsed, tracer, server, client) ? 0 : 1;
+					break;
 				default:
 					System.err.println("Unknown test '" + target + "'");
 			}
-			device.release();
-			System.exit(0);
+			if (device != null)
+				device.release();
+			System.exit(status);
 		}
 		
 		final int jpegQuality = parsed.getOrDefault("--jpeg-quality", 80);
 		System.out.println("JPEG quality: " + jpegQuality + "%");
-		if (device != null) {
-			final JPEGFrameGrabber fg = frameGrabber = device.getJPEGFrameGrabber(width, height, 0, V4L4JConstants.STANDARD_WEBCAM, jpegQuality);
-			fg.setFrameInterval(parsed.getOrDefault("--fps-num", 1), parsed.getOrDefault("--fps-denom", 10));
-			System.out.println("Framerate: " + fg.getFrameInterval());
+		final boolean rawCapture = parsed.isFlagSet("--raw-capture");
+		final StreamEncoder encoder = streamEncoder = initStreamEncoder(parsed, server, rawCapture, jpegQuality);
+		if (parsed.isFlagSet("--warmup")) {
+			try {
+				new Warmup(width, height).generate().run(tracer, server, client, parsed.getOrDefault("--warmup", 5000));
+			} catch (IOException e) {
+				//Not worth failing over
+				e.printStackTrace();
+			}
+		}
+		final FrameSource source = frameSource = initFrameSource(parsed, device, rawCapture, jpegQuality);
+		if (source != null) {
+			final int fpsNum = parsed.getOrDefault("--fps-num", 1), fpsDenom = parsed.getOrDefault("--fps-denom", 10);
+			source.setFrameInterval(fpsNum, fpsDenom);
+			
+			//Label frames by when they were exposed, not by the order they arrive in
+			final int exposureWindow = parsed.getOrDefault("--exposure-window", (int) (500_000L * fpsNum / fpsDenom));
+			final int ledSettle = parsed.getOrDefault("--led-settle", 1000);
+			System.out.println("Exposure window: " + exposureWindow + "us, LED settle time: " + ledSettle + "us");
+			final LedTimeline timeline = ledTimeline = new LedTimeline(exposureWindow, ledSettle, TimeUnit.MICROSECONDS, false);
+			//Recorded frames were labeled when they were recorded
+			final RecordedFrameSource recorded = source instanceof RecordedFrameSource ? (RecordedFrameSource) source : null;
+			final FrameRecorder recorder = Main.recorder = initRecorder(parsed, rawCapture);
 			
-			fg.setCaptureCallback(new CaptureCallback() {
+			source.start(new FrameSource.Listener() {
 				@Override
-				public void nextFrame(VideoFrame frame) {
+				public void nextFrame(CapturedFrame frame) {
 					try {
-						if (server != null && ledState.get())
-							server.offerFrame(frame);
-						if (tracer != null && processorEnabled) {
-							tracer.offerFrame(frame, ledState.get());
+						//Can be swapped at any time; a frame offered to a processor that was just stopped is recycled by it
+						final AbstractImageProcessor<?> tracer = Main.processor;
+						final long captureTime = timeline.getCaptureTime(frame);
+						final LedTimeline.Exposure exposure = recorded != null ? recorded.getExposure(frame) : timeline.classify(captureTime);
+						if (recorder != null)
+							recorder.record(frame, exposure, captureTime);
+						final boolean flash = exposure == LedTimeline.Exposure.ON;
+						if (encoder != null)
+							encoder.offerFrame(frame, flash);
+						if (tracer != null && processorEnabled && exposure != LedTimeline.Exposure.MIXED) {
+							tracer.offerFrame(frame, flash);
 						} else {
+							if (exposure == LedTimeline.Exposure.MIXED && timeline.getMixedCount() % 100 == 1)
+								System.out.println("Frame exposed during an LED transition (" + timeline.getMixedCount() + " so far)");
 							frame.recycle();
 						}
-//						System.out.println("Frame, " + ledState.get() + ", " + fg.getNumberOfRecycledVideoFrames());
 						ledState.set(!ledState.get());
-						gpioPin.setState(ledState.get() || (!processorEnabled));
+						final boolean pinState = ledState.get() || (!processorEnabled);
+						final long setStart = System.nanoTime();
+						if (gpioPin != null)
+							gpioPin.setState(pinState);
+						timeline.record(pinState, setStart, System.nanoTime());
 					} catch (Exception e) {
 						//Make sure to print any/all exceptions
 						e.printStackTrace();
@@ -176,9 +286,9 @@ public class Main {
 				}
 	
 				@Override
-				public void exceptionReceived(V4L4JException e) {
+				public void exceptionReceived(Exception e) {
 					e.printStackTrace();
-					fg.stopCapture();
+					source.stop();
 					if (server != null)
 						try {
 							server.shutdown();
@@ -187,10 +297,89 @@ public class Main {
 						}
 				}
 			});
-			fg.startCapture();
 		}
 	}
 	
+	/**
+	 * Start recording frames, if --record is set. Recording is stopped (and
+	 * flushed) when the program exits.
+	 * @param args
+	 * @param rawCapture whether frames are raw, instead of JPEGs
+	 * @return the recorder, or null if not recording
+	 */
+	protected static FrameRecorder initRecorder(ParsedCommandLineArguments args, boolean rawCapture) {
+		if (!args.isFlagSet("--record"))
+			return null;
+		if (rawCapture) {
+			System.err.println("Can't record raw frames (they can't be replayed); not recording");
+			return null;
+		}
+		try {
+			final FrameRecorder recorder = new FrameRecorder(new File(args.get("--record")), args.getOrDefault("--record-segment-mb", 256) * 1024L * 1024L, width, height);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}, "RecorderShutdownThread"));
+			return recorder;
+		} catch (IOException e) {
+			//Not worth failing over
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Pick where frames come from: recorded frames (with --replay), synthetic
+	 * pairs (with --synthetic), or the camera.
+	 * @param args
+	 * @param device the camera (may be null)
+	 * @param rawCapture whether to capture raw frames from the camera, instead of JPEGs
+	 * @param jpegQuality quality to capture JPEGs from the camera at
+	 * @return the source, or null if there is nowhere to get frames from
+	 * @throws V4L4JException if the camera can't be set up
+	 * @throws IOException if the pairs to play can't be loaded
+	 */
+	protected static FrameSource initFrameSource(ParsedCommandLineArguments args, VideoDevice device, boolean rawCapture, int jpegQuality) throws V4L4JException, IOException {
+		PacedFrameSource source;
+		if (args.isFlagSet("--replay") && isRecording(new File(args.get("--replay")))) {
+			final RecordedFrameSource recorded = new RecordedFrameSource(new FrameRecording(new File(args.get("--replay"))));
+			System.out.println("Playing " + recorded.getRecording().size() + " recorded frames");
+			if (recorded.getWidth() != width || recorded.getHeight() != height)
+				throw new IllegalArgumentException("Frames to play are " + recorded.getWidth() + "x" + recorded.getHeight() + ", but the frame size is " + width + "x" + height + " (set it with --width and --height)");
+			return recorded
+				.setRealTime(!args.isFlagSet("--replay-fast"))
+				.setLoop(args.isFlagSet("--replay-loop"));
+		} else if (args.isFlagSet("--replay")) {
+			source = new ReplayFrameSource(FrameCorpus.load(new File(args.get("--replay"))));
+		} else if (args.isFlagSet("--synthetic")) {
+			int pairs = args.getOrDefault("--synthetic", 16);
+			System.out.println("Rendering " + pairs + " synthetic pairs");
+			source = new SyntheticFrameSource(initSceneGenerator(args), pairs);
+		} else if (device != null) {
+			if (rawCapture)
+				return new V4L4JFrameSource(device.getRGBFrameGrabber(width, height, 0, V4L4JConstants.STANDARD_WEBCAM));
+			return new V4L4JFrameSource(frameGrabber = device.getJPEGFrameGrabber(width, height, 0, V4L4JConstants.STANDARD_WEBCAM, jpegQuality));
+		} else {
+			return null;
+		}
+		if (source.getWidth() != width || source.getHeight() != height)
+			throw new IllegalArgumentException("Frames to play are " + source.getWidth() + "x" + source.getHeight() + ", but the frame size is " + width + "x" + height + " (set it with --width and --height)");
+		return source.setDecode(!args.isFlagSet("--predecoded"));
+	}
+	
+	/**
+	 * @param dir directory to check
+	 * @return whether the directory has a recording made with --record in it
+	 *     (instead of frame pairs)
+	 */
+	protected static boolean isRecording(File dir) {
+		final File[] segments = dir.listFiles((d, name) -> name.endsWith(FrameRecording.SEGMENT_SUFFIX));
+		return segments != null && segments.length > 0;
+	}
+	
 	protected static void testClient(RoboRioClient client) throws IOException, InterruptedException {
 		System.out.println("RUNNING TEST: CLIENT");
 		//just spews out UDP packets on a 3s loop
@@ -207,6 +396,119 @@ public class Main {
 		}
 	}
 	
+	/**
+	 * Sweep processor parameters over recorded pairs, and print the ranked
+	 * results
+	 * @param args
+	 * @return the exit status
+	 */
+	protected static int runSweep(ParsedCommandLineArguments args) throws IOException, InterruptedException {
+		FrameCorpus corpus = FrameCorpus.load(new File(args.get("--sweep")));
+		if (corpus.size() == 0) {
+			System.err.println("No pairs found");
+			return 1;
+		}
+		final boolean traceContours = args.isFlagSet("--trace-contours");
+		String grid = args.getOrDefault("--sweep-grid", traceContours ? "minBlobWidth=10,20,30;minBlobHeight=5,10,20;maxSegmentLength=5,10,20;stepSize=2,4,8" : "tolerance=40,55,70,85,100");
+		int threads = args.getOrDefault("--sweep-threads", 1);
+		double minRecall = args.isFlagSet("--sweep-min-recall") ? Double.parseDouble(args.get("--sweep-min-recall")) : .9;
+		ParameterSweep sweep = new ParameterSweep(corpus, traceContours, initTargetFilter(args), args.getOrDefault("--sweep-passes", 3), minRecall);
+		final long start = System.nanoTime();
+		List<ParameterSweep.Result> results = sweep.run(ParameterSweep.parseGrid(grid), threads);
+		System.out.println("Sweep took " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s");
+		sweep.print(results, System.out);
+		return 0;
+	}
+	
+	/**
+	 * Check that the processors still find the same targets in a corpus,
+	 * about as fast as they used to (or record new expectations)
+	 * @param args
+	 * @return the exit status
+	 */
+	protected static int runGate(ParsedCommandLineArguments args) throws IOException {
+		File directory = new File(args.get("--gate"));
+		FrameCorpus corpus = FrameCorpus.load(directory);
+		if (corpus.size() == 0) {
+			System.err.println("No pairs found");
+			return 1;
+		}
+		final int[] size = corpus.getFrameSize();
+		TargetFilter filter = initTargetFilter(args);
+		List<AbstractImageProcessor<?>> processors = new ArrayList<>();
+		processors.add(new ImageProcessor(size[0], size[1], null).setTargetFilter(filter));
+		processors.add(new ContourTracer(size[0], size[1], null).setTargetFilter(filter));
+		double maxSlowdown = args.isFlagSet("--gate-slowdown") ? Double.parseDouble(args.get("--gate-slowdown")) : 10;
+		double tolerance = args.isFlagSet("--gate-tolerance") ? Double.parseDouble(args.get("--gate-tolerance")) : .005;
+		PerformanceGate gate = new PerformanceGate(directory, corpus, args.getOrDefault("--gate-passes", 5), maxSlowdown, tolerance);
+		return gate.run(processors, args.isFlagSet("--gate-update")) ? 0 : 1;
+	}
+	
+	/**
+	 * Build a scene generator at the frame size, from the --scene-* flags
+	 * @param args
+	 * @return the generator
+	 */
+	protected static SceneGenerator initSceneGenerator(ParsedCommandLineArguments args) {
+		SceneGenerator generator = new SceneGenerator(width, height, args.getOrDefault("--scene-seed", 365));
+		if (args.isFlagSet("--scene-targets")) {
+			String[] range = args.get("--scene-targets").split(",");
+			int min = Integer.parseInt(range[0].trim());
+			generator.setTargetCount(min, range.length > 1 ? Integer.parseInt(range[1].trim()) : min);
+		}
+		if (args.isFlagSet("--scene-size")) {
+			String[] range = args.get("--scene-size").split(",");
+			double min = Double.parseDouble(range[0].trim());
+			generator.setTargetSize(min, range.length > 1 ? Double.parseDouble(range[1].trim()) : min);
+		}
+		if (args.isFlagSet("--scene-pose")) {
+			String[] pose = args.get("--scene-pose").split(",");
+			generator.setPose(Double.parseDouble(pose[0].trim()), pose.length > 1 ? Double.parseDouble(pose[1].trim()) : 0);
+		}
+		if (args.isFlagSet("--scene-noise"))
+			generator.setNoise(Double.parseDouble(args.get("--scene-noise")));
+		if (args.isFlagSet("--scene-ambient"))
+			generator.setAmbientChange(Double.parseDouble(args.get("--scene-ambient")));
+		generator.setShake(args.getOrDefault("--scene-shake", 0));
+		return generator;
+	}
+	
+	/**
+	 * Feed synthetic pairs to each processor at a frame rate, and report
+	 * whether they keep up
+	 * @param args
+	 * @return the exit status
+	 */
+	protected static int runStress(ParsedCommandLineArguments args) throws IOException {
+		final double fps = Double.parseDouble(args.get("--stress"));
+		SceneGenerator generator = initSceneGenerator(args);
+		int count = args.getOrDefault("--stress-scenes", 16);
+		System.out.println("Rendering " + count + " scenes");
+		SyntheticFrameSource source = new SyntheticFrameSource(generator, count);
+		source.setDecode(!args.isFlagSet("--predecoded"));
+		StressTest test = new StressTest(source, fps, args.getOrDefault("--stress-seconds", 10), TimeUnit.SECONDS);
+		TargetFilter filter = initTargetFilter(args);
+		List<AbstractImageProcessor<?>> processors = new ArrayList<>();
+		processors.add(new ImageProcessor(width, height, null).setTargetFilter(filter));
+		processors.add(new ContourTracer(width, height, null).setTargetFilter(filter));
+		boolean keptUp = true;
+		for (AbstractImageProcessor<?> processor : processors) {
+			try {
+				keptUp &= test.run(processor);
+			} finally {
+				processor.close();
+			}
+		}
+		return keptUp ? 0 : 1;
+	}
+	
+	protected static boolean testAllocation(ParsedCommandLineArguments args, AbstractImageProcessor<?> processor, MJPEGServer server, RoboRioClient client) throws IOException {
+		System.out.println("RUNNING TEST: ALLOCATION");
+		Properties budget = AllocationCheck.loadBudget(args.isFlagSet("--alloc-budget") ? new File(args.get("--alloc-budget")) : null);
+		int pairs = args.getOrDefault("--alloc-pairs", 200);
+		return new AllocationCheck(new Warmup(width, height).generate(), budget, pairs, pairs).run(processor, server, client);
+	}
+	
 	protected static void testSSE(MJPEGServer server) throws InterruptedException {
 		System.out.println("RUNNING TEST: SSE");
 		while (true) {
@@ -344,64 +646,326 @@ public class Main {
 	 * @param args
 	 * @param httpServer
 	 * @param client
+	 * @param executor Executor to rebuild the classifier table on
 	 * @return Image proccessor to handle images, or null if disabled
 	 */
-	protected static AbstractImageProcessor<?> initProcessor(ParsedCommandLineArguments args, final MJPEGServer httpServer, final RoboRioClient client) {
+	protected static AbstractImageProcessor<?> initProcessor(ParsedCommandLineArguments args, final MJPEGServer httpServer, final RoboRioClient client, ExecutorService executor) {
 		if (args.isFlagSet("--no-process")) {
 			System.out.println("PROCESSOR DISABLED");
 			return null;
 		}
-		
-		if (args.isFlagSet("--trace-contours")) {
-			ContourTracer processor = new ContourTracer(width, height, polygons -> {
+		if (args.isFlagSet("--tracer-params"))
+			tracerParamsFile = new File(args.get("--tracer-params"));
+		//Kept, so that the processor can be rebuilt at runtime
+		processorFactory = traceContours -> buildProcessor(args, traceContours, httpServer, client, executor);
+		final boolean traceContours = args.isFlagSet("--trace-contours");
+		swapProcessor(processorFactory.apply(traceContours), traceContours ? polygonBus : rectangleBus);
+		enableProcessor();
+		return Main.processor;
+	}
+	
+	/**
+	 * Build an image processor (without starting it), set up the way that the
+	 * command line asked for
+	 * @param args
+	 * @param traceContours whether to build the contour tracer, instead of
+	 *     the image processor
+	 * @param httpServer
+	 * @param client
+	 * @param executor Executor to rebuild the classifier table on
+	 * @return the processor
+	 */
+	protected static AbstractImageProcessor<?> buildProcessor(ParsedCommandLineArguments args, boolean traceContours, final MJPEGServer httpServer, final RoboRioClient client, ExecutorService executor) {
+		//Results are handed off to subscribers on their own threads, so the processor doesn't wait for the console, the Rio, or SSE
+		final int resultBuffer = args.getOrDefault("--result-buffer", 16);
+		AbstractImageProcessor<?> primary;
+		if (traceContours) {
+			if (polygonBus == null) {
+				polygonBus = new ResultBus<>("Polygons", resultBuffer);
+				if (httpServer != null)
+					polygonBus.subscribe("sse", httpServer::offerPolygons, ResultBus.DropPolicy.LATEST, Thread.NORM_PRIORITY);
+				polygonBus.subscribe("log", polygons -> {
+					for (Polygon polygon : polygons)
+						System.out.println("=> " + polygon);
+				}, ResultBus.DropPolicy.OLDEST, Thread.MIN_PRIORITY);
+			}
+			final ResultBus<List<Polygon>> bus = polygonBus;
+			final Consumer<List<Polygon>> handler = polygons -> {
 				for (Polygon polygon : polygons) {
-					System.out.println("=> " + polygon);
 					PointNode node = polygon.getStartingPoint();
 					// Scale
 					do {
 						node = node.set(node.getX() / width, node.getY() / height);
 					} while (!(node = node.next()).equals(polygon.getStartingPoint()));
 				}
-				if (httpServer != null)
-					httpServer.offerPolygons(polygons);
-			});
-			Main.processor = processor;
-		} else {
-			ImageProcessor processor = new ImageProcessor(width, height, rectangles-> {
-				//Filter based on AR
-				rectangles.removeIf(rectangle-> {
-					double ar = rectangle.getHeight() / rectangle.getWidth();
-					return ar < .1 || ar > 10;
-				});
-				//print the rectangles' dimensions to STDOUT
-				for (PreciseRectangle rectangle : rectangles)
-					System.out.println("=> " + rectangle);
-				
-				//send the largest rectangle(s) to the Rio
+				//Subscribers share the polygons, so they have to be done changing first
+				bus.accept(polygons);
+			};
+			ContourTracer processor = null;
+			if (tracerParamsFile != null) {
+				System.out.println("Loading tracer params from " + tracerParamsFile);
 				try {
-					if (client != null) {
-						if (rectangles.isEmpty()) {
-							client.writeNoneFound();
-						} else if (rectangles.size() == 1) {
-							client.writeOneFound(rectangles.get(0));
-						} else {
-							client.writeTwoFound(rectangles.get(0), rectangles.get(1));
-						}
-					}
-				} catch (IOException | NullPointerException e) {
+					processor = new ContourTracer(loadTracerParams(tracerParamsFile), handler);
+				} catch (IOException | IllegalArgumentException e) {
+					//Fall back to the default params
 					e.printStackTrace();
 				}
+			}
+			if (processor == null)
+				processor = new ContourTracer(width, height, handler);
+			primary = processor;
+		} else {
+			if (rectangleBus == null) {
+				rectangleBus = new ResultBus<>("Rectangles", resultBuffer);
+				if (client != null) {
+					//send the largest rectangle(s) to the Rio, before anything else
+					rectangleBus.subscribe("rio", rectangles -> {
+						try {
+							if (rectangles.isEmpty()) {
+								client.writeNoneFound();
+							} else if (rectangles.size() == 1) {
+								client.writeOneFound(rectangles.get(0));
+							} else {
+								client.writeTwoFound(rectangles.get(0), rectangles.get(1));
+							}
+						} catch (IOException | NullPointerException e) {
+							e.printStackTrace();
+						}
+					}, ResultBus.DropPolicy.LATEST, Thread.MAX_PRIORITY);
+				}
 				//Offer the rectangles to be put in the SSE stream
 				if (httpServer != null)
-					httpServer.offerRectangles(rectangles);
-			});
-			if (args.isFlagSet("--save-diff"))
-				processor.saveDiff = true;
-			Main.processor = processor;
+					rectangleBus.subscribe("sse", httpServer::offerRectangles, ResultBus.DropPolicy.LATEST, Thread.NORM_PRIORITY);
+				//print the rectangles' dimensions to STDOUT
+				rectangleBus.subscribe("log", rectangles -> {
+					for (PreciseRectangle rectangle : rectangles)
+						System.out.println("=> " + rectangle);
+				}, ResultBus.DropPolicy.OLDEST, Thread.MIN_PRIORITY);
+			}
+			final ResultBus<List<PreciseRectangle>> handler = rectangleBus;
+			ImageProcessor processor;
+			if (args.isFlagSet("--pipeline")) {
+				int depth = args.getOrDefault("--pipeline", PipelinedImageProcessor.DEFAULT_DEPTH);
+				System.out.println("Pipelined processing (" + depth + " pairs at once)");
+				processor = new PipelinedImageProcessor(width, height, depth, handler);
+				if (args.isFlagSet("--skip-unchanged") || args.isFlagSet("--latency-budget"))
+					System.err.println("--skip-unchanged and --latency-budget have no effect with --pipeline");
+			} else {
+				processor = new ImageProcessor(width, height, handler);
+			}
+			if (args.isFlagSet("--save-diff")) {
+				DiagnosticWriter.Format format = DiagnosticWriter.Format.valueOf(args.getOrDefault("--diff-format", "png").toUpperCase());
+				int every = args.getOrDefault("--diff-every", 1);
+				System.out.println("Saving diffs to ./img (" + format + ", every " + every + " pairs)");
+				processor.setDiagnosticWriter(new DiagnosticWriter(new File("img"), format, args.getOrDefault("--diff-queue", 4), every).start());
+			}
+			primary = processor;
+		}
+		List<AbstractImageProcessor<?>> processors = new ArrayList<>();
+		processors.add(primary);
+		if (args.isFlagSet("--compare")) {
+			//Run the other algorithm alongside, without a handler, so that only the primary talks to the Rio
+			if (traceContours)
+				processors.add(new ImageProcessor(width, height, null));
+			else
+				processors.add(new ContourTracer(width, height, null));
+		}
+		if (args.isFlagSet("--classifier-rules")) {
+			File rulesFile = new File(args.get("--classifier-rules"));
+			System.out.println("Loading classifier rules from " + rulesFile);
+			try {
+				ColorClassifier classifier = ColorClassifier.load(rulesFile).runOn(executor);
+				for (AbstractImageProcessor<?> processor : processors)
+					processor.setClassifier(classifier);
+			} catch (IOException | IllegalArgumentException e) {
+				//Fall back to the processor's default rules
+				e.printStackTrace();
+			}
+		}
+		TargetFilter filter = initTargetFilter(args);
+		for (AbstractImageProcessor<?> processor : processors)
+			processor.setTargetFilter(filter);
+		if (args.isFlagSet("--preview-detect")) {
+			int gain = args.getOrDefault("--preview-gain", 4);
+			System.out.println("Preview detection enabled (gain " + gain + ")");
+			for (AbstractImageProcessor<?> processor : processors)
+				processor.setPreviewEnabled(true, gain);
+		}
+		if (args.isFlagSet("--motion-comp")) {
+			int maxShift = args.getOrDefault("--motion-comp", 32);
+			int scale = args.getOrDefault("--motion-scale", 4);
+			System.out.println("Motion compensation enabled (max shift " + maxShift + "px, scale " + scale + ")");
+			for (AbstractImageProcessor<?> processor : processors)
+				processor.setMotionEstimator(new MotionEstimator(maxShift, scale));
+		}
+		AbstractImageProcessor<?> processor = primary;
+		if (processors.size() > 1) {
+			System.out.println("Comparing processors (stats at /compare.json)");
+			processor = new ProcessorComparison<>(primary, processors.subList(1, processors.size()));
+		}
+		if (args.isFlagSet("--skip-unchanged")) {
+			int tolerance = args.getOrDefault("--change-tolerance", 24);
+			System.out.println("Skipping unchanged scenes (tolerance " + tolerance + ")");
+			processor.setChangeDetectionEnabled(true, tolerance);
+		}
+		if (args.isFlagSet("--latency-budget")) {
+			int budget = args.getOrDefault("--latency-budget", 100);
+			int maxStride = args.getOrDefault("--max-stride", 4);
+			System.out.println("Latency budget " + budget + "ms (max stride " + maxStride + ")");
+			processor.setScheduler(new FrameScheduler(budget, TimeUnit.MILLISECONDS, maxStride));
+		}
+		return processor;
+	}
+	
+	/**
+	 * Load the contour tracer's params from a properties file. Any of
+	 * <code>frameMinX</code>, <code>frameMinY</code>, <code>frameMaxX</code>,
+	 * <code>frameMaxY</code>, <code>minBlobWidth</code>,
+	 * <code>minBlobHeight</code>, <code>maxSegmentLength</code>, and
+	 * <code>stepSize</code> can be set; the rest are left at their defaults
+	 * (the frame bounds default to the whole frame).
+	 * @param file file to load
+	 * @return the params
+	 * @throws IOException if the file can't be read
+	 * @throws NumberFormatException if a value isn't a number
+	 */
+	protected static ContourTracerParams loadTracerParams(File file) throws IOException, NumberFormatException {
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			props.load(in);
+		}
+		ContourTracerParams params = new ContourTracerParams();
+		return params
+				.setFrameMinX(Integer.parseInt(props.getProperty("frameMinX", "0")))
+				.setFrameMinY(Integer.parseInt(props.getProperty("frameMinY", "0")))
+				.setFrameMaxX(Integer.parseInt(props.getProperty("frameMaxX", Integer.toString(width))))
+				.setFrameMaxY(Integer.parseInt(props.getProperty("frameMaxY", Integer.toString(height))))
+				.setMinBlobWidth(Integer.parseInt(props.getProperty("minBlobWidth", Integer.toString(params.getMinBlobWidth()))))
+				.setMinBlobHeight(Integer.parseInt(props.getProperty("minBlobHeight", Integer.toString(params.getMinBlobHeight()))))
+				.setMaxSegmentLength(Double.parseDouble(props.getProperty("maxSegmentLength", Double.toString(params.getMaxSegmentLength()))))
+				.setStepSize(Double.parseDouble(props.getProperty("stepSize", Double.toString(params.getStepSize()))));
+	}
+	
+	/**
+	 * Start a processor, and offer it frames from now on, in place of the
+	 * current one. The old processor finishes the pair that it's on (and
+	 * publishes its result), and is then closed; the frames that it was
+	 * holding are recycled. Capture keeps going the whole time.
+	 * @param next the processor to switch to
+	 * @param bus the bus that the new processor publishes to
+	 */
+	protected static synchronized void swapProcessor(AbstractImageProcessor<?> next, ResultBus<?> bus) {
+		next.start();
+		final AbstractImageProcessor<?> old = Main.processor;
+		Main.resultBus = bus;
+		Main.comparison = next instanceof ProcessorComparison ? (ProcessorComparison<?>) next : null;
+		Main.processor = next;
+		if (old != null) {
+			final long start = System.nanoTime();
+			old.close();
+			System.out.println("Swapped " + old.getClass().getSimpleName() + " for " + next.getClass().getSimpleName() + " (old one took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms to stop)");
 		}
-		Main.processor.start();
-		enableProcessor();
-		return Main.processor;
+	}
+	
+	/**
+	 * Switch to a newly built processor, set up the way that the command
+	 * line asked for, without stopping capture (see
+	 * {@link #swapProcessor(AbstractImageProcessor, ResultBus)}).
+	 * @param traceContours whether to switch to the contour tracer, instead
+	 *     of the image processor
+	 * @return whether the processor was switched
+	 */
+	public static synchronized boolean switchProcessor(boolean traceContours) {
+		if (processorFactory == null)
+			return false;
+		System.out.println("SWITCHING TO " + (traceContours ? "CONTOUR TRACER" : "IMAGE PROCESSOR"));
+		final AbstractImageProcessor<?> next;
+		try {
+			next = processorFactory.apply(traceContours);
+		} catch (RuntimeException e) {
+			//Keep the current one
+			e.printStackTrace();
+			return false;
+		}
+		swapProcessor(next, traceContours ? polygonBus : rectangleBus);
+		return true;
+	}
+	
+	/**
+	 * Stop the processor (after it finishes the pair that it's on), and start
+	 * it again on a new thread. Frames captured in between are recycled.
+	 * 
+	 * @return whether there was a processor to restart
+	 */
+	public static synchronized boolean restartProcessor() {
+		final AbstractImageProcessor<?> processor = Main.processor;
+		if (processor == null)
+			return false;
+		System.out.println("RESTARTING PROCESSOR");
+		processor.stop();
+		processor.start();
+		return true;
+	}
+	
+	/**
+	 * Reload the contour tracer's params from the file passed to
+	 * <kbd>--tracer-params</kbd>. The tracer switches to them between pairs.
+	 * If the frame bounds changed, a new tracer is built and swapped in
+	 * instead (see {@link #switchProcessor(boolean)}).
+	 * 
+	 * @return whether the params were reloaded
+	 */
+	public static synchronized boolean reloadTracerParams() {
+		AbstractImageProcessor<?> processor = Main.processor;
+		if (processor instanceof ProcessorComparison)
+			processor = ((ProcessorComparison<?>) processor).getPrimary();
+		if (tracerParamsFile == null || !(processor instanceof ContourTracer))
+			return false;
+		System.out.println("RELOADING TRACER PARAMS");
+		final ContourTracerParams params;
+		try {
+			params = loadTracerParams(tracerParamsFile);
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();
+			return false;
+		}
+		try {
+			((ContourTracer) processor).setParams(params);
+			return true;
+		} catch (IllegalArgumentException e) {
+			//The frame bounds can only be set when a tracer is built
+			System.out.println(e.getMessage());
+			return switchProcessor(true);
+		}
+	}
+	
+	/**
+	 * Build the filter deciding which targets get reported
+	 * @param args
+	 * @return the filter
+	 */
+	protected static TargetFilter initTargetFilter(ParsedCommandLineArguments args) {
+		TargetFilter filter = new TargetFilter()
+				.setMaxTargets(args.getOrDefault("--max-targets", 2));
+		try {
+			if (args.isFlagSet("--aspect-ratio")) {
+				String[] range = args.get("--aspect-ratio").split(",");
+				filter.setAspectRatio(Double.parseDouble(range[0]), Double.parseDouble(range[1]));
+			}
+			if (args.isFlagSet("--min-target-area"))
+				filter.setMinArea(Double.parseDouble(args.get("--min-target-area")));
+			if (args.isFlagSet("--min-fill-ratio"))
+				filter.setMinFillRatio(Double.parseDouble(args.get("--min-fill-ratio")));
+			if (args.isFlagSet("--target-region")) {
+				String[] region = args.get("--target-region").split(",");
+				filter.setRegion(Double.parseDouble(region[0]), Double.parseDouble(region[1]), Double.parseDouble(region[2]), Double.parseDouble(region[3]));
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			//Keep whatever was set before the bad value
+			e.printStackTrace();
+		}
+		System.out.println("Reporting up to " + filter.getMaxTargets() + " targets");
+		return filter;
 	}
 	
 	/**
@@ -420,7 +984,8 @@ public class Main {
 			return;
 		}
 		if (camera == null) {
-			processorEnabled = false;
+			//No controls to tune (frames are replayed or synthetic, or there aren't any)
+			processorEnabled = true;
 			return;
 		}
 		try {
@@ -482,6 +1047,36 @@ public class Main {
 		processorEnabled = false;
 	}
 	
+	/**
+	 * Reload the classifier rules from the file passed to
+	 * <kbd>--classifier-rules</kbd>. The table is rebuilt in the background,
+	 * and the old rules are used until it is done.
+	 * 
+	 * @return whether the rules were reloaded
+	 */
+	public static boolean reloadClassifier() {
+		if (processor == null)
+			return false;
+		System.out.println("RELOADING CLASSIFIER");
+		try {
+			processor.getClassifier().reload();
+			return true;
+		} catch (IOException | IllegalArgumentException | IllegalStateException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Get the statistics from comparing processors side by side
+	 * 
+	 * @return the statistics as JSON, or null if <kbd>--compare</kbd> isn't set
+	 */
+	public static String getComparisonStats() {
+		final ProcessorComparison<?> comparison = Main.comparison;
+		return comparison == null ? null : comparison.toJSON();
+	}
+	
 	/**
 	 * Set the JPEG quality from the camera. Tests have shown that this does
 	 * <b>NOT</b> reduce the MJPEG stream's bandwidth.
@@ -490,10 +1085,20 @@ public class Main {
 	 *            quality to set. Must be 0 to 100 (inclusive)
 	 */
 	public static void setQuality(int quality) {
-		if (frameGrabber == null)
-			return;
 		System.out.println("SETTING QUALITY TO " + quality);
-		frameGrabber.setJPGQuality(quality);
+		if (streamEncoder != null)
+			streamEncoder.setQuality(quality);
+		if (frameGrabber != null)
+			frameGrabber.setJPGQuality(quality);
+	}
+	
+	/**
+	 * Set which frames are sent to the MJPEG stream
+	 * @param selection which frames to stream
+	 */
+	public static void setStreamSelection(StreamEncoder.FrameSelection selection) {
+		if (streamEncoder != null)
+			streamEncoder.setSelection(selection);
 	}
 	
 	/**
@@ -516,6 +1121,35 @@ public class Main {
 		return null;
 	}
 	
+	/**
+	 * Create the stage that decides which frames get streamed, and encodes
+	 * them if the camera is delivering raw frames.
+	 * @param args the command line arguments
+	 * @param server the server to stream to
+	 * @param rawCapture whether the camera is delivering raw (not JPEG) frames
+	 * @param quality JPEG quality to encode raw frames at
+	 * @return the encoder, or null if the server is disabled
+	 */
+	protected static StreamEncoder initStreamEncoder(ParsedCommandLineArguments args, MJPEGServer server, boolean rawCapture, int quality) {
+		if (server == null)
+			return null;
+		StreamEncoder encoder = new StreamEncoder(server, rawCapture, quality);
+		switch (args.getOrDefault("--stream-frames", "off")) {
+			case "on":
+				encoder.setSelection(StreamEncoder.FrameSelection.LED_ON);
+				break;
+			case "all":
+				encoder.setSelection(StreamEncoder.FrameSelection.ALL);
+				break;
+			case "off":
+				encoder.setSelection(StreamEncoder.FrameSelection.LED_OFF);
+				break;
+			default:
+				System.err.println("Unknown stream frame selection '" + args.get("--stream-frames") + "'");
+		}
+		return encoder.start();
+	}
+	
 	protected static void testConverter(VideoDevice dev) {
 		@SuppressWarnings("unused")
 		JPEGEncoder encoder = JPEGEncoder.to(width, height, ImagePalette.YUYV);
@@ -529,7 +1163,7 @@ public class Main {
 	 */
 	protected static VideoDevice initCamera(ParsedCommandLineArguments args) throws V4L4JException {
 		String devName = args.getOrDefault("--camera", "/dev/video0");
-		if (args.isFlagSet("--no-camera"))
+		if (args.isFlagSet("--no-camera") || args.isFlagSet("--replay") || args.isFlagSet("--synthetic"))
 			return null;
 		System.out.print("Attempting to connect to camera @ " + devName + "...\t");
 		VideoDevice device;
@@ -544,19 +1178,9 @@ public class Main {
 	}
 	
 	/**
-	 * Loads the CommandLineParser from inside the JAR.
+	 * Build the parser for the command line arguments.
 	 * @return parser.
 	 */
-	protected static CommandLineParser loadParser() {
-		try (ObjectInput in = new ObjectInputStream(Main.class.getResourceAsStream("/resources/parser.ser"))) {
-			return (CommandLineParser) in.readObject();
-		} catch (IOException | ClassNotFoundException e) {
-			System.err.println("Error reading parser");
-			e.printStackTrace();
-		}
-		return buildParser();
-	}
-	
 	protected static CommandLineParser buildParser() {
 		CommandLineParser parser = CommandLineParser.builder()
 			.addFlag("--help", "Displays the help message and exits")
@@ -566,16 +1190,17 @@ public class Main {
 			.alias("-v", "--verbose")
 			.addFlag("--version", "Print the version string.")
 			.addFlag("--out", "Specify where to write log messages to (not implemented)")
-			.addKvPair("--test", "target", "Run test by name. Tests include 'converter', 'controls', 'client', and 'sse'.")
+			.addKvPair("--test", "target", "Run test by name. Tests include 'converter', 'controls', 'client', 'sse', and 'alloc'.")
 			.addKvPair("--props", "file", "Specify the file to read properties from (not implemented)")
 			.addKvPair("--write-props", "file", "Write properties to file, which can be passed into the --props arg in the future (not implemented)")
-			.addFlag("--rebuild-parser", "Rebuilds the parser binary file")
 			// Camera options
 			.addKvPair("--camera", "device", "Specify the camera device file to use. Default '/dev/video0'")
 			.alias("-C", "--camera")
 			.addKvPair("--width", "px", "Set the width of image to capture/broadcast")
 			.addKvPair("--height", "px", "Set the height of image to capture/broadcast")
 			.addKvPair("--jpeg-quality", "quality", "Set the JPEG quality to request. Must be 1-100")
+			.addFlag("--raw-capture", "Capture raw (RGB) frames instead of JPEGs. Frames are only JPEG-encoded for the MJPEG stream while someone is watching it.")
+			.addKvPair("--stream-frames", "on|off|all", "Which frames to send to the MJPEG stream, by LED state. Default 'off'. Can be changed at runtime (/stream/on, /stream/off, /stream/all).")
 			.addKvPair("--fps-num", "numerator", "Set the FPS numerator. If the camera does not support the set framerate, the closest one available is chosen.")
 			.addKvPair("--fps-denom", "denom", "Set the FPS denominator. If the camera does not support the set framerate, the closest one available is chosen.")
 			// HTTP server options
@@ -586,8 +1211,56 @@ public class Main {
 			// Image processor options
 			.addKvPair("--x-skip", "px", "Number of pixels to skip on the x axis when processing sweep 1 (not implemented)")
 			.addKvPair("--y-skip", "px", "Number of pixels to skip on the y axis when processing sweep 1 (not implemented)")
-			.addFlag("--trace-contours", "Enable the (dev) contour tracing algorithm")
-			.addFlag("--save-diff", "Save the diff image to a file (./img/delta[#].png). Requires processor.")
+			.addFlag("--trace-contours", "Enable the (dev) contour tracing algorithm. Can be switched at runtime (/processor/contours, /processor/rectangles), without stopping capture.")
+			.addKvPair("--tracer-params", "file", "Load the contour tracer's params (minBlobWidth, minBlobHeight, maxSegmentLength, stepSize, and frameMinX/frameMinY/frameMaxX/frameMaxY) from a properties file. The file can be reloaded at runtime (/processor/reload), and the tracer switches to the new params between pairs.")
+			.addKvPair("--result-buffer", "n", "Number of results that the console can fall behind by before it skips some. The Rio and SSE only ever get the newest result. Default 16.")
+			.addKvPair("--pipeline", "depth", "Split processing into stages (decode, delta, mask, blobs, filter, output) that each run on their own thread, with up to this many frame pairs in flight at once, so that consecutive pairs overlap. Stage stats are logged every 500 pairs. Default depth 3. Not for --trace-contours.")
+			.addFlag("--compare", "Run both processing algorithms side by side on every frame pair, and serve their latencies and agreement at /compare.json. Only the one selected by --trace-contours sends results.")
+			.addFlag("--save-diff", "Save the diff image to a file (./img/delta[#].png). Requires processor. Images are written in the background, and pairs are dropped if the writer falls behind.")
+			.addKvPair("--diff-format", "png|raw", "Format to save diffs in. 'raw' writes all planes of a pair to one file (./img/pair[#].raw), which is much faster. Default 'png'. Requires --save-diff.")
+			.addKvPair("--diff-queue", "n", "Number of pairs that can be waiting to be saved before more are dropped. Default 4. Requires --save-diff.")
+			.addKvPair("--diff-every", "n", "Only save every nth pair. Default 1. Requires --save-diff.")
+			.addFlag("--preview-detect", "Skip the full JPEG decode for frame pairs whose DC-only (1/8 scale) previews contain no candidates")
+			.addKvPair("--preview-gain", "gain", "Factor to multiply preview deltas by before classifying them. Default 4. Requires --preview-detect.")
+			.addKvPair("--sweep", "dir", "Sweep processor parameters over the frame pairs recorded in a directory (see --save-diff), print a table ranked by latency and detection rate, and exit")
+			.addKvPair("--sweep-grid", "spec", "Parameters to sweep, like 'minBlobWidth=10,20;stepSize=2,4'. The contour tracer (with --trace-contours) takes minBlobWidth, minBlobHeight, maxSegmentLength, and stepSize; the image processor takes tolerance.")
+			.addKvPair("--sweep-threads", "n", "Number of configurations to warm up at once (they are still timed one at a time). Default 1.")
+			.addKvPair("--sweep-passes", "n", "Number of timed passes through the pairs for each configuration. Default 3.")
+			.addKvPair("--sweep-min-recall", "fraction", "Smallest fraction of the labeled targets that a configuration has to find to be ranked by speed. Default 0.9.")
+			.addKvPair("--gate", "dir", "Check that each processor finds the expected targets in a corpus of recorded pairs, without getting slower than the baseline, and exit with status 1 if not. Needs no camera.")
+			.addFlag("--gate-update", "With --gate, record the current targets and throughput as the expected ones")
+			.addKvPair("--gate-slowdown", "percent", "Most that throughput may drop below the baseline for --gate. Default 10.")
+			.addKvPair("--gate-tolerance", "fraction", "Most that any coordinate of a target may differ from the expected one for --gate, as a fraction of the frame. Default 0.005.")
+			.addKvPair("--gate-passes", "n", "Number of timed passes (each at least 250ms) through the corpus for --gate. The fastest counts. Default 5.")
+			.addKvPair("--stress", "fps", "Play synthetic frame pairs (at --width x --height) to each running processor at the rate that a camera at this frame rate would, report whether they keep up, and exit with status 1 if any falls behind. Needs no camera.")
+			.addKvPair("--stress-seconds", "s", "How long to run each processor for --stress. Default 10.")
+			.addKvPair("--stress-scenes", "n", "Number of different synthetic pairs to cycle through for --stress. Default 16.")
+			.addKvPair("--generate", "dir", "Write synthetic frame pairs (at --width x --height), with labels, to a directory that --sweep and --gate can read, and exit")
+			.addKvPair("--generate-count", "n", "Number of pairs to write for --generate. Default 50.")
+			.addKvPair("--scene-targets", "min,max", "Range of the number of targets in each synthetic pair. Default 1,2.")
+			.addKvPair("--scene-size", "min,max", "Range of the width of synthetic targets, as a fraction of the frame width. Default 0.1,0.25.")
+			.addKvPair("--scene-pose", "yaw,roll", "Most that synthetic targets are turned away and tilted, in degrees. Default 30,10.")
+			.addKvPair("--scene-noise", "levels", "Standard deviation of the sensor noise in synthetic pairs. Default 4.")
+			.addKvPair("--scene-ambient", "fraction", "Most that the ambient light changes between the frames of a synthetic pair. Default 0.05.")
+			.addKvPair("--scene-shake", "px", "Most that the camera moves between the frames of a synthetic pair. Default 0.")
+			.addKvPair("--scene-seed", "n", "Seed for synthetic pairs, so runs can be repeated. Default 365.")
+			.addKvPair("--alloc-budget", "file", "Properties file of allocation budgets for --test alloc. Defaults to the built-in budget.")
+			.addKvPair("--alloc-pairs", "n", "Number of synthetic frame pairs to warm up with, and then measure, for --test alloc. Default 200.")
+			.addKvPair("--exposure-window", "us", "How long before its capture time each frame is exposed for. Frames exposed while the LED changes aren't processed. Default half of the frame interval.")
+			.addKvPair("--led-settle", "us", "How long the LED takes to change after the GPIO pin is set. Default 1000.")
+			.addKvPair("--motion-comp", "px", "Line up the frames of each pair before taking their difference, so that edges don't light up while the robot moves. The value is the most that the scene may move between frames, in pixels.")
+			.addKvPair("--motion-scale", "n", "Sample every nth pixel when estimating motion. Default 4. Requires --motion-comp.")
+			.addFlag("--skip-unchanged", "Re-send the last result instead of processing frame pairs whose DC-only previews haven't changed since the last processed pair")
+			.addKvPair("--change-tolerance", "delta", "How much a preview block's delta (summed over R, G, and B) may change before the scene counts as changed. Default 24. Requires --skip-unchanged.")
+			.addKvPair("--latency-budget", "ms", "Drop frame pairs that are older than this by the time they would be processed, abort pairs that run past it, and sweep more sparsely when processing gets close to it")
+			.addKvPair("--max-stride", "n", "Sparsest sweep to fall back to when over the latency budget. Default 4. Requires --latency-budget.")
+			.addKvPair("--max-targets", "n", "Most targets to report (the largest are kept). Default 2.")
+			.addKvPair("--aspect-ratio", "min,max", "Range of target aspect ratios (height / width) to report. Default '0.1,10'.")
+			.addKvPair("--min-target-area", "fraction", "Smallest target to report, as a fraction of the frame's area. Default 0.")
+			.addKvPair("--min-fill-ratio", "fraction", "Smallest fraction of a target's bounding box that has to be part of the target. Default 0 (not checked).")
+			.addKvPair("--target-region", "x0,y0,x1,y1", "Only report targets centered in this region, as fractions of the frame. Default '0,0,1,1'.")
+			.addKvPair("--warmup", "ms", "Before starting capture, process synthetic frame pairs (and build SSE events and UDP packets, without sending them) until the JIT settles, for at most this long")
+			.addKvPair("--classifier-rules", "file", "Load the rules deciding which pixels are part of a target from a file. The file can be reloaded at runtime (/classifier/reload).")
 			// Client options
 			.addKvPair("--udp-target", "address", "Specify the address to broadcast UDP packets to")
 			.alias("--rio-addr", "--udp-target")
@@ -598,18 +1271,17 @@ public class Main {
 			// Disabling stuff options
 			.addFlag("--no-server", "Disable the HTTP server.")
 			.addFlag("--no-process", "Disable image processing.")
+			.addKvPair("--replay", "dir", "Play the frame pairs recorded in a directory (see --save-diff), in a loop, or the frames recorded there with --record, instead of capturing from the camera")
+			.addFlag("--replay-fast", "With --replay of a --record recording, play frames as fast as they're processed, instead of with the timing that they were recorded with")
+			.addFlag("--replay-loop", "With --replay of a --record recording, start over at the end, instead of stopping")
+			.addKvPair("--record", "dir", "Record every frame (as captured, with its LED state and capture time) to a directory, to play back later with --replay. Needs JPEG capture.")
+			.addKvPair("--record-segment-mb", "size", "Size of each file that --record writes, in MB. Default 256.")
+			.addKvPair("--synthetic", "pairs", "Play this many synthetic frame pairs (see the --scene-* options), in a loop, instead of capturing from the camera")
+			.addFlag("--predecoded", "With --replay, --synthetic, or --stress, hand out frames that are already decoded, so that JPEG decoding is left out")
 			.addFlag("--no-camera", "Do not specify a camera. This option will cause the program to not invoke v4l4j.")
 			.addFlag("--no-udp", "Disable broadcasting UDP.")
 			.addFlag("--no-gpio", "Disable attaching to a pin. Invoking this option will not invoke WiringPi. Note that the pin is reqired for image processing.")
 			.build();
-		File outputFile = new File("src/resources/parser.ser");
-		if (outputFile.exists())
-			outputFile.delete();
-		try (ObjectOutput out = new ObjectOutputStream(new FileOutputStream(outputFile))) {
-			out.writeObject(parser);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
 		return parser;
 	}
 }
@@ -0,0 +1,336 @@
+package com.moe365.mopi;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.moe365.mopi.geom.PreciseRectangle;
+import com.moe365.mopi.processing.AbstractImageProcessor;
+import com.moe365.mopi.processing.ColorClassifier;
+import com.moe365.mopi.processing.ContourTracer;
+import com.moe365.mopi.processing.ContourTracer.ContourTracerParams;
+import com.moe365.mopi.processing.TargetFilter;
+
+/**
+ * Runs recorded frame pairs through a processor with every combination of a
+ * grid of parameters, to find the fastest parameters that still find the
+ * targets.
+ * <p>
+ * The grid is given like
+ * <code>minBlobWidth=10,20,30;stepSize=2,4</code>. For the
+ * {@link ContourTracer}, the parameters are <code>minBlobWidth</code>,
+ * <code>minBlobHeight</code>, <code>maxSegmentLength</code>, and
+ * <code>stepSize</code>; for the {@link ImageProcessor}, it's
+ * <code>tolerance</code> (see {@link ImageProcessor#rulesFor(int)}).
+ * </p>
+ * <p>
+ * Each configuration gets its own processor (closed when it's done). Each
+ * one runs through the corpus once to warm up, and then a few more times,
+ * timing each pair and scoring the targets found against the labels (see
+ * {@link FrameCorpus}). By default, configurations are run one at a time,
+ * so that they don't slow each other down. With more threads, they warm up
+ * in parallel, but are still timed one at a time; timings are noisier then,
+ * since the others' warm-ups share the cores.
+ * </p>
+ * <p>
+ * Configurations are ranked by p99 latency, among those that find at least
+ * {@link #minRecall} of the labeled targets, followed by the rest, by
+ * recall.
+ * </p>
+ */
+public class ParameterSweep {
+	/**
+	 * Parameters that can be swept for the contour tracer
+	 */
+	public static final List<String> TRACER_PARAMS = Arrays.asList("minBlobWidth", "minBlobHeight", "maxSegmentLength", "stepSize");
+	/**
+	 * Parameters that can be swept for the image processor
+	 */
+	public static final List<String> PROCESSOR_PARAMS = Arrays.asList("tolerance");
+
+	/**
+	 * How one configuration did
+	 */
+	public static class Result {
+		protected final Map<String, Double> params;
+		/**
+		 * Time taken for each pair, in nanoseconds, sorted
+		 */
+		protected long[] latencies;
+		protected final DetectionScore score = new DetectionScore();
+		/**
+		 * What went wrong, if the configuration couldn't be run
+		 */
+		protected Throwable error;
+
+		protected Result(Map<String, Double> params) {
+			this.params = params;
+		}
+
+		public Map<String, Double> getParams() {
+			return params;
+		}
+
+		/**
+		 * @param percentile percentile, from 0 to 100
+		 * @return the latency at that percentile, in milliseconds
+		 */
+		public double getLatencyPercentile(double percentile) {
+			return percentile(latencies, percentile) / 1e6;
+		}
+
+		public DetectionScore getScore() {
+			return score;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+	}
+
+	protected final FrameCorpus corpus;
+	protected final boolean traceContours;
+	protected final TargetFilter filter;
+	/**
+	 * Number of timed passes through the corpus
+	 */
+	protected final int passes;
+	/**
+	 * Smallest recall for a configuration to count as reliable
+	 */
+	protected final double minRecall;
+	/**
+	 * Held while timing a configuration, so that configurations are timed one
+	 * at a time
+	 */
+	protected final Object timingLock = new Object();
+
+	/**
+	 * Create a sweep
+	 * @param corpus pairs to run
+	 * @param traceContours whether to sweep the contour tracer (instead of
+	 *     the image processor)
+	 * @param filter filter to give each processor
+	 * @param passes number of timed passes through the corpus
+	 * @param minRecall smallest recall for a configuration to count as
+	 *     reliable
+	 */
+	public ParameterSweep(FrameCorpus corpus, boolean traceContours, TargetFilter filter, int passes, double minRecall) {
+		if (corpus.size() == 0)
+			throw new IllegalArgumentException("No pairs to sweep over");
+		if (passes < 1)
+			throw new IllegalArgumentException("Invalid passes (expect: passes >= 1; passes = " + passes + ")");
+		this.corpus = corpus;
+		this.traceContours = traceContours;
+		this.filter = filter;
+		this.passes = passes;
+		this.minRecall = minRecall;
+	}
+
+	/**
+	 * Expand a grid into every combination of its values
+	 * @param spec the grid, like <code>a=1,2;b=3,4</code>
+	 * @return the combinations
+	 * @throws IllegalArgumentException if the grid is malformed
+	 */
+	public static List<Map<String, Double>> parseGrid(String spec) throws IllegalArgumentException {
+		List<Map<String, Double>> grid = new ArrayList<>();
+		grid.add(new LinkedHashMap<>());
+		for (String axis : spec.split(";")) {
+			axis = axis.trim();
+			if (axis.isEmpty())
+				continue;
+			final int eq = axis.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected name=values; got '" + axis + "'");
+			final String name = axis.substring(0, eq).trim();
+			List<Map<String, Double>> expanded = new ArrayList<>();
+			for (String value : axis.substring(eq + 1).split(",")) {
+				final double v = Double.parseDouble(value.trim());
+				for (Map<String, Double> config : grid) {
+					Map<String, Double> copy = new LinkedHashMap<>(config);
+					copy.put(name, v);
+					expanded.add(copy);
+				}
+			}
+			grid = expanded;
+		}
+		return grid;
+	}
+
+	/**
+	 * Run every configuration
+	 * @param grid configurations to run
+	 * @param threads number of configurations to run at once (but they are
+	 *     timed one at a time)
+	 * @return how each configuration did, ranked
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public List<Result> run(List<Map<String, Double>> grid, int threads) throws InterruptedException {
+		final List<String> allowed = traceContours ? TRACER_PARAMS : PROCESSOR_PARAMS;
+		for (Map<String, Double> config : grid)
+			for (String name : config.keySet())
+				if (!allowed.contains(name))
+					throw new IllegalArgumentException("Unknown parameter '" + name + "' (expected one of " + allowed + ")");
+		System.out.println("Sweeping " + grid.size() + " configurations over " + corpus.size() + " pairs, on " + threads + " threads");
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r);
+			thread.setName("SweepThread-" + thread.getId());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<Result>> futures = new ArrayList<>(grid.size());
+			for (Map<String, Double> config : grid)
+				futures.add(executor.submit(() -> evaluate(config)));
+			List<Result> results = new ArrayList<>(grid.size());
+			for (Future<Result> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					//evaluate() catches everything
+					e.printStackTrace();
+				}
+			}
+			return rank(results);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Build a processor for a configuration
+	 */
+	protected AbstractImageProcessor<?> build(Map<String, Double> config) {
+		final int[] size = corpus.getFrameSize();
+		AbstractImageProcessor<?> processor;
+		if (traceContours) {
+			ContourTracerParams params = new ContourTracerParams()
+					.setFrameMaxX(size[0])
+					.setFrameMaxY(size[1]);
+			if (config.containsKey("minBlobWidth"))
+				params.setMinBlobWidth(config.get("minBlobWidth").intValue());
+			if (config.containsKey("minBlobHeight"))
+				params.setMinBlobHeight(config.get("minBlobHeight").intValue());
+			if (config.containsKey("maxSegmentLength"))
+				params.setMaxSegmentLength(config.get("maxSegmentLength"));
+			if (config.containsKey("stepSize"))
+				params.setStepSize(config.get("stepSize"));
+			processor = new ContourTracer(params, null);
+		} else {
+			processor = new ImageProcessor(size[0], size[1], null);
+			if (config.containsKey("tolerance"))
+				processor.setClassifier(ColorClassifier.shared(ImageProcessor.rulesFor(config.get("tolerance").intValue())));
+		}
+		//Filters are only read, so they can be shared
+		processor.setTargetFilter(filter);
+		return processor;
+	}
+
+	/**
+	 * Run one configuration
+	 */
+	protected Result evaluate(Map<String, Double> config) {
+		Result result = new Result(config);
+		AbstractImageProcessor<?> processor = null;
+		try {
+			processor = build(config);
+			final List<FrameCorpus.Pair> pairs = corpus.getPairs();
+			//Warm up
+			for (FrameCorpus.Pair pair : pairs)
+				processor.detect(pair.getImageOn(), pair.getImageOff());
+			final long[] latencies = new long[passes * pairs.size()];
+			int i = 0;
+			synchronized (timingLock) {
+				for (int pass = 0; pass < passes; pass++) {
+					for (FrameCorpus.Pair pair : pairs) {
+						final long start = System.nanoTime();
+						List<PreciseRectangle> found = processor.detect(pair.getImageOn(), pair.getImageOff());
+						latencies[i++] = System.nanoTime() - start;
+						//Results are the same every pass, so only score the first
+						if (pass == 0 && pair.getTruth() != null)
+							result.score.add(pair.getTruth(), found);
+					}
+				}
+			}
+			Arrays.sort(latencies);
+			result.latencies = latencies;
+		} catch (Exception e) {
+			result.error = e;
+		} finally {
+			//Shut down the processor's threads, or every configuration leaks them
+			if (processor != null)
+				processor.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Rank results: configurations that failed go last; reliable ones go
+	 * first, fastest (by p99) first; and the rest go by recall, then speed.
+	 * @param results results to rank
+	 * @return the results, ranked
+	 */
+	public List<Result> rank(List<Result> results) {
+		List<Result> ranked = new ArrayList<>(results);
+		Collections.sort(ranked, (a, b) -> {
+			if ((a.error == null) != (b.error == null))
+				return a.error == null ? -1 : 1;
+			if (a.error != null)
+				return 0;
+			final double recallA = a.score.getRecall(), recallB = b.score.getRecall();
+			final boolean reliableA = recallA >= minRecall, reliableB = recallB >= minRecall;
+			if (reliableA != reliableB)
+				return reliableA ? -1 : 1;
+			if (!reliableA && recallA != recallB)
+				return Double.compare(recallB, recallA);
+			return Double.compare(a.getLatencyPercentile(99), b.getLatencyPercentile(99));
+		});
+		return ranked;
+	}
+
+	/**
+	 * Print a table of ranked results
+	 * @param ranked results, ranked
+	 * @param out stream to print to
+	 */
+	public void print(List<Result> ranked, PrintStream out) {
+		out.format("%4s %8s %8s %7s %9s %6s  %s%n", "rank", "p50 ms", "p99 ms", "recall", "precision", "ok", "parameters");
+		int rank = 1;
+		for (Result result : ranked) {
+			if (result.error != null) {
+				out.format("%4d %8s %8s %7s %9s %6s  %s (%s)%n", rank++, "-", "-", "-", "-", "error", result.params, result.error);
+				continue;
+			}
+			final DetectionScore score = result.score;
+			out.format("%4d %8.2f %8.2f %7.3f %9.3f %6s  %s%n", rank++,
+					result.getLatencyPercentile(50), result.getLatencyPercentile(99),
+					score.getRecall(), score.getPrecision(),
+					score.getRecall() >= minRecall ? "yes" : "no",
+					result.params);
+		}
+		if (corpus.getPairs().stream().allMatch(pair -> pair.getTruth() == null))
+			out.println("(no labels, so every configuration counts as finding everything)");
+	}
+
+	/**
+	 * Get a percentile of a sorted array
+	 * @param sorted values, sorted
+	 * @param percentile percentile, from 0 to 100
+	 * @return the value at that percentile (0 if there are no values)
+	 */
+	public static long percentile(long[] sorted, double percentile) {
+		if (sorted == null || sorted.length == 0)
+			return 0;
+		final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
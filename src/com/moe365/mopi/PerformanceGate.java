@@ -0,0 +1,300 @@
+package com.moe365.mopi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.capture.FramePool;
+import com.moe365.mopi.capture.PacedFrameSource;
+import com.moe365.mopi.geom.PreciseRectangle;
+import com.moe365.mopi.processing.AbstractImageProcessor;
+
+/**
+ * Checks that processors still find the same targets in a corpus of frame
+ * pairs, at least about as fast as they used to. Runs headless, from
+ * recorded pairs (see {@link FrameCorpus}), so no camera is needed.
+ * <p>
+ * The corpus directory holds, for each processor, the targets it is
+ * expected to find (<code>expected-&lt;processor&gt;.txt</code>, in the same
+ * format as labels), and a <code>baseline.properties</code> with the
+ * throughput that each processor is expected to reach
+ * (<code>&lt;processor&gt;.pairsPerSecond</code>). A processor fails if
+ * any target it finds is off by more than a tolerance (in either coordinate
+ * or size, as a fraction of the frame), or if it finds a different number
+ * of targets, or if its throughput is down by more than a percentage.
+ * </p>
+ * <p>
+ * If the corpus has labels (see {@link FrameCorpus}), a processor also
+ * fails if its targets don't match the labels (within the same tolerance),
+ * and <kbd>--gate-update</kbd> won't record results that don't, so that
+ * wrong results can't be recorded as the expected ones.
+ * </p>
+ * <p>
+ * Throughput is timed the way that the processor thread runs: each pair is
+ * encoded as JPEGs (like the camera's frames), and run through
+ * {@link AbstractImageProcessor#apply(CapturedFrame, CapturedFrame) apply()}
+ * in pooled frames, so decoding counts.
+ * </p>
+ * <p>
+ * Throughput depends on the machine, so the baseline should be recorded on
+ * the machine that the gate is run on (with <kbd>--gate-update</kbd>, which
+ * also records the expected targets). Without a baseline, throughput is
+ * only reported.
+ * </p>
+ */
+public class PerformanceGate {
+	/**
+	 * Name of the file that baseline throughputs are read from
+	 */
+	public static final String BASELINE_FILE = "baseline.properties";
+	/**
+	 * How long to run each processor before timing it, so that the JIT has
+	 * settled, in nanoseconds
+	 */
+	protected static final long WARMUP_TIME = TimeUnit.SECONDS.toNanos(2);
+	/**
+	 * Shortest that a timed pass may be, in nanoseconds
+	 */
+	protected static final long MIN_PASS_TIME = TimeUnit.MILLISECONDS.toNanos(250);
+
+	protected final File directory;
+	protected final FrameCorpus corpus;
+	/**
+	 * Number of timed passes. The fastest counts.
+	 */
+	protected final int passes;
+	/**
+	 * Most that throughput may drop, as a percentage of the baseline
+	 */
+	protected final double maxSlowdown;
+	/**
+	 * Most that any coordinate of a target may be off by, as a fraction of
+	 * the frame
+	 */
+	protected final double tolerance;
+	/**
+	 * Each pair, encoded as JPEGs, for timing
+	 */
+	protected final byte[][] jpegsOn, jpegsOff;
+	/**
+	 * Frames that pairs are timed in
+	 */
+	protected final FramePool frames = new FramePool(2);
+
+	/**
+	 * Create a gate
+	 * @param directory directory that the corpus, expected results, and
+	 *     baseline are in
+	 * @param corpus the corpus
+	 * @param passes number of timed passes through the corpus
+	 * @param maxSlowdown most that throughput may drop, as a percentage
+	 * @param tolerance most that any coordinate of a target may be off by
+	 * @throws IOException if the pairs can't be encoded as JPEGs
+	 */
+	public PerformanceGate(File directory, FrameCorpus corpus, int passes, double maxSlowdown, double tolerance) throws IOException {
+		if (corpus.size() == 0)
+			throw new IllegalArgumentException("No pairs in corpus");
+		if (passes < 1)
+			throw new IllegalArgumentException("Invalid passes (expect: passes >= 1; passes = " + passes + ")");
+		this.directory = directory;
+		this.corpus = corpus;
+		this.passes = passes;
+		this.maxSlowdown = maxSlowdown;
+		this.tolerance = tolerance;
+		final List<FrameCorpus.Pair> pairs = corpus.getPairs();
+		this.jpegsOn = new byte[pairs.size()][];
+		this.jpegsOff = new byte[pairs.size()][];
+		for (int i = 0; i < pairs.size(); i++) {
+			jpegsOn[i] = PacedFrameSource.toJPEG(pairs.get(i).getImageOn());
+			jpegsOff[i] = PacedFrameSource.toJPEG(pairs.get(i).getImageOff());
+		}
+	}
+
+	/**
+	 * Run every processor through the corpus, and check them
+	 * @param processors processors to check. They must not be running.
+	 * @param update whether to record the results as the new expected
+	 *     results and baseline, instead of checking them
+	 * @return whether every processor passed
+	 * @throws IOException if the expected results or baseline can't be read
+	 *     or written
+	 */
+	public boolean run(List<AbstractImageProcessor<?>> processors, boolean update) throws IOException {
+		final Properties baseline = new Properties();
+		final File baselineFile = new File(directory, BASELINE_FILE);
+		if (baselineFile.exists())
+			try (InputStream in = new FileInputStream(baselineFile)) {
+				baseline.load(in);
+			}
+		boolean ok = true;
+		for (AbstractImageProcessor<?> processor : processors) {
+			final String name = processor.getClass().getSimpleName();
+			final File expectedFile = new File(directory, "expected-" + name + ".txt");
+			System.out.println("Checking " + name);
+
+			//The first pass warms up, and collects the results
+			TreeMap<Integer, List<PreciseRectangle>> found = new TreeMap<>();
+			for (FrameCorpus.Pair pair : corpus.getPairs()) {
+				List<PreciseRectangle> targets = processor.detect(pair.getImageOn(), pair.getImageOff());
+				found.put(pair.getNumber(), targets == null ? new ArrayList<>() : new ArrayList<>(targets));
+			}
+			final double throughput = measureThroughput(processor);
+
+			//Whatever else, the targets have to be the ones drawn
+			int wrong = 0, labeled = 0;
+			for (FrameCorpus.Pair pair : corpus.getPairs()) {
+				if (pair.getTruth() == null)
+					continue;
+				labeled++;
+				if (!matches(pair.getTruth(), found.get(pair.getNumber()))) {
+					System.out.println("  pair " + pair.getNumber() + ": labeled " + pair.getTruth() + ", found " + found.get(pair.getNumber()));
+					wrong++;
+				}
+			}
+			if (wrong > 0) {
+				System.out.println(name + ": FAIL (" + wrong + " of " + labeled + " labeled pairs don't match their labels" + (update ? "; not recording its results" : "") + ")");
+				ok = false;
+				if (update)
+					continue;
+			}
+
+			if (update) {
+				writeExpected(expectedFile, found);
+				baseline.setProperty(name + ".pairsPerSecond", String.format("%.2f", throughput));
+				System.out.format("%s: recorded %d pairs, %.2f pairs/s%n", name, found.size(), throughput);
+				continue;
+			}
+
+			if (!expectedFile.exists()) {
+				System.out.println(name + ": FAIL (no expected results in " + expectedFile + "; run with --gate-update to record them)");
+				ok = false;
+			} else {
+				final TreeMap<Integer, List<PreciseRectangle>> expected = FrameCorpus.readLabels(expectedFile);
+				int mismatches = 0;
+				for (Map.Entry<Integer, List<PreciseRectangle>> entry : found.entrySet()) {
+					List<PreciseRectangle> expectedTargets = expected.get(entry.getKey());
+					if (expectedTargets == null || !matches(expectedTargets, entry.getValue())) {
+						System.out.println("  pair " + entry.getKey() + ": expected " + expectedTargets + ", found " + entry.getValue());
+						mismatches++;
+					}
+				}
+				if (mismatches > 0) {
+					System.out.println(name + ": FAIL (" + mismatches + " of " + found.size() + " pairs differ)");
+					ok = false;
+				} else {
+					System.out.println(name + ": results match");
+				}
+			}
+
+			final String base = baseline.getProperty(name + ".pairsPerSecond");
+			if (base == null) {
+				System.out.format("%s: %.2f pairs/s (no baseline)%n", name, throughput);
+				continue;
+			}
+			final double baseThroughput = Double.parseDouble(base.trim());
+			final double change = (throughput - baseThroughput) / baseThroughput * 100;
+			final boolean fast = change >= -maxSlowdown;
+			System.out.format("%s: %.2f pairs/s, baseline %.2f (%+.1f%%)%s%n", name, throughput, baseThroughput, change, fast ? "" : " FAIL (more than " + maxSlowdown + "% slower)");
+			ok &= fast;
+		}
+		if (update) {
+			try (OutputStream out = new FileOutputStream(baselineFile)) {
+				baseline.store(out, "Throughput of each processor over this corpus, from --gate-update");
+			}
+			return ok;
+		}
+		System.out.println(ok ? "Gate passed" : "GATE FAILED");
+		return ok;
+	}
+
+	/**
+	 * Time passes through the corpus, after warming up. Each pass runs
+	 * through the corpus as many times as it takes to last at least
+	 * {@link #MIN_PASS_TIME}, so that small corpora aren't timed by the
+	 * clock's jitter.
+	 * @return the throughput of the fastest pass, in pairs per second
+	 */
+	protected double measureThroughput(AbstractImageProcessor<?> processor) {
+		runFor(processor, WARMUP_TIME);
+		double best = 0;
+		for (int pass = 0; pass < passes; pass++)
+			best = Math.max(best, runFor(processor, MIN_PASS_TIME));
+		return best;
+	}
+
+	/**
+	 * Run through the corpus, in pooled frames, until some time has passed
+	 * @param time least time to run for, in nanoseconds
+	 * @return the throughput, in pairs per second
+	 */
+	protected double runFor(AbstractImageProcessor<?> processor, long time) {
+		final long start = System.nanoTime();
+		long elapsed;
+		int pairs = 0;
+		do {
+			for (int i = 0; i < jpegsOn.length; i++, pairs++) {
+				final long captureTime = TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+				final CapturedFrame frameOn = frames.take().set(jpegsOn[i], jpegsOn[i].length, null, captureTime, 2 * pairs + 1);
+				final CapturedFrame frameOff = frames.take().set(jpegsOff[i], jpegsOff[i].length, null, captureTime, 2 * pairs);
+				try {
+					processor.detect(frameOn, frameOff);
+				} finally {
+					frameOn.recycle();
+					frameOff.recycle();
+				}
+			}
+		} while ((elapsed = System.nanoTime() - start) < time);
+		return pairs * 1e9 / elapsed;
+	}
+
+	/**
+	 * Check whether targets found match the ones expected. The order doesn't
+	 * matter.
+	 */
+	protected boolean matches(List<PreciseRectangle> expected, List<PreciseRectangle> found) {
+		if (expected.size() != found.size())
+			return false;
+		final boolean[] used = new boolean[found.size()];
+		expectedLoop:
+		for (PreciseRectangle target : expected) {
+			for (int i = 0; i < found.size(); i++) {
+				if (!used[i] && isClose(target, found.get(i))) {
+					used[i] = true;
+					continue expectedLoop;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	protected boolean isClose(PreciseRectangle a, PreciseRectangle b) {
+		return Math.abs(a.getX() - b.getX()) <= tolerance
+				&& Math.abs(a.getY() - b.getY()) <= tolerance
+				&& Math.abs(a.getWidth() - b.getWidth()) <= tolerance
+				&& Math.abs(a.getHeight() - b.getHeight()) <= tolerance;
+	}
+
+	protected static void writeExpected(File file, TreeMap<Integer, List<PreciseRectangle>> found) throws IOException {
+		try (PrintWriter out = new PrintWriter(file)) {
+			out.println("# Targets found in each pair, from --gate-update");
+			for (Map.Entry<Integer, List<PreciseRectangle>> entry : found.entrySet()) {
+				StringBuilder line = new StringBuilder().append(entry.getKey());
+				for (PreciseRectangle target : entry.getValue())
+					line.append(' ').append(target.getX()).append(',').append(target.getY()).append(',').append(target.getWidth()).append(',').append(target.getHeight());
+				out.println(line);
+			}
+		}
+	}
+}
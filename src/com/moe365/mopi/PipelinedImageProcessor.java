@@ -0,0 +1,321 @@
+package com.moe365.mopi;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.geom.PreciseRectangle;
+import com.moe365.mopi.processing.DiagnosticWriter;
+import com.moe365.mopi.processing.FramePlanes;
+import com.moe365.mopi.processing.MotionEstimator;
+import com.moe365.mopi.processing.Pipeline;
+
+/**
+ * Finds targets the same way as {@link ImageProcessor}, but splits the work
+ * into stages (decode, delta, mask, blobs, filter, and then the result
+ * consumer), each on its own thread (see {@link Pipeline}), so that a pair
+ * can be decoded while the last one is still being searched. On a Pi, where
+ * no one stage uses all of the cores, that gets through more pairs per
+ * second, at about the same latency per pair.
+ * <p>
+ * Each pair in the pipeline needs its own planes, so the number of pairs
+ * that can be in the pipeline at once (its depth) is fixed. When every pair
+ * is in use, new frames wait (replacing older frames with the same flash),
+ * like they wait while {@link ImageProcessor} is busy.
+ * </p>
+ * <p>
+ * Skipping unchanged scenes and latency budgets aren't supported, because
+ * they assume one pair at a time.
+ * </p>
+ */
+public class PipelinedImageProcessor extends ImageProcessor {
+	/**
+	 * Default number of pairs that can be in the pipeline at once
+	 */
+	public static final int DEFAULT_DEPTH = 3;
+
+	/**
+	 * A frame pair going through the pipeline, and what each stage found
+	 */
+	protected static class Job extends Pipeline.Item {
+		protected CapturedFrame frameOn, frameOff;
+		/**
+		 * Whether to recycle the frames once they're decoded. Frames passed
+		 * to {@link PipelinedImageProcessor#apply(CapturedFrame, CapturedFrame)}
+		 * are recycled by the caller.
+		 */
+		protected boolean recycleFrames;
+		/**
+		 * Images to process instead of frames (for {@link PipelinedImageProcessor#processImages(BufferedImage, BufferedImage)})
+		 */
+		protected BufferedImage imageOn, imageOff;
+		protected final FramePlanes planes;
+		protected final boolean[][] map;
+		/**
+		 * The shift of the pair, as {dx, dy}
+		 */
+		protected final int[] shift = new int[2];
+		/**
+		 * Bounding boxes of the targets, in pixels
+		 */
+		protected List<PreciseRectangle> boxes;
+		protected List<PreciseRectangle> result;
+
+		protected Job(int offsetX, int offsetY, int width, int height) {
+			this.planes = new FramePlanes(offsetX, offsetY, width, height);
+			this.map = new boolean[height][width];
+		}
+	}
+
+	protected final Pipeline<Job> pipeline;
+	/**
+	 * Used when the pipeline isn't running (for {@link #apply(CapturedFrame, CapturedFrame)}
+	 * and {@link #processImages(BufferedImage, BufferedImage)}). Made when
+	 * first needed.
+	 */
+	protected Job inlineJob;
+
+	public PipelinedImageProcessor(int width, int height, Consumer<List<PreciseRectangle>> handler) {
+		this(width, height, DEFAULT_DEPTH, handler);
+	}
+
+	/**
+	 * Create a processor
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @param depth number of pairs that can be in the pipeline at once
+	 * @param handler what to do with the targets found in each pair
+	 */
+	public PipelinedImageProcessor(int width, int height, int depth, Consumer<List<PreciseRectangle>> handler) {
+		super(width, height, handler);
+		this.pipeline = new Pipeline<>("Pipeline", depth, this::newJob)
+				.addStage("decode", this::decode)
+				.addStage("delta", this::delta)
+				.addStage("mask", this::mask)
+				.addStage("blobs", this::blobs)
+				.addStage("filter", this::filter)
+				.setOutput(this::output)
+				.setDropHandler(this::drop);
+	}
+
+	protected Job newJob() {
+		return new Job(frameMinX, frameMinY, getFrameWidth(), getFrameHeight());
+	}
+
+	/**
+	 * @return the pipeline (e.g., for its stats)
+	 */
+	public Pipeline<Job> getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * Decode both frames of a pair into its planes, unless the preview shows
+	 * that there's nothing to find. Frames from the pipeline are recycled as
+	 * soon as they're decoded.
+	 */
+	protected void decode(Job job) throws Exception {
+		if (job.imageOn != null) {
+			job.planes.loadOn(job.imageOn);
+			job.planes.loadOff(job.imageOff);
+			job.imageOn = job.imageOff = null;
+			return;
+		}
+		final CapturedFrame frameOn = job.frameOn, frameOff = job.frameOff;
+		try {
+			if (diagnosticWriter == null && !hasCandidates(frameOn, frameOff)) {
+				//Nothing in the preview, so there's no need for a full decode
+				job.result = new ArrayList<>();
+				job.finish();
+				return;
+			}
+			System.out.println("Calculating...");
+			//Decode the two frames at the same time, so that we only wait for about one decode
+			final FramePlanes planes = job.planes;
+			Future<?> offTask = decodeExecutor.submit(() -> planes.loadOff(frameOff.getBufferedImage()));
+			try {
+				planes.loadOn(frameOn.getBufferedImage());
+			} finally {
+				offTask.get();
+			}
+		} finally {
+			//The frames will be reused, so forget their previews
+			previewedOn = previewedOff = null;
+			job.frameOn = job.frameOff = null;
+			if (job.recycleFrames) {
+				frameOn.recycle();
+				frameOff.recycle();
+			}
+		}
+	}
+
+	/**
+	 * Classify the difference between the frames of a pair
+	 */
+	protected void delta(Job job) {
+		final MotionEstimator estimator = this.motionEstimator;
+		if (estimator == null) {
+			job.planes.classify(classifier.getTable());
+		} else {
+			estimator.estimate(job.planes, job.shift);
+			job.planes.classify(classifier.getTable(), job.shift[0], job.shift[1]);
+		}
+		final DiagnosticWriter writer = this.diagnosticWriter;
+		if (writer != null)
+			//Only copies the planes; they're written on the writer's thread
+			writer.offer(job.planes);
+	}
+
+	/**
+	 * Copy the delta plane into the pair's map
+	 */
+	protected void mask(Job job) {
+		for (boolean[] row : job.map)
+			Arrays.fill(row, false);
+		toBooleanMap(job.planes, job.map);
+	}
+
+	/**
+	 * Find the bounding boxes in the pair's map
+	 */
+	protected void blobs(Job job) {
+		//Only this stage's thread uses the projections
+		job.boxes = BoundingBoxThing.boundingBoxes(job.map, ForkJoinPool.commonPool(), projections);
+	}
+
+	/**
+	 * Pick the targets out of the bounding boxes
+	 */
+	protected void filter(Job job) {
+		job.result = filterRectangles(job.boxes, job.planes);
+		job.boxes = null;
+	}
+
+	/**
+	 * Hand the targets to the result consumer
+	 */
+	protected void output(Job job) {
+		final List<PreciseRectangle> result = job.result;
+		job.result = null;
+		notifyTargetListener(result);
+		if (this.resultConsumer != null)
+			this.resultConsumer.accept(result);
+	}
+
+	/**
+	 * Recycle the frames of a pair that was still in the pipeline when it was
+	 * stopped
+	 */
+	protected void drop(Job job) {
+		final CapturedFrame frameOn = job.frameOn, frameOff = job.frameOff;
+		job.frameOn = job.frameOff = null;
+		job.imageOn = job.imageOff = null;
+		job.boxes = job.result = null;
+		if (job.recycleFrames && frameOn != null) {
+			frameOn.recycle();
+			frameOff.recycle();
+		}
+	}
+
+	/**
+	 * Start the pipeline's threads, instead of a processor thread
+	 */
+	@Override
+	public synchronized PipelinedImageProcessor start() {
+		if (running)
+			throw new IllegalStateException("Already running");
+		//Before frames can be offered, which take from the pipeline
+		pipeline.start();
+		running = true;
+		return this;
+	}
+
+	/**
+	 * Stop the pipeline's threads, once the pairs in it are through (see
+	 * {@link Pipeline#stop()}). The frames of pairs that don't make it
+	 * through are recycled.
+	 */
+	@Override
+	public synchronized void stop() {
+		if (!running)
+			return;
+		//Pairs are only submitted while holding the lock, so none can be submitted after this
+		running = false;
+		pipeline.stop();
+		dropFrames();
+	}
+
+	/**
+	 * Offer a frame. Once there's a frame with the flash on, and one with it
+	 * off, they're sent through the pipeline, if there's room.
+	 */
+	@Override
+	public boolean offerFrame(CapturedFrame frame, boolean flash) {
+		if (!running) {
+			frame.recycle();
+			return false;
+		}
+		(flash ? frameOnTime : frameOffTime).set(System.nanoTime());
+		CapturedFrame oldFrame = (flash ? frameOn : frameOff).getAndSet(frame);
+		if (oldFrame != null)
+			oldFrame.recycle();
+		if (!running) {
+			//Stopped while the frame was being offered, so nothing will recycle it
+			dropFrames();
+			return true;
+		}
+		if (frameOn.get() == null || frameOff.get() == null)
+			return true;
+		//Not while stopping, or the pipeline could stop before the pair is submitted, and the pair would never be recycled
+		synchronized (this) {
+			if (!running) {
+				dropFrames();
+				return true;
+			}
+			final Job job = pipeline.take();
+			if (job == null)
+				//Wait for room
+				return true;
+			job.frameOn = frameOn.getAndSet(null);
+			job.frameOff = frameOff.getAndSet(null);
+			job.recycleFrames = true;
+			pipeline.submit(job);
+		}
+		return true;
+	}
+
+	/**
+	 * Run a job through the stages on this thread
+	 */
+	protected List<PreciseRectangle> runInline(Job job) {
+		if (!pipeline.runInline(job))
+			return null;
+		final List<PreciseRectangle> result = job.result;
+		job.result = null;
+		return result;
+	}
+
+	@Override
+	protected List<PreciseRectangle> processImages(BufferedImage imgOn, BufferedImage imgOff) {
+		if (inlineJob == null)
+			inlineJob = newJob();
+		inlineJob.imageOn = imgOn;
+		inlineJob.imageOff = imgOff;
+		return runInline(inlineJob);
+	}
+
+	@Override
+	public List<PreciseRectangle> apply(CapturedFrame frameOn, CapturedFrame frameOff) {
+		if (inlineJob == null)
+			inlineJob = newJob();
+		inlineJob.frameOn = frameOn;
+		inlineJob.frameOff = frameOff;
+		inlineJob.recycleFrames = false;
+		return runInline(inlineJob);
+	}
+}
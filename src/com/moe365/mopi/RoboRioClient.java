@@ -179,6 +179,11 @@ public class RoboRioClient implements Closeable {
 	 */
 	protected AtomicInteger packetNum = new AtomicInteger(0);
 	protected volatile boolean isResolved = false;
+	/**
+	 * If set, packets are built, but not sent. Used to warm up the JIT
+	 * without sending the Rio fake targets.
+	 */
+	protected volatile boolean dryRun = false;
 	
 	/**
 	 * Create a client with default settings
@@ -323,9 +328,19 @@ public class RoboRioClient implements Closeable {
 	}
 	
 	protected void send(DatagramPacket packet) throws IOException {
+		if (dryRun)
+			return;
 		socket.send(packet);
 	}
 	
+	/**
+	 * Set whether to build packets without sending them
+	 * @param dryRun whether to skip sending packets
+	 */
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+	
 	public void write(short status) throws IOException {
 		build(status, (short) 0);
 		send(packet_8);
@@ -0,0 +1,495 @@
+package com.moe365.mopi;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.moe365.mopi.geom.PreciseRectangle;
+
+/**
+ * Renders synthetic frame pairs of a field with retroreflective targets, one
+ * with the LED on and one with it off, for testing processors without a
+ * camera, an LED, or a goal.
+ * <p>
+ * The background is random clutter (a gradient, and gray blocks), which
+ * looks the same with the LED on or off. The targets are U-shaped, like the
+ * tape around the 2016 goals, and only light up (green) with the LED on.
+ * Each target is turned and tilted by a random pose, with perspective, so
+ * the arms aren't always the same size. On top of that, the generator can
+ * add sensor noise, change the ambient light between the frames of a pair,
+ * and shake the camera between them.
+ * </p>
+ * <p>
+ * Pairs come out the way that processors get them: as decoded
+ * {@link BufferedImage}s, after a round trip through JPEG (like frames from
+ * the camera), along with the JPEG bytes, and the bounding box of each
+ * target, scaled to the frame.
+ * </p>
+ */
+public class SceneGenerator {
+	/**
+	 * Number of values in the noise table
+	 */
+	protected static final int NOISE_TABLE_SIZE = 1 << 16;
+
+	/**
+	 * A rendered pair
+	 */
+	public static class Scene {
+		protected final BufferedImage imgOn, imgOff;
+		protected final byte[] jpegOn, jpegOff;
+		protected final List<PreciseRectangle> targets;
+
+		protected Scene(BufferedImage imgOn, BufferedImage imgOff, byte[] jpegOn, byte[] jpegOff, List<PreciseRectangle> targets) {
+			this.imgOn = imgOn;
+			this.imgOff = imgOff;
+			this.jpegOn = jpegOn;
+			this.jpegOff = jpegOff;
+			this.targets = targets;
+		}
+
+		/**
+		 * @return the frame with the LED on
+		 */
+		public BufferedImage getImageOn() {
+			return imgOn;
+		}
+
+		/**
+		 * @return the frame with the LED off
+		 */
+		public BufferedImage getImageOff() {
+			return imgOff;
+		}
+
+		/**
+		 * @return the frame with the LED on, as a JPEG (null if not encoded)
+		 */
+		public byte[] getJPEGOn() {
+			return jpegOn;
+		}
+
+		/**
+		 * @return the frame with the LED off, as a JPEG (null if not
+		 *     encoded)
+		 */
+		public byte[] getJPEGOff() {
+			return jpegOff;
+		}
+
+		/**
+		 * @return the bounding box of each target (in the frame with the LED
+		 *     on), scaled to the frame
+		 */
+		public List<PreciseRectangle> getTargets() {
+			return targets;
+		}
+	}
+
+	protected final int width, height;
+	protected final Random random;
+	/**
+	 * Gaussian values, so that noise doesn't need a call to
+	 * {@link Random#nextGaussian()} for every pixel
+	 */
+	protected final float[] noiseTable = new float[NOISE_TABLE_SIZE];
+	protected int minTargets = 1, maxTargets = 2;
+	/**
+	 * Range of target widths, as a fraction of the frame width
+	 */
+	protected double minTargetSize = .1, maxTargetSize = .25;
+	/**
+	 * Most that targets are turned (about the vertical axis) and tilted
+	 * (about the view axis), in degrees
+	 */
+	protected double maxYaw = 30, maxRoll = 10;
+	/**
+	 * Standard deviation of the sensor noise, in levels
+	 */
+	protected double noise = 4;
+	/**
+	 * Most that the ambient light may change between the frames of a pair,
+	 * as a fraction
+	 */
+	protected double ambientChange = .05;
+	/**
+	 * Most that the camera may move between the frames of a pair, in pixels
+	 */
+	protected int shake = 0;
+	/**
+	 * Number of blocks of clutter in the background
+	 */
+	protected int clutter = 40;
+	/**
+	 * Quality to encode JPEGs at, or 0 to not encode them
+	 */
+	protected int jpegQuality = 80;
+
+	/**
+	 * Create a generator
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @param seed seed for the random scenes, so that runs can be repeated
+	 */
+	public SceneGenerator(int width, int height, long seed) {
+		if (width < 16 || height < 16)
+			throw new IllegalArgumentException("Invalid size (expect: width, height >= 16; size = " + width + "x" + height + ")");
+		this.width = width;
+		this.height = height;
+		this.random = new Random(seed);
+		for (int i = 0; i < noiseTable.length; i++)
+			noiseTable[i] = (float) random.nextGaussian();
+	}
+
+	/**
+	 * @param min fewest targets in a scene
+	 * @param max most targets in a scene
+	 * @return self
+	 */
+	public SceneGenerator setTargetCount(int min, int max) {
+		if (min < 0 || min > max)
+			throw new IllegalArgumentException("Invalid target count range (expect: 0 <= min <= max; min = " + min + ", max = " + max + ")");
+		this.minTargets = min;
+		this.maxTargets = max;
+		return this;
+	}
+
+	/**
+	 * @param min smallest target width, as a fraction of the frame width
+	 * @param max largest target width, as a fraction of the frame width
+	 * @return self
+	 */
+	public SceneGenerator setTargetSize(double min, double max) {
+		if (!(min > 0 && min <= max && max <= 1))
+			throw new IllegalArgumentException("Invalid target size range (expect: 0 < min <= max <= 1; min = " + min + ", max = " + max + ")");
+		this.minTargetSize = min;
+		this.maxTargetSize = max;
+		return this;
+	}
+
+	/**
+	 * @param maxYaw most that targets are turned away, in degrees
+	 * @param maxRoll most that targets are tilted, in degrees
+	 * @return self
+	 */
+	public SceneGenerator setPose(double maxYaw, double maxRoll) {
+		if (!(maxYaw >= 0 && maxYaw < 80 && maxRoll >= 0))
+			throw new IllegalArgumentException("Invalid pose (expect: 0 <= maxYaw < 80, maxRoll >= 0; maxYaw = " + maxYaw + ", maxRoll = " + maxRoll + ")");
+		this.maxYaw = maxYaw;
+		this.maxRoll = maxRoll;
+		return this;
+	}
+
+	/**
+	 * @param noise standard deviation of the sensor noise, in levels
+	 * @return self
+	 */
+	public SceneGenerator setNoise(double noise) {
+		this.noise = Math.max(0, noise);
+		return this;
+	}
+
+	/**
+	 * @param ambientChange most that the ambient light may change between the
+	 *     frames of a pair, as a fraction
+	 * @return self
+	 */
+	public SceneGenerator setAmbientChange(double ambientChange) {
+		this.ambientChange = Math.max(0, ambientChange);
+		return this;
+	}
+
+	/**
+	 * @param shake most that the camera may move between the frames of a
+	 *     pair, in pixels
+	 * @return self
+	 */
+	public SceneGenerator setShake(int shake) {
+		this.shake = Math.max(0, shake);
+		return this;
+	}
+
+	/**
+	 * @param clutter number of blocks of clutter in the background
+	 * @return self
+	 */
+	public SceneGenerator setClutter(int clutter) {
+		this.clutter = Math.max(0, clutter);
+		return this;
+	}
+
+	/**
+	 * @param quality quality to encode JPEGs at (1-100), or 0 to skip the
+	 *     JPEG round trip
+	 * @return self
+	 */
+	public SceneGenerator setJPEGQuality(int quality) {
+		this.jpegQuality = quality;
+		return this;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Render a pair
+	 * @return the pair
+	 * @throws IOException if the frames can't be round-tripped through JPEG
+	 */
+	public Scene next() throws IOException {
+		//The background is a bit bigger than the frame, so that the camera can shake
+		final int margin = shake;
+		final int bgWidth = width + 2 * margin, bgHeight = height + 2 * margin;
+		final byte[] background = renderBackground(bgWidth, bgHeight);
+
+		final int dx = shake == 0 ? 0 : random.nextInt(2 * shake + 1) - shake;
+		final int dy = shake == 0 ? 0 : random.nextInt(2 * shake + 1) - shake;
+		final double ambientOff = 1 + (random.nextDouble() * 2 - 1) * ambientChange;
+		final double ambientOn = 1 + (random.nextDouble() * 2 - 1) * ambientChange;
+
+		BufferedImage off = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		BufferedImage on = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		final byte[] offData = ((DataBufferByte) off.getRaster().getDataBuffer()).getData();
+		final byte[] onData = ((DataBufferByte) on.getRaster().getDataBuffer()).getData();
+		crop(background, bgWidth, margin, margin, ambientOff, offData);
+		crop(background, bgWidth, margin + dx, margin + dy, ambientOn, onData);
+
+		final int nTargets = minTargets + random.nextInt(maxTargets - minTargets + 1);
+		List<PreciseRectangle> targets = new ArrayList<>(nTargets);
+		for (int i = 0; i < nTargets; i++) {
+			PreciseRectangle bounds = drawTarget(onData);
+			if (bounds != null)
+				targets.add(bounds);
+		}
+
+		addNoise(offData);
+		addNoise(onData);
+
+		if (jpegQuality <= 0)
+			return new Scene(on, off, null, null, targets);
+		final byte[] jpegOn = toJPEG(on), jpegOff = toJPEG(off);
+		return new Scene(ImageIO.read(new ByteArrayInputStream(jpegOn)), ImageIO.read(new ByteArrayInputStream(jpegOff)), jpegOn, jpegOff, targets);
+	}
+
+	/**
+	 * Render some pairs
+	 * @param n number of pairs
+	 * @return the pairs
+	 * @throws IOException if the frames can't be round-tripped through JPEG
+	 */
+	public List<Scene> next(int n) throws IOException {
+		List<Scene> scenes = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			scenes.add(next());
+		return scenes;
+	}
+
+	/**
+	 * Render a gray background, with a gradient and blocks of clutter
+	 * @return the background, as one level per pixel
+	 */
+	protected byte[] renderBackground(int bgWidth, int bgHeight) {
+		final byte[] bg = new byte[bgWidth * bgHeight];
+		final int base = 30 + random.nextInt(40);
+		for (int y = 0; y < bgHeight; y++)
+			for (int x = 0; x < bgWidth; x++)
+				bg[y * bgWidth + x] = (byte) (base + (x + y) * 40 / (bgWidth + bgHeight));
+		for (int i = 0; i < clutter; i++) {
+			final int w = bgWidth / 40 + random.nextInt(bgWidth / 6);
+			final int h = bgHeight / 40 + random.nextInt(bgHeight / 6);
+			final int left = random.nextInt(bgWidth), top = random.nextInt(bgHeight);
+			final byte level = (byte) (20 + random.nextInt(180));
+			for (int y = top; y < Math.min(bgHeight, top + h); y++)
+				for (int x = left; x < Math.min(bgWidth, left + w); x++)
+					bg[y * bgWidth + x] = level;
+		}
+		return bg;
+	}
+
+	/**
+	 * Copy part of the background into a frame, with the ambient light
+	 * applied
+	 */
+	protected void crop(byte[] bg, int bgWidth, int left, int top, double ambient, byte[] out) {
+		final int[] levels = new int[256];
+		for (int i = 0; i < levels.length; i++)
+			levels[i] = Math.min(0xFF, (int) Math.round(i * ambient));
+		for (int y = 0; y < height; y++) {
+			int src = (y + top) * bgWidth + left;
+			int dst = y * width * 3;
+			for (int x = 0; x < width; x++, src++) {
+				final byte level = (byte) levels[bg[src] & 0xFF];
+				out[dst++] = level;
+				out[dst++] = level;
+				out[dst++] = level;
+			}
+		}
+	}
+
+	/**
+	 * Draw a lit-up U-shaped target with a random pose and position into a
+	 * frame
+	 * @return the bounding box of the target, scaled to the frame, or null if
+	 *     it ended up off of the frame
+	 */
+	protected PreciseRectangle drawTarget(byte[] data) {
+		final double w = width * (minTargetSize + random.nextDouble() * (maxTargetSize - minTargetSize));
+		//The 2016 tape is 20" wide, 14" tall, and 2" thick
+		final double h = w * 14 / 20, thickness = w * 2 / 20;
+		final double cx = w / 2 + random.nextDouble() * (width - w), cy = h / 2 + random.nextDouble() * (height - h);
+		final double yaw = Math.toRadians((random.nextDouble() * 2 - 1) * maxYaw);
+		final double roll = Math.toRadians((random.nextDouble() * 2 - 1) * maxRoll);
+
+		//Corners of the target (top left, top right, bottom right, bottom left), turned with perspective
+		final double distance = 3 * w;
+		final double scaleLeft = distance / (distance + w / 2 * Math.sin(yaw));
+		final double scaleRight = distance / (distance - w / 2 * Math.sin(yaw));
+		final double halfWidth = w / 2 * Math.cos(yaw);
+		final double[] cornersX = {-halfWidth * scaleLeft, halfWidth * scaleRight, halfWidth * scaleRight, -halfWidth * scaleLeft};
+		final double[] cornersY = {-h / 2 * scaleLeft, -h / 2 * scaleRight, h / 2 * scaleRight, h / 2 * scaleLeft};
+		final double cos = Math.cos(roll), sin = Math.sin(roll);
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			final double x = cornersX[i], y = cornersY[i];
+			cornersX[i] = cx + x * cos - y * sin;
+			cornersY[i] = cy + x * sin + y * cos;
+			minX = Math.min(minX, cornersX[i]);
+			maxX = Math.max(maxX, cornersX[i]);
+			minY = Math.min(minY, cornersY[i]);
+			maxY = Math.max(maxY, cornersY[i]);
+		}
+
+		//Fill every pixel whose (u, v) in the target is on the tape
+		final double t = thickness / w, tv = thickness / h;
+		final int x0 = Math.max(0, (int) Math.floor(minX)), x1 = Math.min(width - 1, (int) Math.ceil(maxX));
+		final int y0 = Math.max(0, (int) Math.floor(minY)), y1 = Math.min(height - 1, (int) Math.ceil(maxY));
+		if (x0 > x1 || y0 > y1)
+			return null;
+		final double[] uv = new double[2];
+		final double brightness = .8 + random.nextDouble() * .2;
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+				if (!invert(cornersX, cornersY, x + .5, y + .5, uv))
+					continue;
+				final double u = uv[0], v = uv[1];
+				if (u < 0 || u > 1 || v < 0 || v > 1)
+					continue;
+				if (u > t && u < 1 - t && v < 1 - tv)
+					//Open at the top
+					continue;
+				final int i = (y * width + x) * 3;
+				//TYPE_3BYTE_BGR, so green is in the middle
+				data[i] = (byte) Math.min(0xFF, (data[i] & 0xFF) + (int) (30 * brightness));
+				data[i + 1] = (byte) Math.min(0xFF, (data[i + 1] & 0xFF) + (int) (200 * brightness));
+				data[i + 2] = (byte) Math.min(0xFF, (data[i + 2] & 0xFF) + (int) (40 * brightness));
+			}
+		}
+		return new PreciseRectangle(x0 / (double) width, y0 / (double) height, (x1 - x0 + 1) / (double) width, (y1 - y0 + 1) / (double) height);
+	}
+
+	/**
+	 * Find where a point is in a quadrilateral, by inverting its bilinear
+	 * mapping with a few Newton steps
+	 * @param qx x coordinates of the corners (top left, top right, bottom
+	 *     right, bottom left)
+	 * @param qy y coordinates of the corners
+	 * @param uv array to write (u, v) to, where (0, 0) is the top left
+	 *     corner, and (1, 1) is the bottom right
+	 * @return whether it converged
+	 */
+	protected static boolean invert(double[] qx, double[] qy, double px, double py, double[] uv) {
+		double u = .5, v = .5;
+		for (int iter = 0; iter < 8; iter++) {
+			//P(u, v) = (1-u)(1-v) p0 + u(1-v) p1 + uv p2 + (1-u)v p3
+			final double x = (1 - u) * (1 - v) * qx[0] + u * (1 - v) * qx[1] + u * v * qx[2] + (1 - u) * v * qx[3];
+			final double y = (1 - u) * (1 - v) * qy[0] + u * (1 - v) * qy[1] + u * v * qy[2] + (1 - u) * v * qy[3];
+			final double dxdu = (1 - v) * (qx[1] - qx[0]) + v * (qx[2] - qx[3]);
+			final double dydu = (1 - v) * (qy[1] - qy[0]) + v * (qy[2] - qy[3]);
+			final double dxdv = (1 - u) * (qx[3] - qx[0]) + u * (qx[2] - qx[1]);
+			final double dydv = (1 - u) * (qy[3] - qy[0]) + u * (qy[2] - qy[1]);
+			final double det = dxdu * dydv - dxdv * dydu;
+			if (det == 0)
+				return false;
+			final double ex = px - x, ey = py - y;
+			final double du = (ex * dydv - ey * dxdv) / det;
+			final double dv = (ey * dxdu - ex * dydu) / det;
+			u += du;
+			v += dv;
+			if (Math.abs(du) < 1e-4 && Math.abs(dv) < 1e-4)
+				break;
+		}
+		uv[0] = u;
+		uv[1] = v;
+		return true;
+	}
+
+	protected void addNoise(byte[] data) {
+		if (noise <= 0)
+			return;
+		final float[] table = this.noiseTable;
+		final float sigma = (float) noise;
+		int j = random.nextInt(table.length);
+		for (int i = 0; i < data.length; i++) {
+			final int value = (data[i] & 0xFF) + Math.round(table[j] * sigma);
+			data[i] = (byte) (value < 0 ? 0 : value > 0xFF ? 0xFF : value);
+			//Step through the table by an odd stride, so that neighbors aren't correlated
+			j = (j + 7919) & (NOISE_TABLE_SIZE - 1);
+		}
+	}
+
+	protected byte[] toJPEG(BufferedImage img) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(jpegQuality / 100f);
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write some pairs as a corpus (see {@link FrameCorpus}), with labels
+	 * @param directory directory to write to (created if needed)
+	 * @param n number of pairs
+	 * @throws IOException if the pairs can't be written
+	 */
+	public void writeCorpus(File directory, int n) throws IOException {
+		if (!(directory.exists() && directory.isDirectory()))
+			directory.mkdirs();
+		try (PrintWriter labels = new PrintWriter(new File(directory, FrameCorpus.LABELS_FILE))) {
+			labels.println("# Synthetic " + width + "x" + height + " pairs");
+			for (int i = 0; i < n; i++) {
+				Scene scene = next();
+				ImageIO.write(scene.getImageOn(), "PNG", new File(directory, "on" + i + ".png"));
+				ImageIO.write(scene.getImageOff(), "PNG", new File(directory, "off" + i + ".png"));
+				StringBuilder line = new StringBuilder().append(i);
+				for (PreciseRectangle target : scene.getTargets())
+					line.append(' ').append(target.getX()).append(',').append(target.getY()).append(',').append(target.getWidth()).append(',').append(target.getHeight());
+				labels.println(line);
+			}
+		}
+	}
+}
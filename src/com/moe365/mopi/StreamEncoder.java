@@ -0,0 +1,274 @@
+package com.moe365.mopi;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.moe365.mopi.capture.CapturedFrame;
+
+/**
+ * Stage between the camera and the {@link MJPEGServer}, deciding which
+ * frames get streamed, and encoding them if needed.
+ * <p>
+ * Frames are only streamed while a client is watching the MJPEG stream, and
+ * only if they match the {@linkplain FrameSelection selection} (by default,
+ * frames taken with the LED off). If the camera already delivers JPEG frames,
+ * they are passed straight to the server. If it delivers raw frames, the
+ * frame is copied into a reusable image, and encoded on the encoder thread,
+ * so that encoding never blocks capture. When nobody is watching, no frames
+ * are copied or encoded at all.
+ * </p>
+ */
+public class StreamEncoder implements Runnable {
+	/**
+	 * Which frames to stream
+	 */
+	public enum FrameSelection {
+		/**
+		 * Stream frames taken with the LED off
+		 */
+		LED_OFF,
+		/**
+		 * Stream frames taken with the LED on
+		 */
+		LED_ON,
+		/**
+		 * Stream all frames
+		 */
+		ALL;
+
+		/**
+		 * @return whether a frame taken with the given LED state should be streamed
+		 */
+		public boolean test(boolean flash) {
+			return this == ALL || (this == LED_ON) == flash;
+		}
+	}
+
+	/**
+	 * Server to send frames to
+	 */
+	protected final MJPEGServer server;
+	/**
+	 * Whether frames need to be encoded. If false, frames are assumed to
+	 * already be JPEGs.
+	 */
+	protected final boolean encode;
+	/**
+	 * Which frames to stream
+	 */
+	protected volatile FrameSelection selection = FrameSelection.LED_OFF;
+	/**
+	 * JPEG quality (0-100) to encode with
+	 */
+	protected volatile int quality;
+	/**
+	 * Copy of the most recent frame to be encoded. Reused for every frame.
+	 */
+	protected BufferedImage pending;
+	/**
+	 * Whether a thread has locked {@link #pending}.
+	 */
+	protected final AtomicBoolean isPendingLocked = new AtomicBoolean(false);
+	/**
+	 * Whether {@link #pending} has been updated since it was last encoded.
+	 */
+	protected final AtomicBoolean isPendingAvailable = new AtomicBoolean(false);
+	/**
+	 * Number of frames encoded
+	 */
+	protected final AtomicLong encodedCount = new AtomicLong(0);
+	/**
+	 * Number of frames skipped, because nobody was watching or they weren't
+	 * selected
+	 */
+	protected final AtomicLong skippedCount = new AtomicLong(0);
+	/**
+	 * Writer to encode frames with. Only touched from the encoder thread.
+	 */
+	protected ImageWriter writer;
+	/**
+	 * Buffer that frames are encoded into. Only touched from the encoder thread.
+	 */
+	protected final ExposedByteArrayOutputStream output = new ExposedByteArrayOutputStream(1024 * 100);
+	/**
+	 * The thread that frames are encoded on. Null if frames don't need to be
+	 * encoded.
+	 */
+	protected final Thread thread;
+
+	/**
+	 * Create a stream encoder
+	 * @param server server to stream frames to
+	 * @param encode whether frames need to be encoded (false if the camera delivers JPEGs)
+	 * @param quality JPEG quality to encode with (0-100)
+	 */
+	public StreamEncoder(MJPEGServer server, boolean encode, int quality) {
+		this.server = server;
+		this.encode = encode;
+		this.quality = quality;
+		if (encode) {
+			this.thread = new Thread(this);
+			this.thread.setName("EncoderThread-" + thread.getId());
+			this.thread.setDaemon(true);
+		} else {
+			this.thread = null;
+		}
+	}
+
+	/**
+	 * Start the encoder thread, if there is one
+	 * @return self
+	 */
+	public StreamEncoder start() {
+		if (thread != null)
+			thread.start();
+		return this;
+	}
+
+	/**
+	 * Set which frames to stream
+	 * @param selection which frames to stream
+	 */
+	public void setSelection(FrameSelection selection) {
+		System.out.println("Streaming frames: " + selection);
+		this.selection = selection;
+	}
+
+	public FrameSelection getSelection() {
+		return this.selection;
+	}
+
+	/**
+	 * Set the quality to encode frames at. Has no effect if frames are
+	 * passed through.
+	 * @param quality quality (0-100)
+	 */
+	public void setQuality(int quality) {
+		this.quality = quality;
+	}
+
+	/**
+	 * @return whether frames from the camera are encoded by this stage
+	 */
+	public boolean isEncoding() {
+		return this.encode;
+	}
+
+	/**
+	 * Offer a frame to be streamed. The frame is not recycled, and may be
+	 * recycled as soon as this method returns.
+	 * @param frame frame that was captured
+	 * @param flash whether the LED was on when the frame was captured
+	 * @return whether the frame will be streamed
+	 */
+	public boolean offerFrame(CapturedFrame frame, boolean flash) {
+		if (!(server.hasStreamClients() && selection.test(flash))) {
+			skippedCount.incrementAndGet();
+			return false;
+		}
+		if (!encode) {
+			server.offerFrame(frame);
+			return true;
+		}
+		if (isPendingAvailable.get() || !isPendingLocked.compareAndSet(false, true)) {
+			//The encoder hasn't caught up yet
+			skippedCount.incrementAndGet();
+			return false;
+		}
+		try {
+			BufferedImage img = frame.getBufferedImage();
+			if (pending == null || pending.getWidth() != img.getWidth() || pending.getHeight() != img.getHeight() || !pending.getColorModel().equals(img.getColorModel()))
+				pending = new BufferedImage(img.getColorModel(), img.getRaster().createCompatibleWritableRaster(), img.isAlphaPremultiplied(), null);
+			img.copyData(pending.getRaster());
+			isPendingAvailable.set(true);
+		} finally {
+			isPendingLocked.set(false);
+		}
+		LockSupport.unpark(thread);
+		return true;
+	}
+
+	@Override
+	public void run() {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext()) {
+			System.err.println("No JPEG encoder available");
+			return;
+		}
+		this.writer = writers.next();
+		final ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		try {
+			while (!Thread.interrupted()) {
+				if (!(isPendingAvailable.get() && isPendingLocked.compareAndSet(false, true))) {
+					LockSupport.park(this);
+					continue;
+				}
+				try {
+					param.setCompressionQuality(quality / 100f);
+					output.reset();
+					try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(output)) {
+						writer.setOutput(out);
+						writer.write(null, new IIOImage(pending, null, null), param);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				} finally {
+					isPendingAvailable.set(false);
+					isPendingLocked.set(false);
+				}
+				server.offerJPEG(output.getBuffer(), output.size());
+				encodedCount.incrementAndGet();
+			}
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Stop the encoder thread
+	 */
+	public void stop() {
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * @return the number of frames encoded
+	 */
+	public long getEncodedCount() {
+		return encodedCount.get();
+	}
+
+	/**
+	 * @return the number of frames that weren't streamed
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/**
+	 * ByteArrayOutputStream that lets us read its buffer without copying it.
+	 */
+	protected static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		public ExposedByteArrayOutputStream(int size) {
+			super(size);
+		}
+
+		public byte[] getBuffer() {
+			return buf;
+		}
+	}
+}
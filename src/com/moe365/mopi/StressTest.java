@@ -0,0 +1,198 @@
+package com.moe365.mopi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.capture.FrameSource;
+import com.moe365.mopi.capture.SyntheticFrameSource;
+import com.moe365.mopi.processing.AbstractImageProcessor;
+
+/**
+ * Plays synthetic frame pairs (see {@link SyntheticFrameSource}) to a
+ * running processor at the rate that a camera would, to find out whether the
+ * processor keeps up.
+ * <p>
+ * Frames are offered to the processor the same way that the capture loop
+ * offers them (see {@link AbstractImageProcessor#offerFrame(CapturedFrame, boolean)}),
+ * so frames that arrive while the processor is busy are dropped, and a
+ * processor that can't keep up drops pairs. The test reports how many pairs
+ * were dropped, how long each took from being complete to having its
+ * targets, how old its frames were by then, and how well the targets found
+ * match the ones drawn. It also estimates the fastest frame rate that the
+ * processor could keep up with (from its p99 processing time, which has to
+ * fit between frames), so the breaking point can be found without trying
+ * every rate.
+ * </p>
+ * <p>
+ * Results are matched to the pair whose frame with the LED on was offered
+ * last, which assumes that the processor works on one pair at a time.
+ * </p>
+ */
+public class StressTest {
+	/**
+	 * Most pairs that may be dropped, as a fraction of the pairs offered, for
+	 * the processor to count as keeping up
+	 */
+	public static final double MAX_DROPPED = .01;
+	/**
+	 * How long to run the processor before measuring, so that the JIT has
+	 * settled, in nanoseconds
+	 */
+	protected static final long WARMUP_TIME = TimeUnit.SECONDS.toNanos(2);
+
+	protected final SyntheticFrameSource source;
+	protected final List<SceneGenerator.Scene> scenes;
+	protected final double fps;
+	/**
+	 * How long to run for, in nanoseconds
+	 */
+	protected final long duration;
+
+	/**
+	 * Create a stress test
+	 * @param source source to play pairs from. It must not be started.
+	 * @param fps frame rate of the simulated camera
+	 * @param duration how long to run for
+	 * @param unit unit of duration
+	 * @throws IOException if the source can't be set to the frame rate
+	 */
+	public StressTest(SyntheticFrameSource source, double fps, long duration, TimeUnit unit) throws IOException {
+		if (source.getScenes().isEmpty())
+			throw new IllegalArgumentException("No scenes");
+		if (!(fps > 0))
+			throw new IllegalArgumentException("Invalid frame rate (expect: fps > 0; fps = " + fps + ")");
+		this.source = source;
+		this.scenes = source.getScenes();
+		this.fps = fps;
+		this.duration = unit.toNanos(duration);
+		source.setFrameInterval(1000, (int) Math.round(fps * 1000));
+	}
+
+	/**
+	 * Run the test, and print a report. The processor is started for the
+	 * test, and stopped afterwards.
+	 * @param processor processor to test. It must not be running.
+	 * @return whether the processor kept up
+	 * @throws IOException if the source can't be started
+	 */
+	public boolean run(AbstractImageProcessor<?> processor) throws IOException {
+		final String name = processor.getClass().getSimpleName();
+		final long pairInterval = (long) (2e9 / fps);
+		final int maxPairs = (int) (duration / pairInterval) + 1;
+		final long[] processTimes = new long[maxPairs];
+		final long[] ages = new long[maxPairs];
+		final DetectionScore score = new DetectionScore();
+		//When measuring starts and ends (nanoTime)
+		final AtomicLong start = new AtomicLong(Long.MAX_VALUE), end = new AtomicLong(Long.MAX_VALUE);
+		//Written by the source's thread
+		final AtomicLong offered = new AtomicLong(0);
+		final AtomicLong lastPair = new AtomicLong(-1);
+		//When the last pair that the processor took was complete, and when its frames were captured (nanoTime)
+		final AtomicLong completeAt = new AtomicLong(), capturedOn = new AtomicLong(), capturedOff = new AtomicLong();
+		//Only touched by the processor thread while running, and read once it's stopped
+		final int[] processed = {0};
+		final long[] busy = {0};
+		long sourceDropped = 0;
+
+		processor.setTargetListener(found -> {
+			final long now = System.nanoTime();
+			final long pair = lastPair.get();
+			final long complete = completeAt.get();
+			//Pairs count if they were offered while measuring, even if they're finished after
+			if (pair < 0 || complete < start.get() || complete >= end.get() || processed[0] >= maxPairs)
+				return;
+			final long time = now - complete;
+			processTimes[processed[0]] = time;
+			ages[processed[0]] = now - Math.min(capturedOn.get(), capturedOff.get());
+			busy[0] += time;
+			processed[0]++;
+			score.add(scenes.get((int) (pair % scenes.size())).getTargets(), found);
+		});
+		processor.start();
+		try {
+			source.start(new FrameSource.Listener() {
+				//The source alternates, starting with the LED off
+				long delivered = 0;
+				@Override
+				public void nextFrame(CapturedFrame frame) {
+					final long pair = delivered / 2;
+					final boolean flash = (delivered++ & 1) == 1;
+					final long captured = TimeUnit.MICROSECONDS.toNanos(frame.getCaptureTime());
+					final long now = System.nanoTime();
+					if (flash && now >= start.get() && now < end.get())
+						offered.incrementAndGet();
+					//The frame can't be touched once it's offered
+					if (!processor.offerFrame(frame, flash))
+						//The processor was busy
+						return;
+					if (flash) {
+						capturedOn.set(captured);
+						lastPair.set(pair);
+					} else {
+						capturedOff.set(captured);
+					}
+					completeAt.set(now);
+				}
+
+				@Override
+				public void exceptionReceived(Exception e) {
+					e.printStackTrace();
+				}
+			});
+			//The JIT settles while the processor runs on the first pairs
+			sleep(WARMUP_TIME);
+			System.out.format("Stressing %s at %.1f fps (a pair every %.2fms) for %ds%n", name, fps, pairInterval / 1e6, TimeUnit.NANOSECONDS.toSeconds(duration));
+			sourceDropped = source.getDroppedCount();
+			final long measureStart = System.nanoTime();
+			end.set(measureStart + duration);
+			start.set(measureStart);
+			sleep(duration);
+			//Give the last pair offered a chance to finish
+			sleep(pairInterval);
+		} finally {
+			source.stop();
+			processor.stop();
+			processor.setTargetListener(null);
+		}
+
+		sourceDropped = source.getDroppedCount() - sourceDropped;
+		final int count = processed[0];
+		final long[] sortedTimes = Arrays.copyOf(processTimes, count);
+		final long[] sortedAges = Arrays.copyOf(ages, count);
+		Arrays.sort(sortedTimes);
+		Arrays.sort(sortedAges);
+		final long pairs = offered.get();
+		final long dropped = Math.max(pairs - count, 0);
+		final double p99 = ParameterSweep.percentile(sortedTimes, 99);
+		//The next pair's first frame arrives a frame after a pair is complete, and is dropped if the processor is still busy
+		final double maxFps = p99 > 0 ? 1e9 / p99 : Double.POSITIVE_INFINITY;
+		final boolean keptUp = pairs > 0 && dropped <= pairs * MAX_DROPPED;
+		System.out.format("%s: %d pairs offered, %d processed, %d dropped (%.1f%%); busy %.0f%% of the time; %d frames dropped by the source%n", name, pairs, count, dropped, pairs == 0 ? 0 : dropped * 100.0 / pairs, busy[0] * 100.0 / duration, sourceDropped);
+		System.out.format("%s: process time p50 %.2fms, p99 %.2fms, max %.2fms; age of results p50 %.2fms, p99 %.2fms%n", name,
+				ParameterSweep.percentile(sortedTimes, 50) / 1e6, p99 / 1e6, count == 0 ? 0 : sortedTimes[count - 1] / 1e6,
+				ParameterSweep.percentile(sortedAges, 50) / 1e6, ParameterSweep.percentile(sortedAges, 99) / 1e6);
+		System.out.println(name + ": " + score);
+		System.out.format("%s: %s at %.1f fps; could keep up with about %.1f fps%n", name, keptUp ? "kept up" : "FELL BEHIND", fps, maxFps);
+		return keptUp;
+	}
+
+	/**
+	 * Sleep, ignoring interrupts
+	 * @param nanos how long to sleep for, in nanoseconds
+	 */
+	protected static void sleep(long nanos) {
+		final long end = System.nanoTime() + nanos;
+		long left;
+		while ((left = end - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(left);
+			} catch (InterruptedException e) {
+				//Finish the test anyways
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.moe365.mopi;
+
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.capture.FramePool;
+import com.moe365.mopi.geom.Polygon;
+import com.moe365.mopi.geom.PreciseRectangle;
+import com.moe365.mopi.processing.AbstractImageProcessor;
+import com.moe365.mopi.processing.JPEGPreviewDecoder;
+
+/**
+ * Warms up the JIT before capture starts, so that the first frames of a
+ * match aren't processed by the interpreter.
+ * <p>
+ * Generates a few synthetic frame pairs (see {@link SceneGenerator}),
+ * encoded as JPEGs, like camera frames. The pairs are pushed through the
+ * processor in pooled frames (so decoding them is warmed up too, like
+ * frames from the camera would be), and the targets found are
+ * encoded for the SSE stream and the Rio (with the client in dry run mode,
+ * so nothing is sent), over and over, until the JIT stops compiling or the
+ * time budget runs out.
+ * </p>
+ */
+public class Warmup {
+	/**
+	 * Number of synthetic pairs to cycle through
+	 */
+	public static final int PAIRS = 4;
+	/**
+	 * Number of pairs to process between checks of whether the JIT has
+	 * settled
+	 */
+	public static final int SETTLE_WINDOW = 20;
+	/**
+	 * The JIT counts as settled when it has spent less than this long
+	 * compiling over a window, in milliseconds
+	 */
+	public static final long SETTLE_COMPILE_TIME = 2;
+	protected final int width, height;
+	protected final byte[][] jpegsOn = new byte[PAIRS][], jpegsOff = new byte[PAIRS][];
+
+	public Warmup(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Generate the synthetic pairs (see {@link SceneGenerator}). The first
+	 * pair has no targets, and the rest have one to three.
+	 * @return self
+	 * @throws IOException if the pairs can't be round-tripped through JPEG
+	 */
+	public Warmup generate() throws IOException {
+		SceneGenerator generator = new SceneGenerator(width, height, 365);
+		for (int i = 0; i < PAIRS; i++) {
+			SceneGenerator.Scene scene = generator.setTargetCount(i, i).next();
+			jpegsOn[i] = scene.getJPEGOn();
+			jpegsOff[i] = scene.getJPEGOff();
+		}
+		return this;
+	}
+
+	/**
+	 * Run the warm-up
+	 * @param processor processor to warm up (may be null)
+	 * @param server server whose SSE encoders to warm up (may be null)
+	 * @param client client whose packet builders to warm up (may be null).
+	 *     It is put in dry run mode while warming up.
+	 * @param budget most time to spend, in milliseconds
+	 * @return the number of pairs processed
+	 */
+	public int run(AbstractImageProcessor<?> processor, MJPEGServer server, RoboRioClient client, long budget) {
+		final CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+		final boolean canMonitor = jit != null && jit.isCompilationTimeMonitoringSupported();
+		final JPEGPreviewDecoder previewDecoder = new JPEGPreviewDecoder();
+		final FramePool frames = new FramePool(2);
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(budget);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+		long windowCompileTime = canMonitor ? jit.getTotalCompilationTime() : 0;
+		long firstTime = -1, lastTime = 0;
+		int pairs = 0;
+		System.out.println("Warming up (budget " + budget + "ms)");
+		if (client != null)
+			client.setDryRun(true);
+		try {
+			while (System.nanoTime() < deadline) {
+				final int i = pairs % PAIRS;
+				final long pairStart = System.nanoTime();
+				previewDecoder.decode(jpegsOn[i], jpegsOn[i].length);
+				previewDecoder.decode(jpegsOff[i], jpegsOff[i].length);
+				List<PreciseRectangle> targets = null;
+				if (processor != null) {
+					final long captureTime = TimeUnit.NANOSECONDS.toMicros(pairStart);
+					final CapturedFrame frameOn = frames.take().set(jpegsOn[i], jpegsOn[i].length, null, captureTime, 2 * pairs + 1);
+					final CapturedFrame frameOff = frames.take().set(jpegsOff[i], jpegsOff[i].length, null, captureTime, 2 * pairs);
+					try {
+						targets = processor.detect(frameOn, frameOff);
+					} finally {
+						frameOn.recycle();
+						frameOff.recycle();
+					}
+				}
+				if (targets == null)
+					targets = new ArrayList<>();
+				if (server != null) {
+					MJPEGServer.encodeRectangles(targets);
+					MJPEGServer.encodePolygons(toPolygons(targets));
+				}
+				if (client != null) {
+					try {
+						if (targets.isEmpty())
+							client.writeNoneFound();
+						else if (targets.size() == 1)
+							client.writeOneFound(targets.get(0));
+						else
+							client.writeTwoFound(targets.get(0), targets.get(1));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				lastTime = System.nanoTime() - pairStart;
+				if (firstTime < 0)
+					firstTime = lastTime;
+				pairs++;
+
+				final long now = System.nanoTime();
+				if (now >= nextReport) {
+					System.out.println("Warm-up: " + pairs + " pairs, last " + TimeUnit.NANOSECONDS.toMillis(lastTime) + "ms (first " + TimeUnit.NANOSECONDS.toMillis(firstTime) + "ms)"
+							+ (canMonitor ? ", JIT " + jit.getTotalCompilationTime() + "ms" : ""));
+					nextReport = now + TimeUnit.SECONDS.toNanos(1);
+				}
+				if (canMonitor && pairs % SETTLE_WINDOW == 0) {
+					final long compileTime = jit.getTotalCompilationTime();
+					if (compileTime - windowCompileTime < SETTLE_COMPILE_TIME) {
+						System.out.println("JIT settled");
+						break;
+					}
+					windowCompileTime = compileTime;
+				}
+			}
+		} finally {
+			if (client != null)
+				client.setDryRun(false);
+		}
+		System.out.println("Warm-up done: " + pairs + " pairs in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, last " + TimeUnit.NANOSECONDS.toMillis(lastTime) + "ms (first " + TimeUnit.NANOSECONDS.toMillis(firstTime) + "ms)");
+		return pairs;
+	}
+
+	protected static List<Polygon> toPolygons(List<PreciseRectangle> rectangles) {
+		List<Polygon> polygons = new ArrayList<>(rectangles.size());
+		for (PreciseRectangle rectangle : rectangles) {
+			Polygon polygon = new Polygon(rectangle.getX(), rectangle.getY());
+			polygon.addPoint(rectangle.getX() + rectangle.getWidth(), rectangle.getY());
+			polygon.addPoint(rectangle.getX() + rectangle.getWidth(), rectangle.getY() + rectangle.getHeight());
+			polygon.addPoint(rectangle.getX(), rectangle.getY() + rectangle.getHeight());
+			polygons.add(polygon);
+		}
+		return polygons;
+	}
+}
@@ -0,0 +1,50 @@
+package com.moe365.mopi.capture;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A frame from a {@link FrameSource}. Frames are pooled, so once
+ * {@link #recycle()} is called, the frame (and its buffers) may be reused
+ * for a later frame, and must not be touched again.
+ */
+public interface CapturedFrame {
+	/**
+	 * Get the bytes of the frame, as captured (JPEG, for JPEG sources). The
+	 * array may be bigger than the frame.
+	 * @return the bytes of the frame
+	 * @see #getFrameLength()
+	 */
+	byte[] getBytes();
+
+	/**
+	 * @return the number of bytes in {@link #getBytes()} that are part of the
+	 *     frame
+	 */
+	int getFrameLength();
+
+	/**
+	 * Get the frame as an image, decoding it if needed. The image belongs to
+	 * the frame, so it must not be modified, or used after the frame is
+	 * recycled.
+	 * @return the image
+	 */
+	BufferedImage getBufferedImage();
+
+	/**
+	 * Get when the frame was captured, in microseconds. The clock depends on
+	 * the source (see {@link com.moe365.mopi.LedTimeline#getCaptureTime(CapturedFrame)}).
+	 * @return the capture time
+	 */
+	long getCaptureTime();
+
+	/**
+	 * @return the number of the frame, counting from when capture started
+	 */
+	long getSequenceNumber();
+
+	/**
+	 * Give the frame back to its source, to be reused. Calling this more than
+	 * once does nothing.
+	 */
+	void recycle();
+}
@@ -0,0 +1,228 @@
+package com.moe365.mopi.capture;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A bounded pool of frames, for sources that fill their own buffers. Like
+ * the buffers that a camera driver has, there are only so many frames; if
+ * they're all in use, the source has to drop frames until some are
+ * recycled.
+ * <p>
+ * Only the slots (with their buffers) are pooled; each frame handed out is
+ * a new handle on a slot, which is what keeps a stale recycle safe.
+ * </p>
+ */
+public class FramePool {
+	/**
+	 * The part of a pooled frame that is reused: its buffer, which is kept,
+	 * and grown as needed, so a pool that has warmed up doesn't allocate
+	 * buffers.
+	 */
+	protected static class Slot {
+		protected byte[] buffer = new byte[0];
+		protected int length;
+		/**
+		 * The decoded image. Null until decoded, unless the source already had
+		 * it.
+		 */
+		protected volatile BufferedImage image;
+		protected long captureTime;
+		protected long sequenceNumber;
+		/**
+		 * Generation of the frame that holds this slot, or 0 if it's free
+		 */
+		protected final AtomicLong owner = new AtomicLong(0);
+	}
+
+	/**
+	 * A frame that is returned to its pool when recycled. Each frame taken
+	 * from the pool is a new (small) object, with its own generation, around
+	 * a reused {@link Slot}, so that a late second recycle from someone still
+	 * holding an old frame can't return the slot while someone else has it.
+	 */
+	public static class PooledFrame implements CapturedFrame {
+		protected final FramePool pool;
+		protected final Slot slot;
+		/**
+		 * Which time the slot was taken; only the frame with the slot's
+		 * current generation can recycle it
+		 */
+		protected final long generation;
+
+		protected PooledFrame(FramePool pool, Slot slot, long generation) {
+			this.pool = pool;
+			this.slot = slot;
+			this.generation = generation;
+		}
+
+		/**
+		 * Fill the frame
+		 * @param data bytes of the frame (copied into the frame's buffer)
+		 * @param length number of bytes in data
+		 * @param image the frame, already decoded, or null to decode it from
+		 *     data when needed
+		 * @param captureTime when the frame was captured, in microseconds
+		 * @param sequenceNumber number of the frame
+		 * @return self
+		 */
+		public PooledFrame set(byte[] data, int length, BufferedImage image, long captureTime, long sequenceNumber) {
+			final Slot slot = this.slot;
+			if (slot.buffer.length < length)
+				slot.buffer = new byte[length];
+			System.arraycopy(data, 0, slot.buffer, 0, length);
+			slot.length = length;
+			slot.image = image;
+			slot.captureTime = captureTime;
+			slot.sequenceNumber = sequenceNumber;
+			return this;
+		}
+
+		/**
+		 * Fill the frame from a buffer (e.g., a memory-mapped recording)
+		 * @param data buffer to read the frame from, at its position. Its
+		 *     position is moved past the frame.
+		 * @param length number of bytes to read
+		 * @param captureTime when the frame was captured, in microseconds
+		 * @param sequenceNumber number of the frame
+		 * @return self
+		 */
+		public PooledFrame set(ByteBuffer data, int length, long captureTime, long sequenceNumber) {
+			final Slot slot = this.slot;
+			if (slot.buffer.length < length)
+				slot.buffer = new byte[length];
+			data.get(slot.buffer, 0, length);
+			slot.length = length;
+			slot.image = null;
+			slot.captureTime = captureTime;
+			slot.sequenceNumber = sequenceNumber;
+			return this;
+		}
+
+		@Override
+		public byte[] getBytes() {
+			return slot.buffer;
+		}
+
+		@Override
+		public int getFrameLength() {
+			return slot.length;
+		}
+
+		@Override
+		public BufferedImage getBufferedImage() {
+			final Slot slot = this.slot;
+			BufferedImage image = slot.image;
+			if (image != null)
+				return image;
+			try {
+				image = ImageIO.read(new ByteArrayInputStream(slot.buffer, 0, slot.length));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to decode frame " + slot.sequenceNumber, e);
+			}
+			if (image == null)
+				throw new IllegalStateException("Unable to decode frame " + slot.sequenceNumber + " (unknown format)");
+			return slot.image = image;
+		}
+
+		@Override
+		public long getCaptureTime() {
+			return slot.captureTime;
+		}
+
+		@Override
+		public long getSequenceNumber() {
+			return slot.sequenceNumber;
+		}
+
+		@Override
+		public void recycle() {
+			final Slot slot = this.slot;
+			if (!slot.owner.compareAndSet(generation, 0))
+				//Already recycled (maybe taken again since, by someone else)
+				return;
+			//Don't hold on to images that might be big
+			slot.image = null;
+			pool.free.offer(slot);
+		}
+	}
+
+	/**
+	 * Slots that aren't in use. Can hold every slot, so returning one never
+	 * fails (or allocates).
+	 */
+	protected final ArrayBlockingQueue<Slot> free;
+	/**
+	 * Most frames that the pool will have
+	 */
+	protected final int capacity;
+	/**
+	 * Number of frames that the pool has made
+	 */
+	protected final AtomicInteger allocated = new AtomicInteger(0);
+	/**
+	 * Number of frames taken, which is used as their generation
+	 */
+	protected final AtomicLong generations = new AtomicLong(0);
+	/**
+	 * Number of times that a frame was wanted, but all were in use
+	 */
+	protected final AtomicLong exhausted = new AtomicLong(0);
+
+	/**
+	 * Create a pool
+	 * @param capacity most frames that the pool will have
+	 */
+	public FramePool(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity (expect: capacity >= 1; capacity = " + capacity + ")");
+		this.capacity = capacity;
+		this.free = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * Take a free frame from the pool
+	 * @return the frame, or null if every frame is in use
+	 */
+	public PooledFrame take() {
+		Slot slot = free.poll();
+		if (slot == null) {
+			//Make a new one, if there's room
+			int n;
+			do {
+				n = allocated.get();
+				if (n >= capacity) {
+					exhausted.incrementAndGet();
+					return null;
+				}
+			} while (!allocated.compareAndSet(n, n + 1));
+			slot = new Slot();
+		}
+		final long generation = generations.incrementAndGet();
+		slot.owner.set(generation);
+		return new PooledFrame(this, slot, generation);
+	}
+
+	/**
+	 * @return the number of frames that the pool has made
+	 */
+	public int getAllocatedCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return the number of times that a frame was wanted, but all were in
+	 *     use
+	 */
+	public long getExhaustedCount() {
+		return exhausted.get();
+	}
+}
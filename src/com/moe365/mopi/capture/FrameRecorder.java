@@ -0,0 +1,273 @@
+package com.moe365.mopi.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.moe365.mopi.LedTimeline;
+
+/**
+ * Records frames, as they were delivered (so JPEGs aren't re-encoded), along
+ * with what the LED was doing and when they were captured, so that a match
+ * can be replayed offline (see {@link FrameRecording}).
+ * <p>
+ * Frames are appended to segment files, which are memory-mapped, so
+ * recording a frame is a copy into the page cache; the kernel writes it out
+ * in the background. Nothing is allocated per frame. When a segment fills up,
+ * recording moves on to the next one, which is mapped ahead of time on a
+ * background thread, so capture doesn't wait for it.
+ * </p>
+ * <p>
+ * Each segment (<code>segment-&lt;n&gt;.mopirec</code>) has a header, an
+ * index with the offset of each frame, and then the frames. The number of
+ * frames in the header is only updated once a frame is completely written,
+ * so a segment that was cut off (e.g., by the robot losing power) can still
+ * be read up to its last complete frame.
+ * </p>
+ * <pre>
+ * header:  long magic, int version, int width, int height,
+ *          int index capacity, int frame count, int reserved
+ * index:   long offset (of each frame)
+ * frame:   long capture time (ns), long sequence number, byte exposure,
+ *          3 bytes padding, int length, then the bytes of the frame
+ * </pre>
+ */
+public class FrameRecorder implements AutoCloseable {
+	/**
+	 * Start of every segment file
+	 */
+	public static final long MAGIC = 0x4D4F5049_52454331L;//"MOPIREC1"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	/**
+	 * Position of the frame count in the header
+	 */
+	public static final int COUNT_POSITION = 24;
+	public static final int FRAME_HEADER_SIZE = 24;
+	/**
+	 * Default size of each segment, in bytes
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+	/**
+	 * Average frame size that the index is sized for. If frames are smaller
+	 * than this, the index fills up before the segment does.
+	 */
+	protected static final int INDEX_FRAME_SIZE = 8 * 1024;
+
+	/**
+	 * An open segment file
+	 */
+	protected static class Segment {
+		protected final File file;
+		protected final RandomAccessFile raf;
+		protected final FileChannel channel;
+		protected final MappedByteBuffer buffer;
+		protected final int indexCapacity;
+		protected int count = 0;
+
+		protected Segment(File file, long size, int width, int height) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.indexCapacity = (int) Math.max(64, size / INDEX_FRAME_SIZE);
+			buffer.putLong(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(width);
+			buffer.putInt(height);
+			buffer.putInt(indexCapacity);
+			buffer.putInt(0);
+			buffer.putInt(0);
+			buffer.position(HEADER_SIZE + indexCapacity * 8);
+		}
+
+		/**
+		 * @return whether a frame of a given length fits
+		 */
+		protected boolean fits(int length) {
+			return count < indexCapacity && buffer.remaining() >= FRAME_HEADER_SIZE + length;
+		}
+
+		protected void append(byte[] data, int length, long captureTime, long sequence, byte exposure) {
+			final int offset = buffer.position();
+			buffer.putLong(captureTime);
+			buffer.putLong(sequence);
+			buffer.put(exposure);
+			buffer.put((byte) 0);
+			buffer.put((byte) 0);
+			buffer.put((byte) 0);
+			buffer.putInt(length);
+			buffer.put(data, 0, length);
+			buffer.putLong(HEADER_SIZE + count * 8, offset);
+			//Only count the frame once it's all there
+			buffer.putInt(COUNT_POSITION, ++count);
+		}
+
+		/**
+		 * Flush the segment, and cut the file down to what was used
+		 */
+		protected void close() throws IOException {
+			final long used = buffer.position();
+			buffer.force();
+			channel.truncate(used);
+			channel.close();
+			raf.close();
+		}
+	}
+
+	protected final File directory;
+	protected final long segmentSize;
+	protected final int width, height;
+	/**
+	 * Maps the next segment ahead of time
+	 */
+	protected final ExecutorService preparer;
+	protected Segment segment;
+	protected Future<Segment> nextSegment;
+	protected int segmentNumber = 0;
+	protected final AtomicLong recorded = new AtomicLong(0);
+	/**
+	 * Number of frames not recorded, because they didn't fit in an empty
+	 * segment, or a segment couldn't be opened
+	 */
+	protected final AtomicLong failed = new AtomicLong(0);
+	protected volatile boolean closed = false;
+
+	/**
+	 * Start recording
+	 * @param directory directory to write segments to (created if needed).
+	 *     A recording that is already there is deleted.
+	 * @param segmentSize size of each segment, in bytes
+	 * @param width width of the frames
+	 * @param height height of the frames
+	 * @throws IOException if the first segment can't be created
+	 */
+	public FrameRecorder(File directory, long segmentSize, int width, int height) throws IOException {
+		if (segmentSize < 1024 * 1024 || segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid segment size (expect: 1MB <= size < 2GB; size = " + segmentSize + ")");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		final File[] old = directory.listFiles((dir, name) -> name.endsWith(FrameRecording.SEGMENT_SUFFIX));
+		if (old != null)
+			for (File file : old)
+				if (!file.delete())
+					throw new IOException("Unable to delete " + file);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.width = width;
+		this.height = height;
+		this.preparer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "RecorderThread");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.segment = openSegment(segmentNumber++);
+		this.nextSegment = prepare(segmentNumber++);
+		System.out.println("Recording frames to " + directory + " (" + (segmentSize >> 20) + "MB segments)");
+	}
+
+	protected Segment openSegment(int number) throws IOException {
+		return new Segment(new File(directory, String.format("segment-%05d%s", number, FrameRecording.SEGMENT_SUFFIX)), segmentSize, width, height);
+	}
+
+	protected Future<Segment> prepare(int number) {
+		return preparer.submit(() -> openSegment(number));
+	}
+
+	/**
+	 * Record a frame. Must be called before the frame is recycled.
+	 * @param frame frame to record
+	 * @param exposure what the LED was doing when it was captured
+	 * @param captureTime when it was captured, on the {@link System#nanoTime()} clock
+	 * @return whether the frame was recorded
+	 */
+	public synchronized boolean record(CapturedFrame frame, LedTimeline.Exposure exposure, long captureTime) {
+		//Only ever contended by close()
+		if (closed)
+			return false;
+		final int length = frame.getFrameLength();
+		if (!segment.fits(length)) {
+			if (segment.count == 0 || !nextSegment()) {
+				failed.incrementAndGet();
+				return false;
+			}
+		}
+		segment.append(frame.getBytes(), length, captureTime, frame.getSequenceNumber(), (byte) exposure.ordinal());
+		recorded.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Close the current segment, and move on to the one that was prepared
+	 * @return whether there is a segment to record to
+	 */
+	protected boolean nextSegment() {
+		try {
+			segment.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		segment = null;
+		try {
+			segment = nextSegment.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			closed = true;
+			return false;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			closed = true;
+			return false;
+		}
+		nextSegment = prepare(segmentNumber++);
+		return true;
+	}
+
+	/**
+	 * @return the number of frames recorded
+	 */
+	public long getRecordedCount() {
+		return recorded.get();
+	}
+
+	/**
+	 * @return the number of frames that couldn't be recorded
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Stop recording, and flush everything to disk
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (preparer.isShutdown())
+			return;
+		closed = true;
+		try {
+			if (segment != null)
+				segment.close();
+			segment = null;
+			//The prepared segment was never used
+			nextSegment.cancel(false);
+			try {
+				Segment unused = nextSegment.get();
+				unused.close();
+				unused.file.delete();
+			} catch (Exception e) {
+				//Never opened
+			}
+		} finally {
+			preparer.shutdown();
+		}
+		System.out.println("Recorded " + recorded.get() + " frames (" + failed.get() + " not recorded) in " + directory);
+	}
+}
@@ -0,0 +1,203 @@
+package com.moe365.mopi.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.moe365.mopi.LedTimeline;
+
+/**
+ * A recording made by {@link FrameRecorder}, memory-mapped (read-only), so
+ * frames are only read from disk as they're replayed. Frames are numbered
+ * across all segments, in the order that they were recorded.
+ * <p>
+ * Not thread-safe; each thread that reads frames should open its own.
+ * </p>
+ */
+public class FrameRecording {
+	/**
+	 * File name suffix of segment files
+	 */
+	public static final String SEGMENT_SUFFIX = ".mopirec";
+
+	/**
+	 * A mapped segment
+	 */
+	protected static class Segment {
+		protected final File file;
+		protected final MappedByteBuffer buffer;
+		/**
+		 * View of the buffer that frames are read through, so the buffer's
+		 * limit is left alone
+		 */
+		protected final ByteBuffer view;
+		protected final int count;
+		/**
+		 * Number of the first frame in this segment
+		 */
+		protected final int first;
+
+		protected Segment(File file, MappedByteBuffer buffer, int count, int first) {
+			this.file = file;
+			this.buffer = buffer;
+			this.view = buffer.duplicate();
+			this.count = count;
+			this.first = first;
+		}
+	}
+
+	protected final File directory;
+	protected final List<Segment> segments = new ArrayList<>();
+	protected final int width, height;
+	protected final int size;
+
+	/**
+	 * Open a recording
+	 * @param directory directory that the recording was made in
+	 * @throws IOException if a segment can't be read, or isn't a segment
+	 */
+	public FrameRecording(File directory) throws IOException {
+		this.directory = directory;
+		final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files == null || files.length == 0)
+			throw new IOException("No recording in " + directory);
+		Arrays.sort(files);
+		int width = -1, height = -1, size = 0;
+		for (File file : files) {
+			final MappedByteBuffer buffer;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+				//The mapping stays valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (buffer.capacity() < FrameRecorder.HEADER_SIZE || buffer.getLong(0) != FrameRecorder.MAGIC)
+				throw new IOException(file + " isn't a recording segment");
+			if (buffer.getInt(8) != FrameRecorder.VERSION)
+				throw new IOException("Unsupported version " + buffer.getInt(8) + " of " + file);
+			final int w = buffer.getInt(12), h = buffer.getInt(16);
+			if (width < 0) {
+				width = w;
+				height = h;
+			} else if (w != width || h != height) {
+				throw new IOException("Frame size of " + file + " (" + w + "x" + h + ") doesn't match the rest of the recording (" + width + "x" + height + ")");
+			}
+			final int count = buffer.getInt(FrameRecorder.COUNT_POSITION);
+			if (count > 0)
+				segments.add(new Segment(file, buffer, count, size));
+			size += count;
+		}
+		this.width = width;
+		this.height = height;
+		this.size = size;
+	}
+
+	/**
+	 * @return the directory that the recording is in
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the width of the frames
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the frames
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the number of frames in the recording
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the segment that a frame is in
+	 */
+	protected Segment getSegment(int frame) {
+		if (frame < 0 || frame >= size)
+			throw new IndexOutOfBoundsException("Frame " + frame + " (size = " + size + ")");
+		int lo = 0, hi = segments.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (segments.get(mid).first <= frame)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return segments.get(lo);
+	}
+
+	/**
+	 * @return the offset of a frame (its header) in its segment
+	 */
+	protected int getOffset(Segment segment, int frame) {
+		return (int) segment.buffer.getLong(FrameRecorder.HEADER_SIZE + (frame - segment.first) * 8);
+	}
+
+	/**
+	 * @param frame number of the frame
+	 * @return when the frame was captured, on the {@link System#nanoTime()}
+	 *     clock of the recording
+	 */
+	public long getCaptureTime(int frame) {
+		final Segment segment = getSegment(frame);
+		return segment.buffer.getLong(getOffset(segment, frame));
+	}
+
+	/**
+	 * @param frame number of the frame
+	 * @return the sequence number that the frame had when it was recorded
+	 */
+	public long getSequenceNumber(int frame) {
+		final Segment segment = getSegment(frame);
+		return segment.buffer.getLong(getOffset(segment, frame) + 8);
+	}
+
+	/**
+	 * @param frame number of the frame
+	 * @return what the LED was doing when the frame was captured
+	 */
+	public LedTimeline.Exposure getExposure(int frame) {
+		final Segment segment = getSegment(frame);
+		return LedTimeline.Exposure.values()[segment.buffer.get(getOffset(segment, frame) + 16)];
+	}
+
+	/**
+	 * @param frame number of the frame
+	 * @return the length of the frame, in bytes
+	 */
+	public int getFrameLength(int frame) {
+		final Segment segment = getSegment(frame);
+		return segment.buffer.getInt(getOffset(segment, frame) + 20);
+	}
+
+	/**
+	 * Get the bytes of a frame, without copying them
+	 * @param frame number of the frame
+	 * @return a buffer positioned at the start of the frame's bytes. It's only
+	 *     valid until the next call.
+	 */
+	public ByteBuffer getBytes(int frame) {
+		final Segment segment = getSegment(frame);
+		final int offset = getOffset(segment, frame);
+		final int length = segment.buffer.getInt(offset + 20);
+		segment.view.clear();
+		segment.view.position(offset + FrameRecorder.FRAME_HEADER_SIZE);
+		segment.view.limit(offset + FrameRecorder.FRAME_HEADER_SIZE + length);
+		return segment.view;
+	}
+}
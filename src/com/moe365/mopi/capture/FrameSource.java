@@ -0,0 +1,62 @@
+package com.moe365.mopi.capture;
+
+import java.io.IOException;
+
+/**
+ * Something that delivers frames, like a camera. Frames are handed to a
+ * {@link Listener} on the source's capture thread, one at a time, and
+ * belong to the listener until it {@linkplain CapturedFrame#recycle()
+ * recycles} them. A source only has so many frames, so frames that aren't
+ * recycled will eventually stall or starve it.
+ */
+public interface FrameSource {
+	/**
+	 * Receives frames from a source
+	 */
+	public static interface Listener {
+		/**
+		 * Called for every frame captured. The frame must be recycled when
+		 * it's done with.
+		 * @param frame the frame
+		 */
+		void nextFrame(CapturedFrame frame);
+
+		/**
+		 * Called if capture fails. No more frames will be delivered.
+		 * @param e what went wrong
+		 */
+		void exceptionReceived(Exception e);
+	}
+
+	/**
+	 * @return the width of the frames
+	 */
+	int getWidth();
+
+	/**
+	 * @return the height of the frames
+	 */
+	int getHeight();
+
+	/**
+	 * Set how often frames are captured. Sources may round it to an interval
+	 * that they support.
+	 * @param numerator numerator of the interval, in seconds
+	 * @param denominator denominator of the interval, in seconds
+	 * @throws IOException if the interval can't be set
+	 */
+	void setFrameInterval(int numerator, int denominator) throws IOException;
+
+	/**
+	 * Start delivering frames
+	 * @param listener listener to deliver frames to
+	 * @throws IOException if capture can't be started
+	 */
+	void start(Listener listener) throws IOException;
+
+	/**
+	 * Stop delivering frames. Frames that were already delivered may still
+	 * be recycled.
+	 */
+	void stop();
+}
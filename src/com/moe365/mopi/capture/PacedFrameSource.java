@@ -0,0 +1,200 @@
+package com.moe365.mopi.capture;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A source that plays frame pairs that it already has, at a steady frame
+ * rate, on its own thread, so that the pipeline can run without a camera.
+ * <p>
+ * Frames alternate between the frame of each pair taken with the LED off,
+ * and the one taken with it on, starting with off. That's the order that
+ * the LED toggles in (it starts off, and toggles after every frame), so the
+ * {@link com.moe365.mopi.LedTimeline} labels them correctly. Capture times
+ * are on the {@link System#nanoTime()} clock.
+ * </p>
+ * <p>
+ * Frames are filled from a {@link FramePool}, which only has a few frames;
+ * if the listener doesn't recycle them fast enough, frames are dropped, like
+ * a camera would drop them.
+ * </p>
+ */
+public abstract class PacedFrameSource implements FrameSource, Runnable {
+	/**
+	 * Default number of frames in the pool
+	 */
+	public static final int DEFAULT_POOL_SIZE = 8;
+
+	protected final int width, height;
+	protected final FramePool pool;
+	/**
+	 * Time between frames, in nanoseconds
+	 */
+	protected volatile long frameInterval = TimeUnit.MILLISECONDS.toNanos(100);
+	/**
+	 * Whether frames carry only their JPEG bytes, and are decoded when
+	 * needed (like frames from the camera), instead of carrying the image
+	 */
+	protected volatile boolean decode = true;
+	protected volatile Listener listener;
+	protected Thread thread;
+	/**
+	 * Number of frames dropped because every frame in the pool was in use
+	 */
+	protected final AtomicLong dropped = new AtomicLong(0);
+
+	protected PacedFrameSource(int width, int height, int poolSize) {
+		this.width = width;
+		this.height = height;
+		this.pool = new FramePool(poolSize);
+	}
+
+	/**
+	 * @return the number of pairs to play (in a loop)
+	 */
+	protected abstract int getPairCount();
+
+	/**
+	 * Get a frame
+	 * @param pair number of the pair
+	 * @param flash whether to get the frame taken with the LED on
+	 * @return the frame, as a JPEG
+	 */
+	protected abstract byte[] getJPEG(int pair, boolean flash);
+
+	/**
+	 * Get a frame, decoded. Only called if frames aren't being decoded when
+	 * needed.
+	 * @param pair number of the pair
+	 * @param flash whether to get the frame taken with the LED on
+	 * @return the frame
+	 */
+	protected abstract BufferedImage getImage(int pair, boolean flash);
+
+	/**
+	 * Set whether frames carry only their JPEG bytes, and are decoded when
+	 * needed (the default, like the camera), or carry their image, so that
+	 * decoding is left out of the timing.
+	 * @param decode whether frames are decoded when needed
+	 * @return self
+	 */
+	public PacedFrameSource setDecode(boolean decode) {
+		this.decode = decode;
+		return this;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public void setFrameInterval(int numerator, int denominator) throws IOException {
+		if (numerator <= 0 || denominator <= 0)
+			throw new IOException("Invalid frame interval " + numerator + "/" + denominator);
+		this.frameInterval = TimeUnit.SECONDS.toNanos(numerator) / denominator;
+		System.out.println("Framerate: " + numerator + "/" + denominator + " (" + getClass().getSimpleName() + ")");
+	}
+
+	@Override
+	public synchronized void start(Listener listener) throws IOException {
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+		if (getPairCount() == 0)
+			throw new IOException("No frames to play");
+		this.listener = listener;
+		this.thread = new Thread(this);
+		thread.setName("FrameSourceThread-" + thread.getId());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop delivering frames, and wait for the frame being delivered (if
+	 * any), so that the source can be started again. Doesn't wait if called
+	 * by the listener.
+	 */
+	@Override
+	public synchronized void stop() {
+		final Thread thread = this.thread;
+		if (thread == null)
+			return;
+		thread.interrupt();
+		boolean interrupted = false;
+		while (thread != Thread.currentThread() && thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		this.thread = null;
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public void run() {
+		final Listener listener = this.listener;
+		long next = System.nanoTime();
+		long delivered = 0;
+		try {
+			for (long sequence = 0; !Thread.interrupted(); sequence++) {
+				long now;
+				while ((now = System.nanoTime()) < next)
+					LockSupport.parkNanos(next - now);
+				next += frameInterval;
+				if (next < now)
+					//Fell behind; don't try to catch up with a burst
+					next = now + frameInterval;
+
+				final FramePool.PooledFrame frame = pool.take();
+				if (frame == null) {
+					if (dropped.incrementAndGet() % 100 == 1)
+						System.out.println("Frame source out of frames; " + dropped.get() + " dropped so far");
+					continue;
+				}
+				//The LED only toggles for frames that are delivered, so count pairs by those
+				final int pair = (int) ((delivered / 2) % getPairCount());
+				final boolean flash = (delivered++ & 1) == 1;
+				final byte[] jpeg = getJPEG(pair, flash);
+				frame.set(jpeg, jpeg.length, decode ? null : getImage(pair, flash), TimeUnit.NANOSECONDS.toMicros(System.nanoTime()), sequence);
+				listener.nextFrame(frame);
+			}
+		} catch (Exception e) {
+			listener.exceptionReceived(e);
+		}
+	}
+
+	/**
+	 * @return the number of frames dropped because every frame in the pool
+	 *     was in use
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Encode an image as a JPEG
+	 * @param img image to encode
+	 * @return the JPEG bytes
+	 * @throws IOException if the image can't be encoded
+	 */
+	public static byte[] toJPEG(BufferedImage img) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(img, "jpeg", out))
+			throw new IOException("No JPEG encoder available");
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,207 @@
+package com.moe365.mopi.capture;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.moe365.mopi.LedTimeline;
+
+/**
+ * Plays a recording made by {@link FrameRecorder} as if it were coming from
+ * the camera: the same JPEG bytes, in the same order, either with the same
+ * time between frames as when they were recorded, or as fast as the
+ * listener takes them.
+ * <p>
+ * Frames were labeled by the LED when they were recorded, and the LED isn't
+ * there now, so listeners should get labels from
+ * {@link #getExposure(CapturedFrame)} instead of from a
+ * {@link LedTimeline}. The sequence number of each frame is its number in the
+ * recording (plus the size of the recording times the number of times it
+ * looped).
+ * </p>
+ */
+public class RecordedFrameSource implements FrameSource, Runnable {
+	protected final FrameRecording recording;
+	protected final FramePool pool;
+	/**
+	 * Label and capture time (ns) of each frame, read up front
+	 */
+	protected final LedTimeline.Exposure[] exposures;
+	protected final long[] captureTimes;
+	/**
+	 * Whether to keep the time between frames that they were recorded with,
+	 * instead of playing them as fast as they're taken
+	 */
+	protected volatile boolean realTime = true;
+	protected volatile boolean loop = false;
+	protected volatile Listener listener;
+	protected Thread thread;
+	/**
+	 * Number of frames dropped because every frame in the pool was in use
+	 * (only when playing in real time)
+	 */
+	protected final AtomicLong dropped = new AtomicLong(0);
+	protected final AtomicLong delivered = new AtomicLong(0);
+
+	/**
+	 * Create a source
+	 * @param recording recording to play
+	 */
+	public RecordedFrameSource(FrameRecording recording) {
+		this(recording, PacedFrameSource.DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * Create a source
+	 * @param recording recording to play
+	 * @param poolSize number of frames in the pool
+	 */
+	public RecordedFrameSource(FrameRecording recording, int poolSize) {
+		this.recording = recording;
+		this.pool = new FramePool(poolSize);
+		final int n = recording.size();
+		this.exposures = new LedTimeline.Exposure[n];
+		this.captureTimes = new long[n];
+		for (int i = 0; i < n; i++) {
+			exposures[i] = recording.getExposure(i);
+			captureTimes[i] = recording.getCaptureTime(i);
+		}
+	}
+
+	/**
+	 * Set whether frames are played with the time between them that they were
+	 * recorded with (the default), so that timing problems can be reproduced,
+	 * or as fast as the listener takes them, so that the processor is never
+	 * waiting for frames.
+	 * @param realTime whether to play frames in real time
+	 * @return self
+	 */
+	public RecordedFrameSource setRealTime(boolean realTime) {
+		this.realTime = realTime;
+		return this;
+	}
+
+	/**
+	 * Set whether to start over at the end of the recording. If not (the
+	 * default), the source stops after the last frame.
+	 * @param loop whether to play the recording in a loop
+	 * @return self
+	 */
+	public RecordedFrameSource setLoop(boolean loop) {
+		this.loop = loop;
+		return this;
+	}
+
+	/**
+	 * @return the recording being played
+	 */
+	public FrameRecording getRecording() {
+		return recording;
+	}
+
+	/**
+	 * Get what the LED was doing when a frame from this source was recorded
+	 * @param frame a frame from this source
+	 * @return the frame's label
+	 */
+	public LedTimeline.Exposure getExposure(CapturedFrame frame) {
+		return exposures[(int) (frame.getSequenceNumber() % exposures.length)];
+	}
+
+	@Override
+	public int getWidth() {
+		return recording.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return recording.getHeight();
+	}
+
+	@Override
+	public void setFrameInterval(int numerator, int denominator) throws IOException {
+		//Frames are played at the rate that they were recorded at
+		System.out.println("Framerate: " + (realTime ? "as recorded" : "as fast as possible") + " (" + getClass().getSimpleName() + ")");
+	}
+
+	@Override
+	public synchronized void start(Listener listener) throws IOException {
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+		if (recording.size() == 0)
+			throw new IOException("No frames in " + recording.getDirectory());
+		this.listener = listener;
+		this.thread = new Thread(this);
+		thread.setName("FrameSourceThread-" + thread.getId());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	@Override
+	public void run() {
+		final Listener listener = this.listener;
+		final int n = recording.size();
+		final long start = System.nanoTime();
+		try {
+			long offset = 0;
+			for (long sequence = 0; !Thread.interrupted(); sequence++) {
+				final int i = (int) (sequence % n);
+				if (i == 0 && sequence > 0) {
+					if (!loop)
+						break;
+					//Carry on from the end of the last time through
+					offset += captureTimes[n - 1] - captureTimes[0] + (n > 1 ? (captureTimes[n - 1] - captureTimes[0]) / (n - 1) : 0);
+				}
+				long captureTime;
+				FramePool.PooledFrame frame;
+				if (realTime) {
+					captureTime = start + offset + captureTimes[i] - captureTimes[0];
+					long now;
+					while ((now = System.nanoTime()) < captureTime)
+						LockSupport.parkNanos(captureTime - now);
+					if ((frame = pool.take()) == null) {
+						if (dropped.incrementAndGet() % 100 == 1)
+							System.out.println("Frame source out of frames; " + dropped.get() + " dropped so far");
+						continue;
+					}
+				} else {
+					//Wait for the listener, instead of dropping frames
+					while ((frame = pool.take()) == null) {
+						LockSupport.parkNanos(100_000);
+						if (Thread.interrupted())
+							return;
+					}
+					captureTime = System.nanoTime();
+				}
+				frame.set(recording.getBytes(i), recording.getFrameLength(i), TimeUnit.NANOSECONDS.toMicros(captureTime), sequence);
+				delivered.incrementAndGet();
+				listener.nextFrame(frame);
+			}
+			System.out.println("Finished playing " + recording.getDirectory() + " (" + delivered.get() + " frames played, " + dropped.get() + " dropped, in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms)");
+		} catch (Exception e) {
+			listener.exceptionReceived(e);
+		}
+	}
+
+	/**
+	 * @return the number of frames dropped because every frame in the pool
+	 *     was in use
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of frames played
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+}
@@ -0,0 +1,64 @@
+package com.moe365.mopi.capture;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+import com.moe365.mopi.FrameCorpus;
+
+/**
+ * Plays recorded frame pairs (see {@link FrameCorpus}) as if they were
+ * coming from the camera, in a loop. Each frame is encoded as a JPEG up
+ * front, so frames look like the ones that the camera delivers.
+ */
+public class ReplayFrameSource extends PacedFrameSource {
+	protected final BufferedImage[] imagesOn, imagesOff;
+	protected final byte[][] jpegsOn, jpegsOff;
+
+	/**
+	 * Create a source from a corpus
+	 * @param corpus pairs to play
+	 * @throws IOException if the pairs can't be encoded
+	 */
+	public ReplayFrameSource(FrameCorpus corpus) throws IOException {
+		this(corpus, DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * Create a source from a corpus
+	 * @param corpus pairs to play
+	 * @param poolSize number of frames in the pool
+	 * @throws IOException if the pairs can't be encoded
+	 */
+	public ReplayFrameSource(FrameCorpus corpus, int poolSize) throws IOException {
+		super(corpus.size() == 0 ? 0 : corpus.getFrameSize()[0], corpus.size() == 0 ? 0 : corpus.getFrameSize()[1], poolSize);
+		final List<FrameCorpus.Pair> pairs = corpus.getPairs();
+		final int n = pairs.size();
+		this.imagesOn = new BufferedImage[n];
+		this.imagesOff = new BufferedImage[n];
+		this.jpegsOn = new byte[n][];
+		this.jpegsOff = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			final FrameCorpus.Pair pair = pairs.get(i);
+			imagesOn[i] = pair.getImageOn();
+			imagesOff[i] = pair.getImageOff();
+			jpegsOn[i] = toJPEG(imagesOn[i]);
+			jpegsOff[i] = toJPEG(imagesOff[i]);
+		}
+	}
+
+	@Override
+	protected int getPairCount() {
+		return jpegsOn.length;
+	}
+
+	@Override
+	protected byte[] getJPEG(int pair, boolean flash) {
+		return (flash ? jpegsOn : jpegsOff)[pair];
+	}
+
+	@Override
+	protected BufferedImage getImage(int pair, boolean flash) {
+		return (flash ? imagesOn : imagesOff)[pair];
+	}
+}
@@ -0,0 +1,64 @@
+package com.moe365.mopi.capture;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+import com.moe365.mopi.SceneGenerator;
+
+/**
+ * Plays synthetic frame pairs (see {@link SceneGenerator}) as if they were
+ * coming from the camera, in a loop. The pairs are rendered up front, so
+ * rendering doesn't slow the source down.
+ */
+public class SyntheticFrameSource extends PacedFrameSource {
+	protected final List<SceneGenerator.Scene> scenes;
+
+	/**
+	 * Create a source
+	 * @param generator generator to render pairs with. It must encode JPEGs.
+	 * @param pairs number of different pairs to render
+	 * @throws IOException if the pairs can't be rendered
+	 */
+	public SyntheticFrameSource(SceneGenerator generator, int pairs) throws IOException {
+		this(generator, pairs, DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * Create a source
+	 * @param generator generator to render pairs with. It must encode JPEGs.
+	 * @param pairs number of different pairs to render
+	 * @param poolSize number of frames in the pool
+	 * @throws IOException if the pairs can't be rendered
+	 */
+	public SyntheticFrameSource(SceneGenerator generator, int pairs, int poolSize) throws IOException {
+		super(generator.getWidth(), generator.getHeight(), poolSize);
+		this.scenes = generator.next(pairs);
+		if (!scenes.isEmpty() && scenes.get(0).getJPEGOn() == null)
+			throw new IllegalArgumentException("Generator must encode JPEGs");
+	}
+
+	/**
+	 * @return the pairs that are played
+	 */
+	public List<SceneGenerator.Scene> getScenes() {
+		return scenes;
+	}
+
+	@Override
+	protected int getPairCount() {
+		return scenes.size();
+	}
+
+	@Override
+	protected byte[] getJPEG(int pair, boolean flash) {
+		final SceneGenerator.Scene scene = scenes.get(pair);
+		return flash ? scene.getJPEGOn() : scene.getJPEGOff();
+	}
+
+	@Override
+	protected BufferedImage getImage(int pair, boolean flash) {
+		final SceneGenerator.Scene scene = scenes.get(pair);
+		return flash ? scene.getImageOn() : scene.getImageOff();
+	}
+}
@@ -0,0 +1,128 @@
+package com.moe365.mopi.capture;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import au.edu.jcu.v4l4j.CaptureCallback;
+import au.edu.jcu.v4l4j.FrameGrabber;
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.exceptions.V4L4JException;
+
+/**
+ * Delivers frames from a v4l4j frame grabber. The grabber's own buffers are
+ * used; each frame is wrapped, and recycling the wrapper recycles the
+ * grabber's frame.
+ * <p>
+ * Wrappers aren't reused, because a wrapper that was recycled could still
+ * be held somewhere (like by a stale preview), and recycling it again must
+ * not recycle a frame that was wrapped after it. A wrapper is only a few
+ * bytes, next to the frame.
+ * </p>
+ */
+public class V4L4JFrameSource implements FrameSource {
+	/**
+	 * Wraps a {@link VideoFrame}
+	 */
+	protected static class Frame implements CapturedFrame {
+		protected volatile VideoFrame frame;
+
+		protected Frame(VideoFrame frame) {
+			this.frame = frame;
+		}
+
+		@Override
+		public byte[] getBytes() {
+			return frame.getBytes();
+		}
+
+		@Override
+		public int getFrameLength() {
+			return frame.getFrameLength();
+		}
+
+		@Override
+		public BufferedImage getBufferedImage() {
+			return frame.getBufferedImage();
+		}
+
+		@Override
+		public long getCaptureTime() {
+			return frame.getCaptureTime();
+		}
+
+		@Override
+		public long getSequenceNumber() {
+			return frame.getSequenceNumber();
+		}
+
+		@Override
+		public void recycle() {
+			VideoFrame frame;
+			synchronized (this) {
+				frame = this.frame;
+				this.frame = null;
+			}
+			if (frame == null)
+				return;
+			frame.recycle();
+		}
+	}
+
+	protected final FrameGrabber grabber;
+
+	public V4L4JFrameSource(FrameGrabber grabber) {
+		this.grabber = grabber;
+	}
+
+	/**
+	 * @return the grabber that frames come from
+	 */
+	public FrameGrabber getFrameGrabber() {
+		return grabber;
+	}
+
+	@Override
+	public int getWidth() {
+		return grabber.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return grabber.getHeight();
+	}
+
+	@Override
+	public void setFrameInterval(int numerator, int denominator) throws IOException {
+		try {
+			grabber.setFrameInterval(numerator, denominator);
+		} catch (V4L4JException e) {
+			throw new IOException("Unable to set frame interval to " + numerator + "/" + denominator, e);
+		}
+		System.out.println("Framerate: " + grabber.getFrameInterval());
+	}
+
+	@Override
+	public void start(Listener listener) throws IOException {
+		grabber.setCaptureCallback(new CaptureCallback() {
+			@Override
+			public void nextFrame(VideoFrame frame) {
+				listener.nextFrame(new Frame(frame));
+			}
+
+			@Override
+			public void exceptionReceived(V4L4JException e) {
+				listener.exceptionReceived(e);
+			}
+		});
+		try {
+			grabber.startCapture();
+		} catch (V4L4JException e) {
+			throw new IOException("Unable to start capture", e);
+		}
+	}
+
+	@Override
+	public void stop() {
+		grabber.stopCapture();
+	}
+}
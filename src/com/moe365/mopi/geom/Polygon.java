@@ -250,6 +250,19 @@ public class Polygon {
 		start.insertBefore(x, y);
 	}
 	
+	/**
+	 * Create a copy of this polygon, with its own points, so that modifying
+	 * one doesn't affect the other.
+	 * 
+	 * @return the copy
+	 */
+	public Polygon copy() {
+		Polygon result = new Polygon(start.getX(), start.getY());
+		for (PointNode node = start.next(); node != start; node = node.next())
+			result.addPoint(node.getX(), node.getY());
+		return result;
+	}
+	
 	/**
 	 * Calculate the area of the polygon. If this method is called multiple
 	 * times without changing any of the points between method calls, it will
@@ -1,11 +1,22 @@
 package com.moe365.mopi.processing;
 
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
-import au.edu.jcu.v4l4j.VideoFrame;
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.geom.PreciseRectangle;
 
 /**
  * An abstract image processor. This class is designed to allow easy
@@ -14,7 +25,17 @@ import au.edu.jcu.v4l4j.VideoFrame;
  * @param <R> the result type generated by this processor
  * @since April 2016 (v0.2.0)
  */
-public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<VideoFrame, VideoFrame, R> {
+public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<CapturedFrame, CapturedFrame, R> {
+	/**
+	 * Longest that the processor thread sleeps while waiting for a frame
+	 * pair, before checking again. It's woken up when stopped, so this only
+	 * limits how long a new pair waits.
+	 */
+	protected static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/**
+	 * Number of processors created, for naming their threads
+	 */
+	private static final AtomicInteger processorCount = new AtomicInteger(0);
 	/**
 	 * Saturate num to [0, 255]. Saturation allows us to convert an integer
 	 * to an unsigned byte. If num > 255, this method returns 255. If
@@ -43,30 +64,165 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 	
 	/**
 	 * Whether the processor is currently processing images. If this lock
-	 * set to true, calls to {@link #offerFrame(VideoFrame, boolean)} should
+	 * set to true, calls to {@link #offerFrame(CapturedFrame, boolean)} should
 	 * do nothing and return false.
 	 */
 	protected final AtomicBoolean imageLock = new AtomicBoolean(false);
 	/**
 	 * A frame where the flash is off.
 	 */
-	protected final AtomicReference<VideoFrame> frameOff = new AtomicReference<>();
+	protected final AtomicReference<CapturedFrame> frameOff = new AtomicReference<>();
 	/**
 	 * A frame where the flash is on.
 	 */
-	protected final AtomicReference<VideoFrame> frameOn = new AtomicReference<>();
+	protected final AtomicReference<CapturedFrame> frameOn = new AtomicReference<>();
+	/**
+	 * When (from {@link System#nanoTime()}) the frames in {@link #frameOff}
+	 * and {@link #frameOn} were offered.
+	 */
+	protected final AtomicLong frameOffTime = new AtomicLong(), frameOnTime = new AtomicLong();
+	/**
+	 * Keeps the latency of results bounded. Null if there is no latency
+	 * budget.
+	 */
+	protected volatile FrameScheduler scheduler;
 	/**
 	 * The minimum valid X coordinate
 	 */
 	protected final int frameMinX, frameMaxX, frameMinY, frameMaxY;
 	/**
-	 * The thread that this processor runs on
+	 * Number of this processor, for naming its threads
 	 */
-	protected Thread thread;
+	protected final int id = processorCount.getAndIncrement();
+	/**
+	 * The thread that this processor runs on. A new one is made every time
+	 * that the processor is started, and it's null while the processor is
+	 * stopped.
+	 */
+	protected volatile Thread thread;
+	/**
+	 * Whether the processor is started. The processor thread exits (after
+	 * finishing the pair that it's on) once this is cleared.
+	 */
+	protected volatile boolean running = false;
 	/**
 	 * A method to do something with the results.
 	 */
 	protected Consumer<R> resultConsumer;
+	/**
+	 * Told the targets found in each pair that's processed (see
+	 * {@link #setTargetListener(Consumer)}). May be null.
+	 */
+	protected volatile Consumer<List<PreciseRectangle>> targetListener;
+	/**
+	 * Decides which pixel deltas are part of a target.
+	 */
+	protected volatile ColorClassifier classifier;
+	/**
+	 * Decides which targets get reported
+	 */
+	protected volatile TargetFilter targetFilter = new TargetFilter();
+	/**
+	 * Planar channel data for the frame pair being processed. Reused for
+	 * every pair, and only touched from the processor thread.
+	 */
+	protected final FramePlanes planes;
+	/**
+	 * Pool that the frame taken without the flash is decoded on, while the
+	 * processor thread decodes the frame taken with the flash.
+	 */
+	protected final ExecutorService decodeExecutor;
+	/**
+	 * Estimates how far the scene moved between the frames of a pair, so that
+	 * their difference can be taken between matching pixels. Null if the
+	 * scene is assumed to be still.
+	 */
+	protected volatile MotionEstimator motionEstimator;
+	/**
+	 * The shift of the pair being processed, as {dx, dy}
+	 */
+	protected final int[] shift = new int[2];
+	/**
+	 * Whether to check a DC-only preview of the frames for candidate targets
+	 * before doing a full decode.
+	 */
+	protected volatile boolean previewEnabled = false;
+	/**
+	 * Factor that preview deltas are multiplied by before being classified.
+	 * Each preview pixel is the average of an 8x8 block, so a target that
+	 * only covers part of a block is diluted.
+	 */
+	protected volatile int previewGain = 4;
+	/**
+	 * Preview decoders for the frames with the flash on and off
+	 */
+	protected final JPEGPreviewDecoder previewOn = new JPEGPreviewDecoder(), previewOff = new JPEGPreviewDecoder();
+	/**
+	 * Number of frame pairs where the preview found no candidates, so the
+	 * full decode was skipped
+	 */
+	protected final AtomicLong previewSkipped = new AtomicLong(0);
+	/**
+	 * Number of frame pairs where the preview found candidates, or couldn't
+	 * be decoded
+	 */
+	protected final AtomicLong previewPassed = new AtomicLong(0);
+	/**
+	 * The frames that {@link #previewOn} and {@link #previewOff} were last
+	 * decoded from. Cleared after every pair, because frames are reused.
+	 */
+	protected CapturedFrame previewedOn, previewedOff;
+	/**
+	 * Whether the last preview decode succeeded
+	 */
+	protected boolean previewValid;
+	/**
+	 * Whether to skip processing frame pairs that look the same as the last
+	 * one that was processed, and re-emit its result instead.
+	 */
+	protected volatile boolean changeDetectionEnabled = false;
+	/**
+	 * How much the per-channel deltas of a preview block may differ from the
+	 * last processed pair (summed over R, G, and B) before the block counts
+	 * as changed.
+	 */
+	protected volatile int changeTolerance = 24;
+	/**
+	 * How many preview blocks may change before the scene counts as changed
+	 */
+	protected volatile int changeBlockLimit = 2;
+	/**
+	 * The most pairs in a row that a result may be re-emitted for, before
+	 * the scene is processed again anyways
+	 */
+	protected volatile int maxReuse = 30;
+	/**
+	 * Preview deltas (dR, dG, dB for each block) of the current pair, and of
+	 * the last pair that was processed. Only touched from the processor
+	 * thread.
+	 */
+	protected short[] signature, lastSignature;
+	/**
+	 * Copy of the result for the last pair that was processed. Null if there
+	 * is nothing to re-emit.
+	 */
+	protected R cachedResult;
+	/**
+	 * The classifier table that {@link #cachedResult} was generated with
+	 */
+	protected ColorClassifier.Table cachedTable;
+	/**
+	 * Number of times in a row that {@link #cachedResult} has been re-emitted
+	 */
+	protected int reuseCount;
+	/**
+	 * Number of frame pairs where the cached result was re-emitted
+	 */
+	protected final AtomicLong sceneHits = new AtomicLong(0);
+	/**
+	 * Number of frame pairs that were checked for changes, and processed
+	 */
+	protected final AtomicLong sceneMisses = new AtomicLong(0);
 	protected AbstractImageProcessor(int frameMinX, int frameMinY, int frameMaxX, int frameMaxY, Consumer<R> output) {
 		this.frameMinX = frameMinX;
 		this.frameMaxX = frameMaxX;
@@ -78,42 +234,528 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 			throw new IllegalArgumentException("Invalid height (expect: height > 0; height = " + getFrameHeight() + ")");
 		
 		this.resultConsumer = output;
+		this.planes = new FramePlanes(frameMinX, frameMinY, getFrameWidth(), getFrameHeight());
 		
-		this.thread = new Thread(this);
-		thread.setName("ProcessorThread-" + thread.getId());
+		final String decodeThreadName = "DecodeThread-" + id;
+		this.decodeExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread decodeThread = new Thread(r, decodeThreadName);
+			decodeThread.setDaemon(true);
+			return decodeThread;
+		});
 	}
 	/**
-	 * Start the thread
+	 * Start processing frames on a new thread. A processor that was
+	 * {@linkplain #stop() stopped} can be started again.
 	 * @return self
+	 * @throws IllegalStateException if the processor is already running
 	 */
-	public AbstractImageProcessor<R> start() {
+	public synchronized AbstractImageProcessor<R> start() {
+		if (running)
+			throw new IllegalStateException("Already running");
+		running = true;
+		//Not a daemon, so it keeps the program running
+		thread = new Thread(this, "ProcessorThread-" + id);
 		thread.start();
 		return this;
 	}
 	
 	/**
-	 * Stop this processor from processing more images
+	 * Stop this processor from processing more images. The pair that is
+	 * being processed is finished (and its result is passed on), and then
+	 * the processor thread exits. Frames that were offered, but not
+	 * processed, are recycled. Does nothing if the processor isn't running.
+	 * <p>
+	 * Waits for the processor thread to exit, so it must not be called from
+	 * the result consumer.
+	 * </p>
 	 */
-	@SuppressWarnings("deprecation")
-	public void stop() {
-		thread.stop();
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		final Thread thread = this.thread;
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				//Keep waiting, or the thread could still be using the frames
+				interrupted = true;
+			}
+		}
+		this.thread = null;
+		dropFrames();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Stop this processor for good, and shut down the threads that it
+	 * decodes on. Unlike {@link #stop()}, the processor can't be started
+	 * again.
+	 */
+	public void close() {
+		stop();
+		decodeExecutor.shutdownNow();
+	}
+	
+	/**
+	 * @return whether the processor is started
+	 */
+	public boolean isRunning() {
+		return running;
 	}
 	/**
-	 * Offer a frame. Any VideoFrame passed into this method should be treated as if recycle() has been called on it.
-	 * @param frame VideoFrame offered
+	 * Offer a frame. Any CapturedFrame passed into this method should be treated as if recycle() has been called on it.
+	 * @param frame CapturedFrame offered
 	 * @param flash whether the flash was on when this frame was captured
 	 * @return whether the frame was used
 	 */
-	public boolean offerFrame(VideoFrame frame, boolean flash) {
-		if (imageLock.get()) {
+	public boolean offerFrame(CapturedFrame frame, boolean flash) {
+		if (imageLock.get() || !running) {
 			frame.recycle();
 			return false;
 		}
-		VideoFrame oldFrame = (flash ? frameOn : frameOff).getAndSet(frame);
+		(flash ? frameOnTime : frameOffTime).set(System.nanoTime());
+		CapturedFrame oldFrame = (flash ? frameOn : frameOff).getAndSet(frame);
 		if (oldFrame != null)
 			oldFrame.recycle();
+		final Thread thread = this.thread;
+		if (thread == null)
+			//Stopped while the frame was being offered, so nothing will recycle it
+			dropFrames();
+		else if (frameOn.get() != null && frameOff.get() != null)
+			//Don't leave a complete pair waiting for the processor thread to wake up
+			LockSupport.unpark(thread);
 		return true;
 	}
+	/**
+	 * Set the scheduler that keeps the latency of results bounded.
+	 * @param scheduler the scheduler, or null to process every pair no matter
+	 *     how long it takes
+	 * @return self
+	 */
+	public AbstractImageProcessor<R> setScheduler(FrameScheduler scheduler) {
+		this.scheduler = scheduler;
+		return this;
+	}
+	/**
+	 * Get the scheduler that keeps the latency of results bounded (may be null)
+	 */
+	public FrameScheduler getScheduler() {
+		return this.scheduler;
+	}
+	/**
+	 * Get how sparsely the image should be swept. Processors should use this
+	 * to downgrade their work when they're falling behind.
+	 * @return the stride (1 for a full sweep)
+	 */
+	protected int getStride() {
+		final FrameScheduler scheduler = this.scheduler;
+		return scheduler == null ? 1 : scheduler.getStride();
+	}
+	/**
+	 * Abort processing the current pair if it has run past its deadline.
+	 * Processors should call this between expensive stages.
+	 * @param stage name of the stage that is about to run
+	 * @throws FrameScheduler.DeadlineExceededException if past the deadline
+	 */
+	protected void checkDeadline(String stage) throws FrameScheduler.DeadlineExceededException {
+		final FrameScheduler scheduler = this.scheduler;
+		if (scheduler != null)
+			scheduler.checkDeadline(stage);
+	}
+	/**
+	 * Recycle whichever of {@link #frameOn} and {@link #frameOff} are set.
+	 * Only safe while the processor thread isn't running.
+	 */
+	protected void dropFrames() {
+		CapturedFrame frame = frameOn.getAndSet(null);
+		if (frame != null)
+			frame.recycle();
+		frame = frameOff.getAndSet(null);
+		if (frame != null)
+			frame.recycle();
+	}
+	/**
+	 * Recycle the frames in {@link #frameOn} and {@link #frameOff}.
+	 */
+	protected void releaseFrames() {
+		frameOff.get().recycle();
+		frameOff.set(null);
+		frameOn.get().recycle();
+		frameOn.set(null);
+	}
+	/**
+	 * Set the classifier used to decide which pixels are part of a target.
+	 * The new classifier is used starting with the next frame.
+	 * @param classifier the classifier to use
+	 * @return self
+	 */
+	public AbstractImageProcessor<R> setClassifier(ColorClassifier classifier) {
+		if (classifier == null)
+			throw new NullPointerException("Classifier may not be null");
+		this.classifier = classifier;
+		return this;
+	}
+	/**
+	 * Get the classifier used to decide which pixels are part of a target.
+	 */
+	public ColorClassifier getClassifier() {
+		return this.classifier;
+	}
+	/**
+	 * Set the filter that decides which targets get reported, and how many.
+	 * The new filter is used starting with the next frame.
+	 * @param filter the filter to use
+	 * @return self
+	 */
+	public AbstractImageProcessor<R> setTargetFilter(TargetFilter filter) {
+		if (filter == null)
+			throw new NullPointerException("Filter may not be null");
+		this.targetFilter = filter;
+		return this;
+	}
+	/**
+	 * Get the filter that decides which targets get reported.
+	 */
+	public TargetFilter getTargetFilter() {
+		return this.targetFilter;
+	}
+	/**
+	 * Set a listener that is told the targets found in each pair that's
+	 * processed (see {@link #getTargets(Object)}), so that a running
+	 * processor can be watched without knowing its result type. It's called
+	 * on the thread that finished the pair, before the result consumer
+	 * (which may change the result).
+	 * @param listener the listener, or null for none
+	 * @return self
+	 */
+	public AbstractImageProcessor<R> setTargetListener(Consumer<List<PreciseRectangle>> listener) {
+		this.targetListener = listener;
+		return this;
+	}
+	/**
+	 * Tell the target listener (if any) the targets in a result
+	 * @param result the result of a pair
+	 */
+	protected void notifyTargetListener(R result) {
+		final Consumer<List<PreciseRectangle>> listener = this.targetListener;
+		if (listener != null)
+			listener.accept(result == null ? null : getTargets(result));
+	}
+	/**
+	 * Set the estimator used to line up the frames of each pair before
+	 * taking their difference, for when the robot is moving. Each processor
+	 * needs its own estimator.
+	 * @param estimator the estimator, or null to assume that the scene is
+	 *     still
+	 * @return self
+	 */
+	public AbstractImageProcessor<R> setMotionEstimator(MotionEstimator estimator) {
+		this.motionEstimator = estimator;
+		return this;
+	}
+	/**
+	 * Get the estimator used to line up the frames of each pair (may be null)
+	 */
+	public MotionEstimator getMotionEstimator() {
+		return this.motionEstimator;
+	}
+	/**
+	 * Enable or disable checking a DC-only preview of each frame pair for
+	 * candidate targets, before doing a full decode.
+	 * @param enabled whether to check previews
+	 * @param gain factor to multiply preview deltas by before classifying them
+	 * @return self
+	 */
+	public AbstractImageProcessor<R> setPreviewEnabled(boolean enabled, int gain) {
+		this.previewGain = gain;
+		this.previewEnabled = enabled;
+		return this;
+	}
+	/**
+	 * Check whether a frame pair might contain targets, using DC-only
+	 * previews of the (JPEG) frames. Each preview pixel is the average of an
+	 * 8x8 block, so this is much cheaper than a full decode.
+	 * <p>
+	 * If previews are disabled, or either frame can't be preview-decoded,
+	 * this method returns true, so that the frames get a full decode.
+	 * </p>
+	 * @param frameOn A frame that was taken with a flash
+	 * @param frameOff A frame that was taken without a flash
+	 * @return false only if the frames definitely don't contain any targets
+	 */
+	protected boolean hasCandidates(CapturedFrame frameOn, CapturedFrame frameOff) {
+		if (!previewEnabled)
+			return true;
+		if (!decodePreviews(frameOn, frameOff)) {
+			previewPassed.incrementAndGet();
+			return true;
+		}
+		final ColorClassifier.Table lut = classifier.getTable();
+		final int gain = this.previewGain;
+		final byte[] onR = previewOn.getRed(), onG = previewOn.getGreen(), onB = previewOn.getBlue();
+		final byte[] offR = previewOff.getRed(), offG = previewOff.getGreen(), offB = previewOff.getBlue();
+		final int size = previewOn.getWidth() * previewOn.getHeight();
+		for (int i = 0; i < size; i++) {
+			int dR = saturateDelta(((onR[i] & 0xFF) - (offR[i] & 0xFF)) * gain);
+			int dG = saturateDelta(((onG[i] & 0xFF) - (offG[i] & 0xFF)) * gain);
+			int dB = saturateDelta(((onB[i] & 0xFF) - (offB[i] & 0xFF)) * gain);
+			if (lut.test(dR, dG, dB)) {
+				previewPassed.incrementAndGet();
+				return true;
+			}
+		}
+		previewSkipped.incrementAndGet();
+		return false;
+	}
+	/**
+	 * Decode DC-only previews of both frames into {@link #previewOn} and
+	 * {@link #previewOff}. If the previews were already decoded for this pair
+	 * (e.g., by the change detector), they aren't decoded again.
+	 * @param frameOn A frame that was taken with a flash
+	 * @param frameOff A frame that was taken without a flash
+	 * @return whether both previews were decoded, and are the same size
+	 */
+	protected boolean decodePreviews(CapturedFrame frameOn, CapturedFrame frameOff) {
+		if (frameOn == previewedOn && frameOff == previewedOff)
+			return previewValid;
+		previewedOn = frameOn;
+		previewedOff = frameOff;
+		return previewValid = previewOn.decode(frameOn.getBytes(), frameOn.getFrameLength())
+				&& previewOff.decode(frameOff.getBytes(), frameOff.getFrameLength())
+				&& previewOn.getWidth() == previewOff.getWidth() && previewOn.getHeight() == previewOff.getHeight();
+	}
+	/**
+	 * Enable or disable skipping frame pairs that look the same as the last
+	 * processed pair. When enabled, each pair's DC-only preview delta is
+	 * compared against the last processed pair's, and if it is within
+	 * tolerance, the last result is re-emitted to the result consumer
+	 * (which sends it on as a fresh packet) instead of processing the pair.
+	 * <p>
+	 * Only works for processors that can copy their results (see
+	 * {@link #copyResult(Object)}), and for JPEG frames.
+	 * </p>
+	 * @param enabled whether to skip unchanged pairs
+	 * @param tolerance how much each block's delta may change (summed over R,
+	 *     G, and B) before it counts as changed
+	 * @return self
+	 */
+	public AbstractImageProcessor<R> setChangeDetectionEnabled(boolean enabled, int tolerance) {
+		this.changeTolerance = tolerance;
+		this.changeDetectionEnabled = enabled;
+		return this;
+	}
+	/**
+	 * Make a copy of a result, that can be handed to the result consumer
+	 * while this processor keeps the original. Consumers are allowed to
+	 * modify results, so re-emitting the same object isn't safe.
+	 * <p>
+	 * The default implementation returns null, meaning that results can't be
+	 * copied, so they are never re-emitted.
+	 * </p>
+	 * @param result result to copy
+	 * @return the copy, or null if not supported
+	 */
+	protected R copyResult(R result) {
+		return null;
+	}
+	/**
+	 * Get the bounding boxes of the targets in a result, scaled to the frame
+	 * (so that (1, 1) is the bottom-right corner), so that the results of
+	 * different processors can be compared. Must not modify the result.
+	 * <p>
+	 * The default implementation returns null, meaning that results can't be
+	 * compared.
+	 * </p>
+	 * @param result result to get the targets of
+	 * @return the targets, or null if not supported
+	 */
+	protected List<PreciseRectangle> getTargets(R result) {
+		return null;
+	}
+	/**
+	 * Compute the signature of a frame pair (its preview delta), and check
+	 * whether it matches the signature of the last processed pair.
+	 * @param frameOn A frame that was taken with a flash
+	 * @param frameOff A frame that was taken without a flash
+	 * @return whether a signature was computed. If false, the pair can't be
+	 *     compared.
+	 */
+	protected boolean computeSignature(CapturedFrame frameOn, CapturedFrame frameOff) {
+		if (!decodePreviews(frameOn, frameOff))
+			return false;
+		final int size = previewOn.getWidth() * previewOn.getHeight();
+		if (signature == null || signature.length != size * 3)
+			signature = new short[size * 3];
+		final short[] signature = this.signature;
+		final byte[] onR = previewOn.getRed(), onG = previewOn.getGreen(), onB = previewOn.getBlue();
+		final byte[] offR = previewOff.getRed(), offG = previewOff.getGreen(), offB = previewOff.getBlue();
+		for (int i = 0, j = 0; i < size; i++) {
+			signature[j++] = (short) ((onR[i] & 0xFF) - (offR[i] & 0xFF));
+			signature[j++] = (short) ((onG[i] & 0xFF) - (offG[i] & 0xFF));
+			signature[j++] = (short) ((onB[i] & 0xFF) - (offB[i] & 0xFF));
+		}
+		return true;
+	}
+	/**
+	 * @return whether {@link #signature} is within tolerance of
+	 *     {@link #lastSignature}
+	 */
+	protected boolean isSignatureUnchanged() {
+		final short[] signature = this.signature, lastSignature = this.lastSignature;
+		if (lastSignature == null || lastSignature.length != signature.length)
+			return false;
+		final int tolerance = this.changeTolerance;
+		int changed = this.changeBlockLimit;
+		for (int i = 0; i < signature.length; i += 3) {
+			int diff = Math.abs(signature[i] - lastSignature[i])
+					+ Math.abs(signature[i + 1] - lastSignature[i + 1])
+					+ Math.abs(signature[i + 2] - lastSignature[i + 2]);
+			if (diff > tolerance && --changed < 0)
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Process a frame pair, unless it looks the same as the last pair that
+	 * was processed, in which case a copy of that pair's result is returned.
+	 * @param frameOn A frame that was taken with a flash
+	 * @param frameOff A frame that was taken without a flash
+	 * @return generated data
+	 */
+	protected R processOrReuse(CapturedFrame frameOn, CapturedFrame frameOff) {
+		if (!changeDetectionEnabled || !computeSignature(frameOn, frameOff)) {
+			cachedResult = null;
+			return apply(frameOn, frameOff);
+		}
+		final ColorClassifier.Table table = classifier.getTable();
+		if (cachedResult != null && table == cachedTable && reuseCount < maxReuse && isSignatureUnchanged()) {
+			R result = copyResult(cachedResult);
+			if (result != null) {
+				reuseCount++;
+				countScene(sceneHits);
+				return result;
+			}
+		}
+		countScene(sceneMisses);
+		R result = apply(frameOn, frameOff);
+		//Copy the result before the consumer gets a chance to modify it
+		cachedResult = result == null ? null : copyResult(result);
+		cachedTable = table;
+		reuseCount = 0;
+		short[] tmp = lastSignature;
+		lastSignature = signature;
+		signature = tmp;
+		return result;
+	}
+	/**
+	 * Increment one of the scene counters, and periodically log the hit rate
+	 */
+	private void countScene(AtomicLong counter) {
+		counter.incrementAndGet();
+		final long hits = sceneHits.get(), misses = sceneMisses.get();
+		if ((hits + misses) % 100 == 0)
+			System.out.println("Scene cache: " + hits + " hits, " + misses + " misses (" + Math.round(getSceneHitRate() * 100) + "% hit rate)");
+	}
+	/**
+	 * @return the number of frame pairs where the last result was re-emitted,
+	 *     because the scene hadn't changed
+	 */
+	public long getSceneHitCount() {
+		return sceneHits.get();
+	}
+	/**
+	 * @return the number of frame pairs that were checked for changes, and
+	 *     processed
+	 */
+	public long getSceneMissCount() {
+		return sceneMisses.get();
+	}
+	/**
+	 * @return the fraction of checked frame pairs where the last result was
+	 *     re-emitted (0 if none were checked)
+	 */
+	public double getSceneHitRate() {
+		long hits = sceneHits.get(), total = hits + sceneMisses.get();
+		return total == 0 ? 0 : ((double) hits) / total;
+	}
+	/**
+	 * Saturate a delta to [-255, 255]
+	 */
+	protected static int saturateDelta(int delta) {
+		return (delta > 0xFF) ? (0xFF) : ((delta < -0xFF) ? -0xFF : delta);
+	}
+	/**
+	 * @return the number of frame pairs skipped because their previews had
+	 *     no candidates
+	 */
+	public long getPreviewSkipCount() {
+		return previewSkipped.get();
+	}
+	/**
+	 * @return the number of frame pairs that got a full decode after
+	 *     checking their previews
+	 */
+	public long getPreviewPassCount() {
+		return previewPassed.get();
+	}
+	/**
+	 * Decode both frames into {@link #planes}, and classify their difference.
+	 * @param frameOn A frame that was taken with a flash
+	 * @param frameOff A frame that was taken without a flash
+	 * @return the planes
+	 */
+	protected FramePlanes loadPlanes(CapturedFrame frameOn, CapturedFrame frameOff) {
+		//Decode the two frames at the same time, so that we only wait for about one decode
+		Future<?> offTask = decodeExecutor.submit(() -> planes.loadOff(frameOff.getBufferedImage()));
+		planes.loadOn(frameOn.getBufferedImage());
+		try {
+			offTask.get();
+		} catch (InterruptedException e) {
+			offTask.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while decoding frame", e);
+		} catch (ExecutionException e) {
+			//Rethrow, so it looks like it happened on this thread
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException("Unable to decode frame", cause);
+		}
+		return classifyPlanes();
+	}
+	/**
+	 * Split both images into {@link #planes}, and classify their difference.
+	 * @param imgOn image that was taken with a flash
+	 * @param imgOff image that was taken without a flash
+	 * @return the planes
+	 */
+	protected FramePlanes loadPlanes(BufferedImage imgOn, BufferedImage imgOff) {
+		planes.loadOn(imgOn);
+		planes.loadOff(imgOff);
+		return classifyPlanes();
+	}
+	/**
+	 * Classify the difference between the frames in {@link #planes}, lining
+	 * them up first if there is a {@linkplain #setMotionEstimator(MotionEstimator) motion estimator}.
+	 * @return the planes
+	 */
+	protected FramePlanes classifyPlanes() {
+		final ColorClassifier.Table lut = classifier.getTable();
+		final MotionEstimator estimator = this.motionEstimator;
+		if (estimator == null) {
+			planes.classify(lut);
+			return planes;
+		}
+		estimator.estimate(planes, shift);
+		planes.classify(lut, shift[0], shift[1]);
+		return planes;
+	}
 	/**
 	 * Get the width of the valid region for this processor
 	 */
@@ -129,50 +771,111 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 	@Override
 	public void run() {
 		try {
-			while (!Thread.interrupted()) {
-				while (frameOff.get() == null || frameOn.get() == null) {
-					Thread.yield();//TODO test if this is correct
-					Thread.sleep(100);//TODO remove this if yield works?
+			while (running) {
+				if (frameOff.get() == null || frameOn.get() == null) {
+					//Woken up early if stopped
+					LockSupport.parkNanos(this, IDLE_NANOS);
+					continue;
 				}
 				
-				//Attempt to lock image writes
-				if (!imageLock.compareAndSet(false, true))
-					throw new IllegalMonitorStateException("Did you start the thread multiple times?");
+				//Lock image writes. Only one thread runs at a time (see start()), so nothing else holds the lock.
+				imageLock.set(true);
 				try {
 					//check again, just to be safe
 					if (frameOff.get() != null && frameOn.get() != null) {
+						final FrameScheduler scheduler = this.scheduler;
+						if (scheduler != null && !scheduler.admit(Math.min(frameOnTime.get(), frameOffTime.get()))) {
+							//Already too old to be useful; wait for a fresh pair
+							releaseFrames();
+							continue;
+						}
 						R result;
 						try {
-							result = apply(frameOn.get(), frameOff.get());
-						} catch(ArrayIndexOutOfBoundsException | NullPointerException e) {
-							//These exceptions can probably be recovered from.
+							result = processOrReuse(frameOn.get(), frameOff.get());
+						} catch (FrameScheduler.DeadlineExceededException e) {
+							System.out.println(e.getMessage());
+							if (scheduler != null)
+								scheduler.finish(true);
+							releaseFrames();
+							continue;
+						} catch (RuntimeException e) {
+							//Drop the pair, and carry on with the next one (which is probably fine)
 							e.printStackTrace();
+							if (scheduler != null)
+								scheduler.finish(true);
+							releaseFrames();
 							continue;
+						} finally {
+							//The frames will be reused, so forget their previews
+							previewedOn = previewedOff = null;
 						}
-						if (this.resultConsumer != null)
-							this.resultConsumer.accept(result);
+						try {
+							notifyTargetListener(result);
+							if (this.resultConsumer != null)
+								this.resultConsumer.accept(result);
+						} catch (RuntimeException e) {
+							//Still release the frames
+							e.printStackTrace();
+						}
+						if (scheduler != null)
+							scheduler.finish(false);
 						
 						//release the processed frames
-						frameOff.get().recycle();
-						frameOff.set(null);
-						frameOn.get().recycle();
-						frameOn.set(null);
+						releaseFrames();
 					}
 				} finally {
 					//release the lock on images
-					if (!imageLock.compareAndSet(true, false))
-						throw new IllegalStateException();
+					imageLock.set(false);
 				}
 			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			return;
 		} catch (Exception e) {
 			//be sure to print any/all exceptions
 			e.printStackTrace();
 			throw e;
 		}
 	}
+	/**
+	 * Process a pair of images that were already decoded, the same way that
+	 * {@link #apply(CapturedFrame, CapturedFrame)} processes a pair of frames once
+	 * they are decoded. Must only be called while the processor thread isn't
+	 * processing anything (e.g., before frames are offered).
+	 * @param imgOn image that was taken with a flash
+	 * @param imgOff image that was taken without a flash
+	 * @return generated data
+	 */
+	protected abstract R processImages(BufferedImage imgOn, BufferedImage imgOff);
+	/**
+	 * Run a pair of images through this processor, without passing the
+	 * result to the result consumer. Used to warm up the JIT before real
+	 * frames arrive, and by offline tools that run recorded pairs. Must only
+	 * be called while the processor thread isn't processing anything.
+	 * @param imgOn image that was taken with a flash
+	 * @param imgOff image that was taken without a flash
+	 * @return the targets found (see {@link #getTargets(Object)}), or null
+	 */
+	public List<PreciseRectangle> detect(BufferedImage imgOn, BufferedImage imgOff) {
+		R result = processImages(imgOn, imgOff);
+		return result == null ? null : getTargets(result);
+	}
+	/**
+	 * Run a pair of frames through this processor the way that the processor
+	 * thread would (decoding them, and all), without passing the result to
+	 * the result consumer. Must only be called while the processor thread
+	 * isn't processing anything. The frames aren't recycled, but the
+	 * processor is done with them when this returns.
+	 * @param frameOn A frame that was taken with a flash
+	 * @param frameOff A frame that was taken without a flash
+	 * @return the targets found (see {@link #getTargets(Object)}), or null
+	 */
+	public List<PreciseRectangle> detect(CapturedFrame frameOn, CapturedFrame frameOff) {
+		try {
+			R result = apply(frameOn, frameOff);
+			return result == null ? null : getTargets(result);
+		} finally {
+			//The frames will be reused, so forget their previews
+			previewedOn = previewedOff = null;
+		}
+	}
 	/**
 	 * Internal method to process the two frames.
 	 * @param frameOn A frame that was taken with a flash
@@ -180,5 +883,5 @@ public abstract class AbstractImageProcessor<R> implements Runnable, BiFunction<
 	 * @return generated data
 	 */
 	@Override
-	public abstract R apply(VideoFrame frameOn, VideoFrame frameOff);
+	public abstract R apply(CapturedFrame frameOn, CapturedFrame frameOff);
 }
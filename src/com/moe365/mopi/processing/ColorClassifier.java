@@ -0,0 +1,593 @@
+package com.moe365.mopi.processing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a pixel is part of a target, based on the difference
+ * between the pixel with the flash on and the pixel with the flash off.
+ * <p>
+ * Instead of evaluating the rules for every pixel, the rules are evaluated
+ * once for every quantized (dR, dG, dB) bucket, and the results are stored
+ * in a bitset. Testing a pixel is then a single table lookup, so adding more
+ * rules costs nothing at runtime. Buckets that a rule's boundary passes
+ * through are marked as mixed, and pixels in them are tested against the
+ * rules directly, so quantizing never changes which pixels match.
+ * </p>
+ * <p>
+ * Rules are written one per line, and a pixel matches if any of the lines
+ * match. Each line is a set of comparisons joined by <code>&amp;&amp;</code>,
+ * where each side is a linear combination of <code>dR</code>,
+ * <code>dG</code>, <code>dB</code> and constants. Blank lines and text after a
+ * <code>#</code> are ignored. For example:
+ * <pre>
+ * # Green, but not white
+ * dG &gt; 70 &amp;&amp; dR &lt; dG - 10
+ * dG &gt; 70 &amp;&amp; dR &lt; 70
+ * </pre>
+ * </p>
+ */
+public class ColorClassifier {
+	/**
+	 * Default number of low bits dropped from each delta when building the
+	 * table. With 2 bits dropped, each channel has 128 buckets, and the table
+	 * takes 512kB.
+	 */
+	public static final int DEFAULT_QUANTIZATION = 2;
+	/**
+	 * Number of bits needed to store a delta (in the range [-255, 255]) after
+	 * it has been offset to be positive.
+	 */
+	protected static final int DELTA_BITS = 9;
+	/**
+	 * Offset added to deltas so that they are positive.
+	 */
+	protected static final int DELTA_OFFSET = 1 << (DELTA_BITS - 1);
+	/**
+	 * Results of testing a bucket: no delta in it matches, every delta in it
+	 * matches, or only some do. Also the bits stored for each bucket.
+	 */
+	protected static final int FALSE = 0, TRUE = 1, MIXED = 2;
+	/**
+	 * Matches a comparison operator.
+	 */
+	protected static final Pattern COMPARISON = Pattern.compile("<=|>=|<|>");
+	/**
+	 * Tables for {@link #shared(String)}, by their rules
+	 */
+	protected static final ConcurrentHashMap<String, Table> SHARED_TABLES = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of low bits dropped from each delta
+	 */
+	protected final int quantization;
+	/**
+	 * The current lookup table. Replaced (never modified) when the rules
+	 * change.
+	 */
+	protected volatile Table table;
+	/**
+	 * File that the rules were loaded from, or null if they weren't loaded
+	 * from a file.
+	 */
+	protected volatile File source;
+	/**
+	 * Service to rebuild the table on. If null, the table is rebuilt on the
+	 * calling thread.
+	 */
+	protected ExecutorService executor;
+
+	/**
+	 * Load a classifier from a rules file
+	 * @param file file to read the rules from
+	 * @return classifier
+	 * @throws IOException if the file couldn't be read
+	 * @throws IllegalArgumentException if the file contains invalid rules
+	 */
+	public static ColorClassifier load(File file) throws IOException, IllegalArgumentException {
+		ColorClassifier result = new ColorClassifier(readRules(file));
+		result.source = file;
+		return result;
+	}
+
+	/**
+	 * Create a classifier from rules. The table is built on the calling thread.
+	 * @param rules rules, in the format described in the class documentation
+	 * @throws IllegalArgumentException if the rules are invalid
+	 */
+	public ColorClassifier(String rules) throws IllegalArgumentException {
+		this(parseRules(rules));
+	}
+
+	/**
+	 * Create a classifier from rules. The table is built on the calling thread.
+	 * @param rules list of rules, where a pixel matches if any rule matches
+	 */
+	public ColorClassifier(List<Rule> rules) {
+		this(rules, DEFAULT_QUANTIZATION);
+	}
+
+	/**
+	 * Create a classifier from rules. The table is built on the calling thread.
+	 * @param rules list of rules, where a pixel matches if any rule matches
+	 * @param quantization number of low bits to drop from each delta. Must be 0-8.
+	 */
+	public ColorClassifier(List<Rule> rules, int quantization) {
+		if (quantization < 0 || quantization >= DELTA_BITS)
+			throw new IllegalArgumentException("Invalid quantization (expect: 0 <= quantization < " + DELTA_BITS + "; quantization = " + quantization + ")");
+		this.quantization = quantization;
+		this.table = new Table(rules, quantization);
+	}
+
+	/**
+	 * Create a classifier that starts with a table that was already built
+	 * @param table the table
+	 */
+	protected ColorClassifier(Table table) {
+		this.quantization = table.quantization;
+		this.table = table;
+	}
+
+	/**
+	 * Get a classifier for rules that a lot of processors use (like their
+	 * defaults). The table for each set of rules is built the first time
+	 * that it's asked for, and then shared, because it's immutable. Each
+	 * classifier is still its own, so updating one doesn't change the others.
+	 * @param rules rules, in the format described in the class documentation
+	 * @return a new classifier
+	 * @throws IllegalArgumentException if the rules are invalid
+	 */
+	public static ColorClassifier shared(String rules) throws IllegalArgumentException {
+		return new ColorClassifier(SHARED_TABLES.computeIfAbsent(rules, r -> new Table(parseRules(r), DEFAULT_QUANTIZATION)));
+	}
+
+	/**
+	 * Set ExecutorService for the table to be rebuilt on.
+	 * @param executor service to run on
+	 * @return self
+	 */
+	public ColorClassifier runOn(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Get the current lookup table. Processors should call this once per
+	 * frame, so that all pixels in the frame are tested against the same
+	 * rules, even if the table is swapped in the middle of processing.
+	 * @return the current table
+	 */
+	public Table getTable() {
+		return this.table;
+	}
+
+	/**
+	 * Test a delta against the current table.
+	 * @see Table#test(int, int, int)
+	 */
+	public boolean test(int dR, int dG, int dB) {
+		return this.table.test(dR, dG, dB);
+	}
+
+	/**
+	 * Replace the rules. The new table is built in the background (if an
+	 * executor has been set), and the old table is used until it is done.
+	 * @param rules new rules
+	 * @return future that is completed when the new table is in use
+	 */
+	public Future<?> update(List<Rule> rules) {
+		final List<Rule> copy = new ArrayList<>(rules);
+		Runnable task = () -> {
+			long start = System.nanoTime();
+			this.table = new Table(copy, quantization);
+			System.out.println("Rebuilt classifier table in " + ((System.nanoTime() - start) / 1_000_000) + "ms");
+		};
+		if (executor == null) {
+			task.run();
+			return CompletableFuture.completedFuture(null);
+		}
+		return executor.submit(task);
+	}
+
+	/**
+	 * Re-read the rules from the file that they were loaded from.
+	 * @return future that is completed when the new table is in use
+	 * @throws IOException if the file couldn't be read
+	 * @throws IllegalArgumentException if the file contains invalid rules
+	 * @throws IllegalStateException if this classifier wasn't loaded from a file
+	 */
+	public Future<?> reload() throws IOException, IllegalArgumentException, IllegalStateException {
+		File file = this.source;
+		if (file == null)
+			throw new IllegalStateException("Classifier was not loaded from a file");
+		return update(readRules(file));
+	}
+
+	/**
+	 * Read rules from a file
+	 * @param file file to read
+	 * @return parsed rules
+	 * @throws IOException if the file couldn't be read
+	 * @throws IllegalArgumentException if the file contains invalid rules
+	 */
+	public static List<Rule> readRules(File file) throws IOException, IllegalArgumentException {
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			return parseRules(in);
+		}
+	}
+
+	/**
+	 * Parse rules from a string
+	 * @param rules rules, one per line
+	 * @return parsed rules
+	 * @throws IllegalArgumentException if the rules are invalid
+	 */
+	public static List<Rule> parseRules(String rules) throws IllegalArgumentException {
+		try {
+			return parseRules(new BufferedReader(new StringReader(rules)));
+		} catch (IOException e) {
+			//Can't happen with a StringReader
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Parse rules, one per line.
+	 * @param in reader to read rules from
+	 * @return parsed rules
+	 * @throws IOException if there was an error reading
+	 * @throws IllegalArgumentException if the rules are invalid
+	 */
+	public static List<Rule> parseRules(BufferedReader in) throws IOException, IllegalArgumentException {
+		List<Rule> result = new ArrayList<>();
+		String line;
+		int lineNum = 0;
+		while ((line = in.readLine()) != null) {
+			lineNum++;
+			int idx = line.indexOf('#');
+			if (idx >= 0)
+				line = line.substring(0, idx);
+			line = line.trim();
+			if (line.isEmpty())
+				continue;
+			try {
+				result.add(Rule.parse(line));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid rule on line " + lineNum + ": " + e.getMessage(), e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * An immutable, precomputed bitset over quantized (dR, dG, dB). Each
+	 * bucket takes two bits: whether every delta in it matches, and whether
+	 * only some of them do (in which case the rules are tested directly).
+	 */
+	public static final class Table {
+		/**
+		 * Number of low bits dropped from each delta
+		 */
+		protected final int quantization;
+		/**
+		 * Number of bits that each (quantized) channel takes in the index
+		 */
+		protected final int channelBits;
+		/**
+		 * The bits. Bucket <code>i</code> is stored in bits <code>2 * i</code>
+		 * (matches) and <code>2 * i + 1</code> (mixed) of the array, so its bits
+		 * are in <code>bits[i / 32]</code>.
+		 */
+		protected final long[] bits;
+		/**
+		 * The rules, for testing deltas in mixed buckets
+		 */
+		protected final Rule[] ruleArray;
+		/**
+		 * The rules that this table was built from
+		 */
+		protected final List<Rule> rules;
+
+		protected Table(List<Rule> rules, int quantization) {
+			this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+			this.quantization = quantization;
+			this.channelBits = DELTA_BITS - quantization;
+			final int buckets = 1 << channelBits;
+			this.bits = new long[Math.max(1, (1 << (3 * channelBits)) >>> 5)];
+			this.ruleArray = this.rules.toArray(new Rule[this.rules.size()]);
+			//Range of deltas in each bucket, for each channel, as {min, max}
+			final int[] range = new int[6];
+			for (int r = 0; r < buckets; r++) {
+				if (!bucketRange(r, quantization, range, 0))
+					continue;
+				for (int g = 0; g < buckets; g++) {
+					if (!bucketRange(g, quantization, range, 2))
+						continue;
+					for (int b = 0; b < buckets; b++) {
+						if (!bucketRange(b, quantization, range, 4))
+							continue;
+						int result = FALSE;
+						for (Rule rule : ruleArray) {
+							int match = rule.test(range);
+							if (match == TRUE) {
+								result = TRUE;
+								break;
+							}
+							if (match == MIXED)
+								result = MIXED;
+						}
+						if (result != FALSE) {
+							int idx = (((r << channelBits) | g) << channelBits) | b;
+							bits[idx >>> 5] |= ((long) result) << ((idx & 31) << 1);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Find the deltas that a bucket of a channel covers, leaving out ones
+		 * that can't happen
+		 * @param bucket the bucket
+		 * @param quantization number of low bits dropped from each delta
+		 * @param range array to put {min, max} in
+		 * @param offset where in the array to put them
+		 * @return whether the bucket covers any deltas that can happen
+		 */
+		private static boolean bucketRange(int bucket, int quantization, int[] range, int offset) {
+			final int min = Math.max(-0xFF, (bucket << quantization) - DELTA_OFFSET);
+			final int max = Math.min(0xFF, ((bucket + 1) << quantization) - 1 - DELTA_OFFSET);
+			range[offset] = min;
+			range[offset + 1] = max;
+			return min <= max;
+		}
+
+		/**
+		 * Test whether a pixel with the given deltas is part of a target.
+		 * @param dR difference in red, in the range [-255, 255]
+		 * @param dG difference in green, in the range [-255, 255]
+		 * @param dB difference in blue, in the range [-255, 255]
+		 * @return whether the pixel matches any rule
+		 */
+		public boolean test(int dR, int dG, int dB) {
+			final int idx = ((((dR + DELTA_OFFSET) >> quantization) << channelBits
+					| ((dG + DELTA_OFFSET) >> quantization)) << channelBits)
+					| ((dB + DELTA_OFFSET) >> quantization);
+			final int bucket = (int) (bits[idx >>> 5] >>> ((idx & 31) << 1)) & 3;
+			if (bucket != MIXED)
+				return bucket == TRUE;
+			//On the edge of a rule, so test it exactly
+			for (Rule rule : ruleArray)
+				if (rule.test(dR, dG, dB))
+					return true;
+			return false;
+		}
+
+		/**
+		 * Test two RGB32 pixels.
+		 * @param pxOn RGB32 pixel with the flash on
+		 * @param pxOff RGB32 pixel with the flash off
+		 * @return whether the difference matches any rule
+		 */
+		public boolean testRGB(int pxOn, int pxOff) {
+			return test(((pxOn >> 16) & 0xFF) - ((pxOff >> 16) & 0xFF), ((pxOn >> 8) & 0xFF) - ((pxOff >> 8) & 0xFF), (pxOn & 0xFF) - (pxOff & 0xFF));
+		}
+
+		/**
+		 * @return the rules this table was built from
+		 */
+		public List<Rule> getRules() {
+			return rules;
+		}
+	}
+
+	/**
+	 * A set of comparisons, all of which have to be true for the rule to
+	 * match.
+	 */
+	public static class Rule {
+		protected final List<Comparison> comparisons;
+
+		/**
+		 * Parse a rule, such as <code>dG &gt; 70 &amp;&amp; dR &lt; dG - 10</code>.
+		 * @param rule text to parse
+		 * @return parsed rule
+		 * @throws IllegalArgumentException if the rule is invalid
+		 */
+		public static Rule parse(String rule) throws IllegalArgumentException {
+			List<Comparison> comparisons = new ArrayList<>();
+			for (String part : rule.split("&&"))
+				comparisons.add(Comparison.parse(part));
+			return new Rule(comparisons);
+		}
+
+		public Rule(List<Comparison> comparisons) {
+			this.comparisons = Collections.unmodifiableList(new ArrayList<>(comparisons));
+		}
+
+		/**
+		 * @return whether all comparisons are true for the given deltas
+		 */
+		public boolean test(int dR, int dG, int dB) {
+			for (Comparison comparison : comparisons)
+				if (!comparison.test(dR, dG, dB))
+					return false;
+			return true;
+		}
+
+		/**
+		 * Test every delta in a box at once
+		 * @param range the box, as {minR, maxR, minG, maxG, minB, maxB}
+		 * @return {@link ColorClassifier#TRUE} if the rule matches every delta
+		 *     in the box, {@link ColorClassifier#FALSE} if it matches none of
+		 *     them, or {@link ColorClassifier#MIXED} if it might match some
+		 */
+		public int test(int[] range) {
+			int result = TRUE;
+			for (Comparison comparison : comparisons) {
+				int match = comparison.test(range);
+				if (match == FALSE)
+					return FALSE;
+				if (match == MIXED)
+					result = MIXED;
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Comparison comparison : comparisons)
+				sb.append(comparison).append(" && ");
+			if (sb.length() > 0)
+				sb.setLength(sb.length() - 4);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A comparison, stored as <code>cR * dR + cG * dG + cB * dB + c0 (op) 0</code>.
+	 */
+	public static class Comparison {
+		protected final double cR, cG, cB, c0;
+		protected final String op;
+
+		/**
+		 * Parse a comparison, such as <code>dR &lt; dG - 10</code>
+		 * @param text text to parse
+		 * @return parsed comparison
+		 * @throws IllegalArgumentException if the comparison is invalid
+		 */
+		public static Comparison parse(String text) throws IllegalArgumentException {
+			Matcher m = COMPARISON.matcher(text);
+			if (!m.find())
+				throw new IllegalArgumentException("Missing comparison operator in '" + text.trim() + "'");
+			double[] left = parseLinear(text.substring(0, m.start()));
+			double[] right = parseLinear(text.substring(m.end()));
+			return new Comparison(left[0] - right[0], left[1] - right[1], left[2] - right[2], left[3] - right[3], m.group());
+		}
+
+		/**
+		 * Parse a linear combination of dR, dG, dB, and constants.
+		 * @param expr expression to parse (e.g., <code>2 * dG - dR + 5</code>)
+		 * @return array of {cR, cG, cB, c0}
+		 * @throws IllegalArgumentException if the expression is invalid
+		 */
+		protected static double[] parseLinear(String expr) throws IllegalArgumentException {
+			double[] result = new double[4];
+			String s = expr.replaceAll("\\s+", "");
+			if (s.isEmpty())
+				throw new IllegalArgumentException("Empty expression");
+			int i = 0;
+			while (i < s.length()) {
+				double sign = 1;
+				if (s.charAt(i) == '+' || s.charAt(i) == '-') {
+					if (s.charAt(i) == '-')
+						sign = -1;
+					i++;
+				} else if (i > 0) {
+					throw new IllegalArgumentException("Expected '+' or '-' at '" + s.substring(i) + "'");
+				}
+				int start = i;
+				while (i < s.length() && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.'))
+					i++;
+				boolean hasNumber = i > start;
+				double value = hasNumber ? Double.parseDouble(s.substring(start, i)) : 1;
+				if (hasNumber && i < s.length() && s.charAt(i) == '*')
+					i++;
+				int channel = 3;
+				if (s.startsWith("dR", i))
+					channel = 0;
+				else if (s.startsWith("dG", i))
+					channel = 1;
+				else if (s.startsWith("dB", i))
+					channel = 2;
+				else if (!hasNumber)
+					throw new IllegalArgumentException("Expected number or channel at '" + s.substring(i) + "'");
+				if (channel < 3)
+					i += 2;
+				result[channel] += sign * value;
+			}
+			return result;
+		}
+
+		public Comparison(double cR, double cG, double cB, double c0, String op) {
+			this.cR = cR;
+			this.cG = cG;
+			this.cB = cB;
+			this.c0 = c0;
+			this.op = op;
+		}
+
+		/**
+		 * @return whether this comparison is true for the given deltas
+		 */
+		public boolean test(int dR, int dG, int dB) {
+			final double value = cR * dR + cG * dG + cB * dB + c0;
+			switch (op) {
+				case "<":
+					return value < 0;
+				case "<=":
+					return value <= 0;
+				case ">":
+					return value > 0;
+				case ">=":
+					return value >= 0;
+				default:
+					return false;
+			}
+		}
+
+		/**
+		 * Test every delta in a box at once. The comparison is linear, so it's
+		 * enough to check the smallest and largest values in the box.
+		 * @param range the box, as {minR, maxR, minG, maxG, minB, maxB}
+		 * @return {@link ColorClassifier#TRUE} if the comparison is true for
+		 *     every delta in the box, {@link ColorClassifier#FALSE} if it's
+		 *     false for all of them, or {@link ColorClassifier#MIXED} otherwise
+		 */
+		public int test(int[] range) {
+			final double min = c0 + Math.min(cR * range[0], cR * range[1]) + Math.min(cG * range[2], cG * range[3]) + Math.min(cB * range[4], cB * range[5]);
+			final double max = c0 + Math.max(cR * range[0], cR * range[1]) + Math.max(cG * range[2], cG * range[3]) + Math.max(cB * range[4], cB * range[5]);
+			final boolean allTrue, allFalse;
+			switch (op) {
+				case "<":
+					allTrue = max < 0;
+					allFalse = min >= 0;
+					break;
+				case "<=":
+					allTrue = max <= 0;
+					allFalse = min > 0;
+					break;
+				case ">":
+					allTrue = min > 0;
+					allFalse = max <= 0;
+					break;
+				case ">=":
+					allTrue = min >= 0;
+					allFalse = max < 0;
+					break;
+				default:
+					return FALSE;
+			}
+			return allTrue ? TRUE : allFalse ? FALSE : MIXED;
+		}
+
+		@Override
+		public String toString() {
+			return cR + "*dR + " + cG + "*dG + " + cB + "*dB + " + c0 + " " + op + " 0";
+		}
+	}
+}
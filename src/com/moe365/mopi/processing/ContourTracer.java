@@ -9,14 +9,19 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+import com.moe365.mopi.capture.CapturedFrame;
 import com.moe365.mopi.geom.Polygon;
 import com.moe365.mopi.geom.Polygon.PointNode;
 import com.moe365.mopi.geom.PreciseRectangle;
 
-import au.edu.jcu.v4l4j.VideoFrame;
-
 /**
  * An image processor that finds blobs in images by tracing their contours.
  * @author mailmindlin
@@ -28,42 +33,223 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 	protected double stepSize = 4.0;
 	public static final int minGreenTolerance = 70;
 	public static final int maxRedTolerance = 70;
+	/**
+	 * Pool that blobs are refined on
+	 */
+	protected final ForkJoinPool refinePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	/**
+	 * Parameters to switch to before the next pair, or null to keep the
+	 * current ones (see {@link #setParams(ContourTracerParams)})
+	 */
+	protected final AtomicReference<ContourTracerParams> pendingParams = new AtomicReference<>();
+	/**
+	 * Rules matching the original hard-coded test
+	 */
+	public static final String DEFAULT_RULES = "dG > " + minGreenTolerance + " && dR < " + maxRedTolerance;
 	public ContourTracer(int width, int height) throws IllegalArgumentException {
 		this(width, height, null);
 	}
 	public ContourTracer(int width, int height, Consumer<List<Polygon>> handler) {
 		super(0, 0, width, height, handler);
+		this.classifier = ColorClassifier.shared(DEFAULT_RULES);
 		System.out.println("W: " + width + "\tH: " + height);
 	}
 	
 	public ContourTracer(ContourTracerParams params, Consumer<List<Polygon>> handler) {
 		super(params.getFrameMinX(), params.getFrameMinY(), params.getFrameMaxX(), params.getFrameMaxY(), handler);
+		this.classifier = ColorClassifier.shared(DEFAULT_RULES);
+		loadParams(params);
+	}
+	/**
+	 * Change the blob size and tracing parameters. The new parameters are
+	 * used starting with the next pair, all at once, so no pair is traced
+	 * with a mix of old and new ones. Can be called from any thread, while
+	 * the processor is running.
+	 * @param params the new parameters (copied, so they can be changed
+	 *     afterwards)
+	 * @return self
+	 * @throws IllegalArgumentException if the params have different frame
+	 *     bounds, which can only be set when the processor is created
+	 */
+	public ContourTracer setParams(ContourTracerParams params) throws IllegalArgumentException {
+		if (params.getFrameMinX() != frameMinX || params.getFrameMinY() != frameMinY || params.getFrameMaxX() != frameMaxX || params.getFrameMaxY() != frameMaxY)
+			throw new IllegalArgumentException("Can't change the frame bounds of a running tracer (expect: " + frameMinX + "," + frameMinY + "," + frameMaxX + "," + frameMaxY
+					+ "; bounds = " + params.getFrameMinX() + "," + params.getFrameMinY() + "," + params.getFrameMaxX() + "," + params.getFrameMaxY() + ")");
+		pendingParams.set(new ContourTracerParams()
+				.setMinBlobWidth(params.getMinBlobWidth())
+				.setMinBlobHeight(params.getMinBlobHeight())
+				.setMaxSegmentLength(params.getMaxSegmentLength())
+				.setStepSize(params.getStepSize()));
+		return this;
+	}
+	/**
+	 * Switch to the parameters from {@link #setParams(ContourTracerParams)},
+	 * if there are any. Only called from the thread that traces pairs, before
+	 * a pair, so the parameters never change in the middle of one.
+	 */
+	protected void applyPendingParams() {
+		final ContourTracerParams params = pendingParams.getAndSet(null);
+		if (params != null) {
+			loadParams(params);
+			System.out.println("Tracer params: min blob " + minBlobWidth + "x" + minBlobHeight + ", max segment " + maxSegmentLength + ", step " + stepSize);
+		}
+	}
+	/**
+	 * Copy the blob size and tracing parameters
+	 */
+	private void loadParams(ContourTracerParams params) {
 		this.minBlobWidth = params.getMinBlobWidth();
 		this.minBlobHeight = params.getMinBlobHeight();
 		this.maxSegmentLength = params.getMaxSegmentLength();
 		this.stepSize = params.getStepSize();
 	}
 	@Override
-	public List<Polygon> apply(VideoFrame frameOn, VideoFrame frameOff) {
-		BufferedImage imgOn = frameOn.getBufferedImage();
-		BufferedImage imgOff = frameOff.getBufferedImage();
-		final boolean[][] processed = new boolean[getFrameHeight()][getFrameWidth()];
-		final boolean[][] cache = new boolean[getFrameHeight()][getFrameWidth()];
+	public List<Polygon> apply(CapturedFrame frameOn, CapturedFrame frameOff) {
+		applyPendingParams();
+		if (!hasCandidates(frameOn, frameOff))
+			//Nothing in the preview, so there's no need for a full decode
+			return new LinkedList<>();
+		final FramePlanes planes = loadPlanes(frameOn, frameOff);
+		checkDeadline("pass1");
 		System.out.println("Starting pass1");
-		List<Polygon> result = tracePass1((x, y) -> {
-			if (processed[y][x])
-				return cache[y][x];
-			processed[y][x] = true;
-			int pxOn  = imgOn.getRGB(x, y);
-			int pxOff = imgOff.getRGB(x, y);
-			return cache[y][x] = ((pxOn >> 8) & 0xFF) - ((pxOff >> 8) & 0xFF) > minGreenTolerance && ((pxOn >> 16) & 0xFF) - ((pxOff >> 16) & 0xFF) < maxRedTolerance;
-		});
+		List<Polygon> result = selectTargets(tracePass1(planes));
 		System.out.println("(done)");
 		return result;
 	}
+	/**
+	 * Run the blobs through the {@linkplain #targetFilter target filter},
+	 * keeping the largest that pass.
+	 * @param blobs the traced blobs
+	 * @return the blobs that were kept, largest first
+	 */
+	protected List<Polygon> selectTargets(List<Polygon> blobs) {
+		final TargetFilter filter = this.targetFilter;
+		final TargetFilter.Selector<Polygon> selector = filter.newSelector();
+		final double xFactor = 1.0 / getFrameWidth(), yFactor = 1.0 / getFrameHeight();
+		for (Polygon blob : blobs) {
+			final PreciseRectangle bounds = blob.getBoundingBox();
+			final double width = bounds.getWidth() * xFactor, height = bounds.getHeight() * yFactor;
+			final double area = width * height;
+			if (!selector.wouldKeep(area))
+				continue;
+			//How much of the bounding box the outline covers
+			final double fill = filter.needsFillRatio() ? Math.abs(blob.getArea()) / bounds.getArea() : 1;
+			if (filter.test(bounds.getX() * xFactor, bounds.getY() * yFactor, width, height, fill))
+				selector.offer(blob, area);
+		}
+		return selector.drain();
+	}
+	@Override
+	protected List<Polygon> processImages(BufferedImage imgOn, BufferedImage imgOff) {
+		applyPendingParams();
+		return selectTargets(tracePass1(loadPlanes(imgOn, imgOff)));
+	}
+	@Override
+	protected List<Polygon> copyResult(List<Polygon> result) {
+		//The result consumer scales the polygons in place
+		List<Polygon> copy = new ArrayList<>(result.size());
+		for (Polygon polygon : result)
+			copy.add(polygon.copy());
+		return copy;
+	}
+	@Override
+	protected List<PreciseRectangle> getTargets(List<Polygon> result) {
+		final double xFactor = 1.0 / getFrameWidth(), yFactor = 1.0 / getFrameHeight();
+		List<PreciseRectangle> targets = new ArrayList<>(result.size());
+		for (Polygon polygon : result)
+			targets.add(polygon.getBoundingBox().scale(xFactor, yFactor, xFactor, yFactor));
+		return targets;
+	}
 	
+	/**
+	 * Find all the blobs in the image, and trace their contours.
+	 * <p>
+	 * The image is scanned for seeds, skipping the area covered by each seed
+	 * (see {@link #seedBlobs(BinaryImage)}), and every seed is refined, on
+	 * {@link #refinePool} if there's more than one. A blob with an irregular
+	 * shape can be seeded more than once, so blobs that overlap are merged
+	 * afterwards (see {@link #mergeOverlapping(List)}). The image must not
+	 * change until this method returns.
+	 * </p>
+	 * @param image image to search
+	 * @return the blobs found, in the order they were seeded
+	 */
 	protected List<Polygon> tracePass1(BinaryImage image) {
-		List<Polygon> blobs = new LinkedList<Polygon>();
+		List<Polygon> seeds = seedBlobs(image);
+		checkDeadline("refine");
+		List<Future<Polygon>> refined = new ArrayList<>(seeds.size());
+		if (seeds.size() > 1) {
+			try {
+				for (Polygon seed : seeds)
+					refined.add(refinePool.submit(() -> refine(image, seed)));
+			} catch (RejectedExecutionException e) {
+				//Pool has been shut down, so refine the rest on this thread
+			}
+		}
+		List<Polygon> blobs = new ArrayList<>(seeds.size());
+		boolean done = false;
+		try {
+			for (int i = 0; i < seeds.size(); i++) {
+				Polygon blob = i < refined.size() ? join(refined.get(i)) : refine(image, seeds.get(i));
+				//Couldn't be traced
+				if (blob != null)
+					blobs.add(blob);
+				if (i + 1 < seeds.size())
+					checkDeadline("refine");
+			}
+			done = true;
+		} finally {
+			if (!done) {
+				//Aborted, so don't start refining the rest
+				for (Future<Polygon> future : refined)
+					future.cancel(false);
+				//The image is reused after this returns, so wait for the ones that already started
+				refinePool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+		}
+		return mergeOverlapping(blobs);
+	}
+	
+	/**
+	 * Find a seed polygon for every blob in the image, skipping only the
+	 * area covered by each seed. A seed covers less than its blob will once
+	 * it's refined, so a blob may be seeded more than once.
+	 * @param image image to search
+	 * @return seed polygons, in scan order
+	 */
+	protected List<Polygon> seedBlobs(BinaryImage image) {
+		List<Polygon> seeds = new ArrayList<>();
+		scanBlobs(image, (x, y, seed) -> {
+			seeds.add(seed);
+			return seed.getBoundingBox();
+		});
+		return seeds;
+	}
+	
+	/**
+	 * Callback for {@link ContourTracer#scanBlobs(BinaryImage, SeedHandler)}
+	 */
+	@FunctionalInterface
+	protected static interface SeedHandler {
+		/**
+		 * Called for each seed found.
+		 * @param x x coordinate that the seed was found at
+		 * @param y y coordinate that the seed was found at
+		 * @param seed seed polygon
+		 * @return bounds of the area to skip when looking for more seeds
+		 */
+		PreciseRectangle seedFound(int x, int y, Polygon seed);
+	}
+	
+	/**
+	 * Scan the image for blobs. Each seed is the four points where a
+	 * horizontal and vertical line through a point in the blob leave it. The
+	 * area that the handler returns for each seed is skipped, so that the
+	 * same blob isn't seeded over and over.
+	 * @param image image to search
+	 * @param handler called for every seed, in scan order
+	 */
+	protected void scanBlobs(BinaryImage image, SeedHandler handler) {
 		List<PreciseRectangle> bounds = new LinkedList<>();
 		
 		for (int y = frameMinY + minBlobHeight; y < frameMaxY - minBlobHeight; y+= minBlobHeight) {
@@ -94,11 +280,8 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 					blob.addPoint(--rightX, y);
 					for (bottomY = y; bottomY < frameMaxY && image.test(x, bottomY); bottomY++);
 					blob.addPoint(x, --bottomY);
-					tracePass2(image, blob);
-					tracePass3(blob);
-					blobs.add(blob);
 					//skip to the end of this rectangle
-					PreciseRectangle blobBounds = blob.getBoundingBox();
+					PreciseRectangle blobBounds = handler.seedFound(x, y, blob);
 					x += (int)(blobBounds.getX() + blobBounds.getWidth() - x + minBlobWidth/2) % minBlobWidth;
 					rowBounds.add(blobBounds);
 					bounds.add(blobBounds);
@@ -106,20 +289,175 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 				}
 			}
 		}
-		return blobs;
 	}
+	
 	/**
-	 * Pass2 fills out the polygon.
+	 * Wait for a blob being refined on {@link #refinePool}
+	 */
+	private static Polygon join(Future<Polygon> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while refining blobs", e);
+		} catch (ExecutionException e) {
+			//Rethrow, so it looks like it happened on this thread
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException("Unable to refine blob", cause);
+		}
+	}
+	
+	/**
+	 * Run the refinement passes on a seeded blob. Only reads from the image,
+	 * so multiple blobs can be refined at the same time.
+	 * @param image image that the blob is in
+	 * @param blob seed polygon, which is modified
+	 * @return blob, or null if it couldn't be traced
+	 */
+	protected Polygon refine(BinaryImage image, Polygon blob) {
+		if (!tracePass2(image, blob))
+			return null;
+		tracePass3(blob);
+		return blob;
+	}
+	
+	/**
+	 * A seed only covers part of its blob, so a blob with an irregular shape
+	 * (like a U) can be seeded more than once, and each seed may trace a
+	 * different part of it, like one arm. Each group of blobs whose bounds
+	 * overlap is merged into the convex hull of their points, so that it
+	 * covers the whole blob.
+	 * @param blobs refined blobs, in seed order
+	 * @return blobs, merged, in seed order (of the first blob in each group)
+	 */
+	protected List<Polygon> mergeOverlapping(List<Polygon> blobs) {
+		final int n = blobs.size();
+		if (n < 2)
+			return blobs;
+		PreciseRectangle[] bounds = new PreciseRectangle[n];
+		//Index of the blob that each blob was merged into
+		int[] group = new int[n];
+		for (int i = 0; i < n; i++) {
+			bounds[i] = blobs.get(i).getBoundingBox();
+			group[i] = i;
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				if (!overlaps(bounds[i], bounds[j]))
+					continue;
+				int a = root(group, i), b = root(group, j);
+				//Root each group at its first blob
+				if (a < b)
+					group[b] = a;
+				else if (b < a)
+					group[a] = b;
+			}
+		}
+		List<Polygon> result = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			if (group[i] != i)
+				continue;
+			List<Polygon> members = new ArrayList<>();
+			for (int j = i; j < n; j++)
+				if (root(group, j) == i)
+					members.add(blobs.get(j));
+			result.add(members.size() == 1 ? members.get(0) : hull(members));
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the convex hull of the points of some polygons (monotone chain)
+	 * @param polygons polygons to cover
+	 * @return the hull, counterclockwise
+	 */
+	protected static Polygon hull(List<Polygon> polygons) {
+		List<PointNode> points = new ArrayList<>();
+		for (Polygon polygon : polygons) {
+			PointNode node = polygon.getStartingPoint();
+			do
+				points.add(node);
+			while ((node = node.next()) != polygon.getStartingPoint());
+		}
+		points.sort((a, b) -> a.getX() != b.getX() ? Double.compare(a.getX(), b.getX()) : Double.compare(a.getY(), b.getY()));
+		PointNode[] chain = new PointNode[2 * points.size()];
+		int k = 0;
+		//Lower hull, then upper hull
+		for (int i = 0; i < points.size(); i++) {
+			while (k >= 2 && cross(chain[k - 2], chain[k - 1], points.get(i)) <= 0)
+				k--;
+			chain[k++] = points.get(i);
+		}
+		for (int i = points.size() - 2, lower = k + 1; i >= 0; i--) {
+			while (k >= lower && cross(chain[k - 2], chain[k - 1], points.get(i)) <= 0)
+				k--;
+			chain[k++] = points.get(i);
+		}
+		//The last point is the first one again
+		Polygon result = new Polygon(chain[0].getX(), chain[0].getY());
+		for (int i = 1; i < k - 1; i++)
+			result.addPoint(chain[i].getX(), chain[i].getY());
+		return result;
+	}
+	
+	private static double cross(PointNode o, PointNode a, PointNode b) {
+		return (a.getX() - o.getX()) * (b.getY() - o.getY()) - (a.getY() - o.getY()) * (b.getX() - o.getX());
+	}
+	
+	private static int root(int[] group, int i) {
+		while (group[i] != i)
+			i = group[i] = group[group[i]];
+		return i;
+	}
+	
+	private static boolean overlaps(PreciseRectangle a, PreciseRectangle b) {
+		//Blobs that only touch are separate
+		return a.getX() < b.getX() + b.getWidth() && b.getX() < a.getX() + a.getWidth()
+				&& a.getY() < b.getY() + b.getHeight() && b.getY() < a.getY() + a.getHeight();
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		refinePool.shutdownNow();
+	}
+	
+	/**
+	 * Pass2 fills out the polygon. The step size and segment length are
+	 * multiplied by the {@linkplain #getStride() stride}.
+	 * <p>
+	 * On a blob with a ragged edge (like one broken up by noise), the edge
+	 * search can walk off of the blob and across the frame, so that every new
+	 * point makes a longer segment, and the polygon never converges, no
+	 * matter where it was seeded. If the polygon gets more points than a blob
+	 * the size of the frame could need, the blob is given up on. So is a seed whose points all fall on the same
+	 * pixel, which collapses to a single point.
+	 * </p>
 	 * @param image image that the polygon is in
 	 * @param blob partially formed polygon
+	 * @return whether the polygon converged
 	 */
-	protected void tracePass2(BinaryImage image, Polygon blob) {
-		System.out.println("Pass2: " + blob);
+	protected boolean tracePass2(BinaryImage image, Polygon blob) {
+		//Trace more coarsely if we're falling behind
+		final int stride = getStride();
+		final double maxSegmentLength = this.maxSegmentLength * stride;
+		final double stepSize = this.stepSize * stride;
+		//Each segment of a converged polygon is at least about half of the max length, and it can't wind around the frame many times
+		final int maxInserts = (int) (16 * (getFrameWidth() + getFrameHeight()) / Math.max(1, maxSegmentLength));
+		int inserts = 0;
 		final PointNode startingPoint = blob.getStartingPoint();
 		PointNode pointA = startingPoint, pointB = pointA.next();
 		while (true) {
 			// Use distance^2, because x^2 < r^2 if x < r, and x^2 > r^2 if x > r, and it's faster, because no sqrt operations.
 			if (pointA.equals(pointB)) {
+				if (pointA == pointB) {
+					//Every point was on top of every other (like a seed on a single pixel), so there's no outline to trace
+					return false;
+				}
 				pointA.removeNext();
 			} else if (pointA.getDistanceSquared(pointB) > maxSegmentLength * maxSegmentLength) {
 				// point A and B are >r px apart
@@ -168,6 +506,8 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 					midpointX -= stepX;
 					midpointY -= stepY;
 				}
+				if (++inserts > maxInserts)
+					return false;
 				pointB = pointA.insertNext(midpointX, midpointY);
 			} else {
 				if ((pointA = pointA.next()).equals(startingPoint))
@@ -176,7 +516,7 @@ public class ContourTracer extends AbstractImageProcessor<List<Polygon>> {
 			if ((pointB = pointA.next()) == null)
 				break;
 		}
-		System.out.println("(done pass2): " + blob);
+		return true;
 	}
 	/**
 	 * Pass3 smoothes straight edges.
@@ -0,0 +1,301 @@
+package com.moe365.mopi.processing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Saves diagnostic images of frame pairs (the on and off frames, the
+ * per-channel differences, and the delta plane) in the background.
+ * <p>
+ * The processor thread only copies its {@link FramePlanes} into one of a
+ * small pool of buffers, which takes a few milliseconds; the images are
+ * encoded and written on a low-priority writer thread. If every buffer is
+ * still waiting to be written, the pair is dropped instead of making the
+ * processor wait, so that saving diagnostics doesn't change the timing of
+ * the thing being diagnosed.
+ * </p>
+ * <p>
+ * Pairs can be written as PNGs (six files per pair, like before), or as a
+ * single raw dump per pair, which is much faster to write. A raw dump is a
+ * header of five big-endian ints (magic <code>'MOEP'</code>, version, pair
+ * number, width, height), followed by the planes, each
+ * <code>width * height</code> bytes: on R, G, B, off R, G, B, and delta.
+ * </p>
+ */
+public class DiagnosticWriter implements Runnable {
+	/**
+	 * First int of a raw dump
+	 */
+	public static final int RAW_MAGIC = ('M' << 24) | ('O' << 16) | ('E' << 8) | 'P';
+	/**
+	 * Version of the raw dump format
+	 */
+	public static final int RAW_VERSION = 1;
+
+	/**
+	 * Format to write pairs in
+	 */
+	public enum Format {
+		/**
+		 * A PNG for each of the on frame, the off frame, the R, G, and B
+		 * differences, and the delta
+		 */
+		PNG,
+		/**
+		 * One raw dump of all of the planes
+		 */
+		RAW;
+	}
+
+	/**
+	 * Snapshot of a pair, waiting to be written
+	 */
+	protected static class Snapshot {
+		protected final FramePlanes planes;
+		protected int number;
+
+		protected Snapshot(FramePlanes planes) {
+			this.planes = planes;
+		}
+	}
+
+	/**
+	 * Directory to write to
+	 */
+	protected final File directory;
+	/**
+	 * Format to write in
+	 */
+	protected final Format format;
+	/**
+	 * Number of buffers to copy pairs into
+	 */
+	protected final int poolSize;
+	/**
+	 * Only every nth pair offered is saved
+	 */
+	protected final int sampleEvery;
+	/**
+	 * Buffers that are free to copy into. Lazily filled on the first offer,
+	 * once we know the size of the planes.
+	 */
+	protected BlockingQueue<Snapshot> free;
+	/**
+	 * Buffers waiting to be written
+	 */
+	protected final BlockingQueue<Snapshot> pending;
+	/**
+	 * Number of pairs offered
+	 */
+	protected final AtomicLong offered = new AtomicLong(0);
+	/**
+	 * Number of pairs written
+	 */
+	protected final AtomicLong written = new AtomicLong(0);
+	/**
+	 * Number of pairs dropped, because the writer was behind
+	 */
+	protected final AtomicLong dropped = new AtomicLong(0);
+	/**
+	 * Buffer for the per-channel differences. Only touched from the writer
+	 * thread.
+	 */
+	protected byte[] diffBuffer;
+	/**
+	 * The thread that pairs are written on
+	 */
+	protected final Thread thread;
+
+	/**
+	 * Create a writer
+	 * @param directory directory to write to (created if needed)
+	 * @param format format to write pairs in
+	 * @param poolSize number of pairs that can be waiting to be written
+	 * @param sampleEvery save only every nth pair (1 to save all of them)
+	 */
+	public DiagnosticWriter(File directory, Format format, int poolSize, int sampleEvery) {
+		if (poolSize < 1)
+			throw new IllegalArgumentException("Invalid pool size (expect: poolSize >= 1; poolSize = " + poolSize + ")");
+		if (sampleEvery < 1)
+			throw new IllegalArgumentException("Invalid sample rate (expect: sampleEvery >= 1; sampleEvery = " + sampleEvery + ")");
+		this.directory = directory;
+		this.format = format;
+		this.poolSize = poolSize;
+		this.sampleEvery = sampleEvery;
+		this.pending = new ArrayBlockingQueue<>(poolSize);
+		this.thread = new Thread(this);
+		this.thread.setName("DiagnosticWriter-" + thread.getId());
+		this.thread.setDaemon(true);
+		this.thread.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Start the writer thread
+	 * @return self
+	 */
+	public DiagnosticWriter start() {
+		if (!(directory.exists() && directory.isDirectory()))
+			directory.mkdirs();
+		thread.start();
+		return this;
+	}
+
+	/**
+	 * Stop the writer thread. Pairs that haven't been written yet are
+	 * dropped.
+	 */
+	public void stop() {
+		thread.interrupt();
+	}
+
+	/**
+	 * Offer a pair to be saved. Should only be called from one thread (the
+	 * processor's). The planes are copied, so they may be reused as soon as
+	 * this method returns.
+	 * @param planes planes of the pair
+	 * @return whether the pair will be saved
+	 */
+	public boolean offer(FramePlanes planes) {
+		final long number = offered.getAndIncrement();
+		if (number % sampleEvery != 0)
+			return false;
+		if (free == null) {
+			free = new ArrayBlockingQueue<>(poolSize);
+			for (int i = 0; i < poolSize; i++)
+				free.add(new Snapshot(new FramePlanes(planes.offsetX, planes.offsetY, planes.width, planes.height)));
+		}
+		Snapshot snapshot = free.poll();
+		if (snapshot == null) {
+			//Still writing the last few; don't wait for it
+			dropped.incrementAndGet();
+			return false;
+		}
+		planes.copyTo(snapshot.planes);
+		snapshot.number = (int) number;
+		pending.add(snapshot);
+		return true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				Snapshot snapshot = pending.take();
+				try {
+					if (format == Format.RAW)
+						writeRaw(snapshot);
+					else
+						writePNG(snapshot);
+					written.incrementAndGet();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					free.add(snapshot);
+				}
+			}
+		} catch (InterruptedException e) {
+			//Stopped
+		}
+	}
+
+	protected void writePNG(Snapshot snapshot) throws IOException {
+		final FramePlanes planes = snapshot.planes;
+		final int num = snapshot.number;
+		if (diffBuffer == null || diffBuffer.length != planes.width * planes.height)
+			diffBuffer = new byte[planes.width * planes.height];
+		//The diff buffer is reused for each channel, so each image has to be written before the next is calculated
+		ImageIO.write(planes.wrapPlane(planes.channelDelta(0, diffBuffer)), "PNG", new File(directory, "dr" + num + ".png"));
+		ImageIO.write(planes.wrapPlane(planes.channelDelta(1, diffBuffer)), "PNG", new File(directory, "dg" + num + ".png"));
+		ImageIO.write(planes.wrapPlane(planes.channelDelta(2, diffBuffer)), "PNG", new File(directory, "db" + num + ".png"));
+		ImageIO.write(planes.wrapOn(), "PNG", new File(directory, "on" + num + ".png"));
+		ImageIO.write(planes.wrapOff(), "PNG", new File(directory, "off" + num + ".png"));
+		ImageIO.write(planes.wrapDelta(), "PNG", new File(directory, "delta" + num + ".png"));
+	}
+
+	protected void writeRaw(Snapshot snapshot) throws IOException {
+		final FramePlanes planes = snapshot.planes;
+		ByteBuffer header = ByteBuffer.allocate(5 * Integer.BYTES)
+				.putInt(RAW_MAGIC)
+				.putInt(RAW_VERSION)
+				.putInt(snapshot.number)
+				.putInt(planes.width)
+				.putInt(planes.height);
+		header.flip();
+		try (FileChannel channel = new FileOutputStream(new File(directory, "pair" + snapshot.number + ".raw")).getChannel()) {
+			final ByteBuffer[] buffers = {
+					header,
+					ByteBuffer.wrap(planes.onR), ByteBuffer.wrap(planes.onG), ByteBuffer.wrap(planes.onB),
+					ByteBuffer.wrap(planes.offR), ByteBuffer.wrap(planes.offG), ByteBuffer.wrap(planes.offB),
+					ByteBuffer.wrap(planes.delta)
+			};
+			//Gathering writes may stop early
+			long remaining = header.remaining() + 7L * planes.width * planes.height;
+			while (remaining > 0)
+				remaining -= channel.write(buffers);
+		}
+	}
+
+	/**
+	 * Read the on and off frames back out of a raw dump
+	 * @param file the dump
+	 * @return the frame taken with the flash on, and the frame taken with it
+	 *     off
+	 * @throws IOException if the file can't be read, or isn't a raw dump
+	 */
+	public static BufferedImage[] readRaw(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != RAW_MAGIC)
+				throw new IOException("Not a raw dump: " + file);
+			final int version = in.readInt();
+			if (version != RAW_VERSION)
+				throw new IOException("Unsupported raw dump version " + version + ": " + file);
+			in.readInt();//Pair number
+			final int width = in.readInt(), height = in.readInt();
+			final byte[][] planes = new byte[6][width * height];
+			for (byte[] plane : planes)
+				in.readFully(plane);
+			return new BufferedImage[] {
+					interleave(planes[0], planes[1], planes[2], width, height),
+					interleave(planes[3], planes[4], planes[5], width, height)
+			};
+		}
+	}
+
+	protected static BufferedImage interleave(byte[] r, byte[] g, byte[] b, int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		final byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+		for (int i = 0, j = 0; i < r.length; i++) {
+			data[j++] = b[i];
+			data[j++] = g[i];
+			data[j++] = r[i];
+		}
+		return img;
+	}
+
+	/**
+	 * @return the number of pairs written
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * @return the number of pairs dropped, because the writer was behind
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,412 @@
+package com.moe365.mopi.processing;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Planar channel data for a pair of frames (one with the flash on, one with
+ * it off). Each frame is decoded once into separate R, G, and B arrays, and
+ * the difference between the frames is classified once into a delta plane.
+ * Everything downstream (thresholding, contour tracing, saving diffs) reads
+ * from these arrays, instead of pulling pixels out of the
+ * {@link BufferedImage}s one at a time.
+ * <p>
+ * The arrays are allocated once, and reused for every frame pair, so this
+ * class is <strong>not</strong> thread safe.
+ * </p>
+ */
+public class FramePlanes implements BinaryImage {
+	/**
+	 * Color model for displaying a single plane as grayscale
+	 */
+	protected static final ComponentColorModel GRAY_COLOR_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[]{8}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+	/**
+	 * Color model for displaying the delta plane, where 0 is black and 1 is
+	 * white.
+	 */
+	protected static final IndexColorModel DELTA_COLOR_MODEL = new IndexColorModel(8, 2, new byte[]{0, (byte) 0xFF}, new byte[]{0, (byte) 0xFF}, new byte[]{0, (byte) 0xFF});
+	/**
+	 * Color model for displaying the R, G, and B planes of a frame as one
+	 * image
+	 */
+	protected static final ComponentColorModel RGB_COLOR_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[]{8, 8, 8}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+	/**
+	 * Coordinates of the top-left corner of the region that the planes cover
+	 */
+	protected final int offsetX, offsetY;
+	/**
+	 * Size of the region that the planes cover
+	 */
+	protected final int width, height;
+	/**
+	 * Unsigned channel values of the frame with the flash on
+	 */
+	protected final byte[] onR, onG, onB;
+	/**
+	 * Unsigned channel values of the frame with the flash off
+	 */
+	protected final byte[] offR, offG, offB;
+	/**
+	 * The delta plane. Nonzero where the difference between the frames
+	 * matched the classifier.
+	 */
+	protected final byte[] delta;
+	/**
+	 * Scratch buffers for extracting a row of pixels from images that we
+	 * don't have a fast path for. There is one for each frame, so that both
+	 * frames can be extracted at the same time.
+	 */
+	protected final int[] onRowBuffer, offRowBuffer;
+
+	/**
+	 * Allocate planes for a region
+	 * @param offsetX x coordinate of the leftmost column
+	 * @param offsetY y coordinate of the top row
+	 * @param width width of the region
+	 * @param height height of the region
+	 */
+	public FramePlanes(int offsetX, int offsetY, int width, int height) {
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.width = width;
+		this.height = height;
+		final int size = width * height;
+		this.onR = new byte[size];
+		this.onG = new byte[size];
+		this.onB = new byte[size];
+		this.offR = new byte[size];
+		this.offG = new byte[size];
+		this.offB = new byte[size];
+		this.delta = new byte[size];
+		this.onRowBuffer = new int[width];
+		this.offRowBuffer = new int[width];
+	}
+
+	/**
+	 * Decode both images into the channel planes, and classify their
+	 * difference into the delta plane.
+	 * @param imgOn image taken with the flash on
+	 * @param imgOff image taken with the flash off
+	 * @param lut table to classify the difference with
+	 * @return self
+	 */
+	public FramePlanes load(BufferedImage imgOn, BufferedImage imgOff, ColorClassifier.Table lut) {
+		loadOn(imgOn);
+		loadOff(imgOff);
+		classify(lut);
+		return this;
+	}
+
+	/**
+	 * Decode the image taken with the flash on into the on planes. May be
+	 * called at the same time as {@link #loadOff(BufferedImage)}, from a
+	 * different thread.
+	 * @param imgOn image taken with the flash on
+	 */
+	public void loadOn(BufferedImage imgOn) {
+		extract(imgOn, onR, onG, onB, onRowBuffer);
+	}
+
+	/**
+	 * Decode the image taken with the flash off into the off planes. May be
+	 * called at the same time as {@link #loadOn(BufferedImage)}, from a
+	 * different thread.
+	 * @param imgOff image taken with the flash off
+	 */
+	public void loadOff(BufferedImage imgOff) {
+		extract(imgOff, offR, offG, offB, offRowBuffer);
+	}
+
+	/**
+	 * Fill the delta plane by testing the difference between the on and off
+	 * planes at every pixel.
+	 * @param lut table to classify the difference with
+	 */
+	public void classify(ColorClassifier.Table lut) {
+		final byte[] onR = this.onR, onG = this.onG, onB = this.onB;
+		final byte[] offR = this.offR, offG = this.offG, offB = this.offB;
+		final byte[] delta = this.delta;
+		for (int i = 0; i < delta.length; i++) {
+			int dR = (onR[i] & 0xFF) - (offR[i] & 0xFF);
+			int dG = (onG[i] & 0xFF) - (offG[i] & 0xFF);
+			int dB = (onB[i] & 0xFF) - (offB[i] & 0xFF);
+			delta[i] = lut.test(dR, dG, dB) ? (byte) 1 : (byte) 0;
+		}
+	}
+
+	/**
+	 * Fill the delta plane by testing the difference between each pixel of
+	 * the on planes, and the pixel of the off planes that the scene moved
+	 * from (see {@link MotionEstimator}). Pixels that have no match in the
+	 * off planes (near the edges) are never part of a target.
+	 * @param lut table to classify the difference with
+	 * @param dx how far right the scene moved between the off and on frames
+	 * @param dy how far down the scene moved between the off and on frames
+	 */
+	public void classify(ColorClassifier.Table lut, int dx, int dy) {
+		if (dx == 0 && dy == 0) {
+			classify(lut);
+			return;
+		}
+		final byte[] onR = this.onR, onG = this.onG, onB = this.onB;
+		final byte[] offR = this.offR, offG = this.offG, offB = this.offB;
+		final byte[] delta = this.delta;
+		final int width = this.width;
+		//Columns of the on planes that have a match
+		final int fromX = Math.max(0, dx), toX = Math.min(width, width + dx);
+		for (int y = 0; y < height; y++) {
+			final int row = y * width;
+			final int offY = y - dy;
+			if (offY < 0 || offY >= height || fromX >= toX) {
+				Arrays.fill(delta, row, row + width, (byte) 0);
+				continue;
+			}
+			Arrays.fill(delta, row, row + fromX, (byte) 0);
+			Arrays.fill(delta, row + toX, row + width, (byte) 0);
+			final int shift = offY * width - dx - row;
+			for (int i = row + fromX; i < row + toX; i++) {
+				final int j = i + shift;
+				int dR = (onR[i] & 0xFF) - (offR[j] & 0xFF);
+				int dG = (onG[i] & 0xFF) - (offG[j] & 0xFF);
+				int dB = (onB[i] & 0xFF) - (offB[j] & 0xFF);
+				delta[i] = lut.test(dR, dG, dB) ? (byte) 1 : (byte) 0;
+			}
+		}
+	}
+
+	/**
+	 * Split an image into R, G, and B planes. Reads straight from the
+	 * backing array for the common byte-interleaved and packed-int formats,
+	 * and falls back to {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}
+	 * one row at a time for everything else.
+	 * @param img image to read
+	 * @param r array to write the red channel to
+	 * @param g array to write the green channel to
+	 * @param b array to write the blue channel to
+	 * @param row scratch buffer of size <code>width</code>
+	 */
+	protected void extract(BufferedImage img, byte[] r, byte[] g, byte[] b, int[] row) {
+		final Raster raster = img.getRaster();
+		final SampleModel model = raster.getSampleModel();
+		final DataBuffer buffer = raster.getDataBuffer();
+		final int tx = raster.getSampleModelTranslateX();
+		final int ty = raster.getSampleModelTranslateY();
+		final boolean isRGB = img.getColorModel().getColorSpace().isCS_sRGB();
+		if (isRGB && buffer instanceof DataBufferByte && model instanceof ComponentSampleModel && model.getNumBands() >= 3) {
+			//Interleaved bytes (e.g., TYPE_3BYTE_BGR, which is what decoded JPEGs usually are)
+			final ComponentSampleModel csm = (ComponentSampleModel) model;
+			final byte[] data = ((DataBufferByte) buffer).getData();
+			final int[] bandOffsets = csm.getBandOffsets();
+			final int[] bankIndices = csm.getBankIndices();
+			if (bankIndices[0] == 0 && bankIndices[1] == 0 && bankIndices[2] == 0) {
+				final int pixelStride = csm.getPixelStride();
+				final int scanlineStride = csm.getScanlineStride();
+				final int base = buffer.getOffset();
+				final int offR = bandOffsets[0], offG = bandOffsets[1], offB = bandOffsets[2];
+				for (int y = 0; y < height; y++) {
+					int src = base + (y + offsetY - ty) * scanlineStride + (offsetX - tx) * pixelStride;
+					int dst = y * width;
+					for (int x = 0; x < width; x++, src += pixelStride, dst++) {
+						r[dst] = data[src + offR];
+						g[dst] = data[src + offG];
+						b[dst] = data[src + offB];
+					}
+				}
+				return;
+			}
+		}
+		if (isRGB && buffer instanceof DataBufferInt && model instanceof SinglePixelPackedSampleModel && model.getNumBands() >= 3) {
+			//Packed ints (e.g., TYPE_INT_RGB)
+			final SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) model;
+			final int[] masks = sppsm.getBitMasks();
+			final int[] shifts = sppsm.getBitOffsets();
+			final int[] data = ((DataBufferInt) buffer).getData();
+			final int scanlineStride = sppsm.getScanlineStride();
+			final int base = buffer.getOffset();
+			final int maskR = masks[0], maskG = masks[1], maskB = masks[2];
+			final int shiftR = shifts[0], shiftG = shifts[1], shiftB = shifts[2];
+			for (int y = 0; y < height; y++) {
+				int src = base + (y + offsetY - ty) * scanlineStride + (offsetX - tx);
+				int dst = y * width;
+				for (int x = 0; x < width; x++, src++, dst++) {
+					final int px = data[src];
+					r[dst] = (byte) ((px & maskR) >>> shiftR);
+					g[dst] = (byte) ((px & maskG) >>> shiftG);
+					b[dst] = (byte) ((px & maskB) >>> shiftB);
+				}
+			}
+			return;
+		}
+		//Slow path
+		for (int y = 0; y < height; y++) {
+			img.getRGB(offsetX, offsetY + y, width, 1, row, 0, width);
+			int dst = y * width;
+			for (int x = 0; x < width; x++, dst++) {
+				final int px = row[x];
+				r[dst] = (byte) (px >>> 16);
+				g[dst] = (byte) (px >>> 8);
+				b[dst] = (byte) px;
+			}
+		}
+	}
+
+	/**
+	 * Write the saturated difference between the on and off planes of a
+	 * single channel into <code>out</code>.
+	 * @param channel 0 for red, 1 for green, 2 for blue
+	 * @param out array to write to, of size <code>width * height</code>
+	 * @return out
+	 */
+	public byte[] channelDelta(int channel, byte[] out) {
+		final byte[] on, off;
+		switch (channel) {
+			case 0:
+				on = onR;
+				off = offR;
+				break;
+			case 1:
+				on = onG;
+				off = offG;
+				break;
+			case 2:
+				on = onB;
+				off = offB;
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid channel (expect: 0 <= channel <= 2; channel = " + channel + ")");
+		}
+		for (int i = 0; i < out.length; i++)
+			out[i] = (byte) AbstractImageProcessor.saturateByte((on[i] & 0xFF) - (off[i] & 0xFF));
+		return out;
+	}
+
+	/**
+	 * Wrap a plane in a grayscale image, without copying it.
+	 * @param plane plane to wrap, of size <code>width * height</code>
+	 * @return image backed by the plane
+	 */
+	public BufferedImage wrapPlane(byte[] plane) {
+		WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(plane, plane.length), width, height, width, 1, new int[]{0}, null);
+		return new BufferedImage(GRAY_COLOR_MODEL, raster, false, null);
+	}
+
+	/**
+	 * Wrap the delta plane in a black and white image, without copying it.
+	 * @return image backed by the delta plane
+	 */
+	public BufferedImage wrapDelta() {
+		WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(delta, delta.length), width, height, width, 1, new int[]{0}, null);
+		return new BufferedImage(DELTA_COLOR_MODEL, raster, false, null);
+	}
+
+	/**
+	 * Wrap the channel planes of the frame taken with the flash on in a color
+	 * image, without copying them.
+	 * @return image backed by the planes
+	 */
+	public BufferedImage wrapOn() {
+		return wrapRGB(onR, onG, onB);
+	}
+
+	/**
+	 * Wrap the channel planes of the frame taken with the flash off in a
+	 * color image, without copying them.
+	 * @return image backed by the planes
+	 */
+	public BufferedImage wrapOff() {
+		return wrapRGB(offR, offG, offB);
+	}
+
+	protected BufferedImage wrapRGB(byte[] r, byte[] g, byte[] b) {
+		WritableRaster raster = Raster.createBandedRaster(new DataBufferByte(new byte[][]{r, g, b}, r.length), width, height, width, new int[]{0, 1, 2}, new int[]{0, 0, 0}, null);
+		return new BufferedImage(RGB_COLOR_MODEL, raster, false, null);
+	}
+
+	/**
+	 * Copy all of the planes into another set of planes of the same size
+	 * @param dest planes to copy into
+	 * @return dest
+	 */
+	public FramePlanes copyTo(FramePlanes dest) {
+		if (dest.width != width || dest.height != height)
+			throw new IllegalArgumentException("Size mismatch (" + width + "x" + height + " vs " + dest.width + "x" + dest.height + ")");
+		final int size = width * height;
+		System.arraycopy(onR, 0, dest.onR, 0, size);
+		System.arraycopy(onG, 0, dest.onG, 0, size);
+		System.arraycopy(onB, 0, dest.onB, 0, size);
+		System.arraycopy(offR, 0, dest.offR, 0, size);
+		System.arraycopy(offG, 0, dest.offG, 0, size);
+		System.arraycopy(offB, 0, dest.offB, 0, size);
+		System.arraycopy(delta, 0, dest.delta, 0, size);
+		return dest;
+	}
+
+	/**
+	 * Get the index into the planes for an (absolute) coordinate
+	 * @param x x coordinate
+	 * @param y y coordinate
+	 * @return index into the planes
+	 */
+	public int index(int x, int y) {
+		return (y - offsetY) * width + (x - offsetX);
+	}
+
+	/**
+	 * Test the delta plane at the given (absolute) coordinate.
+	 */
+	@Override
+	public boolean test(int x, int y) {
+		return delta[(y - offsetY) * width + (x - offsetX)] != 0;
+	}
+
+	/**
+	 * Get the fraction of a rectangle (in absolute coordinates) that is part
+	 * of a target
+	 * @param x left edge
+	 * @param y top edge
+	 * @param width width
+	 * @param height height
+	 * @return the fraction of set pixels in the delta plane (0 if the
+	 *     rectangle is empty)
+	 */
+	public double fillRatio(int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0)
+			return 0;
+		final byte[] delta = this.delta;
+		int count = 0;
+		for (int row = y; row < y + height; row++) {
+			final int start = (row - offsetY) * this.width + (x - offsetX);
+			for (int i = start; i < start + width; i++)
+				if (delta[i] != 0)
+					count++;
+		}
+		return ((double) count) / (width * height);
+	}
+
+	/**
+	 * @return the delta plane
+	 */
+	public byte[] getDelta() {
+		return delta;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
@@ -0,0 +1,219 @@
+package com.moe365.mopi.processing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the latency of an {@link AbstractImageProcessor}'s results bounded.
+ * <p>
+ * Every frame pair has a latency budget, counted from when its older frame
+ * arrived. Pairs that are already over budget when the processor gets to
+ * them are dropped. While a pair is being processed, the processor can check
+ * {@link #isPastDeadline()} between stages, and abort if it has run out of
+ * time. The scheduler also keeps a moving average of how long processing
+ * takes, and raises the processing stride (how sparsely the processor
+ * sweeps the image) when it gets close to the budget, and lowers it again
+ * when there's time to spare.
+ * </p>
+ * <p>
+ * All methods except the counters should only be called from the processor
+ * thread (the stride may be read from any thread).
+ * </p>
+ */
+public class FrameScheduler {
+	/**
+	 * Thrown from a processor when it aborts a pair because it ran past the
+	 * deadline.
+	 */
+	public static class DeadlineExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public DeadlineExceededException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Latency budget, in nanoseconds
+	 */
+	protected final long budget;
+	/**
+	 * The largest stride that processing can be downgraded to
+	 */
+	protected final int maxStride;
+	/**
+	 * Current stride. 1 is a full sweep.
+	 */
+	protected volatile int stride = 1;
+	/**
+	 * Moving average of processing time, in nanoseconds. 0 if nothing has been
+	 * processed yet.
+	 */
+	protected long averageTime = 0;
+	/**
+	 * Time (from {@link System#nanoTime()}) at which the current pair has to
+	 * be done by
+	 */
+	protected long deadline;
+	/**
+	 * Time at which processing of the current pair started
+	 */
+	protected long startTime;
+	/**
+	 * Number of pairs dropped because they were already over budget
+	 */
+	protected final AtomicLong dropped = new AtomicLong(0);
+	/**
+	 * Number of pairs aborted because they ran past the deadline
+	 */
+	protected final AtomicLong aborted = new AtomicLong(0);
+	/**
+	 * Number of pairs that finished, but took longer than the budget
+	 */
+	protected final AtomicLong overruns = new AtomicLong(0);
+	/**
+	 * Number of pairs that finished
+	 */
+	protected final AtomicLong completed = new AtomicLong(0);
+	/**
+	 * Largest latency (from the older frame's arrival to the result) of a
+	 * completed pair, in nanoseconds
+	 */
+	protected final AtomicLong maxLatency = new AtomicLong(0);
+
+	/**
+	 * Create a scheduler
+	 * @param budget latency budget
+	 * @param unit unit of budget
+	 * @param maxStride largest stride to downgrade processing to
+	 */
+	public FrameScheduler(long budget, TimeUnit unit, int maxStride) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("Invalid budget (expect: budget > 0; budget = " + budget + ")");
+		if (maxStride < 1)
+			throw new IllegalArgumentException("Invalid max stride (expect: maxStride >= 1; maxStride = " + maxStride + ")");
+		this.budget = unit.toNanos(budget);
+		this.maxStride = maxStride;
+	}
+
+	/**
+	 * Decide whether to process a frame pair, and if so, start its clock.
+	 * @param timestamp time (from {@link System#nanoTime()}) that the older
+	 *     frame of the pair arrived
+	 * @return false if the pair is already over budget, and should be dropped
+	 */
+	public boolean admit(long timestamp) {
+		final long now = System.nanoTime();
+		if (now - timestamp > budget) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		this.startTime = now;
+		this.deadline = timestamp + budget;
+		return true;
+	}
+
+	/**
+	 * @return whether the current pair has run past its deadline
+	 */
+	public boolean isPastDeadline() {
+		return System.nanoTime() - deadline > 0;
+	}
+
+	/**
+	 * Throw a {@link DeadlineExceededException} if the current pair has run
+	 * past its deadline.
+	 * @param stage name of the stage that the processor is at, for the message
+	 */
+	public void checkDeadline(String stage) throws DeadlineExceededException {
+		if (isPastDeadline())
+			throw new DeadlineExceededException("Past deadline at " + stage + " by " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deadline) + "ms");
+	}
+
+	/**
+	 * Record that the current pair is done (or was aborted), and adjust the
+	 * stride.
+	 * @param wasAborted whether the pair was aborted
+	 */
+	public void finish(boolean wasAborted) {
+		final long now = System.nanoTime();
+		final long elapsed = now - startTime;
+		averageTime = averageTime == 0 ? elapsed : averageTime + (elapsed - averageTime) / 4;
+		if (wasAborted) {
+			aborted.incrementAndGet();
+		} else {
+			completed.incrementAndGet();
+			final long latency = now - (deadline - budget);
+			if (latency > budget)
+				overruns.incrementAndGet();
+			long max;
+			while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency));
+		}
+
+		int stride = this.stride;
+		if (wasAborted || elapsed > budget) {
+			//Overran; back off quickly
+			stride = Math.min(stride * 2, maxStride);
+		} else if (averageTime > budget * 3 / 4) {
+			stride = Math.min(stride + 1, maxStride);
+		} else if (averageTime < budget / 3 && stride > 1) {
+			stride--;
+		}
+		if (stride != this.stride) {
+			System.out.println("Processing stride " + this.stride + " -> " + stride + " (avg " + TimeUnit.NANOSECONDS.toMillis(averageTime) + "ms)");
+			this.stride = stride;
+		}
+	}
+
+	/**
+	 * @return the current stride. 1 means that the whole image should be
+	 *     swept, and n means that only every nth pixel should be.
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @return the latency budget, in milliseconds
+	 */
+	public long getBudgetMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(budget);
+	}
+
+	/**
+	 * @return the number of pairs dropped because they were already over
+	 *     budget
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of pairs aborted because they ran past the deadline
+	 */
+	public long getAbortedCount() {
+		return aborted.get();
+	}
+
+	/**
+	 * @return the number of pairs that finished, but took longer than the
+	 *     budget
+	 */
+	public long getOverrunCount() {
+		return overruns.get();
+	}
+
+	/**
+	 * @return the number of pairs that finished
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the largest latency of a completed pair, in milliseconds
+	 */
+	public long getMaxLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+	}
+}
@@ -0,0 +1,523 @@
+package com.moe365.mopi.processing;
+
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+
+/**
+ * Decodes a 1/8 scale preview of a baseline JPEG, using only the DC
+ * coefficient of each 8x8 block. The DC coefficient is the average of the
+ * block, so no IDCT is needed; the AC coefficients are still Huffman-decoded
+ * (to find where the next block starts), but are otherwise ignored.
+ * <p>
+ * For a 640x480 frame, this produces an 80x60 preview for a fraction of the
+ * cost of a full decode. Only baseline (and extended sequential) Huffman
+ * JPEGs with a single interleaved scan are supported, which is what webcams
+ * produce. If a frame can't be decoded, {@link #decode(byte[], int)} returns
+ * false, and the caller should fall back to a full decode.
+ * </p>
+ * <p>
+ * Buffers are reused between frames, so this class is <strong>not</strong>
+ * thread safe.
+ * </p>
+ */
+public class JPEGPreviewDecoder {
+	/**
+	 * Standard Huffman tables (ITU T.81 Annex K.3). Used when a frame doesn't
+	 * include its own tables, as is common with MJPEG webcams.
+	 */
+	protected static final Huffman STD_DC_LUMINANCE = new Huffman(JPEGHuffmanTable.StdDCLuminance);
+	protected static final Huffman STD_DC_CHROMINANCE = new Huffman(JPEGHuffmanTable.StdDCChrominance);
+	protected static final Huffman STD_AC_LUMINANCE = new Huffman(JPEGHuffmanTable.StdACLuminance);
+	protected static final Huffman STD_AC_CHROMINANCE = new Huffman(JPEGHuffmanTable.StdACChrominance);
+	/**
+	 * Maximum number of components in a frame that we support
+	 */
+	protected static final int MAX_COMPONENTS = 4;
+
+	//Bit reader state
+	protected byte[] data;
+	protected int pos;
+	protected int end;
+	protected long bitBuf;
+	protected int bitCount;
+	protected boolean markerHit;
+
+	//Tables
+	protected final int[] quantDC = new int[4];
+	protected final Huffman[] dcTables = new Huffman[4];
+	protected final Huffman[] acTables = new Huffman[4];
+	protected int restartInterval;
+
+	//Frame info
+	protected int width, height;
+	protected int numComponents;
+	protected final int[] componentIds = new int[MAX_COMPONENTS];
+	protected final int[] hSamp = new int[MAX_COMPONENTS];
+	protected final int[] vSamp = new int[MAX_COMPONENTS];
+	protected final int[] quantIdx = new int[MAX_COMPONENTS];
+	/**
+	 * The average level (0-255) of each block, for each component.
+	 */
+	protected final int[][] blockLevels = new int[MAX_COMPONENTS][];
+	protected final int[] blocksPerLine = new int[MAX_COMPONENTS];
+
+	//Scan info
+	protected final int[] scanComponents = new int[MAX_COMPONENTS];
+	protected final Huffman[] scanDC = new Huffman[MAX_COMPONENTS];
+	protected final Huffman[] scanAC = new Huffman[MAX_COMPONENTS];
+	protected final int[] predictors = new int[MAX_COMPONENTS];
+
+	//Output
+	protected int previewWidth, previewHeight;
+	protected byte[] r = new byte[0], g = new byte[0], b = new byte[0];
+
+	/**
+	 * Decode a preview of a JPEG image.
+	 * @param data JPEG bytes
+	 * @param length number of valid bytes in data
+	 * @return whether the preview was decoded. If false, the contents of
+	 *     the preview are undefined.
+	 */
+	public boolean decode(byte[] data, int length) {
+		this.data = data;
+		this.end = Math.min(length, data.length);
+		try {
+			return decode();
+		} catch (ArrayIndexOutOfBoundsException | IllegalStateException e) {
+			//Corrupt or truncated frame
+			return false;
+		} finally {
+			this.data = null;
+		}
+	}
+
+	protected boolean decode() {
+		if (end < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8)
+			return false;
+		dcTables[0] = STD_DC_LUMINANCE;
+		dcTables[1] = STD_DC_CHROMINANCE;
+		acTables[0] = STD_AC_LUMINANCE;
+		acTables[1] = STD_AC_CHROMINANCE;
+		dcTables[2] = dcTables[3] = acTables[2] = acTables[3] = null;
+		restartInterval = 0;
+		numComponents = 0;
+		int pos = 2;
+		while (pos + 4 <= end) {
+			if ((data[pos] & 0xFF) != 0xFF) {
+				pos++;
+				continue;
+			}
+			final int marker = data[pos + 1] & 0xFF;
+			pos += 2;
+			if (marker == 0xFF) {
+				//Fill byte
+				pos--;
+				continue;
+			}
+			if (marker == 0xD8 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+				continue;
+			if (marker == 0xD9)
+				return false;
+			final int segLength = u16(pos);
+			final int segEnd = pos + segLength;
+			if (segLength < 2 || segEnd > end)
+				return false;
+			int p = pos + 2;
+			switch (marker) {
+				case 0xDB://DQT
+					while (p < segEnd) {
+						int pq = (data[p] & 0xFF) >> 4;
+						int tq = data[p] & 0x03;
+						//The DC coefficient comes first, in both natural and zigzag order
+						quantDC[tq] = pq == 0 ? (data[p + 1] & 0xFF) : u16(p + 1);
+						p += 1 + 64 * (pq + 1);
+					}
+					break;
+				case 0xC0://SOF0 (baseline)
+				case 0xC1://SOF1 (extended sequential, Huffman)
+					if ((data[p] & 0xFF) != 8)
+						return false;
+					height = u16(p + 1);
+					width = u16(p + 3);
+					numComponents = data[p + 5] & 0xFF;
+					if (numComponents < 1 || numComponents > MAX_COMPONENTS || width == 0 || height == 0)
+						return false;
+					p += 6;
+					for (int i = 0; i < numComponents; i++, p += 3) {
+						componentIds[i] = data[p] & 0xFF;
+						hSamp[i] = (data[p + 1] & 0xFF) >> 4;
+						vSamp[i] = data[p + 1] & 0x0F;
+						quantIdx[i] = data[p + 2] & 0x03;
+						if (hSamp[i] < 1 || vSamp[i] < 1)
+							return false;
+					}
+					break;
+				case 0xC4://DHT
+					while (p < segEnd) {
+						int tc = (data[p] & 0xFF) >> 4;
+						int th = data[p] & 0x03;
+						Huffman[] tables = tc == 0 ? dcTables : acTables;
+						Huffman table = tables[th];
+						if (table == null || table == STD_DC_LUMINANCE || table == STD_DC_CHROMINANCE || table == STD_AC_LUMINANCE || table == STD_AC_CHROMINANCE || !table.matches(data, p + 1))
+							tables[th] = table = new Huffman(data, p + 1);
+						p += 17 + table.values.length;
+					}
+					break;
+				case 0xDD://DRI
+					restartInterval = u16(p);
+					break;
+				case 0xDA://SOS
+					if (numComponents == 0)
+						return false;
+					return decodeScan(p, segEnd);
+				default:
+					if (marker >= 0xC2 && marker <= 0xCF)
+						//Progressive, lossless, or arithmetic coding
+						return false;
+					//APPn, COM, etc.
+					break;
+			}
+			pos = segEnd;
+		}
+		return false;
+	}
+
+	/**
+	 * Decode a scan. Only scans that contain every component are supported.
+	 * @param p position of the scan header (after the length)
+	 * @param segEnd position of the end of the scan header
+	 * @return success
+	 */
+	protected boolean decodeScan(int p, int segEnd) {
+		final int ns = data[p] & 0xFF;
+		if (ns != numComponents)
+			return false;
+		p++;
+		for (int i = 0; i < ns; i++, p += 2) {
+			int id = data[p] & 0xFF;
+			int c = 0;
+			while (c < numComponents && componentIds[c] != id)
+				c++;
+			if (c == numComponents)
+				return false;
+			scanComponents[i] = c;
+			scanDC[i] = dcTables[(data[p + 1] & 0xFF) >> 4 & 0x03];
+			scanAC[i] = acTables[data[p + 1] & 0x03];
+			if (scanDC[i] == null || scanAC[i] == null)
+				return false;
+		}
+
+		int hMax = 1, vMax = 1;
+		for (int c = 0; c < numComponents; c++) {
+			hMax = Math.max(hMax, hSamp[c]);
+			vMax = Math.max(vMax, vSamp[c]);
+		}
+		final int mcusX, mcusY;
+		if (ns == 1) {
+			//Non-interleaved; each MCU is one block
+			int c = scanComponents[0];
+			mcusX = ((width * hSamp[c] + hMax - 1) / hMax + 7) / 8;
+			mcusY = ((height * vSamp[c] + vMax - 1) / vMax + 7) / 8;
+			hSamp[c] = vSamp[c] = hMax = vMax = 1;
+		} else {
+			mcusX = (width + 8 * hMax - 1) / (8 * hMax);
+			mcusY = (height + 8 * vMax - 1) / (8 * vMax);
+		}
+		for (int c = 0; c < numComponents; c++) {
+			blocksPerLine[c] = mcusX * hSamp[c];
+			int size = blocksPerLine[c] * mcusY * vSamp[c];
+			if (blockLevels[c] == null || blockLevels[c].length < size)
+				blockLevels[c] = new int[size];
+		}
+
+		//Start reading entropy-coded data
+		this.pos = segEnd;
+		this.bitBuf = 0;
+		this.bitCount = 0;
+		this.markerHit = false;
+		for (int i = 0; i < ns; i++)
+			predictors[i] = 0;
+		int mcu = 0;
+		for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+			for (int mcuX = 0; mcuX < mcusX; mcuX++, mcu++) {
+				if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+					restart();
+					for (int i = 0; i < ns; i++)
+						predictors[i] = 0;
+				}
+				for (int i = 0; i < ns; i++) {
+					final int c = scanComponents[i];
+					final int[] levels = blockLevels[c];
+					final int q = quantDC[quantIdx[c]];
+					for (int v = 0; v < vSamp[c]; v++) {
+						final int rowOffset = (mcuY * vSamp[c] + v) * blocksPerLine[c] + mcuX * hSamp[c];
+						for (int h = 0; h < hSamp[c]; h++) {
+							predictors[i] += receiveExtend(scanDC[i].decode(this));
+							skipAC(scanAC[i]);
+							//The DC coefficient is 8x the average of the block
+							levels[rowOffset + h] = AbstractImageProcessor.saturateByte(((predictors[i] * q) >> 3) + 128);
+						}
+					}
+				}
+			}
+		}
+
+		writePreview(hMax, vMax);
+		return true;
+	}
+
+	/**
+	 * Convert the block levels to RGB, at one pixel per 8x8 block of the
+	 * full image.
+	 */
+	protected void writePreview(int hMax, int vMax) {
+		previewWidth = (width + 7) / 8;
+		previewHeight = (height + 7) / 8;
+		final int size = previewWidth * previewHeight;
+		if (r.length < size) {
+			r = new byte[size];
+			g = new byte[size];
+			b = new byte[size];
+		}
+		final boolean color = numComponents >= 3;
+		int i = 0;
+		for (int py = 0; py < previewHeight; py++) {
+			for (int px = 0; px < previewWidth; px++, i++) {
+				int y = level(0, px, py, hMax, vMax);
+				if (!color) {
+					r[i] = g[i] = b[i] = (byte) y;
+					continue;
+				}
+				int cb = level(1, px, py, hMax, vMax) - 128;
+				int cr = level(2, px, py, hMax, vMax) - 128;
+				r[i] = (byte) AbstractImageProcessor.saturateByte(y + ((91881 * cr) >> 16));
+				g[i] = (byte) AbstractImageProcessor.saturateByte(y - ((22554 * cb + 46802 * cr) >> 16));
+				b[i] = (byte) AbstractImageProcessor.saturateByte(y + ((116130 * cb) >> 16));
+			}
+		}
+	}
+
+	/**
+	 * Get the level of a component at a preview pixel.
+	 */
+	protected int level(int c, int px, int py, int hMax, int vMax) {
+		return blockLevels[c][(py * vSamp[c] / vMax) * blocksPerLine[c] + px * hSamp[c] / hMax];
+	}
+
+	/**
+	 * Skip over the AC coefficients of a block.
+	 */
+	protected void skipAC(Huffman table) {
+		for (int k = 1; k < 64; k++) {
+			int rs = table.decode(this);
+			int s = rs & 0x0F;
+			if (s == 0) {
+				if (rs != 0xF0)
+					//EOB
+					return;
+				k += 15;
+			} else {
+				k += rs >> 4;
+				skipBits(s);
+			}
+		}
+	}
+
+	/**
+	 * Handle a restart marker.
+	 */
+	protected void restart() {
+		bitBuf = 0;
+		bitCount = 0;
+		markerHit = false;
+		//Find the RSTn marker
+		while (pos + 1 < end && !((data[pos] & 0xFF) == 0xFF && (data[pos + 1] & 0xFF) >= 0xD0 && (data[pos + 1] & 0xFF) <= 0xD7))
+			pos++;
+		pos += 2;
+	}
+
+	protected void fill() {
+		while (bitCount <= 56) {
+			int next = 0;
+			if (!markerHit) {
+				if (pos >= end) {
+					markerHit = true;
+				} else if ((next = data[pos] & 0xFF) == 0xFF) {
+					int after = pos + 1 < end ? data[pos + 1] & 0xFF : 0xD9;
+					if (after == 0) {
+						//Stuffed byte
+						pos += 2;
+					} else {
+						//Marker; stop reading here
+						markerHit = true;
+						next = 0;
+					}
+				} else {
+					pos++;
+				}
+			}
+			bitBuf = (bitBuf << 8) | next;
+			bitCount += 8;
+		}
+	}
+
+	protected int peekBits(int n) {
+		if (bitCount < n)
+			fill();
+		return (int) (bitBuf >>> (bitCount - n)) & ((1 << n) - 1);
+	}
+
+	protected void skipBits(int n) {
+		if (bitCount < n)
+			fill();
+		bitCount -= n;
+	}
+
+	protected int receiveExtend(int s) {
+		if (s == 0)
+			return 0;
+		int v = peekBits(s);
+		skipBits(s);
+		if (v < (1 << (s - 1)))
+			v += (-1 << s) + 1;
+		return v;
+	}
+
+	protected int u16(int p) {
+		return ((data[p] & 0xFF) << 8) | (data[p + 1] & 0xFF);
+	}
+
+	/**
+	 * @return the width of the last decoded preview
+	 */
+	public int getWidth() {
+		return previewWidth;
+	}
+
+	/**
+	 * @return the height of the last decoded preview
+	 */
+	public int getHeight() {
+		return previewHeight;
+	}
+
+	/**
+	 * @return the red channel of the last decoded preview, in row-major order
+	 */
+	public byte[] getRed() {
+		return r;
+	}
+
+	/**
+	 * @return the green channel of the last decoded preview, in row-major order
+	 */
+	public byte[] getGreen() {
+		return g;
+	}
+
+	/**
+	 * @return the blue channel of the last decoded preview, in row-major order
+	 */
+	public byte[] getBlue() {
+		return b;
+	}
+
+	/**
+	 * A Huffman table, with a lookup table for codes up to
+	 * {@value #LOOKUP_BITS} bits long.
+	 */
+	protected static class Huffman {
+		protected static final int LOOKUP_BITS = 9;
+		/**
+		 * Number of codes of each length (1-16)
+		 */
+		protected final int[] counts = new int[16];
+		protected final int[] values;
+		/**
+		 * <code>(length &lt;&lt; 8) | value</code>, indexed by the next
+		 * {@value #LOOKUP_BITS} bits. 0 if the code is longer.
+		 */
+		protected final short[] lookup = new short[1 << LOOKUP_BITS];
+		protected final int[] maxCode = new int[17];
+		protected final int[] minCode = new int[17];
+		protected final int[] valPtr = new int[17];
+
+		Huffman(JPEGHuffmanTable table) {
+			short[] lengths = table.getLengths();
+			short[] values = table.getValues();
+			for (int i = 0; i < 16; i++)
+				this.counts[i] = lengths[i];
+			this.values = new int[values.length];
+			for (int i = 0; i < values.length; i++)
+				this.values[i] = values[i] & 0xFF;
+			build();
+		}
+
+		/**
+		 * Read a table from a DHT segment
+		 * @param data JPEG data
+		 * @param p position of the counts
+		 */
+		Huffman(byte[] data, int p) {
+			int total = 0;
+			for (int i = 0; i < 16; i++)
+				total += this.counts[i] = data[p + i] & 0xFF;
+			this.values = new int[total];
+			for (int i = 0; i < total; i++)
+				this.values[i] = data[p + 16 + i] & 0xFF;
+			build();
+		}
+
+		/**
+		 * Check whether this table is the same as the one in a DHT segment,
+		 * so it doesn't have to be rebuilt every frame.
+		 */
+		boolean matches(byte[] data, int p) {
+			for (int i = 0; i < 16; i++)
+				if (counts[i] != (data[p + i] & 0xFF))
+					return false;
+			for (int i = 0; i < values.length; i++)
+				if (values[i] != (data[p + 16 + i] & 0xFF))
+					return false;
+			return true;
+		}
+
+		protected void build() {
+			int code = 0, k = 0;
+			for (int len = 1; len <= 16; len++) {
+				valPtr[len] = k;
+				minCode[len] = code;
+				for (int i = 0; i < counts[len - 1]; i++, code++, k++) {
+					if (len <= LOOKUP_BITS) {
+						int shift = LOOKUP_BITS - len;
+						for (int j = code << shift; j < (code + 1) << shift; j++)
+							lookup[j] = (short) ((len << 8) | values[k]);
+					}
+				}
+				maxCode[len] = counts[len - 1] == 0 ? -1 : code - 1;
+				code <<= 1;
+			}
+		}
+
+		/**
+		 * Decode the next symbol
+		 */
+		int decode(JPEGPreviewDecoder in) {
+			int peek = in.peekBits(LOOKUP_BITS);
+			int entry = lookup[peek];
+			if (entry != 0) {
+				in.skipBits(entry >> 8);
+				return entry & 0xFF;
+			}
+			//Slow path for long codes
+			in.skipBits(LOOKUP_BITS);
+			int code = peek;
+			for (int len = LOOKUP_BITS + 1; len <= 16; len++) {
+				code = (code << 1) | in.peekBits(1);
+				in.skipBits(1);
+				if (code <= maxCode[len])
+					return values[valPtr[len] + code - minCode[len]];
+			}
+			throw new IllegalStateException("Invalid Huffman code");
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.moe365.mopi.processing;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how far the scene moved between the frame taken with the flash
+ * off and the frame taken with the flash on, so that the difference between
+ * them can be taken between matching pixels when the robot is moving.
+ * <p>
+ * Without this, every edge in the scene shows up in the delta plane while
+ * the robot turns, and the bounding box search (or the contour tracer) has
+ * to chew through all of them. With it, only things that changed brightness
+ * between the frames (i.e., the targets) are left.
+ * </p>
+ * <p>
+ * The shift is found by projection matching: the green channel of each
+ * frame is summed into a column profile (over every <code>scale</code>th
+ * row) and a row profile (over every <code>scale</code>th column). The
+ * derivatives of the profiles (so that the flash brightening the whole scene
+ * a little doesn't matter) are slid over each other, and the offset with the
+ * smallest mean absolute difference wins, as long as it is clearly better
+ * than not moving at all. This only finds a global translation, which is
+ * most of what a turning robot sees over the few milliseconds between two
+ * frames.
+ * </p>
+ * <p>
+ * The profiles are allocated once, and reused for every frame pair, so this
+ * class is <strong>not</strong> thread safe. Each processor needs its own.
+ * </p>
+ */
+public class MotionEstimator {
+	/**
+	 * Most distance (in pixels) that the scene may have moved in either
+	 * direction
+	 */
+	protected final int maxShift;
+	/**
+	 * Distance between the rows (or columns) that are summed into each
+	 * profile
+	 */
+	protected final int scale;
+	/**
+	 * How much better than not moving at all the best offset has to line the
+	 * profiles up (as a fraction of the cost of not moving), for the frames
+	 * to be shifted. Keeps frames of a featureless scene from being shifted
+	 * by noise.
+	 */
+	protected static final double MIN_IMPROVEMENT = .1;
+	/**
+	 * Column and row profiles of the frames with the flash on and off,
+	 * differentiated in place
+	 */
+	protected int[] colOn, colOff, rowOn, rowOff;
+	/**
+	 * The last shift estimated
+	 */
+	protected volatile int lastShiftX, lastShiftY;
+
+	/**
+	 * Create an estimator
+	 * @param maxShift most distance (in pixels) that the scene may have moved
+	 * @param scale distance between the rows (or columns) that are summed
+	 *     into each profile. Larger is faster, but less sensitive.
+	 */
+	public MotionEstimator(int maxShift, int scale) {
+		if (maxShift < 0)
+			throw new IllegalArgumentException("Invalid max shift (expect: maxShift >= 0; maxShift = " + maxShift + ")");
+		if (scale < 1)
+			throw new IllegalArgumentException("Invalid scale (expect: scale >= 1; scale = " + scale + ")");
+		this.maxShift = maxShift;
+		this.scale = scale;
+	}
+
+	/**
+	 * Estimate how far the scene moved between the off and on frames
+	 * @param planes planes that both frames have been loaded into
+	 * @param shift array to write the shift to, as {dx, dy}, so that the pixel
+	 *     at (x, y) in the on frame matches the pixel at (x - dx, y - dy) in
+	 *     the off frame
+	 * @return shift
+	 */
+	public int[] estimate(FramePlanes planes, int[] shift) {
+		final int width = planes.width, height = planes.height;
+		if (colOn == null || colOn.length != width || rowOn.length != height) {
+			colOn = new int[width];
+			colOff = new int[width];
+			rowOn = new int[height];
+			rowOff = new int[height];
+		}
+		project(planes.onG, width, height, colOn, rowOn);
+		project(planes.offG, width, height, colOff, rowOff);
+		shift[0] = match(colOn, colOff, width, maxShift);
+		shift[1] = match(rowOn, rowOff, height, maxShift);
+		lastShiftX = shift[0];
+		lastShiftY = shift[1];
+		return shift;
+	}
+
+	/**
+	 * Sum a plane into column and row profiles, and differentiate them
+	 */
+	protected void project(byte[] plane, int width, int height, int[] colProfile, int[] rowProfile) {
+		final int scale = this.scale;
+		Arrays.fill(colProfile, 0);
+		for (int y = 0; y < height; y++) {
+			final int row = y * width;
+			if (y % scale == 0)
+				for (int x = 0; x < width; x++)
+					colProfile[x] += plane[row + x] & 0xFF;
+			int sum = 0;
+			for (int x = 0; x < width; x += scale)
+				sum += plane[row + x] & 0xFF;
+			rowProfile[y] = sum;
+		}
+		differentiate(colProfile, width);
+		differentiate(rowProfile, height);
+	}
+
+	protected static void differentiate(int[] profile, int length) {
+		for (int i = 0; i < length - 1; i++)
+			profile[i] = profile[i + 1] - profile[i];
+		if (length > 0)
+			profile[length - 1] = 0;
+	}
+
+	/**
+	 * Find the offset that best lines up two differentiated profiles
+	 * @param on profile of the frame with the flash on
+	 * @param off profile of the frame with the flash off
+	 * @param length length of the profiles
+	 * @param maxOffset most offset to try
+	 * @return the offset, so that <code>on[i] ~= off[i - offset]</code>, or 0
+	 *     if no offset is clearly better than 0
+	 */
+	protected static int match(int[] on, int[] off, int length, int maxOffset) {
+		//Keep at least half of the profiles overlapping
+		maxOffset = Math.min(maxOffset, (length - 1) / 2);
+		if (maxOffset <= 0)
+			return 0;
+		final double stillCost = cost(on, off, length, 0);
+		int best = 0;
+		double bestCost = stillCost;
+		for (int offset = -maxOffset; offset <= maxOffset; offset++) {
+			if (offset == 0)
+				continue;
+			final double cost = cost(on, off, length, offset);
+			if (cost < bestCost) {
+				best = offset;
+				bestCost = cost;
+			}
+		}
+		return bestCost < stillCost * (1 - MIN_IMPROVEMENT) ? best : 0;
+	}
+
+	/**
+	 * Mean absolute difference of the overlapping part of two profiles, with
+	 * one offset from the other
+	 */
+	protected static double cost(int[] on, int[] off, int length, int offset) {
+		final int from = Math.max(0, offset), to = Math.min(length - 1, length - 1 + offset);
+		long sum = 0;
+		for (int i = from; i < to; i++)
+			sum += Math.abs(on[i] - off[i - offset]);
+		return ((double) sum) / (to - from);
+	}
+
+	/**
+	 * @return the x component of the last shift estimated
+	 */
+	public int getLastShiftX() {
+		return lastShiftX;
+	}
+
+	/**
+	 * @return the y component of the last shift estimated
+	 */
+	public int getLastShiftY() {
+		return lastShiftY;
+	}
+}
@@ -0,0 +1,576 @@
+package com.moe365.mopi.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs items through a series of stages, each on its own thread, so that
+ * different items can be in different stages at the same time (e.g., one
+ * frame pair can be decoded while the last one's blobs are found).
+ * <p>
+ * The pipeline owns a fixed number of items, which are reused. An item is
+ * {@linkplain #take() taken}, filled in, and {@linkplain #submit(Item)
+ * submitted}; it then goes through every stage, and then to the output
+ * (which has its own thread too), and then it's free to be taken again. If
+ * every item is in the pipeline, {@link #take()} returns null, so the caller
+ * has to drop whatever it was going to submit. That keeps the pipeline from
+ * building up a backlog.
+ * </p>
+ * <p>
+ * Stages are connected by {@link StageQueue}s, which are big enough to hold
+ * every item, so a stage never waits for the next one. A stage can finish an
+ * item early (e.g., if there's nothing left to find), in which case the
+ * later stages pass it along without touching it. If a stage throws, the
+ * item is passed along the same way, but isn't output.
+ * </p>
+ * @param <T> the type of item
+ */
+public class Pipeline<T extends Pipeline.Item> {
+	/**
+	 * Number of items output between logging stats
+	 */
+	protected static final int LOG_INTERVAL = 500;
+	/**
+	 * Longest that a stage sleeps while waiting for an item, before checking
+	 * again. Stages are woken up when an item is passed to them, so this is
+	 * just a backstop.
+	 */
+	protected static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	/**
+	 * Longest that {@link #stop()} waits for the items in the pipeline to get
+	 * through, before dropping them
+	 */
+	protected static final long DRAIN_MILLIS = 2000;
+
+	/**
+	 * Something that goes through a pipeline. Subclasses hold the state that
+	 * stages pass to each other.
+	 */
+	public static abstract class Item {
+		/**
+		 * Whether a stage has finished this item, so that later stages skip it
+		 */
+		protected boolean finished;
+		/**
+		 * Whether a stage failed on this item, so that it isn't output
+		 */
+		protected boolean failed;
+		/**
+		 * When (from {@link System#nanoTime()}) the item was submitted
+		 */
+		protected long submitTime;
+
+		/**
+		 * Skip the rest of the stages, and go straight to the output
+		 */
+		public void finish() {
+			this.finished = true;
+		}
+
+		/**
+		 * @return whether a stage finished this item early
+		 */
+		public boolean isFinished() {
+			return finished;
+		}
+
+		/**
+		 * @return when (from {@link System#nanoTime()}) the item was submitted
+		 */
+		public long getSubmitTime() {
+			return submitTime;
+		}
+	}
+
+	/**
+	 * A stage of a pipeline. Each stage is only ever called from its own
+	 * thread, so it may keep state that isn't thread-safe.
+	 * @param <T> the type of item
+	 */
+	@FunctionalInterface
+	public static interface Stage<T> {
+		/**
+		 * Process an item
+		 * @param item item to process. Call {@link Item#finish()} to skip the
+		 *     rest of the stages.
+		 * @throws Exception to drop the item
+		 */
+		void process(T item) throws Exception;
+	}
+
+	/**
+	 * Runs a stage on its own thread, and keeps stats about it
+	 */
+	public class StageThread implements Runnable {
+		protected final String name;
+		protected final Stage<T> stage;
+		/**
+		 * Whether this is the output, which gets items that were finished early
+		 */
+		protected final boolean isOutput;
+		protected final StageQueue<T> input;
+		protected StageThread next;
+		protected Thread thread;
+		/**
+		 * Number of items that the stage processed
+		 */
+		protected final AtomicLong processed = new AtomicLong(0);
+		/**
+		 * Number of items passed along without being processed
+		 */
+		protected final AtomicLong skipped = new AtomicLong(0);
+		/**
+		 * Number of items that the stage threw on
+		 */
+		protected final AtomicLong failed = new AtomicLong(0);
+		/**
+		 * Total and longest time spent processing items, in nanoseconds
+		 */
+		protected final AtomicLong busyNanos = new AtomicLong(0), maxNanos = new AtomicLong(0);
+
+		protected StageThread(String name, Stage<T> stage, boolean isOutput) {
+			this.name = name;
+			this.stage = stage;
+			this.isOutput = isOutput;
+			this.input = new StageQueue<>(capacity);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				final T item = input.poll();
+				if (item == null) {
+					LockSupport.parkNanos(this, IDLE_NANOS);
+					continue;
+				}
+				runStage(item);
+				pass(item);
+			}
+		}
+
+		/**
+		 * Run the stage on an item, unless it was already finished
+		 */
+		protected void runStage(T item) {
+			if (item.failed || (item.finished && !isOutput)) {
+				skipped.incrementAndGet();
+				return;
+			}
+			final long start = System.nanoTime();
+			try {
+				stage.process(item);
+			} catch (Exception e) {
+				item.failed = true;
+				failed.incrementAndGet();
+				if (e instanceof FrameScheduler.DeadlineExceededException)
+					System.out.println(e.getMessage());
+				else
+					e.printStackTrace();
+			}
+			final long elapsed = System.nanoTime() - start;
+			busyNanos.addAndGet(elapsed);
+			long max;
+			while (elapsed > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, elapsed));
+			processed.incrementAndGet();
+		}
+
+		/**
+		 * Pass an item on to the next stage (or free it, if this is the last
+		 * one)
+		 */
+		protected void pass(T item) {
+			if (next == null) {
+				complete(item);
+				return;
+			}
+			//Every queue can hold every item, so there's always room
+			next.input.offer(item);
+			LockSupport.unpark(next.thread);
+		}
+
+		/**
+		 * @return the name of the stage
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the number of items that the stage processed
+		 */
+		public long getProcessedCount() {
+			return processed.get();
+		}
+
+		/**
+		 * @return the number of items passed along without being processed,
+		 *     because an earlier stage finished them, or failed on them
+		 */
+		public long getSkippedCount() {
+			return skipped.get();
+		}
+
+		/**
+		 * @return the number of items that the stage threw on
+		 */
+		public long getFailedCount() {
+			return failed.get();
+		}
+
+		/**
+		 * @return the average time that the stage took per item, in
+		 *     nanoseconds (0 if it hasn't processed any)
+		 */
+		public long getAverageNanos() {
+			final long n = processed.get();
+			return n == 0 ? 0 : busyNanos.get() / n;
+		}
+
+		/**
+		 * @return the longest time that the stage took for an item, in
+		 *     nanoseconds
+		 */
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		/**
+		 * @return the total time that the stage spent processing items, in
+		 *     nanoseconds
+		 */
+		public long getBusyNanos() {
+			return busyNanos.get();
+		}
+
+		/**
+		 * @return the number of items waiting for the stage
+		 */
+		public int getQueueDepth() {
+			return input.size();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %.1fms avg, %.1fms max, %d queued", name, getAverageNanos() / 1e6, getMaxNanos() / 1e6, getQueueDepth());
+		}
+	}
+
+	protected final String name;
+	/**
+	 * Number of items that the pipeline owns
+	 */
+	protected final int capacity;
+	/**
+	 * Items that aren't in the pipeline. Only taken from by the thread that
+	 * submits items, and only added to by the output (or the last stage).
+	 */
+	protected final StageQueue<T> free;
+	protected final List<StageThread> stages = new ArrayList<>();
+	/**
+	 * Does something with each item, after the last stage. Null if there is
+	 * no output.
+	 */
+	protected StageThread output;
+	/**
+	 * Called for each item that was still in the pipeline when it was
+	 * stopped, before the item is freed. Null if there's nothing to clean up.
+	 */
+	protected Consumer<T> dropHandler;
+	protected volatile boolean running = false;
+	/**
+	 * When the pipeline was started, from {@link System#nanoTime()}
+	 */
+	protected long startTime;
+	protected final AtomicLong submitted = new AtomicLong(0);
+	/**
+	 * Number of items freed (output, or failed)
+	 */
+	protected final AtomicLong freed = new AtomicLong(0);
+	/**
+	 * Number of items output
+	 */
+	protected final AtomicLong completed = new AtomicLong(0);
+	/**
+	 * Number of times that an item was wanted, but all of them were in the
+	 * pipeline
+	 */
+	protected final AtomicLong rejected = new AtomicLong(0);
+	/**
+	 * Total and longest time from when an item was submitted to when it was
+	 * output, in nanoseconds
+	 */
+	protected final AtomicLong latencyNanos = new AtomicLong(0), maxLatencyNanos = new AtomicLong(0);
+
+	/**
+	 * Create a pipeline
+	 * @param name name of the pipeline (for its threads, and stats)
+	 * @param capacity number of items that can be in the pipeline at once
+	 * @param factory makes the items
+	 */
+	public Pipeline(String name, int capacity, Supplier<T> factory) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity (expect: capacity >= 1; capacity = " + capacity + ")");
+		this.name = name;
+		this.capacity = capacity;
+		this.free = new StageQueue<>(capacity);
+		for (int i = 0; i < capacity; i++)
+			free.offer(factory.get());
+	}
+
+	/**
+	 * Add a stage to the end of the pipeline. Must be called before the
+	 * pipeline is started.
+	 * @param name name of the stage
+	 * @param stage the stage
+	 * @return self
+	 */
+	public Pipeline<T> addStage(String name, Stage<T> stage) {
+		if (running)
+			throw new IllegalStateException("Already started");
+		StageThread thread = new StageThread(name, stage, false);
+		if (!stages.isEmpty())
+			stages.get(stages.size() - 1).next = thread;
+		stages.add(thread);
+		if (output != null)
+			thread.next = output;
+		return this;
+	}
+
+	/**
+	 * Set what to do with each item, once it's through the pipeline (unless
+	 * a stage failed on it). Runs on its own thread, like a stage. Must be
+	 * called before the pipeline is started.
+	 * @param output what to do with each item
+	 * @return self
+	 */
+	public Pipeline<T> setOutput(Consumer<T> output) {
+		if (running)
+			throw new IllegalStateException("Already started");
+		this.output = new StageThread("output", output::accept, true);
+		if (!stages.isEmpty())
+			stages.get(stages.size() - 1).next = this.output;
+		return this;
+	}
+
+	/**
+	 * Set what to do with each item that is still in the pipeline when it's
+	 * stopped (e.g., release what it holds), before it's freed. Called on the
+	 * thread that stops the pipeline.
+	 * @param dropHandler what to do with each dropped item
+	 * @return self
+	 */
+	public Pipeline<T> setDropHandler(Consumer<T> dropHandler) {
+		this.dropHandler = dropHandler;
+		return this;
+	}
+
+	/**
+	 * Start a thread for each stage. A pipeline that was stopped can be
+	 * started again.
+	 * @return self
+	 */
+	public synchronized Pipeline<T> start() {
+		if (running)
+			throw new IllegalStateException("Already started");
+		if (stages.isEmpty())
+			throw new IllegalStateException("No stages");
+		running = true;
+		startTime = System.nanoTime();
+		//Not daemons, like a processor's thread, so they keep the program running
+		for (StageThread stage : getThreads())
+			stage.thread = new Thread(stage, name + "-" + stage.name);
+		for (StageThread stage : getThreads())
+			stage.thread.start();
+		return this;
+	}
+
+	/**
+	 * Wait for the items in the pipeline to get through (for up to
+	 * {@link #DRAIN_MILLIS}), and then stop the stage threads, and wait for
+	 * them to exit. Items that are still in the pipeline after that are
+	 * passed to the {@linkplain #setDropHandler(Consumer) drop handler}, and
+	 * freed. Nothing may be submitted once this is called.
+	 * <p>
+	 * Keeps waiting if interrupted, because the stages could still be using
+	 * the items, but the interrupt is kept.
+	 * </p>
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		boolean interrupted = false;
+		final long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+		while (freed.get() < submitted.get()) {
+			if (System.currentTimeMillis() > deadline) {
+				System.err.println("Pipeline " + name + " didn't drain; dropping " + (submitted.get() - freed.get()) + " items");
+				break;
+			}
+			LockSupport.parkNanos(this, IDLE_NANOS);
+			if (Thread.interrupted())
+				interrupted = true;
+		}
+		running = false;
+		for (StageThread stage : getThreads())
+			if (stage.thread != null)
+				LockSupport.unpark(stage.thread);
+		for (StageThread stage : getThreads()) {
+			while (stage.thread != null && stage.thread.isAlive()) {
+				try {
+					stage.thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		//Every item is either free, or waiting for a stage
+		final Consumer<T> dropHandler = this.dropHandler;
+		for (StageThread stage : getThreads()) {
+			T item;
+			while ((item = stage.input.poll()) != null) {
+				if (dropHandler != null)
+					dropHandler.accept(item);
+				free.offer(item);
+				freed.incrementAndGet();
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * @return the stages, and then the output (if there is one)
+	 */
+	protected List<StageThread> getThreads() {
+		if (output == null)
+			return stages;
+		List<StageThread> threads = new ArrayList<>(stages);
+		threads.add(output);
+		return threads;
+	}
+
+	/**
+	 * Take a free item to fill in. Must only be called from one thread (the
+	 * one that submits items).
+	 * @return the item, or null if every item is in the pipeline
+	 */
+	public T take() {
+		T item = free.poll();
+		if (item == null)
+			rejected.incrementAndGet();
+		return item;
+	}
+
+	/**
+	 * Send an item (from {@link #take()}) through the pipeline. Must be called
+	 * from the same thread as {@link #take()}.
+	 * @param item the item
+	 */
+	public void submit(T item) {
+		item.finished = false;
+		item.failed = false;
+		item.submitTime = System.nanoTime();
+		submitted.incrementAndGet();
+		final StageThread first = stages.get(0);
+		first.input.offer(item);
+		LockSupport.unpark(first.thread);
+	}
+
+	/**
+	 * Run an item through every stage on this thread, without outputting it.
+	 * Must only be called while the pipeline isn't running (e.g., by offline
+	 * tools).
+	 * @param item the item (does not have to be one of the pipeline's)
+	 * @return whether every stage succeeded
+	 */
+	public boolean runInline(T item) {
+		if (running)
+			throw new IllegalStateException("Pipeline is running");
+		item.finished = false;
+		item.failed = false;
+		item.submitTime = System.nanoTime();
+		for (StageThread stage : stages)
+			stage.runStage(item);
+		return !item.failed;
+	}
+
+	/**
+	 * Count an item that made it through the pipeline, and free it
+	 */
+	protected void complete(T item) {
+		if (!item.failed) {
+			final long latency = System.nanoTime() - item.submitTime;
+			latencyNanos.addAndGet(latency);
+			long max;
+			while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency));
+			if (completed.incrementAndGet() % LOG_INTERVAL == 0)
+				System.out.println(this);
+		}
+		free.offer(item);
+		freed.incrementAndGet();
+	}
+
+	/**
+	 * @return the stages, in order, and then the output (if there is one)
+	 */
+	public List<StageThread> getStages() {
+		return Collections.unmodifiableList(getThreads());
+	}
+
+	/**
+	 * @return the number of items submitted
+	 */
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return the number of items output
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the number of times that an item was wanted, but all of them
+	 *     were in the pipeline
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the average time from when an item was submitted to when it
+	 *     was output, in nanoseconds
+	 */
+	public long getAverageLatencyNanos() {
+		final long n = completed.get();
+		return n == 0 ? 0 : latencyNanos.get() / n;
+	}
+
+	/**
+	 * @return the longest time from when an item was submitted to when it
+	 *     was output, in nanoseconds
+	 */
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		final long uptime = Math.max(1, System.nanoTime() - startTime);
+		StringBuilder sb = new StringBuilder()
+				.append("Pipeline ").append(name).append(": ")
+				.append(completed.get()).append(" out, ")
+				.append(rejected.get()).append(" rejected, ")
+				.append(String.format("%.1fms avg latency, %.1fms max", getAverageLatencyNanos() / 1e6, getMaxLatencyNanos() / 1e6));
+		for (StageThread stage : getThreads())
+			sb.append("\n\t").append(stage).append(String.format(" (%d%% busy)", stage.getBusyNanos() * 100 / uptime));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,459 @@
+package com.moe365.mopi.processing;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.moe365.mopi.capture.CapturedFrame;
+import com.moe365.mopi.geom.PreciseRectangle;
+
+/**
+ * Runs several processors side by side on the same frame pairs, so that
+ * they can be compared.
+ * <p>
+ * Every frame pair that this processor takes is handed to all of the
+ * processors at once: the primary runs on this processor's thread, and each
+ * of the others runs on its own thread. For each processor, the time that
+ * it took is recorded, and for the others, how well its targets agree with
+ * the primary's (the IoU of matching targets). Only the primary's result is
+ * passed on to the result consumer, as soon as the primary is done; the
+ * others are waited for before the pair's frames are released, and their
+ * results are thrown away.
+ * </p>
+ * <p>
+ * The processors' own threads are never started. Settings that apply to
+ * the whole pair (the scheduler and change detection) should be set on this
+ * processor, while settings that apply to the way a processor looks at the
+ * frames (like previews) should be set on the processors themselves. The
+ * processors always do a full sweep, so that they are compared fairly; a
+ * scheduler set on this processor only drops pairs that are already too
+ * old.
+ * </p>
+ * @param <R> the result type of the primary processor
+ */
+public class ProcessorComparison<R> extends AbstractImageProcessor<R> {
+	/**
+	 * Number of latency samples that are kept for each processor
+	 */
+	public static final int SAMPLES = 256;
+
+	/**
+	 * Running statistics for one of the compared processors
+	 */
+	public static class Stats {
+		/**
+		 * Name of the processor
+		 */
+		protected final String name;
+		/**
+		 * Ring buffer of the most recent latencies, in nanoseconds
+		 */
+		protected final long[] latencies = new long[SAMPLES];
+		/**
+		 * Total number of latencies recorded
+		 */
+		protected long count = 0;
+		/**
+		 * Sum of the agreement of every pair compared with the primary
+		 */
+		protected double agreementSum = 0;
+		/**
+		 * Number of pairs compared with the primary
+		 */
+		protected long compared = 0;
+		/**
+		 * Number of pairs that the processor failed on
+		 */
+		protected final AtomicLong errors = new AtomicLong(0);
+
+		protected Stats(String name) {
+			this.name = name;
+		}
+
+		protected synchronized void record(long latency) {
+			latencies[(int) (count++ % SAMPLES)] = latency;
+		}
+
+		protected synchronized void recordAgreement(double agreement) {
+			agreementSum += agreement;
+			compared++;
+		}
+
+		/**
+		 * @return the name of the processor
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get a percentile of the recent latencies
+		 * @param percentile the percentile, from 0 to 1
+		 * @return the latency, in milliseconds, or 0 if there are no samples
+		 */
+		public double getLatencyPercentile(double percentile) {
+			long[] samples;
+			synchronized (this) {
+				samples = Arrays.copyOf(latencies, (int) Math.min(count, SAMPLES));
+			}
+			if (samples.length == 0)
+				return 0;
+			Arrays.sort(samples);
+			int idx = (int) Math.ceil(percentile * samples.length) - 1;
+			return samples[Math.max(0, Math.min(idx, samples.length - 1))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		/**
+		 * @return the mean agreement with the primary (1 is perfect), or NaN
+		 *     if no pairs were compared
+		 */
+		public synchronized double getAgreement() {
+			return compared == 0 ? Double.NaN : agreementSum / compared;
+		}
+
+		/**
+		 * @return the number of pairs compared with the primary
+		 */
+		public synchronized long getComparedCount() {
+			return compared;
+		}
+
+		/**
+		 * @return the number of latencies recorded
+		 */
+		public synchronized long getSampleCount() {
+			return count;
+		}
+
+		/**
+		 * @return the number of pairs that the processor failed on
+		 */
+		public long getErrorCount() {
+			return errors.get();
+		}
+	}
+
+	/**
+	 * The processor whose results are used
+	 */
+	protected final AbstractImageProcessor<R> primary;
+	/**
+	 * The processors that are compared against the primary
+	 */
+	protected final List<AbstractImageProcessor<?>> secondaries;
+	/**
+	 * Statistics for each processor. The primary's is first, followed by
+	 * the secondaries' in order.
+	 */
+	protected final List<Stats> stats;
+	/**
+	 * Pool that the secondaries run on, with a thread for each
+	 */
+	protected final ExecutorService compareExecutor;
+	/**
+	 * Number of pairs processed
+	 */
+	protected final AtomicLong pairs = new AtomicLong(0);
+	/**
+	 * The secondaries that are still running on the last pair. Its frames
+	 * can't be released until they're done.
+	 */
+	protected List<Future<List<PreciseRectangle>>> pending = Collections.emptyList();
+	/**
+	 * The primary's targets for the last pair, to compare the secondaries'
+	 * with (null if they can't be compared)
+	 */
+	protected List<PreciseRectangle> pendingExpected;
+
+	/**
+	 * Create a comparison
+	 * @param primary processor whose results are used. Its result consumer
+	 *     becomes this processor's.
+	 * @param secondaries processors to compare against the primary. Their
+	 *     result consumers are never called.
+	 */
+	public ProcessorComparison(AbstractImageProcessor<R> primary, List<AbstractImageProcessor<?>> secondaries) {
+		super(primary.frameMinX, primary.frameMinY, primary.frameMaxX, primary.frameMaxY, primary.resultConsumer);
+		if (secondaries.isEmpty())
+			throw new IllegalArgumentException("Nothing to compare against");
+		this.primary = primary;
+		this.secondaries = new ArrayList<>(secondaries);
+		this.classifier = primary.getClassifier();
+
+		List<Stats> stats = new ArrayList<>(secondaries.size() + 1);
+		stats.add(new Stats(primary.getClass().getSimpleName()));
+		for (AbstractImageProcessor<?> secondary : secondaries)
+			stats.add(new Stats(secondary.getClass().getSimpleName()));
+		this.stats = Collections.unmodifiableList(stats);
+
+		final String compareThreadName = "CompareThread-" + id + "-";
+		final AtomicLong threadCount = new AtomicLong(0);
+		this.compareExecutor = Executors.newFixedThreadPool(secondaries.size(), r -> {
+			Thread compareThread = new Thread(r, compareThreadName + threadCount.getAndIncrement());
+			compareThread.setDaemon(true);
+			return compareThread;
+		});
+	}
+
+	/**
+	 * Set the classifier for all of the compared processors
+	 */
+	@Override
+	public AbstractImageProcessor<R> setClassifier(ColorClassifier classifier) {
+		super.setClassifier(classifier);
+		primary.setClassifier(classifier);
+		for (AbstractImageProcessor<?> secondary : secondaries)
+			secondary.setClassifier(classifier);
+		return this;
+	}
+
+	/**
+	 * Set the target filter for all of the compared processors
+	 */
+	@Override
+	public AbstractImageProcessor<R> setTargetFilter(TargetFilter filter) {
+		super.setTargetFilter(filter);
+		primary.setTargetFilter(filter);
+		for (AbstractImageProcessor<?> secondary : secondaries)
+			secondary.setTargetFilter(filter);
+		return this;
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		compareExecutor.shutdownNow();
+		//The processors' threads were never started, so closing them only shuts down their pools
+		primary.close();
+		for (AbstractImageProcessor<?> secondary : secondaries)
+			secondary.close();
+	}
+
+	/**
+	 * @return the processor whose results are used
+	 */
+	public AbstractImageProcessor<R> getPrimary() {
+		return primary;
+	}
+
+	/**
+	 * Process the images with every processor, one after another
+	 */
+	@Override
+	protected R processImages(BufferedImage imgOn, BufferedImage imgOff) {
+		for (AbstractImageProcessor<?> secondary : secondaries)
+			secondary.processImages(imgOn, imgOff);
+		return primary.processImages(imgOn, imgOff);
+	}
+
+	/**
+	 * Run the frames through every processor, and wait for the secondaries
+	 * to be done with them
+	 */
+	@Override
+	public List<PreciseRectangle> detect(CapturedFrame frameOn, CapturedFrame frameOff) {
+		try {
+			return super.detect(frameOn, frameOff);
+		} finally {
+			awaitSecondaries();
+		}
+	}
+
+	@Override
+	protected R copyResult(R result) {
+		return primary.copyResult(result);
+	}
+
+	@Override
+	protected List<PreciseRectangle> getTargets(R result) {
+		return primary.getTargets(result);
+	}
+
+	/**
+	 * Run a processor on a frame pair, and record how long it took
+	 * @return the targets that it found (null if they can't be compared)
+	 */
+	protected static <T> List<PreciseRectangle> runSecondary(AbstractImageProcessor<T> processor, Stats stats, CapturedFrame frameOn, CapturedFrame frameOff) {
+		final long start = System.nanoTime();
+		T result = processor.apply(frameOn, frameOff);
+		stats.record(System.nanoTime() - start);
+		return result == null ? null : processor.getTargets(result);
+	}
+
+	@Override
+	public R apply(CapturedFrame frameOn, CapturedFrame frameOff) {
+		//Only one pair can be compared at a time
+		awaitSecondaries();
+		//Start the secondaries, then run the primary while they're going
+		List<Future<List<PreciseRectangle>>> tasks = new ArrayList<>(secondaries.size());
+		for (int i = 0; i < secondaries.size(); i++) {
+			final AbstractImageProcessor<?> secondary = secondaries.get(i);
+			final Stats stats = this.stats.get(i + 1);
+			tasks.add(compareExecutor.submit(() -> runSecondary(secondary, stats, frameOn, frameOff)));
+		}
+		this.pending = tasks;
+		this.pendingExpected = null;
+
+		R result;
+		final long start = System.nanoTime();
+		try {
+			result = primary.apply(frameOn, frameOff);
+		} catch (RuntimeException e) {
+			stats.get(0).errors.incrementAndGet();
+			throw e;
+		}
+		stats.get(0).record(System.nanoTime() - start);
+		//Get the targets before the consumer has a chance to modify the result
+		this.pendingExpected = result == null ? null : primary.getTargets(result);
+		pairs.incrementAndGet();
+		//The secondaries are waited for when the frames are released, so the result can be passed on now
+		return result;
+	}
+
+	/**
+	 * Wait for the secondaries to finish the last pair, and compare their
+	 * targets with the primary's. Waits even if interrupted, because they
+	 * could still be reading the frames.
+	 */
+	protected void awaitSecondaries() {
+		final List<Future<List<PreciseRectangle>>> tasks = this.pending;
+		if (tasks.isEmpty())
+			return;
+		final List<PreciseRectangle> expected = this.pendingExpected;
+		this.pending = Collections.emptyList();
+		this.pendingExpected = null;
+		boolean interrupted = false;
+		for (int i = 0; i < tasks.size(); i++) {
+			final Stats stats = this.stats.get(i + 1);
+			List<PreciseRectangle> actual;
+			while (true) {
+				try {
+					actual = tasks.get(i).get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					//A broken secondary shouldn't take down the primary
+					System.err.println(stats.getName() + " failed:");
+					e.getCause().printStackTrace();
+					stats.errors.incrementAndGet();
+					actual = null;
+					break;
+				}
+			}
+			if (expected != null && actual != null)
+				stats.recordAgreement(agreement(expected, actual));
+		}
+		forgetPreviews();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	protected void releaseFrames() {
+		awaitSecondaries();
+		super.releaseFrames();
+	}
+
+	@Override
+	protected void dropFrames() {
+		awaitSecondaries();
+		super.dropFrames();
+	}
+
+	/**
+	 * The processors' threads would normally forget their previews after each
+	 * pair, because the frames are reused, so we have to do it for them.
+	 */
+	protected void forgetPreviews() {
+		primary.previewedOn = primary.previewedOff = null;
+		for (AbstractImageProcessor<?> secondary : secondaries)
+			secondary.previewedOn = secondary.previewedOff = null;
+	}
+
+	/**
+	 * Compute how well two sets of targets agree. Each expected target is
+	 * matched with the actual target that overlaps it the most, and the IoUs
+	 * of the matches are averaged over the size of the larger set, so that
+	 * missing and extra targets both count against the agreement.
+	 * @param expected the primary's targets
+	 * @param actual the targets to compare against them
+	 * @return the agreement, from 0 (nothing in common) to 1 (identical)
+	 */
+	public static double agreement(List<PreciseRectangle> expected, List<PreciseRectangle> actual) {
+		final int n = Math.max(expected.size(), actual.size());
+		if (n == 0)
+			//Both agree that there's nothing there
+			return 1;
+		double sum = 0;
+		for (PreciseRectangle a : expected) {
+			double best = 0;
+			for (PreciseRectangle b : actual)
+				best = Math.max(best, iou(a, b));
+			sum += best;
+		}
+		return sum / n;
+	}
+
+	/**
+	 * @return the intersection over union of two rectangles
+	 */
+	public static double iou(PreciseRectangle a, PreciseRectangle b) {
+		double w = Math.min(a.getX() + a.getWidth(), b.getX() + b.getWidth()) - Math.max(a.getX(), b.getX());
+		double h = Math.min(a.getY() + a.getHeight(), b.getY() + b.getHeight()) - Math.max(a.getY(), b.getY());
+		if (w <= 0 || h <= 0)
+			return 0;
+		double intersection = w * h;
+		return intersection / (a.getArea() + b.getArea() - intersection);
+	}
+
+	/**
+	 * @return statistics for each processor, starting with the primary
+	 */
+	public List<Stats> getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the number of pairs that all processors were run on
+	 */
+	public long getPairCount() {
+		return pairs.get();
+	}
+
+	/**
+	 * Format the statistics as JSON, for the HTTP server
+	 * @return JSON object with the latency percentiles (in milliseconds) and
+	 *     agreement of each processor
+	 */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder("{\"pairs\":").append(getPairCount()).append(",\"processors\":[");
+		for (int i = 0; i < stats.size(); i++) {
+			Stats stat = stats.get(i);
+			if (i > 0)
+				sb.append(',');
+			sb.append("{\"name\":\"").append(stat.getName())
+				.append("\",\"primary\":").append(i == 0)
+				.append(",\"samples\":").append(stat.getSampleCount())
+				.append(",\"p50\":").append(stat.getLatencyPercentile(.5))
+				.append(",\"p90\":").append(stat.getLatencyPercentile(.9))
+				.append(",\"p99\":").append(stat.getLatencyPercentile(.99))
+				.append(",\"errors\":").append(stat.getErrorCount());
+			if (i > 0) {
+				double agreement = stat.getAgreement();
+				sb.append(",\"compared\":").append(stat.getComparedCount())
+					.append(",\"agreement\":").append(Double.isNaN(agreement) ? "null" : Double.toString(agreement));
+			}
+			sb.append('}');
+		}
+		return sb.append("]}").toString();
+	}
+}
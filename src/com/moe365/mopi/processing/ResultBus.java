@@ -0,0 +1,315 @@
+package com.moe365.mopi.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hands results from a processor to any number of subscribers (e.g., the
+ * Rio, the SSE stream, the console), each on its own thread, so that a slow
+ * subscriber never holds up the processor, or the other subscribers.
+ * <p>
+ * Results are published into a ring buffer, which each subscriber reads at
+ * its own pace. A subscriber that falls more than a buffer behind loses the
+ * oldest results; a subscriber that only cares about the newest result
+ * skips straight to it (see {@link DropPolicy}). Subscribers are woken in
+ * order of priority, and their threads get that priority, so the Rio can be
+ * served first.
+ * </p>
+ * <p>
+ * Results must not be modified once published, because every subscriber
+ * gets the same object. Publishing is synchronized, so that a processor
+ * that is being swapped out can finish its last pair while the new one
+ * starts publishing; the lock is uncontended the rest of the time.
+ * </p>
+ * @param <R> the type of result
+ */
+public class ResultBus<R> implements Consumer<R> {
+	/**
+	 * Number of results published between logging stats
+	 */
+	protected static final int LOG_INTERVAL = 500;
+	/**
+	 * Longest that a subscriber sleeps while waiting for a result, before
+	 * checking again. Subscribers are woken up when a result is published,
+	 * so this is just a backstop.
+	 */
+	protected static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	/**
+	 * Read from a slot that was overwritten while it was being read
+	 */
+	protected static final Object OVERWRITTEN = new Object();
+
+	/**
+	 * What a subscriber does when it falls behind
+	 */
+	public static enum DropPolicy {
+		/**
+		 * Skip straight to the newest result, dropping any that weren't
+		 * handled yet. For subscribers that only care about where the targets
+		 * are now.
+		 */
+		LATEST,
+		/**
+		 * Handle every result, in order, unless it falls more than a buffer
+		 * behind, in which case the oldest results are dropped. For
+		 * subscribers that keep a history.
+		 */
+		OLDEST
+	}
+
+	/**
+	 * A subscriber, with its own thread
+	 */
+	public class Subscriber implements Runnable {
+		protected final String name;
+		protected final Consumer<? super R> consumer;
+		protected final DropPolicy policy;
+		protected final int priority;
+		protected final Thread thread;
+		/**
+		 * Sequence number of the next result to handle. Only written by the
+		 * subscriber's thread.
+		 */
+		protected final AtomicLong cursor = new AtomicLong(0);
+		protected final AtomicLong delivered = new AtomicLong(0);
+		protected final AtomicLong dropped = new AtomicLong(0);
+		/**
+		 * Most results that the subscriber has been behind by
+		 */
+		protected final AtomicLong maxLag = new AtomicLong(0);
+
+		protected Subscriber(String name, Consumer<? super R> consumer, DropPolicy policy, int priority) {
+			this.name = name;
+			this.consumer = consumer;
+			this.policy = policy;
+			this.priority = priority;
+			//Start where the bus is now; there's no point in handling old results
+			this.cursor.set(published.get());
+			this.thread = new Thread(this, ResultBus.this.name + "-" + name);
+			thread.setDaemon(true);
+			thread.setPriority(priority);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				final long available = published.get();
+				long cursor = this.cursor.get();
+				if (cursor >= available) {
+					LockSupport.parkNanos(this, IDLE_NANOS);
+					continue;
+				}
+				final long lag = available - cursor;
+				long max;
+				while (lag > (max = maxLag.get()) && !maxLag.compareAndSet(max, lag));
+				//Catch up, if behind
+				final long oldest = policy == DropPolicy.LATEST ? available - 1 : available - capacity;
+				if (cursor < oldest) {
+					dropped.addAndGet(oldest - cursor);
+					this.cursor.set(cursor = oldest);
+				}
+
+				final Object result = read(cursor);
+				if (result == OVERWRITTEN) {
+					//The publisher lapped us while reading; start over
+					Thread.yield();
+					continue;
+				}
+				this.cursor.set(cursor + 1);
+				try {
+					@SuppressWarnings("unchecked")
+					R value = (R) result;
+					consumer.accept(value);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				delivered.incrementAndGet();
+			}
+		}
+
+		/**
+		 * @return the name of the subscriber
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the number of results that the subscriber handled
+		 */
+		public long getDeliveredCount() {
+			return delivered.get();
+		}
+
+		/**
+		 * @return the number of results that the subscriber skipped, because it
+		 *     fell behind
+		 */
+		public long getDroppedCount() {
+			return dropped.get();
+		}
+
+		/**
+		 * @return the number of results published that the subscriber hasn't
+		 *     handled yet
+		 */
+		public long getLag() {
+			return Math.max(0, published.get() - cursor.get());
+		}
+
+		/**
+		 * @return the most results that the subscriber has been behind by
+		 */
+		public long getMaxLag() {
+			return maxLag.get();
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + delivered.get() + " handled, " + dropped.get() + " dropped, lag " + getLag() + " (max " + maxLag.get() + ")";
+		}
+	}
+
+	protected final String name;
+	/**
+	 * Size of the ring buffer (a power of 2)
+	 */
+	protected final int capacity;
+	protected final int mask;
+	protected final AtomicReferenceArray<Object> values;
+	/**
+	 * Sequence number of the result in each slot, or -1 while it's being
+	 * written
+	 */
+	protected final AtomicLongArray sequences;
+	/**
+	 * Number of results published
+	 */
+	protected final AtomicLong published = new AtomicLong(0);
+	/**
+	 * Subscribers, highest priority first. Replaced (not modified) when
+	 * someone subscribes, so publishing doesn't have to lock or allocate.
+	 */
+	protected volatile List<Subscriber> subscribers = Collections.emptyList();
+	protected volatile boolean running = true;
+
+	/**
+	 * Create a bus
+	 * @param name name of the bus (for its threads, and stats)
+	 * @param capacity number of results that a subscriber can fall behind by
+	 *     before it loses any (rounded up to a power of 2)
+	 */
+	public ResultBus(String name, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity (expect: capacity >= 1; capacity = " + capacity + ")");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.name = name;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.values = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, -1);
+	}
+
+	/**
+	 * Add a subscriber, and start its thread. It gets results published from
+	 * now on.
+	 * @param name name of the subscriber
+	 * @param consumer what to do with each result
+	 * @param policy what to do when the subscriber falls behind
+	 * @param priority priority of the subscriber (and its thread), from
+	 *     {@link Thread#MIN_PRIORITY} to {@link Thread#MAX_PRIORITY}
+	 * @return the subscriber
+	 */
+	public synchronized Subscriber subscribe(String name, Consumer<? super R> consumer, DropPolicy policy, int priority) {
+		if (!running)
+			throw new IllegalStateException("Bus was stopped");
+		Subscriber subscriber = new Subscriber(name, consumer, policy, priority);
+		List<Subscriber> subscribers = new ArrayList<>(this.subscribers);
+		subscribers.add(subscriber);
+		subscribers.sort((a, b) -> Integer.compare(b.priority, a.priority));
+		this.subscribers = Collections.unmodifiableList(subscribers);
+		subscriber.thread.start();
+		return subscriber;
+	}
+
+	/**
+	 * Publish a result to every subscriber. Doesn't wait for any of them.
+	 * @param result the result (must not be modified afterwards)
+	 */
+	@Override
+	public synchronized void accept(R result) {
+		final long sequence = published.get();
+		final int index = (int) sequence & mask;
+		//Invalidate the slot first, so that a subscriber reading it can tell it changed
+		sequences.set(index, -1);
+		values.set(index, result);
+		sequences.set(index, sequence);
+		published.set(sequence + 1);
+		final List<Subscriber> subscribers = this.subscribers;
+		//Not a for-each, so there's no iterator to allocate
+		for (int i = 0; i < subscribers.size(); i++)
+			LockSupport.unpark(subscribers.get(i).thread);
+		if ((sequence + 1) % LOG_INTERVAL == 0)
+			System.out.println(this);
+	}
+
+	/**
+	 * Read a result
+	 * @param sequence sequence number of the result
+	 * @return the result, or {@link #OVERWRITTEN} if it was overwritten
+	 */
+	protected Object read(long sequence) {
+		final int index = (int) sequence & mask;
+		if (sequences.get(index) != sequence)
+			return OVERWRITTEN;
+		final Object value = values.get(index);
+		if (sequences.get(index) != sequence)
+			return OVERWRITTEN;
+		return value;
+	}
+
+	/**
+	 * Stop every subscriber's thread. Results that weren't handled yet are
+	 * dropped.
+	 */
+	public synchronized void stop() {
+		running = false;
+		for (Subscriber subscriber : subscribers)
+			LockSupport.unpark(subscriber.thread);
+	}
+
+	/**
+	 * @return the subscribers, highest priority first
+	 */
+	public List<Subscriber> getSubscribers() {
+		return subscribers;
+	}
+
+	/**
+	 * @return the number of results published
+	 */
+	public long getPublishedCount() {
+		return published.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder()
+				.append("Result bus ").append(name).append(": ")
+				.append(published.get()).append(" published");
+		for (Subscriber subscriber : subscribers)
+			sb.append("\n\t").append(subscriber);
+		return sb.toString();
+	}
+}
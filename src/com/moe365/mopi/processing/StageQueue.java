@@ -0,0 +1,84 @@
+package com.moe365.mopi.processing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue between two threads (one that offers, and one
+ * that polls), backed by a ring buffer, so passing an item doesn't allocate.
+ * <p>
+ * Only safe with a single producer and a single consumer.
+ * </p>
+ * @param <T> type of item
+ */
+public class StageQueue<T> {
+	protected final Object[] items;
+	protected final int mask;
+	/**
+	 * Number of items ever polled. Only written by the consumer.
+	 */
+	protected final AtomicLong head = new AtomicLong(0);
+	/**
+	 * Number of items ever offered. Only written by the producer.
+	 */
+	protected final AtomicLong tail = new AtomicLong(0);
+
+	/**
+	 * Create a queue
+	 * @param capacity most items that the queue will hold (rounded up to a
+	 *     power of 2)
+	 */
+	public StageQueue(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity (expect: capacity >= 1; capacity = " + capacity + ")");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.items = new Object[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Add an item. Must only be called from the producer thread.
+	 * @param item item to add
+	 * @return whether there was room
+	 */
+	public boolean offer(T item) {
+		final long tail = this.tail.get();
+		if (tail - head.get() >= items.length)
+			return false;
+		items[(int) tail & mask] = item;
+		//Publishes the item
+		this.tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Remove the oldest item. Must only be called from the consumer thread.
+	 * @return the item, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		final long head = this.head.get();
+		if (head >= tail.get())
+			return null;
+		final int index = (int) head & mask;
+		final T item = (T) items[index];
+		items[index] = null;
+		this.head.lazySet(head + 1);
+		return item;
+	}
+
+	/**
+	 * @return the number of items in the queue (may be stale)
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * @return the most items that the queue will hold
+	 */
+	public int capacity() {
+		return items.length;
+	}
+}
@@ -0,0 +1,268 @@
+package com.moe365.mopi.processing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which candidate targets are worth reporting, and keeps only the
+ * largest few of them.
+ * <p>
+ * Candidates are checked against every rule (aspect ratio, area, fill ratio,
+ * and position) as they come out of a processor, and the ones that pass go
+ * into a {@link Selector}, a bounded min-heap by area. Nothing is collected
+ * or sorted until the selector is drained, and then only the survivors are.
+ * </p>
+ * <p>
+ * All coordinates are scaled to the frame, so that (1, 1) is the
+ * bottom-right corner, so that the same filter works for any processor at
+ * any resolution.
+ * </p>
+ */
+public class TargetFilter {
+	/**
+	 * Range of allowed aspect ratios (height / width)
+	 */
+	protected double minAspectRatio = .1, maxAspectRatio = 10;
+	/**
+	 * Smallest allowed area
+	 */
+	protected double minArea = 0;
+	/**
+	 * Smallest allowed fraction of the bounding box that is part of the
+	 * target. 0 disables the check.
+	 */
+	protected double minFillRatio = 0;
+	/**
+	 * Region that the center of a target has to be in
+	 */
+	protected double regionMinX = 0, regionMinY = 0, regionMaxX = 1, regionMaxY = 1;
+	/**
+	 * Most targets to keep
+	 */
+	protected int maxTargets = Integer.MAX_VALUE;
+
+	/**
+	 * Set the range of allowed aspect ratios (height / width)
+	 * @param min smallest aspect ratio
+	 * @param max largest aspect ratio
+	 * @return self
+	 */
+	public TargetFilter setAspectRatio(double min, double max) {
+		if (min > max)
+			throw new IllegalArgumentException("Invalid aspect ratio range (expect: min <= max; min = " + min + ", max = " + max + ")");
+		this.minAspectRatio = min;
+		this.maxAspectRatio = max;
+		return this;
+	}
+
+	/**
+	 * @param minArea smallest allowed area, as a fraction of the frame
+	 * @return self
+	 */
+	public TargetFilter setMinArea(double minArea) {
+		this.minArea = minArea;
+		return this;
+	}
+
+	/**
+	 * @param minFillRatio smallest allowed fraction of a target's bounding
+	 *     box that is part of the target, or 0 to not check
+	 * @return self
+	 */
+	public TargetFilter setMinFillRatio(double minFillRatio) {
+		this.minFillRatio = minFillRatio;
+		return this;
+	}
+
+	/**
+	 * Set the region of the frame that the center of a target has to be in
+	 * @return self
+	 */
+	public TargetFilter setRegion(double minX, double minY, double maxX, double maxY) {
+		if (minX > maxX || minY > maxY)
+			throw new IllegalArgumentException("Invalid region (" + minX + ", " + minY + ") to (" + maxX + ", " + maxY + ")");
+		this.regionMinX = minX;
+		this.regionMinY = minY;
+		this.regionMaxX = maxX;
+		this.regionMaxY = maxY;
+		return this;
+	}
+
+	/**
+	 * @param maxTargets most targets to keep (the largest are kept)
+	 * @return self
+	 */
+	public TargetFilter setMaxTargets(int maxTargets) {
+		if (maxTargets < 1)
+			throw new IllegalArgumentException("Invalid max targets (expect: maxTargets >= 1; maxTargets = " + maxTargets + ")");
+		this.maxTargets = maxTargets;
+		return this;
+	}
+
+	/**
+	 * @return the most targets to keep
+	 */
+	public int getMaxTargets() {
+		return maxTargets;
+	}
+
+	/**
+	 * @return whether {@link #test(double, double, double, double, double)}
+	 *     needs the fill ratio. If not, processors don't have to compute it.
+	 */
+	public boolean needsFillRatio() {
+		return minFillRatio > 0;
+	}
+
+	/**
+	 * Check a candidate against every rule
+	 * @param x left edge
+	 * @param y top edge
+	 * @param width width
+	 * @param height height
+	 * @param fillRatio fraction of the bounding box that is part of the
+	 *     target (ignored unless {@link #needsFillRatio()})
+	 * @return whether the candidate passes
+	 */
+	public boolean test(double x, double y, double width, double height, double fillRatio) {
+		final double ar = height / width;
+		if (!(ar >= minAspectRatio && ar <= maxAspectRatio))
+			return false;
+		if (width * height < minArea)
+			return false;
+		if (minFillRatio > 0 && !(fillRatio >= minFillRatio))
+			return false;
+		final double cx = x + width / 2, cy = y + height / 2;
+		return cx >= regionMinX && cx <= regionMaxX && cy >= regionMinY && cy <= regionMaxY;
+	}
+
+	/**
+	 * Create a selector that keeps the largest {@link #getMaxTargets()}
+	 * candidates. Selectors can be reused (see {@link Selector#drain()}).
+	 */
+	public <T> Selector<T> newSelector() {
+		return new Selector<>(maxTargets);
+	}
+
+	/**
+	 * Bounded min-heap of candidates by area. Offering a candidate is
+	 * O(log k), and a candidate smaller than everything in a full heap is
+	 * rejected in O(1).
+	 * @param <T> type of candidate
+	 */
+	public static class Selector<T> {
+		/**
+		 * Most candidates to keep
+		 */
+		protected final int capacity;
+		/**
+		 * The heap. The smallest candidate is at index 0.
+		 */
+		protected Object[] items;
+		/**
+		 * Area of each item in {@link #items}
+		 */
+		protected double[] areas;
+		/**
+		 * Number of items in the heap
+		 */
+		protected int size = 0;
+
+		protected Selector(int capacity) {
+			this.capacity = capacity;
+			//Grow as needed, in case the capacity is huge
+			final int initial = Math.min(capacity, 8);
+			this.items = new Object[initial];
+			this.areas = new double[initial];
+		}
+
+		/**
+		 * @return whether a candidate with the given area would be kept (for
+		 *     now). Lets callers skip building candidates that won't be.
+		 */
+		public boolean wouldKeep(double area) {
+			return size < capacity || area > areas[0];
+		}
+
+		/**
+		 * Offer a candidate
+		 * @param item the candidate
+		 * @param area its area, which it is ranked by
+		 * @return whether it was kept (for now)
+		 */
+		public boolean offer(T item, double area) {
+			if (size < capacity) {
+				if (size == items.length) {
+					final int length = (int) Math.min((long) capacity, size * 2L);
+					items = Arrays.copyOf(items, length);
+					areas = Arrays.copyOf(areas, length);
+				}
+				//Sift up
+				int i = size++;
+				while (i > 0) {
+					int parent = (i - 1) >>> 1;
+					if (areas[parent] <= area)
+						break;
+					items[i] = items[parent];
+					areas[i] = areas[parent];
+					i = parent;
+				}
+				items[i] = item;
+				areas[i] = area;
+				return true;
+			}
+			if (area <= areas[0])
+				return false;
+			//Replace the smallest, and sift down
+			siftDown(item, area);
+			return true;
+		}
+
+		protected void siftDown(Object item, double area) {
+			int i = 0;
+			final int half = size >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && areas[child + 1] < areas[child])
+					child++;
+				if (area <= areas[child])
+					break;
+				items[i] = items[child];
+				areas[i] = areas[child];
+				i = child;
+			}
+			items[i] = item;
+			areas[i] = area;
+		}
+
+		/**
+		 * @return the number of candidates kept
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Take the kept candidates out, largest first, and reset the selector.
+		 * @return the candidates
+		 */
+		@SuppressWarnings("unchecked")
+		public List<T> drain() {
+			final int n = size;
+			Object[] result = new Object[n];
+			//Pop the smallest off the end
+			for (int i = n - 1; i >= 0; i--) {
+				result[i] = items[0];
+				size--;
+				if (size > 0)
+					siftDown(items[size], areas[size]);
+				items[size] = null;
+			}
+			List<T> list = new ArrayList<>(n);
+			for (Object item : result)
+				list.add((T) item);
+			return list;
+		}
+	}
+}